@@ -0,0 +1,70 @@
+package io.projectriff.invoker;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.projectriff.invoker.rpc.StartFrame;
+
+import org.springframework.http.MediaType;
+
+/**
+ * The content types declared once in a {@link StartFrame}, that subsequent frames may then refer to by their
+ * (1-based) index rather than by repeating the full string.
+ *
+ * <p>
+ * A reference of {@code 0} always means "not in the dictionary", in which case the plain {@code contentType}
+ * string of the frame is used. This makes the extension fully optional on both sides.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class ContentTypeDictionary {
+
+    public static final ContentTypeDictionary EMPTY = new ContentTypeDictionary(List.of());
+
+    private final String[] values;
+
+    private final MediaType[] mediaTypes;
+
+    private final Map<String, Integer> refs = new HashMap<>();
+
+    public ContentTypeDictionary(Collection<String> contentTypes) {
+        this.values = contentTypes.toArray(new String[0]);
+        this.mediaTypes = new MediaType[values.length];
+        for (int i = 0; i < values.length; i++) {
+            mediaTypes[i] = MediaTypeCache.parse(values[i]);
+            refs.putIfAbsent(values[i], i + 1);
+        }
+    }
+
+    public static ContentTypeDictionary of(StartFrame start) {
+        return start.getContentTypesCount() == 0 ? EMPTY : new ContentTypeDictionary(start.getContentTypesList());
+    }
+
+    public List<String> getContentTypes() {
+        return List.of(values);
+    }
+
+    /**
+     * Return the parsed content type of a frame, given its (possibly 0) reference and its plain string content type.
+     */
+    public MediaType resolve(int ref, String contentType) {
+        if (ref == 0) {
+            return MediaTypeCache.parse(contentType);
+        }
+        if (ref < 0 || ref > mediaTypes.length) {
+            throw new IllegalArgumentException("Unknown content type reference " + ref);
+        }
+        return mediaTypes[ref - 1];
+    }
+
+    /**
+     * Return the reference to use for the given content type, or {@code 0} if it is not part of this dictionary.
+     */
+    public int refOf(String contentType) {
+        Integer ref = refs.get(contentType);
+        return ref == null ? 0 : ref;
+    }
+}
@@ -0,0 +1,125 @@
+package io.projectriff.invoker;
+
+import java.time.Instant;
+import java.util.Map;
+
+import io.projectriff.invoker.jfr.FrameApplyEvent;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Timing information about a sampled input frame, as it travels through the invoker.
+ *
+ * <p>
+ * A client opts in by stamping some input frames with a {@link #TRACE_ID} and {@link #SENT_AT} header. The invoker
+ * then records when the frame was received, how long it took to decode, and how long it dwelled in the function
+ * before a result was produced. Those timings are attached to the headers of that output frame, together with how
+ * long it took to encode it.
+ * </p>
+ *
+ * <p>
+ * Streaming functions don't necessarily produce one result per input. A traced input is attributed to the next
+ * result produced after it has been handed to the function, and other traced inputs reaching the function in the
+ * meantime are ignored. For fan-in functions (windows, buffers), dwell hence measures how long the oldest traced input
+ * waited; for fan-out functions, only the first result of a traced input carries timings.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public final class FrameTrace {
+
+    public static final String TRACE_ID = "RiffTraceId";
+
+    /** Epoch microseconds at which the client sent the input frame. */
+    public static final String SENT_AT = "RiffSentAt";
+
+    /** Epoch microseconds at which the invoker received the input frame. */
+    public static final String RECEIVED_AT = "RiffReceivedAt";
+
+    /** Epoch microseconds at which the invoker sent the output frame. */
+    public static final String REPLIED_AT = "RiffRepliedAt";
+
+    public static final String DECODE_NANOS = "RiffDecodeNanos";
+
+    public static final String DWELL_NANOS = "RiffDwellNanos";
+
+    public static final String ENCODE_NANOS = "RiffEncodeNanos";
+
+    /**
+     * Marker for untraced frames.
+     */
+    public static final FrameTrace NONE = new FrameTrace(null, null, 0L, 0L);
+
+    private final String traceId;
+
+    private final String sentAt;
+
+    private final long receivedAt;
+
+    private final long decodeNanos;
+
+    private long deliveredAt;
+
+    private long dwellNanos;
+
+    private FrameApplyEvent apply;
+
+    private FrameTrace(String traceId, String sentAt, long receivedAt, long decodeNanos) {
+        this.traceId = traceId;
+        this.sentAt = sentAt;
+        this.receivedAt = receivedAt;
+        this.decodeNanos = decodeNanos;
+    }
+
+    /**
+     * Return a trace for an input frame with the given headers, or {@link #NONE} if it was not sampled by the client.
+     */
+    public static FrameTrace of(Map<String, String> headers, long receivedAt, long decodeStartNanos) {
+        String traceId = headers.get(TRACE_ID);
+        if (traceId == null) {
+            return NONE;
+        }
+        return new FrameTrace(traceId, headers.get(SENT_AT), receivedAt, System.nanoTime() - decodeStartNanos);
+    }
+
+    public static long nowMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1_000;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Record that the traced frame has been handed to the given function.
+     */
+    public void delivered(String function) {
+        deliveredAt = System.nanoTime();
+        apply = FrameApplyEvent.start(function, traceId);
+    }
+
+    /**
+     * Record that the function produced a result attributed to the traced frame.
+     */
+    public void produced() {
+        dwellNanos = System.nanoTime() - deliveredAt;
+        if (apply != null) {
+            apply.produced();
+        }
+    }
+
+    /**
+     * Set the timing headers of the result attributed to the traced frame.
+     */
+    public void writeTo(HttpHeaders headers, long encodeNanos) {
+        headers.set(TRACE_ID, traceId);
+        if (sentAt != null) {
+            headers.set(SENT_AT, sentAt);
+        }
+        headers.set(RECEIVED_AT, Long.toString(receivedAt));
+        headers.set(DECODE_NANOS, Long.toString(decodeNanos));
+        headers.set(DWELL_NANOS, Long.toString(dwellNanos));
+        headers.set(ENCODE_NANOS, Long.toString(encodeNanos));
+        headers.set(REPLIED_AT, Long.toString(nowMicros()));
+    }
+}
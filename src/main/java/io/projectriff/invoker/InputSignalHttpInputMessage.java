@@ -15,30 +15,55 @@ import static io.projectriff.invoker.HttpMessageUtils.RIFF_INPUT;
 /**
  * An implementation of {@link HttpInputMessage} that can be constructed from an {@link InputSignal}.
  *
- * Used on the serverside to decode the invocation request.
+ * Used on the serverside to decode the invocation request. Headers are computed lazily, at most once, and frames
+ * without custom headers share a read-only instance per content type and argument index.
  *
  * @author Eric Bottard
  */
 public class InputSignalHttpInputMessage implements HttpInputMessage {
 
-	private final InputSignal signal;
+	private final InputFrame data;
+
+	private final MediaType contentType;
+
+	private HttpHeaders headers;
 
 	public InputSignalHttpInputMessage(InputSignal signal) {
-		this.signal = signal;
+		this(signal.getData(), ContentTypeDictionary.EMPTY);
+	}
+
+	public InputSignalHttpInputMessage(InputFrame data, ContentTypeDictionary dictionary) {
+		this.data = data;
+		this.contentType = dictionary.resolve(data.getContentTypeRef(), data.getContentType());
+	}
+
+	public int getArgIndex() {
+		return data.getArgIndex();
+	}
+
+	public MediaType getContentType() {
+		return contentType;
 	}
 
 	@Override
 	public InputStream getBody() throws IOException {
-		return signal.getData().getPayload().newInput();
+		return data.getPayload().newInput();
 	}
 
 	@Override
 	public HttpHeaders getHeaders() {
-		HttpHeaders headers = new HttpHeaders();
-		InputFrame data = signal.getData();
-		data.getHeadersMap().forEach((k, v) -> headers.set(k, v));
-		headers.set(RIFF_INPUT, ""+ data.getArgIndex());
-		headers.setContentType(MediaType.parseMediaType(data.getContentType()));
+		if (headers == null) {
+			if (data.getHeadersCount() == 0) {
+				headers = MediaTypeCache.frameHeaders(contentType, RIFF_INPUT, data.getArgIndex());
+			}
+			else {
+				HttpHeaders h = new HttpHeaders();
+				data.getHeadersMap().forEach(h::set);
+				h.set(RIFF_INPUT, Integer.toString(data.getArgIndex()));
+				h.setContentType(contentType);
+				headers = HttpHeaders.readOnlyHttpHeaders(h);
+			}
+		}
 		return headers;
 	}
 }
@@ -0,0 +1,103 @@
+package io.projectriff.invoker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+/**
+ * A bounded cache of parsed {@link MediaType}s, keyed by their string representation.
+ *
+ * <p>
+ * Content types (and accept headers) come from a very small set of distinct values, yet used to be parsed
+ * again for every frame. Once the cache is full, values are still parsed but no longer remembered.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public final class MediaTypeCache {
+
+    private static final int MAX_ENTRIES = 256;
+
+    private static final Map<String, MediaType> mediaTypes = new ConcurrentHashMap<>();
+
+    private static final Map<String, List<MediaType>> mediaTypeLists = new ConcurrentHashMap<>();
+
+    private static final int MAX_INDEX = 32;
+
+    // By riff index header, then content type instance, then index: looking one up neither allocates a key nor hashes
+    // the media type (whose parameters would be iterated). Replaced as a whole when a new entry is added
+    private static volatile Map<String, Map<MediaType, HttpHeaders[]>> frameHeaders = Map.of();
+
+    private MediaTypeCache() {
+
+    }
+
+    public static MediaType parse(String value) {
+        MediaType result = mediaTypes.get(value);
+        if (result == null) {
+            result = MediaType.parseMediaType(value);
+            if (mediaTypes.size() < MAX_ENTRIES) {
+                mediaTypes.put(value, result);
+            }
+        }
+        return result;
+    }
+
+    public static List<MediaType> parseList(String value) {
+        List<MediaType> result = mediaTypeLists.get(value);
+        if (result == null) {
+            result = Collections.unmodifiableList(MediaType.parseMediaTypes(value));
+            if (mediaTypeLists.size() < MAX_ENTRIES) {
+                mediaTypeLists.put(value, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return a shared, read-only {@link HttpHeaders} that only carries the given content type and riff index header
+     * ({@code RiffInput} or {@code RiffOutput}), suitable for frames that don't have any custom header. These are the
+     * same headers a frame with custom headers gets, minus the custom ones.
+     */
+    public static HttpHeaders frameHeaders(MediaType contentType, String indexHeader, int index) {
+        Map<MediaType, HttpHeaders[]> byContentType = frameHeaders.get(indexHeader);
+        HttpHeaders[] byIndex = byContentType == null ? null : byContentType.get(contentType);
+        HttpHeaders result = byIndex != null && index < byIndex.length ? byIndex[index] : null;
+        if (result == null) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(indexHeader, Integer.toString(index));
+            headers.setContentType(contentType);
+            result = HttpHeaders.readOnlyHttpHeaders(headers);
+            if (index < MAX_INDEX) {
+                remember(contentType, indexHeader, index, result);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Content types come from this cache or from a ContentTypeDictionary, so that equal ones are most often the same
+     * instance. Those that aren't take an entry each, until there is no room left.
+     */
+    private static synchronized void remember(MediaType contentType, String indexHeader, int index, HttpHeaders headers) {
+        Map<MediaType, HttpHeaders[]> byContentType = new IdentityHashMap<>(frameHeaders.getOrDefault(indexHeader, Map.of()));
+        HttpHeaders[] byIndex = byContentType.get(contentType);
+        if (byIndex == null && byContentType.size() >= MAX_ENTRIES) {
+            return;
+        }
+        HttpHeaders[] grown = byIndex == null ? new HttpHeaders[index + 1]
+                : Arrays.copyOf(byIndex, Math.max(byIndex.length, index + 1));
+        grown[index] = headers;
+        byContentType.put(contentType, grown);
+        Map<String, Map<MediaType, HttpHeaders[]>> copy = new HashMap<>(frameHeaders);
+        copy.put(indexHeader, byContentType);
+        frameHeaders = copy;
+    }
+}
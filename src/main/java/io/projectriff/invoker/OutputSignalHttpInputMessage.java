@@ -20,24 +20,44 @@ import static io.projectriff.invoker.HttpMessageUtils.RIFF_OUTPUT;
  */
 public class OutputSignalHttpInputMessage implements HttpInputMessage {
 
-    private final OutputSignal signal;
+    private final OutputFrame data;
+
+    private final MediaType contentType;
+
+    private HttpHeaders headers;
 
     public OutputSignalHttpInputMessage(OutputSignal signal) {
-        this.signal = signal;
+        this(signal, ContentTypeDictionary.EMPTY);
+    }
+
+    public OutputSignalHttpInputMessage(OutputSignal signal, ContentTypeDictionary dictionary) {
+        this.data = signal.getData();
+        this.contentType = dictionary.resolve(data.getContentTypeRef(), data.getContentType());
+    }
+
+    public MediaType getContentType() {
+        return contentType;
     }
 
     @Override
     public InputStream getBody() throws IOException {
-        return signal.getData().getPayload().newInput();
+        return data.getPayload().newInput();
     }
 
     @Override
     public HttpHeaders getHeaders() {
-        HttpHeaders headers = new HttpHeaders();
-        OutputFrame data = signal.getData();
-        data.getHeadersMap().forEach((k, v) -> headers.set(k, v));
-        headers.set(RIFF_OUTPUT, "" + data.getResultIndex());
-        headers.setContentType(MediaType.parseMediaType(data.getContentType()));
+        if (headers == null) {
+            if (data.getHeadersCount() == 0) {
+                headers = MediaTypeCache.frameHeaders(contentType, RIFF_OUTPUT, data.getResultIndex());
+            }
+            else {
+                HttpHeaders h = new HttpHeaders();
+                data.getHeadersMap().forEach(h::set);
+                h.set(RIFF_OUTPUT, Integer.toString(data.getResultIndex()));
+                h.setContentType(contentType);
+                headers = HttpHeaders.readOnlyHttpHeaders(h);
+            }
+        }
         return headers;
     }
 }
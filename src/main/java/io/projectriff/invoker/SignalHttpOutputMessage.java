@@ -2,6 +2,8 @@ package io.projectriff.invoker;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
 
 import com.google.protobuf.ByteString;
 import io.projectriff.invoker.rpc.InputFrame;
@@ -37,26 +39,84 @@ public class SignalHttpOutputMessage implements HttpOutputMessage {
         return headers;
     }
 
+    /**
+     * Return the number of bytes written to the body so far.
+     */
+    public int size() {
+        return output.size();
+    }
+
+    /**
+     * Clear the headers and body of this message, so that it can be written again. Signals already obtained from it
+     * are not affected.
+     */
+    public void reset() {
+        output.reset();
+        headers.clear();
+    }
+
     public OutputSignal asOutputSignal() {
+        return asOutputSignal(ContentTypeDictionary.EMPTY);
+    }
+
+    public OutputSignal asOutputSignal(ContentTypeDictionary dictionary) {
+        return asOutputSignal(dictionary, 0L);
+    }
+
+    /**
+     * Return an output signal for this message, tagged with the sequence number of the input frame it was produced
+     * from (if non zero).
+     */
+    public OutputSignal asOutputSignal(ContentTypeDictionary dictionary, long sequence) {
+        String contentType = headers.getFirst(HttpHeaders.CONTENT_TYPE);
         OutputFrame.Builder data = OutputFrame.newBuilder()
                 .setPayload(output.toByteString())
-                .putAllHeaders(headers.toSingleValueMap())
-                .setContentType(headers.getContentType().toString())
-                .removeHeaders(CONTENT_TYPE)
-                .setResultIndex(Integer.parseInt(headers.getFirst(RIFF_OUTPUT)))
-                .removeHeaders(RIFF_OUTPUT);
+                .setResultIndex(Integer.parseInt(headers.getFirst(RIFF_OUTPUT)));
+        int ref = dictionary.refOf(contentType);
+        if (ref != 0) {
+            data.setContentTypeRef(ref);
+        }
+        else {
+            data.setContentType(contentType);
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (isCustomHeader(header.getKey(), RIFF_OUTPUT)) {
+                data.putHeaders(header.getKey(), header.getValue().get(0));
+            }
+        }
+        if (sequence != 0L) {
+            data.setSequence(sequence);
+        }
         return OutputSignal.newBuilder().setData(data).build();
     }
 
     public InputSignal asInputSignal() {
+        return asInputSignal(ContentTypeDictionary.EMPTY);
+    }
+
+    public InputSignal asInputSignal(ContentTypeDictionary dictionary) {
+        String contentType = headers.getFirst(HttpHeaders.CONTENT_TYPE);
         InputFrame.Builder data = InputFrame.newBuilder()
                 .setPayload(output.toByteString())
-                .putAllHeaders(headers.toSingleValueMap())
-                .setContentType(headers.getContentType().toString())
-                .removeHeaders(CONTENT_TYPE)
-                .setArgIndex(Integer.parseInt(headers.getFirst(RIFF_INPUT)))
-                .removeHeaders(RIFF_INPUT);
+                .setArgIndex(Integer.parseInt(headers.getFirst(RIFF_INPUT)));
+        int ref = dictionary.refOf(contentType);
+        if (ref != 0) {
+            data.setContentTypeRef(ref);
+        }
+        else {
+            data.setContentType(contentType);
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (isCustomHeader(header.getKey(), RIFF_INPUT)) {
+                data.putHeaders(header.getKey(), header.getValue().get(0));
+            }
+        }
         return InputSignal.newBuilder().setData(data).build();
     }
 
+    // Content-Type and the riff index travel as dedicated frame fields, not as headers
+    private static boolean isCustomHeader(String name, String indexHeader) {
+        return !HttpHeaders.CONTENT_TYPE.equalsIgnoreCase(name) && !indexHeader.equals(name);
+    }
+
 }
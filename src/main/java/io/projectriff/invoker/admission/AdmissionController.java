@@ -0,0 +1,108 @@
+package io.projectriff.invoker.admission;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Admits invocations (gRPC streams or http requests) as long as fewer than a dynamic concurrency limit are in flight,
+ * and rejects them early otherwise, instead of letting latency grow for everyone.
+ *
+ * <p>
+ * Each admitted invocation gets a {@link Permit}, which must be released once done. Releasing a permit of a
+ * successful invocation feeds its latency back to the {@link GradientConcurrencyLimit limit}.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class AdmissionController {
+
+    public static final String METRICS_PREFIX = "riff.invoker.admission";
+
+    private final GradientConcurrencyLimit limit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final Map<Priority, Counter> rejected = new EnumMap<>(Priority.class);
+
+    public AdmissionController(GradientConcurrencyLimit limit, MeterRegistry registry) {
+        this.limit = limit;
+        Gauge.builder(METRICS_PREFIX + ".limit", limit, GradientConcurrencyLimit::getLimit)
+                .description("Current concurrency limit")
+                .register(registry);
+        Gauge.builder(METRICS_PREFIX + ".inflight", inFlight, AtomicInteger::get)
+                .description("Admitted invocations currently in flight")
+                .register(registry);
+        for (Priority p : Priority.values()) {
+            rejected.put(p, Counter.builder(METRICS_PREFIX + ".rejected")
+                    .tag("priority", p.name().toLowerCase())
+                    .register(registry));
+        }
+    }
+
+    /**
+     * Try to admit an invocation of the given priority, returning {@code null} if the invoker is saturated.
+     */
+    public Permit tryAcquire(Priority priority) {
+        int max = Math.max(1, (int) (limit.getLimit() * priority.getShare()));
+        while (true) {
+            int current = inFlight.get();
+            if (current >= max) {
+                rejected.get(priority).increment();
+                return null;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return new Permit(current + 1);
+            }
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getLimit() {
+        return limit.getLimit();
+    }
+
+    /**
+     * An admitted invocation. Releasing it more than once has no effect.
+     */
+    public class Permit {
+
+        private final long start = System.nanoTime();
+
+        private final int inFlightAtStart;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(int inFlightAtStart) {
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * Release this permit after a successful invocation, whose latency is the time since admission divided by
+         * the given number of units of work (e.g. input frames of a stream).
+         */
+        public void success(int units) {
+            if (released.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                limit.onSample((System.nanoTime() - start) / Math.max(1, units), inFlightAtStart);
+            }
+        }
+
+        /**
+         * Release this permit after a failed or cancelled invocation, which says nothing about latency.
+         */
+        public void ignore() {
+            if (released.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package io.projectriff.invoker.admission;
+
+/**
+ * A concurrency limit that adapts to observed latency, following the "gradient" approach: the limit shrinks as
+ * latency samples grow above the latency observed without load (a sign of queueing), and grows by a small queue
+ * allowance otherwise.
+ *
+ * <p>
+ * On each sample, {@code newLimit = limit * gradient + sqrt(limit)}, with
+ * {@code gradient = clamp(tolerance * noLoadLatency / sample, 0.5, 1)}, and the limit moves towards that value by
+ * a smoothing factor. The no load latency is the minimum latency observed. It is measured again every so often,
+ * after halving the limit, so that it follows changes in the workload. The limit doesn't grow while less than half
+ * of it is in use, so that a quiet period doesn't leave an inflated limit behind.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class GradientConcurrencyLimit {
+
+    private static final double SMOOTHING = 0.2d;
+
+    private static final double TOLERANCE = 1.5d;
+
+    private static final int PROBE_INTERVAL = 2000;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private volatile double limit;
+
+    private double noLoadLatency;
+
+    private int samples;
+
+    public GradientConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException(String.format("Invalid limits: initial=%d, min=%d, max=%d",
+                    initialLimit, minLimit, maxLimit));
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Record a latency sample (of a successful invocation), given how many invocations were in flight when it
+     * started.
+     */
+    public synchronized void onSample(long latencyNanos, int inFlight) {
+        double sample = Math.max(1L, latencyNanos);
+        if (++samples % PROBE_INTERVAL == 0) {
+            // Probe: halve the limit and measure the no load latency again
+            noLoadLatency = 0d;
+            limit = Math.max(minLimit, limit / 2);
+            return;
+        }
+        noLoadLatency = noLoadLatency == 0d ? sample : Math.min(sample, noLoadLatency);
+        double gradient = Math.max(0.5d, Math.min(1d, TOLERANCE * noLoadLatency / sample));
+        if (gradient == 1d && inFlight < limit / 2) {
+            return;
+        }
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("GradientConcurrencyLimit[limit=%.1f, noLoadLatency=%.0fns]", limit, noLoadLatency);
+    }
+}
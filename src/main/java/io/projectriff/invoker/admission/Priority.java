@@ -0,0 +1,52 @@
+package io.projectriff.invoker.admission;
+
+/**
+ * Priority classes of invocations, which are shed in reverse order as the invoker gets saturated.
+ *
+ * <p>
+ * Clients pick a class with the {@value #HEADER} header (gRPC metadata or http header), {@link #NORMAL} being the
+ * default.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public enum Priority {
+
+    /** May use the whole concurrency limit. */
+    CRITICAL(1.0d),
+
+    /** Rejected once 90% of the concurrency limit is in use. */
+    NORMAL(0.9d),
+
+    /** Rejected once half of the concurrency limit is in use. */
+    SHEDDABLE(0.5d);
+
+    public static final String HEADER = "riff-priority";
+
+    private final double share;
+
+    Priority(double share) {
+        this.share = share;
+    }
+
+    /**
+     * Return the fraction of the concurrency limit that invocations of this class may use.
+     */
+    public double getShare() {
+        return share;
+    }
+
+    /**
+     * Parse a (case insensitive) header value, defaulting to {@link #NORMAL} if absent or unknown.
+     */
+    public static Priority parse(String value) {
+        if (value != null) {
+            for (Priority p : values()) {
+                if (p.name().equalsIgnoreCase(value)) {
+                    return p;
+                }
+            }
+        }
+        return NORMAL;
+    }
+}
@@ -0,0 +1,78 @@
+package io.projectriff.invoker.admission;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * A {@link ServerInterceptor} that fails calls with {@code RESOURCE_EXHAUSTED} right away when the
+ * {@link AdmissionController} doesn't admit them.
+ *
+ * <p>
+ * As {@code Invoke} calls are streams, the latency fed back to the controller is the duration of a call divided by
+ * the number of input messages it carried, <i>i.e.</i> an average time per element.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class ServerAdmissionInterceptor implements ServerInterceptor {
+
+    public static final Metadata.Key<String> PRIORITY_KEY = Metadata.Key.of(Priority.HEADER, Metadata.ASCII_STRING_MARSHALLER);
+
+    private final AdmissionController controller;
+
+    public ServerAdmissionInterceptor(AdmissionController controller) {
+        this.controller = controller;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        AdmissionController.Permit permit = controller.tryAcquire(Priority.parse(headers.get(PRIORITY_KEY)));
+        if (permit == null) {
+            call.close(Status.RESOURCE_EXHAUSTED.withDescription("Concurrency limit reached"), new Metadata());
+            return new ServerCall.Listener<ReqT>() {
+            };
+        }
+        AtomicInteger messages = new AtomicInteger();
+        ServerCall<ReqT, RespT> released = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                if (status.isOk()) {
+                    permit.success(messages.get());
+                }
+                else {
+                    permit.ignore();
+                }
+                super.close(status, trailers);
+            }
+        };
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(released, headers);
+        }
+        catch (RuntimeException e) {
+            permit.ignore();
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onMessage(ReqT message) {
+                messages.incrementAndGet();
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onCancel() {
+                permit.ignore();
+                super.onCancel();
+            }
+        };
+    }
+}
@@ -0,0 +1,228 @@
+package io.projectriff.invoker.artifact;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A local directory of function jars, unpacked once and reused by later starts.
+ *
+ * <p>
+ * Each jar is unpacked to a directory named after the SHA-256 of its content, so that a jar that did not change maps
+ * to the same directory across restarts, and a new version to a new one. The classes of a Spring Boot fat jar and
+ * each of its nested library jars are unpacked to their own {@link ExplodedArtifact#getRoots() root}, so that nothing
+ * is read from nested archives afterwards. An index of all the entries is written last, and the directory is only
+ * made visible (by renaming it into place) once complete, so that concurrent or interrupted starts never see a partial
+ * one.
+ * </p>
+ *
+ * <p>
+ * To avoid reading the whole jar to hash it on every start, the hash is remembered along with the size and
+ * modification time of the jar it was computed from.
+ * </p>
+ *
+ * @author Eric Bottard
+ * @see IndexedClassLoader
+ */
+public final class ArtifactCache {
+
+    private static final String STAMPS = "stamps";
+
+    private static final String BOOT_CLASSES = "Spring-Boot-Classes";
+
+    private static final String BOOT_LIB = "Spring-Boot-Lib";
+
+    private final Path directory;
+
+    public ArtifactCache(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        Files.createDirectories(directory.resolve(STAMPS));
+    }
+
+    /**
+     * Return the unpacked content of the given jar, unpacking it first if it is not in the cache yet.
+     */
+    public ExplodedArtifact open(Path jar) throws IOException {
+        String hash = hash(jar);
+        Path target = directory.resolve(hash);
+        if (Files.exists(target.resolve(ExplodedArtifact.INDEX))) {
+            return ExplodedArtifact.read(target);
+        }
+        Path work = Files.createTempDirectory(directory, hash + ".");
+        try {
+            explode(jar, work);
+            try {
+                Files.move(work, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException e) {
+                // Fine if another start unpacked the same jar in the meantime
+                if (!Files.exists(target.resolve(ExplodedArtifact.INDEX))) {
+                    throw e;
+                }
+            }
+        }
+        finally {
+            delete(work);
+        }
+        return ExplodedArtifact.read(target);
+    }
+
+    /*
+     * Returns the content hash of the jar, only reading it if it changed since it was last hashed.
+     */
+    private String hash(Path jar) throws IOException {
+        Path absolute = jar.toAbsolutePath().normalize();
+        String stamp = Files.size(absolute) + " " + Files.getLastModifiedTime(absolute).toMillis() + " ";
+        Path stampFile = directory.resolve(STAMPS).resolve(hex(digest().digest(absolute.toString().getBytes(StandardCharsets.UTF_8))));
+        if (Files.exists(stampFile)) {
+            String recorded = new String(Files.readAllBytes(stampFile), StandardCharsets.UTF_8);
+            if (recorded.startsWith(stamp)) {
+                return recorded.substring(stamp.length());
+            }
+        }
+        MessageDigest digest = digest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(absolute)) {
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        String hash = hex(digest.digest());
+        Path temp = Files.createTempFile(stampFile.getParent(), stampFile.getFileName().toString(), ".tmp");
+        Files.write(temp, (stamp + hash).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, stampFile, StandardCopyOption.REPLACE_EXISTING);
+        return hash;
+    }
+
+    private static void explode(Path jar, Path work) throws IOException {
+        List<String> roots = new ArrayList<>();
+        List<Set<String>> entries = new ArrayList<>();
+        try (JarFile archive = new JarFile(jar.toFile(), false)) {
+            Manifest manifest = archive.getManifest();
+            Attributes attributes = manifest == null ? null : manifest.getMainAttributes();
+            String classes = attributes == null ? null : attributes.getValue(BOOT_CLASSES);
+            String lib = attributes == null ? null : attributes.getValue(BOOT_LIB);
+            roots.add(ExplodedArtifact.CLASSES);
+            entries.add(new LinkedHashSet<>());
+            Enumeration<? extends ZipEntry> archiveEntries = archive.entries();
+            while (archiveEntries.hasMoreElements()) {
+                ZipEntry entry = archiveEntries.nextElement();
+                String name = entry.getName();
+                if (classes == null) {
+                    unpack(archive, entry, name, work.resolve(ExplodedArtifact.CLASSES), entries.get(0));
+                }
+                else if (name.startsWith(classes)) {
+                    unpack(archive, entry, name.substring(classes.length()), work.resolve(ExplodedArtifact.CLASSES), entries.get(0));
+                }
+                else if (lib != null && name.startsWith(lib) && name.endsWith(".jar") && !entry.isDirectory()) {
+                    String root = ExplodedArtifact.LIB + "/" + name.substring(lib.length());
+                    Path nestedRoot = resolve(work, root);
+                    Set<String> names = new LinkedHashSet<>();
+                    try (ZipInputStream nested = new ZipInputStream(archive.getInputStream(entry))) {
+                        for (ZipEntry e; (e = nested.getNextEntry()) != null; ) {
+                            unpack(nested, e, e.getName(), nestedRoot, names);
+                        }
+                    }
+                    roots.add(root);
+                    entries.add(names);
+                }
+                // Anything else (the Spring Boot loader, the fat jar manifest) is not part of the function classpath
+            }
+        }
+        ExplodedArtifact.write(work, roots, entries);
+    }
+
+    private static void unpack(ZipFile archive, ZipEntry entry, String name, Path root, Set<String> names) throws IOException {
+        if (entry.isDirectory()) {
+            directory(root, name, names);
+            return;
+        }
+        try (InputStream in = archive.getInputStream(entry)) {
+            copy(in, root, name, names);
+        }
+    }
+
+    private static void unpack(ZipInputStream in, ZipEntry entry, String name, Path root, Set<String> names) throws IOException {
+        if (entry.isDirectory()) {
+            directory(root, name, names);
+        }
+        else {
+            copy(in, root, name, names);
+        }
+    }
+
+    private static void directory(Path root, String name, Set<String> names) throws IOException {
+        if (!name.isEmpty()) {
+            Files.createDirectories(resolve(root, name));
+            names.add(name.endsWith("/") ? name : name + "/");
+        }
+    }
+
+    private static void copy(InputStream in, Path root, String name, Set<String> names) throws IOException {
+        Path file = resolve(root, name);
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            in.transferTo(out);
+        }
+        // Directories are not always listed in archives, but are looked up as resources (by classpath scanning)
+        for (int slash = name.indexOf('/'); slash > 0; slash = name.indexOf('/', slash + 1)) {
+            names.add(name.substring(0, slash + 1));
+        }
+        names.add(name);
+    }
+
+    private static Path resolve(Path root, String name) throws IOException {
+        Path resolved = root.resolve(name).normalize();
+        if (!resolved.startsWith(root)) {
+            throw new IOException("Archive entry " + name + " points outside of where it is unpacked");
+        }
+        return resolved;
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+}
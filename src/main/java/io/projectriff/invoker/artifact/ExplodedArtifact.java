@@ -0,0 +1,114 @@
+package io.projectriff.invoker.artifact;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A function jar as unpacked by an {@link ArtifactCache}: the directories that make up its classpath (its roots, in
+ * classpath order) and an index telling which roots hold each class or resource.
+ *
+ * <p>
+ * The index is a binary file holding, for each root, its path and the names of its entries (directories included,
+ * with a trailing slash). Loading it is a single sequential read, so that later starts know where everything is
+ * without listing directories or opening archives.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public final class ExplodedArtifact {
+
+    static final String INDEX = "riff-artifact.idx";
+
+    static final String CLASSES = "classes";
+
+    static final String LIB = "lib";
+
+    private static final int MAGIC = 0x72696678;
+
+    private static final int VERSION = 1;
+
+    private final Path directory;
+
+    private final List<Path> roots;
+
+    private final Map<String, int[]> index;
+
+    private ExplodedArtifact(Path directory, List<Path> roots, Map<String, int[]> index) {
+        this.directory = directory;
+        this.roots = Collections.unmodifiableList(roots);
+        this.index = index;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public List<Path> getRoots() {
+        return roots;
+    }
+
+    /**
+     * Return the positions of the roots holding the given entry, in classpath order, or {@code null} if none does.
+     */
+    public int[] locate(String name) {
+        return index.get(name);
+    }
+
+    public int getEntryCount() {
+        return index.size();
+    }
+
+    static ExplodedArtifact read(Path directory) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(directory.resolve(INDEX)), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported artifact index in " + directory);
+            }
+            int rootCount = in.readInt();
+            List<Path> roots = new ArrayList<>(rootCount);
+            Map<String, int[]> index = new HashMap<>();
+            for (int r = 0; r < rootCount; r++) {
+                roots.add(directory.resolve(in.readUTF()));
+                // Shared by the entries only found in this root, which are most of them
+                int[] single = {r};
+                for (int entries = in.readInt(); entries > 0; entries--) {
+                    String name = in.readUTF();
+                    int[] existing = index.putIfAbsent(name, single);
+                    if (existing != null) {
+                        // Entries found in several roots are mostly package directories and META-INF files
+                        int[] merged = Arrays.copyOf(existing, existing.length + 1);
+                        merged[existing.length] = r;
+                        index.put(name, merged);
+                    }
+                }
+            }
+            return new ExplodedArtifact(directory, roots, index);
+        }
+    }
+
+    static void write(Path directory, List<String> roots, List<Set<String>> entries) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(directory.resolve(INDEX)), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(roots.size());
+            for (int r = 0; r < roots.size(); r++) {
+                out.writeUTF(roots.get(r));
+                out.writeInt(entries.get(r).size());
+                for (String name : entries.get(r)) {
+                    out.writeUTF(name);
+                }
+            }
+        }
+    }
+}
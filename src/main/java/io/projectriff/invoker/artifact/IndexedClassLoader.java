@@ -0,0 +1,170 @@
+package io.projectriff.invoker.artifact;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Manifest;
+
+/**
+ * A classloader over {@link ExplodedArtifact}s, which finds classes and resources by looking them up in the index of
+ * each artifact rather than probing each of its roots in turn. Classes that are not in any artifact, which is what
+ * most lookups of optional classes end up being, are hence ruled out without touching the file system.
+ *
+ * <p>
+ * Other URLs (locations that are not cached, such as remote jars) are searched afterwards, the usual way.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class IndexedClassLoader extends URLClassLoader {
+
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private final List<ExplodedArtifact> artifacts;
+
+    private final Map<Path, CodeSource> codeSources = new ConcurrentHashMap<>();
+
+    private final Map<Path, Optional<Manifest>> manifests = new ConcurrentHashMap<>();
+
+    public IndexedClassLoader(List<ExplodedArtifact> artifacts, URL[] urls, ClassLoader parent) {
+        super(urls, parent);
+        this.artifacts = artifacts;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        String path = name.replace('.', '/').concat(".class");
+        for (ExplodedArtifact artifact : artifacts) {
+            int[] roots = artifact.locate(path);
+            if (roots != null) {
+                Path root = artifact.getRoots().get(roots[0]);
+                byte[] bytes;
+                try {
+                    bytes = Files.readAllBytes(root.resolve(path));
+                }
+                catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+                definePackage(name, root);
+                return defineClass(name, bytes, 0, bytes.length, codeSources.computeIfAbsent(root, this::codeSource));
+            }
+        }
+        return super.findClass(name);
+    }
+
+    @Override
+    public URL findResource(String name) {
+        for (ExplodedArtifact artifact : artifacts) {
+            int[] roots = locate(artifact, name);
+            if (roots != null) {
+                return url(artifact.getRoots().get(roots[0]).resolve(name));
+            }
+        }
+        return super.findResource(name);
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        List<URL> result = new ArrayList<>();
+        for (ExplodedArtifact artifact : artifacts) {
+            int[] roots = locate(artifact, name);
+            if (roots != null) {
+                for (int root : roots) {
+                    result.add(url(artifact.getRoots().get(root).resolve(name)));
+                }
+            }
+        }
+        result.addAll(Collections.list(super.findResources(name)));
+        return Collections.enumeration(result);
+    }
+
+    /**
+     * Return the roots of all artifacts, then the other URLs.
+     */
+    @Override
+    public URL[] getURLs() {
+        List<URL> result = new ArrayList<>();
+        for (ExplodedArtifact artifact : artifacts) {
+            artifact.getRoots().forEach(root -> result.add(url(root)));
+        }
+        result.addAll(List.of(super.getURLs()));
+        return result.toArray(new URL[0]);
+    }
+
+    /*
+     * Directories are indexed with a trailing slash, but may be looked up without one.
+     */
+    private static int[] locate(ExplodedArtifact artifact, String name) {
+        int[] roots = artifact.locate(name);
+        return roots != null || name.endsWith("/") ? roots : artifact.locate(name + "/");
+    }
+
+    /*
+     * Defines the package of a class the way jars do, from the manifest of the root it comes from if any, so that
+     * libraries reading their own version from it still can.
+     */
+    private void definePackage(String className, Path root) {
+        int dot = className.lastIndexOf('.');
+        if (dot < 0) {
+            return;
+        }
+        String name = className.substring(0, dot);
+        if (getDefinedPackage(name) != null) {
+            return;
+        }
+        Optional<Manifest> manifest = manifests.computeIfAbsent(root, IndexedClassLoader::readManifest);
+        try {
+            if (manifest.isPresent()) {
+                definePackage(name, manifest.get(), url(root));
+            }
+            else {
+                definePackage(name, null, null, null, null, null, null, null);
+            }
+        }
+        catch (IllegalArgumentException e) {
+            // Defined concurrently by another thread
+        }
+    }
+
+    private CodeSource codeSource(Path root) {
+        return new CodeSource(url(root), (CodeSigner[]) null);
+    }
+
+    private static Optional<Manifest> readManifest(Path root) {
+        try (InputStream in = Files.newInputStream(root.resolve("META-INF/MANIFEST.MF"))) {
+            return Optional.of(new Manifest(in));
+        }
+        catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static URL url(Path path) {
+        try {
+            return path.toUri().toURL();
+        }
+        catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package io.projectriff.invoker.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ConnectivityState;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.projectriff.invoker.compression.CompressionCodecs;
+import io.projectriff.invoker.shm.WaitStrategy;
+
+import org.springframework.util.Assert;
+
+/**
+ * A channel that spreads calls (hence, invocations) over several invoker replicas, keeping one channel per replica.
+ *
+ * <p>
+ * Each call goes to the least busy of two replicas picked at random, in terms of calls in flight. Calls carrying a
+ * {@link #ROUTING_KEY} header instead always go to the same replica for a given key (using rendezvous hashing, so that
+ * replicas coming and going only move the keys they owned). Replicas whose connection is failing, or that recently
+ * answered {@code UNAVAILABLE} (which is also what a draining invoker answers), are avoided for a while, for longer
+ * each time they keep failing.
+ * </p>
+ *
+ * <p>
+ * Targets are either given once and for all, or obtained from a resolver that is polled again from time to time.
+ * Channels to targets that disappear are shut down gracefully.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class BalancedChannel extends ManagedChannel {
+
+    public static final Metadata.Key<String> ROUTING_KEY = Metadata.Key.of("riff-routing-key", Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final long MIN_EJECTION_MILLIS = 1_000L;
+
+    private static final long MAX_EJECTION_MILLIS = 30_000L;
+
+    private final Supplier<? extends Collection<String>> resolver;
+
+    private final long refreshIntervalNanos;
+
+    private final Function<String, ManagedChannel> channelFactory;
+
+    private final Map<String, Endpoint> byTarget = new HashMap<>();
+
+    private final List<ManagedChannel> retired = new ArrayList<>();
+
+    private volatile Endpoint[] endpoints = new Endpoint[0];
+
+    private volatile long nextRefresh;
+
+    private volatile boolean shutdown;
+
+    /**
+     * Create a channel to the given targets, with plaintext connections that understand all riff compression codecs.
+     * Targets starting with {@value FunctionProxy#DOMAIN_SOCKET_PREFIX} are paths of Unix domain sockets, and
+     * those starting with {@value FunctionProxy#SHARED_MEMORY_PREFIX} paths of shared memory files.
+     */
+    public static BalancedChannel forTargets(String... targets) {
+        List<String> list = List.of(targets);
+        return new BalancedChannel(() -> list, Duration.ofDays(1L), BalancedChannel::defaultChannel);
+    }
+
+    /**
+     * Create a channel to the targets returned by the given resolver, polled at most every {@code refreshInterval}.
+     */
+    public static BalancedChannel forResolver(Supplier<? extends Collection<String>> resolver, Duration refreshInterval) {
+        return new BalancedChannel(resolver, refreshInterval, BalancedChannel::defaultChannel);
+    }
+
+    public BalancedChannel(Supplier<? extends Collection<String>> resolver, Duration refreshInterval,
+                           Function<String, ManagedChannel> channelFactory) {
+        this.resolver = resolver;
+        this.refreshIntervalNanos = refreshInterval.toNanos();
+        this.channelFactory = channelFactory;
+        refresh();
+    }
+
+    private static ManagedChannel defaultChannel(String target) {
+        if (target.startsWith(FunctionProxy.DOMAIN_SOCKET_PREFIX)) {
+            return FunctionProxy.domainSocketChannel(target.substring(FunctionProxy.DOMAIN_SOCKET_PREFIX.length()));
+        }
+        if (target.startsWith(FunctionProxy.SHARED_MEMORY_PREFIX)) {
+            try {
+                return FunctionProxy.sharedMemoryChannel(target.substring(FunctionProxy.SHARED_MEMORY_PREFIX.length()),
+                        WaitStrategy.BACKOFF);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return ManagedChannelBuilder.forTarget(target)
+                .usePlaintext()
+                .compressorRegistry(CompressionCodecs.compressorRegistry())
+                .decompressorRegistry(CompressionCodecs.decompressorRegistry())
+                .build();
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions) {
+        if (System.nanoTime() - nextRefresh >= 0L) {
+            refresh();
+        }
+        return new BalancedCall<>(method, callOptions);
+    }
+
+    private synchronized void refresh() {
+        if (shutdown) {
+            return;
+        }
+        nextRefresh = System.nanoTime() + refreshIntervalNanos;
+        retired.removeIf(ManagedChannel::isTerminated);
+        Collection<String> targets = new LinkedHashSet<>(resolver.get());
+        Assert.notEmpty(targets, "No target to balance calls over");
+        byTarget.entrySet().removeIf(e -> {
+            if (!targets.contains(e.getKey())) {
+                e.getValue().channel.shutdown();
+                retired.add(e.getValue().channel);
+                return true;
+            }
+            return false;
+        });
+        for (String target : targets) {
+            byTarget.computeIfAbsent(target, t -> new Endpoint(t, channelFactory.apply(t)));
+        }
+        endpoints = byTarget.values().toArray(new Endpoint[0]);
+    }
+
+    /*
+     * Picks the replica for a call, among healthy ones (or all of them if none is).
+     */
+    private Endpoint choose(String key) {
+        Endpoint[] all = endpoints;
+        long now = System.currentTimeMillis();
+        List<Endpoint> candidates = new ArrayList<>(all.length);
+        for (Endpoint endpoint : all) {
+            if (endpoint.isHealthy(now)) {
+                candidates.add(endpoint);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates = List.of(all);
+        }
+        if (key != null) {
+            Endpoint best = null;
+            long bestWeight = Long.MIN_VALUE;
+            for (Endpoint endpoint : candidates) {
+                long weight = mix(key.hashCode() * 31L + endpoint.target.hashCode());
+                if (best == null || weight > bestWeight) {
+                    best = endpoint;
+                    bestWeight = weight;
+                }
+            }
+            return best;
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(candidates.size());
+        int j = random.nextInt(candidates.size() - 1);
+        Endpoint a = candidates.get(i);
+        Endpoint b = candidates.get(j >= i ? j + 1 : j);
+        return b.outstanding.get() < a.outstanding.get() ? b : a;
+    }
+
+    /*
+     * The finalizer of SplitMix64, so that close inputs get unrelated weights.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Return the number of calls in flight to each target.
+     */
+    public Map<String, Integer> getOutstanding() {
+        Map<String, Integer> result = new HashMap<>();
+        for (Endpoint endpoint : endpoints) {
+            result.put(endpoint.target, endpoint.outstanding.get());
+        }
+        return result;
+    }
+
+    @Override
+    public String authority() {
+        Endpoint[] all = endpoints;
+        return all.length > 0 ? all[0].channel.authority() : null;
+    }
+
+    @Override
+    public synchronized ManagedChannel shutdown() {
+        shutdown = true;
+        channels().forEach(ManagedChannel::shutdown);
+        return this;
+    }
+
+    @Override
+    public synchronized ManagedChannel shutdownNow() {
+        shutdown = true;
+        channels().forEach(ManagedChannel::shutdownNow);
+        return this;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && channels().stream().allMatch(ManagedChannel::isTerminated);
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<ManagedChannel> channels;
+        synchronized (this) {
+            channels = channels();
+        }
+        for (ManagedChannel channel : channels) {
+            if (!channel.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<ManagedChannel> channels() {
+        List<ManagedChannel> all = new ArrayList<>(retired);
+        byTarget.values().forEach(e -> all.add(e.channel));
+        return all;
+    }
+
+    private static class Endpoint {
+
+        private final String target;
+
+        private final ManagedChannel channel;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private int failures;
+
+        private volatile long ejectedUntil;
+
+        private Endpoint(String target, ManagedChannel channel) {
+            this.target = target;
+            this.channel = channel;
+        }
+
+        private boolean isHealthy(long now) {
+            return ejectedUntil <= now && channel.getState(false) != ConnectivityState.TRANSIENT_FAILURE;
+        }
+
+        private synchronized void closed(Status status) {
+            if (status.getCode() == Status.Code.UNAVAILABLE) {
+                failures++;
+                long ejection = Math.min(MAX_EJECTION_MILLIS, MIN_EJECTION_MILLIS << Math.min(failures - 1, 16));
+                ejectedUntil = System.currentTimeMillis() + ejection;
+            }
+            else if (status.isOk()) {
+                failures = 0;
+            }
+        }
+    }
+
+    /*
+     * Defers picking a replica until the call starts, when its headers (and hence routing key) are known.
+     */
+    private class BalancedCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+
+        private final MethodDescriptor<ReqT, RespT> method;
+
+        private final CallOptions callOptions;
+
+        private volatile ClientCall<ReqT, RespT> delegate;
+
+        private BalancedCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions) {
+            this.method = method;
+            this.callOptions = callOptions;
+        }
+
+        @Override
+        public void start(Listener<RespT> listener, Metadata headers) {
+            Endpoint endpoint = choose(headers.get(ROUTING_KEY));
+            endpoint.outstanding.incrementAndGet();
+            ClientCall<ReqT, RespT> call = endpoint.channel.newCall(method, callOptions);
+            delegate = call;
+            call.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(listener) {
+                @Override
+                public void onClose(Status status, Metadata trailers) {
+                    endpoint.outstanding.decrementAndGet();
+                    endpoint.closed(status);
+                    super.onClose(status, trailers);
+                }
+            }, headers);
+        }
+
+        @Override
+        public void request(int numMessages) {
+            delegate.request(numMessages);
+        }
+
+        @Override
+        public void cancel(String message, Throwable cause) {
+            ClientCall<ReqT, RespT> call = delegate;
+            if (call != null) {
+                call.cancel(message, cause);
+            }
+        }
+
+        @Override
+        public void halfClose() {
+            delegate.halfClose();
+        }
+
+        @Override
+        public void sendMessage(ReqT message) {
+            delegate.sendMessage(message);
+        }
+
+        @Override
+        public boolean isReady() {
+            ClientCall<ReqT, RespT> call = delegate;
+            return call != null && call.isReady();
+        }
+
+        @Override
+        public void setMessageCompression(boolean enabled) {
+            delegate.setMessageCompression(enabled);
+        }
+    }
+}
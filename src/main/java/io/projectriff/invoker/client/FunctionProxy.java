@@ -1,25 +1,66 @@
 package io.projectriff.invoker.client;
 
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
 import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.micrometer.core.instrument.Metrics;
+import io.projectriff.invoker.ContentTypeDictionary;
+import io.projectriff.invoker.FrameTrace;
 import io.projectriff.invoker.HttpMessageUtils;
 import io.projectriff.invoker.OutputSignalHttpInputMessage;
 import io.projectriff.invoker.SignalHttpOutputMessage;
+import io.projectriff.invoker.admission.Priority;
+import io.projectriff.invoker.admission.ServerAdmissionInterceptor;
+import io.projectriff.invoker.compression.ClientCompressionInterceptor;
+import io.projectriff.invoker.compression.CompressionCodecs;
+import io.projectriff.invoker.flow.ClientInboundWindowInterceptor;
+import io.projectriff.invoker.flow.FlowTuner;
+import io.projectriff.invoker.flow.InboundWindow;
+import io.projectriff.invoker.metrics.InvokerMetrics;
 import io.projectriff.invoker.rpc.*;
+import io.projectriff.invoker.shm.SharedMemoryChannel;
+import io.projectriff.invoker.shm.WaitStrategy;
 import org.springframework.http.MediaType;
+import org.springframework.util.Assert;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.http.converter.HttpMessageNotWritableException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.GroupedFlux;
 import reactor.core.publisher.Hooks;
+import reactor.util.concurrent.Queues;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -38,18 +79,244 @@ import static java.lang.reflect.Proxy.newProxyInstance;
  */
 public class FunctionProxy {
 
+    /**
+     * Prefix of targets (as understood by {@link BalancedChannel}) that denote the path of a Unix domain socket.
+     */
+    public static final String DOMAIN_SOCKET_PREFIX = "unix:";
+
+    /**
+     * Prefix of targets (as understood by {@link BalancedChannel}) that denote the shared memory file of an invoker.
+     */
+    public static final String SHARED_MEMORY_PREFIX = "shm:";
+
     private FunctionProxy() {
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Create a plaintext channel to an invoker listening on the Unix domain socket at the given path, that understands
+     * all riff compression codecs. Requires Netty's native epoll transport, hence Linux. Channels created this way
+     * share a pool of daemon event loops.
+     */
+    public static ManagedChannel domainSocketChannel(String path) {
+        Epoll.ensureAvailability();
+        return NettyChannelBuilder.forAddress(new DomainSocketAddress(path))
+                .channelType(EpollDomainSocketChannel.class)
+                .eventLoopGroup(DomainSocketEventLoops.GROUP)
+                // The default authority would be the socket path, which is not a valid one
+                .overrideAuthority("localhost")
+                .usePlaintext()
+                .compressorRegistry(CompressionCodecs.compressorRegistry())
+                .decompressorRegistry(CompressionCodecs.decompressorRegistry())
+                .build();
+    }
+
+    /**
+     * Create a channel to an invoker on the same host that shares memory through the file at the given path. Only one
+     * such channel can be attached to an invoker at a time.
+     *
+     * @see SharedMemoryChannel
+     */
+    public static ManagedChannel sharedMemoryChannel(String path, WaitStrategy waitStrategy) throws IOException {
+        return new SharedMemoryChannel(Paths.get(path), waitStrategy);
+    }
+
+    /*
+     * Created on first use only, as epoll may not be available.
+     */
+    private static class DomainSocketEventLoops {
+
+        private static final EventLoopGroup GROUP = new EpollEventLoopGroup(0, new DefaultThreadFactory("riff-uds-client", true));
+    }
+
     public static <T> T create(Class<T> type, ManagedChannel channel, Class<?>... outputTypes) {
-        Method method = new MethodResolver().resolve(type); // CHANGEME
+        return builder(type).channel(channel).outputTypes(outputTypes).build();
+    }
 
-        return (T) newProxyInstance(
-                type.getClassLoader(),
-                new Class[]{type},
-                new FunctionInvocationHandler(channel, method, outputTypes)
-        );
+    public static <T> Builder<T> builder(Class<T> type) {
+        return new Builder<>(type);
+    }
+
+    /**
+     * Allows configuring optional aspects of the client side of the riff protocol.
+     */
+    public static class Builder<T> {
+
+        private final Class<T> type;
+
+        private Channel channel;
+
+        private Class<?>[] outputTypes = new Class<?>[0];
+
+        private final List<ClientInterceptor> interceptors = new ArrayList<>();
+
+        private MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+        private double traceSampleRate;
+
+        private String functionName = "";
+
+        private Consumer<ErrorFrame> elementErrorHandler;
+
+        private int replayBufferBytes;
+
+        private int maxResumeAttempts;
+
+        private int prefetch;
+
+        private int inboundWindow;
+
+        private long windowBytes;
+
+        private Builder(Class<T> type) {
+            this.type = type;
+        }
+
+        public Builder<T> channel(Channel channel) {
+            this.channel = channel;
+            return this;
+        }
+
+        public Builder<T> outputTypes(Class<?>... outputTypes) {
+            this.outputTypes = outputTypes;
+            return this;
+        }
+
+        /**
+         * Compress input frames of at least {@code threshold} bytes with the given codec. Codecs other than gzip
+         * require the channel to be built with {@link CompressionCodecs#compressorRegistry()}.
+         */
+        public Builder<T> compression(String codec, int threshold) {
+            this.interceptors.add(new ClientCompressionInterceptor(codec, threshold));
+            return this;
+        }
+
+        /**
+         * Record client side metrics (prefixed with {@value InvokerMetrics#CLIENT_PREFIX}) to the given registry.
+         * Defaults to the Micrometer global registry.
+         */
+        public Builder<T> meterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = meterRegistry;
+            return this;
+        }
+
+        /**
+         * Stamp a random sample of input frames (between 0 and 1) for tracing. The invoker then reports its own
+         * timings on the results attributed to those frames, which are recorded as a latency breakdown under the
+         * {@code riff.client.trace} metrics.
+         *
+         * @see FrameTrace
+         */
+        public Builder<T> tracing(double sampleRate) {
+            Assert.isTrue(sampleRate >= 0d && sampleRate <= 1d, "sampleRate should be between 0 and 1");
+            this.traceSampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * Set the priority class of invocations, which matters when the invoker sheds load.
+         */
+        public Builder<T> priority(Priority priority) {
+            Metadata headers = new Metadata();
+            headers.put(ServerAdmissionInterceptor.PRIORITY_KEY, priority.name().toLowerCase());
+            this.interceptors.add(MetadataUtils.newAttachHeadersInterceptor(headers));
+            return this;
+        }
+
+        /**
+         * Have invocations of this proxy always reach the same invoker replica (as long as it is healthy), when
+         * used with a {@link BalancedChannel}.
+         */
+        public Builder<T> routingKey(String key) {
+            Metadata headers = new Metadata();
+            headers.put(BalancedChannel.ROUTING_KEY, key);
+            this.interceptors.add(MetadataUtils.newAttachHeadersInterceptor(headers));
+            return this;
+        }
+
+        /**
+         * Give each invocation a gRPC deadline, after which the invoker cancels it (and skips inputs not processed
+         * yet) and the result fluxes error with {@code DEADLINE_EXCEEDED}, or {@code CANCELLED} if the cancellation by
+         * the invoker reaches the client before its own deadline fires.
+         */
+        public Builder<T> timeout(Duration timeout) {
+            long nanos = timeout.toNanos();
+            this.interceptors.add(new ClientInterceptor() {
+                @Override
+                public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                           CallOptions callOptions, Channel next) {
+                    return next.newCall(method, callOptions.withDeadlineAfter(nanos, TimeUnit.NANOSECONDS));
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Ask the invoker to carry on when an input element can't be processed, reporting it to the given handler
+         * instead of failing the whole invocation. See {@link StartFrame#getContinueOnError()} for which failures
+         * qualify: those of the function itself only do if it is written against single elements rather than
+         * fluxes.
+         */
+        public Builder<T> onElementError(Consumer<ErrorFrame> handler) {
+            this.elementErrorHandler = handler;
+            return this;
+        }
+
+        /**
+         * Make invocations resume on a new stream when theirs breaks, re-sending only the inputs the invoker did not
+         * acknowledge. Unacknowledged inputs are kept off-heap, in a buffer of {@code replayBufferBytes}, which should
+         * be able to hold several input frames. Invocations fail after {@code maxAttempts} consecutive attempts at
+         * resuming that did not make any progress. Results received before a stream broke are not received again.
+         * Only functions written against single elements can be resumed: the invoker rejects resumable invocations
+         * of functions taking a {@link Flux}, with {@code FAILED_PRECONDITION}.
+         */
+        public Builder<T> resumable(int replayBufferBytes, int maxAttempts) {
+            Assert.isTrue(replayBufferBytes > 0, "replayBufferBytes should be positive");
+            this.replayBufferBytes = replayBufferBytes;
+            this.maxResumeAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Bound how much each invocation holds in memory: {@code prefetch} elements read ahead from each input flux
+         * and queued for each result flux, and {@code inboundWindow} results read from gRPC ahead of the result
+         * fluxes (rather than the 512 reactive-grpc reads). If {@code windowBytes} is positive, these counts are
+         * lowered as needed for each stage to hold about that many bytes, given the average size of the messages
+         * sent and received so far. The gRPC window does not apply to {@link #resumable(int, int) resumable}
+         * invocations.
+         */
+        public Builder<T> flowControl(int prefetch, int inboundWindow, long windowBytes) {
+            Assert.isTrue(prefetch > 0 && inboundWindow > 0, "prefetch and inboundWindow should be positive");
+            this.prefetch = prefetch;
+            this.inboundWindow = inboundWindow;
+            this.windowBytes = windowBytes;
+            this.interceptors.add(new ClientInboundWindowInterceptor());
+            return this;
+        }
+
+        /**
+         * Target the function of the given name, for invokers hosting several functions. The invoker's default
+         * function is used otherwise.
+         */
+        public Builder<T> functionName(String functionName) {
+            Assert.notNull(functionName, "functionName can't be null");
+            this.functionName = functionName;
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T build() {
+            Assert.notNull(channel, "channel is required");
+            Method method = new MethodResolver().resolve(type); // CHANGEME
+
+            return (T) newProxyInstance(
+                    type.getClassLoader(),
+                    new Class[]{type},
+                    new FunctionInvocationHandler(ClientInterceptors.intercept(channel, interceptors), method, outputTypes,
+                            new InvokerMetrics(meterRegistry, InvokerMetrics.CLIENT_PREFIX), traceSampleRate, functionName,
+                            elementErrorHandler, replayBufferBytes, maxResumeAttempts, prefetch, inboundWindow,
+                            new FlowTuner(windowBytes > 0L, windowBytes))
+            );
+        }
     }
 
     private static class FunctionInvocationHandler implements InvocationHandler {
@@ -60,20 +327,56 @@ public class FunctionProxy {
 
         private String[] acceptHeaders;
 
+        private ContentTypeDictionary contentTypes;
+
         private final Method method;
 
         private final Class<?>[] outputTypes;
 
-        public FunctionInvocationHandler(ManagedChannel channel, Method method, Class<?>[] outputTypes) {
+        private final InvokerMetrics metrics;
+
+        private final double traceSampleRate;
+
+        private final String functionName;
+
+        private final Consumer<ErrorFrame> elementErrorHandler;
+
+        private final int replayBufferBytes;
+
+        private final int maxResumeAttempts;
+
+        /*
+         * 0 for Reactor's and reactive-grpc's defaults.
+         */
+        private final int prefetch;
+
+        private final int inboundWindow;
+
+        private final FlowTuner flow;
+
+        public FunctionInvocationHandler(Channel channel, Method method, Class<?>[] outputTypes, InvokerMetrics metrics,
+                                         double traceSampleRate, String functionName,
+                                         Consumer<ErrorFrame> elementErrorHandler, int replayBufferBytes,
+                                         int maxResumeAttempts, int prefetch, int inboundWindow, FlowTuner flow) {
             this.riffStub = ReactorRiffGrpc.newReactorStub(channel);
             this.method = method;
             this.outputTypes = outputTypes;
+            this.metrics = metrics;
+            this.traceSampleRate = traceSampleRate;
+            this.functionName = functionName;
+            this.elementErrorHandler = elementErrorHandler;
+            this.replayBufferBytes = replayBufferBytes;
+            this.maxResumeAttempts = maxResumeAttempts;
+            this.prefetch = prefetch;
+            this.inboundWindow = inboundWindow;
+            this.flow = flow;
 
             Hooks.onOperatorDebug();
 
 
             HttpMessageUtils.installDefaultConverters(converters);
             computeAcceptHeaders();
+            computeContentTypes();
         }
 
         @Override
@@ -82,25 +385,39 @@ public class FunctionProxy {
                 return null; //FIXME?
             }
 
-            InputSignal start = InputSignal.newBuilder()
-                    .setStart(StartFrame.newBuilder()
-                            .addAllExpectedContentTypes(Arrays.asList(acceptHeaders))
-                            .build())
-                    .build();
-
-
-            Flux<InputSignal> allInputSignals = Flux.empty();
+            @SuppressWarnings("unchecked")
+            Flux<InputSignal>[] inputSignals = new Flux[args.length];
             for (int i = 0; i < args.length; i++) {
                 final int inputNumber = i;
-                allInputSignals = allInputSignals
-                        .mergeWith(((Flux<?>) args[i]).map(t -> toNextSignal(inputNumber, t)));
+                inputSignals[i] = ((Flux<?>) args[i]).map(t -> toNextSignal(inputNumber, t));
+            }
+            Flux<InputSignal> allInputSignals = Flux.merge(prefetch > 0 ? flow.sending(prefetch) : Queues.XS_BUFFER_SIZE, inputSignals);
+            if (flow.isAutoTune()) {
+                allInputSignals = allInputSignals.doOnNext(s -> flow.sent(s.getSerializedSize()));
             }
 
-
-            Flux<OutputSignal> response = riffStub.invoke(Flux.concat(
-                    Flux.just(start),
-                    allInputSignals
-            ));
+            Flux<OutputSignal> response;
+            if (replayBufferBytes > 0) {
+                response = new ResumableInvocation(riffStub, allInputSignals, this::startSignal, replayBufferBytes, maxResumeAttempts).outputs();
+            }
+            else if (inboundWindow > 0) {
+                InboundWindow window = new InboundWindow(inboundWindow, flow);
+                response = window.consume(riffStub.withOption(InboundWindow.CALL_OPTION, window)
+                        .invoke(Flux.concat(Flux.just(startSignal(0L)), allInputSignals)));
+            }
+            else {
+                response = riffStub.invoke(Flux.concat(Flux.just(startSignal(0L)), allInputSignals));
+            }
+            response = response.doOnError(metrics::error);
+            if (elementErrorHandler != null) {
+                response = response.filter(s -> {
+                    if (s.hasError()) {
+                        elementErrorHandler.accept(s.getError());
+                        return false;
+                    }
+                    return true;
+                });
+            }
 
             OutputSignal[] usedToForceGroups = new OutputSignal[outputTypes.length];
             for (int i = 0; i < outputTypes.length; i++) {
@@ -113,7 +430,9 @@ public class FunctionProxy {
 
             return response
                     .startWith(Flux.fromArray(usedToForceGroups))
-                    .groupBy(sig -> sig.getData().getResultIndex())
+                    // Groups must at least take the init frames, as they are only subscribed to once all are known
+                    .groupBy(sig -> sig.getData().getResultIndex(),
+                            Math.max(outputTypes.length, prefetch > 0 ? flow.receiving(prefetch) : Queues.SMALL_BUFFER_SIZE))
                     .take(outputTypes.length)
                     .sort(Comparator.comparingInt(GroupedFlux::key))
                     .map(g -> g.skip(1)/*drop init frames*/.map(s -> convertFromSignal(s, outputTypes[g.key()])))
@@ -123,6 +442,19 @@ public class FunctionProxy {
 
         }
 
+        private InputSignal startSignal(long lastAcked) {
+            return InputSignal.newBuilder()
+                    .setStart(StartFrame.newBuilder()
+                            .addAllExpectedContentTypes(Arrays.asList(acceptHeaders))
+                            .addAllContentTypes(contentTypes.getContentTypes())
+                            .setFunctionName(functionName)
+                            .setContinueOnError(elementErrorHandler != null)
+                            .setResumable(replayBufferBytes > 0)
+                            .setLastAcked(lastAcked)
+                            .build())
+                    .build();
+        }
+
         private void computeAcceptHeaders() {
             this.acceptHeaders = Arrays.stream(this.outputTypes)
                     .map(outputType -> MediaType.toString(
@@ -137,22 +469,64 @@ public class FunctionProxy {
                     .toArray(String[]::new);
         }
 
+        /*
+         * Declares the content types this client is likely to send or receive, so that frames can refer to them by
+         * index. Those are the converters' media types, qualified with the charset a converter adds when writing.
+         */
+        private void computeContentTypes() {
+            Set<String> all = new LinkedHashSet<>();
+            for (HttpMessageConverter<?> converter : converters) {
+                Charset charset = converter instanceof AbstractHttpMessageConverter
+                        ? ((AbstractHttpMessageConverter<?>) converter).getDefaultCharset()
+                        : null;
+                for (MediaType mediaType : converter.getSupportedMediaTypes()) {
+                    if (mediaType.isConcrete()) {
+                        all.add(mediaType.toString());
+                        if (charset != null && mediaType.getCharset() == null) {
+                            all.add(new MediaType(mediaType, charset).toString());
+                        }
+                    }
+                }
+            }
+            this.contentTypes = new ContentTypeDictionary(all);
+        }
+
         private <T> T convertFromSignal(OutputSignal signal, Class<T> outputType) {
-            String ct = signal.getData().getContentType();
-            MediaType contentType = MediaType.parseMediaType(ct);
-            OutputSignalHttpInputMessage inputMessage = new OutputSignalHttpInputMessage(signal);
+            long start = System.nanoTime();
+            OutputSignalHttpInputMessage inputMessage = new OutputSignalHttpInputMessage(signal, contentTypes);
+            MediaType contentType = inputMessage.getContentType();
             try {
                 for (HttpMessageConverter converter : converters) {
                     if (converter.canRead(outputType, contentType)) {
-                        return (T) converter.read(outputType, inputMessage);
+                        T result = (T) converter.read(outputType, inputMessage);
+                        metrics.decoded(start);
+                        if (signal.getData().getHeadersCount() > 0) {
+                            recordTrace(signal.getData().getHeadersMap());
+                        }
+                        metrics.frameOut(signal.getData().getResultIndex(), signal.getData().getPayload().size());
+                        return result;
                     }
                 }
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+            metrics.readConverterMiss();
             throw new HttpMessageNotReadableException("Could not find suitable converter", inputMessage);
         }
 
+        private void recordTrace(Map<String, String> headers) {
+            String sentAt = headers.get(FrameTrace.SENT_AT);
+            if (sentAt == null || !headers.containsKey(FrameTrace.REPLIED_AT)) {
+                return;
+            }
+            long total = (FrameTrace.nowMicros() - Long.parseLong(sentAt)) * 1_000L;
+            long server = (Long.parseLong(headers.get(FrameTrace.REPLIED_AT)) - Long.parseLong(headers.get(FrameTrace.RECEIVED_AT))) * 1_000L;
+            metrics.traced(total, total - server,
+                    Long.parseLong(headers.get(FrameTrace.DECODE_NANOS)),
+                    Long.parseLong(headers.get(FrameTrace.DWELL_NANOS)),
+                    Long.parseLong(headers.get(FrameTrace.ENCODE_NANOS)));
+        }
+
         private Stream<MediaType> getSupportedMediaTypes(HttpMessageConverter converter) {
             List<MediaType> supportedMediaTypes = converter.getSupportedMediaTypes();
             // This drops charsets
@@ -163,6 +537,7 @@ public class FunctionProxy {
             if (payload == null) {
                 throw new RuntimeException("TODO");
             }
+            long start = System.nanoTime();
             try {
                 for (HttpMessageConverter converter : converters) {
                     for (Object mediaType : converter.getSupportedMediaTypes()) {
@@ -170,13 +545,21 @@ public class FunctionProxy {
                             SignalHttpOutputMessage outputMessage = new SignalHttpOutputMessage();
                             converter.write(payload, (MediaType) mediaType, outputMessage);
                             outputMessage.getHeaders().add(HttpMessageUtils.RIFF_INPUT, "" + inputNumber);
-                            return outputMessage.asInputSignal();
+                            if (traceSampleRate > 0d && ThreadLocalRandom.current().nextDouble() < traceSampleRate) {
+                                outputMessage.getHeaders().set(FrameTrace.TRACE_ID, Long.toHexString(ThreadLocalRandom.current().nextLong()));
+                                outputMessage.getHeaders().set(FrameTrace.SENT_AT, Long.toString(FrameTrace.nowMicros()));
+                            }
+                            InputSignal signal = outputMessage.asInputSignal(contentTypes);
+                            metrics.encoded(start);
+                            metrics.frameIn(inputNumber, signal.getData().getPayload().size());
+                            return signal;
                         }
                     }
                 }
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+            metrics.writeConverterMiss();
             throw new HttpMessageNotWritableException(
                     "Could not find a suitable converter for message of type " + payload.getClass());
         }
@@ -0,0 +1,128 @@
+package io.projectriff.invoker.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.projectriff.invoker.rpc.InputSignal;
+
+/**
+ * The input frames of a resumable invocation that have been sent but not acknowledged yet, kept in an off-heap ring
+ * buffer so that retaining them doesn't weigh on the heap.
+ *
+ * <p>
+ * Frames are stored length-prefixed, wrapping around the end of the ring. As sequence numbers are contiguous, the
+ * frames in the buffer are always those numbered {@code lastAcked + 1} to {@code lastAcked + count}, which is all the
+ * indexing needed. Not thread safe.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+class ReplayBuffer {
+
+    private final ByteBuffer ring;
+
+    private int head;
+
+    private int used;
+
+    private int count;
+
+    private long lastAcked;
+
+    ReplayBuffer(int capacity) {
+        this.ring = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Append a frame, returning {@code false} if there is not enough room until more frames get acknowledged.
+     */
+    boolean offer(InputSignal signal) {
+        byte[] bytes = signal.toByteArray();
+        int size = Integer.BYTES + bytes.length;
+        if (size > ring.capacity()) {
+            throw new IllegalArgumentException(String.format("Input frame of %d bytes doesn't fit in a replay buffer of %d bytes",
+                    bytes.length, ring.capacity()));
+        }
+        if (used + size > ring.capacity()) {
+            return false;
+        }
+        int tail = (head + used) % ring.capacity();
+        tail = write(tail, ByteBuffer.allocate(Integer.BYTES).putInt(0, bytes.length).array());
+        write(tail, bytes);
+        used += size;
+        count++;
+        return true;
+    }
+
+    /**
+     * Discard the frames up to (and including) the given sequence number.
+     */
+    void ack(long sequence) {
+        while (lastAcked < sequence && count > 0) {
+            int length = ByteBuffer.wrap(read(head, Integer.BYTES)).getInt();
+            int size = Integer.BYTES + length;
+            head = (head + size) % ring.capacity();
+            used -= size;
+            count--;
+            lastAcked++;
+        }
+    }
+
+    long getLastAcked() {
+        return lastAcked;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Return the frames not acknowledged yet, oldest first.
+     */
+    List<InputSignal> unacked() {
+        List<InputSignal> result = new ArrayList<>(count);
+        int position = head;
+        for (int i = 0; i < count; i++) {
+            int length = ByteBuffer.wrap(read(position, Integer.BYTES)).getInt();
+            position = (position + Integer.BYTES) % ring.capacity();
+            try {
+                result.add(InputSignal.parseFrom(read(position, length)));
+            }
+            catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException(e);
+            }
+            position = (position + length) % ring.capacity();
+        }
+        return result;
+    }
+
+    private int write(int position, byte[] bytes) {
+        int first = Math.min(bytes.length, ring.capacity() - position);
+        ByteBuffer target = ring.duplicate();
+        target.position(position);
+        target.put(bytes, 0, first);
+        if (first < bytes.length) {
+            target.position(0);
+            target.put(bytes, first, bytes.length - first);
+        }
+        return (position + bytes.length) % ring.capacity();
+    }
+
+    /*
+     * Copies out of the ring, as parsing protobuf messages straight from a direct buffer is not safe.
+     */
+    private byte[] read(int position, int length) {
+        byte[] bytes = new byte[length];
+        int first = Math.min(length, ring.capacity() - position);
+        ByteBuffer source = ring.duplicate();
+        source.position(position);
+        source.get(bytes, 0, first);
+        if (first < length) {
+            source.position(0);
+            source.get(bytes, first, length - first);
+        }
+        return bytes;
+    }
+}
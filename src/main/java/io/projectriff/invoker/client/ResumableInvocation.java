@@ -0,0 +1,219 @@
+package io.projectriff.invoker.client;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+
+/**
+ * An invocation that survives its stream breaking, by opening a new one that resumes after the last input the invoker
+ * acknowledged.
+ *
+ * <p>
+ * Inputs are numbered and kept in a {@link ReplayBuffer} until acknowledged. The inputs of the caller are only
+ * requested while there is room in that buffer, which hence bounds how far ahead of the invoker the client can get.
+ * On a transient failure ({@code UNAVAILABLE} or {@code CANCELLED}), a new stream is opened (possibly reaching
+ * another instance of the function) with a start frame carrying the last acknowledged sequence number, followed by
+ * the buffered inputs and then the live ones.
+ * </p>
+ *
+ * <p>
+ * Inputs whose result was received but not acknowledged before the stream broke are processed again. Results carry
+ * the sequence number of their input, so those already received are dropped. Only element-wise functions can be
+ * resumed, which the invoker enforces.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+class ResumableInvocation {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResumableInvocation.class);
+
+    private static final Duration FIRST_BACKOFF = Duration.ofMillis(100L);
+
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(5L);
+
+    private final ReactorRiffGrpc.ReactorRiffStub stub;
+
+    private final Flux<InputSignal> inputs;
+
+    private final LongFunction<InputSignal> start;
+
+    private final ReplayBuffer buffer;
+
+    private final int maxAttempts;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final InputSubscriber upstream = new InputSubscriber();
+
+    private UnicastProcessor<InputSignal> current;
+
+    private InputSignal held;
+
+    private long nextSequence = 1L;
+
+    /*
+     * The sequence numbers of the inputs results (or error frames) were received for, that are not acknowledged yet.
+     * Error frames may overtake results, so these are not received in order.
+     */
+    private final Set<Long> received = new HashSet<>();
+
+    private boolean completed;
+
+    private boolean subscribed;
+
+    private volatile Throwable inputError;
+
+    ResumableInvocation(ReactorRiffGrpc.ReactorRiffStub stub, Flux<InputSignal> inputs, LongFunction<InputSignal> start,
+                        int bufferCapacity, int maxAttempts) {
+        this.stub = stub;
+        this.inputs = inputs;
+        this.start = start;
+        this.buffer = new ReplayBuffer(bufferCapacity);
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Return the output signals of the invocation, across as many streams as needed. Acks are handled here and not
+     * passed on.
+     */
+    Flux<OutputSignal> outputs() {
+        return Flux.defer(() -> stub.invoke(nextAttempt()))
+                .doOnNext(s -> {
+                    if (s.hasAck()) {
+                        failures.set(0);
+                        acked(s.getAck().getSequence());
+                        received.removeIf(r -> r <= s.getAck().getSequence());
+                    }
+                })
+                .retryWhen(errors -> errors.concatMap(e -> {
+                    int attempt = failures.incrementAndGet();
+                    if (inputError != null) {
+                        return Mono.error(inputError);
+                    }
+                    if (!isTransient(e) || attempt > maxAttempts) {
+                        return Mono.error(e);
+                    }
+                    long backoff = Math.min(MAX_BACKOFF.toMillis(), FIRST_BACKOFF.toMillis() << Math.min(attempt - 1, 10));
+                    logger.warn("Invocation stream broke ({}), resuming in {}ms", e.toString(), backoff);
+                    return Mono.delay(Duration.ofMillis(backoff));
+                }))
+                .filter(s -> !s.hasAck() && isNew(s))
+                .doFinally(s -> upstream.dispose());
+    }
+
+    /*
+     * Only called from the (serialized) output signals, as is the pruning of acknowledged sequence numbers.
+     */
+    private boolean isNew(OutputSignal signal) {
+        long sequence = signal.hasData() ? signal.getData().getSequence()
+                : signal.hasError() ? signal.getError().getSequence() : 0L;
+        return sequence == 0L || received.add(sequence);
+    }
+
+    private static boolean isTransient(Throwable e) {
+        if (!(e instanceof StatusRuntimeException)) {
+            return false;
+        }
+        Status.Code code = ((StatusRuntimeException) e).getStatus().getCode();
+        return code == Status.Code.UNAVAILABLE || code == Status.Code.CANCELLED;
+    }
+
+    /*
+     * Sets up the inputs of a new stream: the start frame, what has not been acknowledged on previous streams,
+     * then live inputs.
+     */
+    private synchronized Flux<InputSignal> nextAttempt() {
+        UnicastProcessor<InputSignal> attempt = UnicastProcessor.create();
+        buffer.unacked().forEach(attempt::onNext);
+        if (completed && held == null) {
+            attempt.onComplete();
+        }
+        current = attempt;
+        if (!subscribed) {
+            subscribed = true;
+            inputs.subscribe(upstream);
+        }
+        return Flux.concat(Mono.just(start.apply(buffer.getLastAcked())), attempt);
+    }
+
+    private synchronized void acked(long sequence) {
+        buffer.ack(sequence);
+        if (held != null && buffer.offer(held)) {
+            current.onNext(held);
+            held = null;
+            if (completed) {
+                current.onComplete();
+            }
+            else {
+                upstream.request(1L);
+            }
+        }
+    }
+
+    private synchronized void next(InputSignal signal) {
+        InputSignal numbered = signal.toBuilder()
+                .setData(signal.getData().toBuilder().setSequence(nextSequence++))
+                .build();
+        if (buffer.offer(numbered)) {
+            current.onNext(numbered);
+            upstream.request(1L);
+        }
+        else {
+            held = numbered;
+        }
+    }
+
+    private synchronized void complete() {
+        completed = true;
+        if (held == null) {
+            current.onComplete();
+        }
+    }
+
+    private synchronized void error(Throwable t) {
+        inputError = t;
+        current.onError(t);
+    }
+
+    /*
+     * Requests inputs one at a time, as long as they fit in the replay buffer.
+     */
+    private class InputSubscriber extends BaseSubscriber<InputSignal> {
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            subscription.request(1L);
+        }
+
+        @Override
+        protected void hookOnNext(InputSignal value) {
+            next(value);
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            complete();
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            error(throwable);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.projectriff.invoker.compression;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.MethodDescriptor;
+
+/**
+ * A {@link ClientInterceptor} that compresses requests with the given codec, but only for messages bigger than
+ * a threshold.
+ *
+ * <p>
+ * The codec must be known to the channel {@link io.grpc.CompressorRegistry} (see {@link CompressionCodecs}) and
+ * to the server.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class ClientCompressionInterceptor implements ClientInterceptor {
+
+    private final String codec;
+
+    private final int threshold;
+
+    public ClientCompressionInterceptor(String codec, int threshold) {
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                               CallOptions callOptions, Channel next) {
+        ClientCall<ReqT, RespT> call = next.newCall(method, callOptions.withCompression(codec));
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(ReqT message) {
+                setMessageCompression(CompressionCodecs.shouldCompress(message, threshold));
+                super.sendMessage(message);
+            }
+        };
+    }
+}
@@ -0,0 +1,56 @@
+package io.projectriff.invoker.compression;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+
+import org.springframework.util.ClassUtils;
+
+/**
+ * Registries of all the message encodings understood by riff, on top of what grpc-java supports out of the box.
+ *
+ * <p>
+ * Clients that want to use (or accept) an encoding other than {@code gzip} should build their channel with
+ * {@link #compressorRegistry()} and {@link #decompressorRegistry()}.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public final class CompressionCodecs {
+
+    private static final boolean lz4Present = ClassUtils.isPresent("net.jpountz.lz4.LZ4FrameOutputStream",
+            CompressionCodecs.class.getClassLoader());
+
+    private CompressionCodecs() {
+
+    }
+
+    public static CompressorRegistry compressorRegistry() {
+        CompressorRegistry registry = CompressorRegistry.newEmptyInstance();
+        registry.register(Codec.Identity.NONE);
+        registry.register(new Codec.Gzip());
+        registry.register(new DeflateCodec());
+        if (lz4Present) {
+            registry.register(new Lz4Codec());
+        }
+        return registry;
+    }
+
+    public static DecompressorRegistry decompressorRegistry() {
+        DecompressorRegistry registry = DecompressorRegistry.getDefaultInstance()
+                .with(new DeflateCodec(), true);
+        if (lz4Present) {
+            registry = registry.with(new Lz4Codec(), true);
+        }
+        return registry;
+    }
+
+    /**
+     * Whether a message is big enough to be worth compressing. Serialized size is memoized by protobuf, so this
+     * doesn't incur an extra serialization.
+     */
+    static boolean shouldCompress(Object message, int threshold) {
+        return !(message instanceof MessageLite) || ((MessageLite) message).getSerializedSize() >= threshold;
+    }
+}
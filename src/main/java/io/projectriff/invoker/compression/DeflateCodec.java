@@ -0,0 +1,31 @@
+package io.projectriff.invoker.compression;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import io.grpc.Codec;
+
+/**
+ * A gRPC {@link Codec} for the (zlib wrapped) {@code deflate} message encoding, which grpc-java does not provide.
+ *
+ * @author Eric Bottard
+ */
+public class DeflateCodec implements Codec {
+
+    @Override
+    public String getMessageEncoding() {
+        return "deflate";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream os) {
+        return new DeflaterOutputStream(os);
+    }
+
+    @Override
+    public InputStream decompress(InputStream is) {
+        return new InflaterInputStream(is);
+    }
+}
@@ -0,0 +1,43 @@
+package io.projectriff.invoker.compression;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+/**
+ * A {@link ServerInterceptor} that compresses responses with the configured codec, but only for messages bigger than
+ * a threshold.
+ *
+ * <p>
+ * gRPC falls back to no compression if the client didn't advertise the codec in its {@code grpc-accept-encoding}
+ * header, so this is safe to install for any client.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class ServerCompressionInterceptor implements ServerInterceptor {
+
+    private final String codec;
+
+    private final int threshold;
+
+    public ServerCompressionInterceptor(String codec, int threshold) {
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        call.setCompression(codec);
+        return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                setMessageCompression(CompressionCodecs.shouldCompress(message, threshold));
+                super.sendMessage(message);
+            }
+        }, headers);
+    }
+}
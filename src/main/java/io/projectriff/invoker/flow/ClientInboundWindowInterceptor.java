@@ -0,0 +1,47 @@
+package io.projectriff.invoker.flow;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+
+/**
+ * A {@link ClientInterceptor} that applies the {@link InboundWindow} passed as the
+ * {@link InboundWindow#CALL_OPTION} of a call, if any, to the responses of that call.
+ *
+ * @author Eric Bottard
+ */
+public class ClientInboundWindowInterceptor implements ClientInterceptor {
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                               CallOptions callOptions, Channel next) {
+        ClientCall<ReqT, RespT> call = next.newCall(method, callOptions);
+        InboundWindow window = callOptions.getOption(InboundWindow.CALL_OPTION);
+        if (window == null) {
+            return call;
+        }
+        window.attach(call::request);
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(call) {
+            @Override
+            public void start(Listener<RespT> responseListener, Metadata headers) {
+                super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                    @Override
+                    public void onMessage(RespT message) {
+                        super.onMessage(message);
+                        window.received(message);
+                    }
+                }, headers);
+            }
+
+            @Override
+            public void request(int numMessages) {
+                window.request(numMessages);
+            }
+        };
+    }
+}
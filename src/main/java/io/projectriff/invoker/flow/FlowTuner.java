@@ -0,0 +1,117 @@
+package io.projectriff.invoker.flow;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.MessageLite;
+
+/**
+ * Sizes the queues and prefetches of invocation streams, either as configured or, when auto-tuning, from the
+ * observed size of the messages going through them.
+ *
+ * <p>
+ * Reactor operators and gRPC count elements, so how much memory a stream holds depends on how big its elements are:
+ * a prefetch of 256 is a few kilobytes of small events, but hundreds of megabytes of images. When auto-tuning, each
+ * stage holds as many elements as fit in a window of bytes, computed from a running average of message sizes, and
+ * never more than the configured count (nor less than one element).
+ * </p>
+ *
+ * <p>
+ * One tuner is shared by the streams of an invoker (or of a client proxy), each direction being averaged
+ * separately. Averages are updated without synchronization, as a lost update here and there does not matter.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public final class FlowTuner {
+
+    /*
+     * The weight of a new sample is 1 / 2^AVERAGE_SHIFT.
+     */
+    private static final int AVERAGE_SHIFT = 4;
+
+    private final boolean autoTune;
+
+    private final long windowBytes;
+
+    private final AtomicLong averageReceived = new AtomicLong();
+
+    private final AtomicLong averageSent = new AtomicLong();
+
+    /**
+     * Create a tuner that, if {@code autoTune} is set, fits stages to {@code windowBytes} each. Configured counts are
+     * used as is otherwise.
+     */
+    public FlowTuner(boolean autoTune, long windowBytes) {
+        this.autoTune = autoTune && windowBytes > 0L;
+        this.windowBytes = windowBytes;
+    }
+
+    public boolean isAutoTune() {
+        return autoTune;
+    }
+
+    /**
+     * Record the size of a message received from the other side.
+     */
+    public void received(int bytes) {
+        if (autoTune) {
+            observe(averageReceived, bytes);
+        }
+    }
+
+    /**
+     * Record the size of a message sent to the other side.
+     */
+    public void sent(int bytes) {
+        if (autoTune) {
+            observe(averageSent, bytes);
+        }
+    }
+
+    /**
+     * Return how many received messages a stage should hold, given its configured count.
+     */
+    public int receiving(int configured) {
+        return fit(configured, average(averageReceived));
+    }
+
+    /**
+     * Return how many messages to be sent a stage should hold, given its configured count.
+     */
+    public int sending(int configured) {
+        return fit(configured, average(averageSent));
+    }
+
+    public long getAverageReceivedBytes() {
+        return average(averageReceived);
+    }
+
+    public long getAverageSentBytes() {
+        return average(averageSent);
+    }
+
+    /**
+     * Return the serialized size of a gRPC message, or 0 if it is not a protobuf message.
+     */
+    public static int sizeOf(Object message) {
+        return message instanceof MessageLite ? ((MessageLite) message).getSerializedSize() : 0;
+    }
+
+    private int fit(int configured, long averageBytes) {
+        if (!autoTune || averageBytes <= 0L) {
+            return configured;
+        }
+        return (int) Math.max(1L, Math.min(configured, windowBytes / averageBytes));
+    }
+
+    private static void observe(AtomicLong average, int bytes) {
+        long current = average.get();
+        // Scaled by 2^AVERAGE_SHIFT, so that small differences are not lost to integer division
+        long scaled = current == 0L ? (long) bytes << AVERAGE_SHIFT : current + bytes - (current >> AVERAGE_SHIFT);
+        average.set(Math.max(1L << AVERAGE_SHIFT, scaled));
+    }
+
+    private static long average(AtomicLong average) {
+        return average.get() >> AVERAGE_SHIFT;
+    }
+}
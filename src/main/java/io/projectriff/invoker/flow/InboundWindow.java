@@ -0,0 +1,142 @@
+package io.projectriff.invoker.flow;
+
+import java.util.function.IntConsumer;
+
+import io.grpc.CallOptions;
+import io.grpc.Context;
+import reactor.core.publisher.Flux;
+
+/**
+ * Limits how many messages of a single gRPC call are requested from the transport ahead of their consumer.
+ *
+ * <p>
+ * reactive-grpc requests messages in chunks of 512 and queues whatever it receives until the flux it exposes is
+ * read, so that up to 512 messages per call sit in memory regardless of their size or of any budget applied
+ * downstream. Its requests are intercepted (see {@link ServerInboundWindowInterceptor} and
+ * {@link ClientInboundWindowInterceptor}) and only passed on to the transport as long as fewer than the window are
+ * outstanding. Once the flux of messages is {@link #consume(Flux) consumed} through this window, a message stops
+ * being outstanding when it is read from that flux, hence bounding what reactive-grpc queues. Otherwise, it does as
+ * soon as it is received.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public final class InboundWindow {
+
+    /**
+     * Where the server interceptor makes the window of a call available to the service.
+     */
+    public static final Context.Key<InboundWindow> CONTEXT_KEY = Context.key("riff-inbound-window");
+
+    /**
+     * How a client hands the window of a call to the client interceptor.
+     */
+    public static final CallOptions.Key<InboundWindow> CALL_OPTION = CallOptions.Key.create("riff-inbound-window");
+
+    private final int messages;
+
+    private final FlowTuner tuner;
+
+    private volatile IntConsumer transport = n -> {};
+
+    /*
+     * Requested by reactive-grpc but not passed on yet.
+     */
+    private long wanted;
+
+    /*
+     * Requested from the transport but not received (or consumed, when tracking) yet.
+     */
+    private long outstanding;
+
+    private long received;
+
+    private boolean tracking;
+
+    /**
+     * Create a window of (at most, when auto-tuning) the given number of messages.
+     */
+    public InboundWindow(int messages, FlowTuner tuner) {
+        this.messages = messages;
+        this.tuner = tuner;
+    }
+
+    /**
+     * Read the given messages through the window of the current gRPC call, if there is one.
+     */
+    public static <T> Flux<T> consumeCurrent(Flux<T> messages) {
+        InboundWindow window = CONTEXT_KEY.get();
+        return window == null ? messages : window.consume(messages);
+    }
+
+    /**
+     * Read the messages of this window's call through the given flux, only releasing room in the window as they are
+     * read. Should be called before the call starts receiving messages.
+     */
+    public <T> Flux<T> consume(Flux<T> messages) {
+        synchronized (this) {
+            tracking = true;
+        }
+        return messages.doOnNext(m -> consumed());
+    }
+
+    void attach(IntConsumer transport) {
+        this.transport = transport;
+    }
+
+    void request(int n) {
+        int granted;
+        synchronized (this) {
+            wanted += n;
+            granted = grant();
+        }
+        pass(granted);
+    }
+
+    void received(Object message) {
+        tuner.received(FlowTuner.sizeOf(message));
+        int granted;
+        synchronized (this) {
+            received++;
+            if (tracking) {
+                return;
+            }
+            outstanding--;
+            granted = grant();
+        }
+        pass(granted);
+    }
+
+    private void consumed() {
+        int granted;
+        synchronized (this) {
+            outstanding--;
+            granted = grant();
+        }
+        pass(granted);
+    }
+
+    private int grant() {
+        long limit = tuner.receiving(messages);
+        if (tuner.isAutoTune()) {
+            // Grows with what was received, as the size of messages is not known until some went through
+            limit = Math.min(limit, 2L * received + 1L);
+        }
+        long room = limit - outstanding;
+        // Passed on in batches, as each request is a trip to the transport thread
+        if (room <= 0L || outstanding > 0L && room < Math.max(1L, limit / 4L)) {
+            return 0;
+        }
+        int granted = (int) Math.min(wanted, room);
+        wanted -= granted;
+        outstanding += granted;
+        return granted;
+    }
+
+    private void pass(int granted) {
+        if (granted > 0) {
+            // Outside of the lock, as the transport may deliver messages right away
+            transport.accept(granted);
+        }
+    }
+}
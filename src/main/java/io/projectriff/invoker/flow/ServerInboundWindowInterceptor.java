@@ -0,0 +1,55 @@
+package io.projectriff.invoker.flow;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+/**
+ * A {@link ServerInterceptor} that gives each call an {@link InboundWindow}, available to the service through
+ * {@link InboundWindow#CONTEXT_KEY}.
+ *
+ * @author Eric Bottard
+ */
+public class ServerInboundWindowInterceptor implements ServerInterceptor {
+
+    /**
+     * How many messages reactive-grpc requests at most, which a window of that size or more does not change.
+     */
+    public static final int REACTIVE_GRPC_PREFETCH = 512;
+
+    private final int messages;
+
+    private final FlowTuner tuner;
+
+    public ServerInboundWindowInterceptor(int messages, FlowTuner tuner) {
+        this.messages = messages;
+        this.tuner = tuner;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        InboundWindow window = new InboundWindow(messages, tuner);
+        window.attach(call::request);
+        ServerCall<ReqT, RespT> windowed = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void request(int numMessages) {
+                window.request(numMessages);
+            }
+        };
+        Context context = Context.current().withValue(InboundWindow.CONTEXT_KEY, window);
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(
+                Contexts.interceptCall(context, windowed, headers, next)) {
+            @Override
+            public void onMessage(ReqT message) {
+                super.onMessage(message);
+                window.received(message);
+            }
+        };
+    }
+}
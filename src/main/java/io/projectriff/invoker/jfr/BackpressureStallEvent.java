@@ -0,0 +1,64 @@
+package io.projectriff.invoker.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A period during which the next input frame of a stream was held back, as it did not fit in the stream memory
+ * budget.
+ *
+ * @author Eric Bottard
+ */
+@Name("riff.BackpressureStall")
+@Label("Backpressure Stall")
+@Category({"riff", "Flow Control"})
+@Description("An input frame held back until there is room for it in the stream memory budget")
+@Enabled(false)
+@StackTrace(false)
+public final class BackpressureStallEvent extends Event {
+
+    @Label("Queued")
+    @Description("What the stream held in memory when the stall began")
+    @DataAmount
+    private long queuedBytes;
+
+    @Label("Budget")
+    @DataAmount
+    private long budgetBytes;
+
+    @Label("Frame Size")
+    @DataAmount
+    private long frameBytes;
+
+    @Label("Spilled Frames")
+    @Description("The number of frames in the spill file when the stall began")
+    private long spilledFrames;
+
+    /**
+     * Start timing a stall, returning {@code null} if the event is disabled.
+     */
+    public static BackpressureStallEvent start(long queuedBytes, long budgetBytes, int frameBytes, long spilledFrames) {
+        BackpressureStallEvent event = new BackpressureStallEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        event.queuedBytes = queuedBytes;
+        event.budgetBytes = budgetBytes;
+        event.frameBytes = frameBytes;
+        event.spilledFrames = spilledFrames;
+        return event;
+    }
+
+    public void resumed() {
+        if (shouldCommit()) {
+            commit();
+        }
+    }
+}
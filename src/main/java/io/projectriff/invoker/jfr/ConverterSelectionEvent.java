@@ -0,0 +1,55 @@
+package io.projectriff.invoker.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The message converter picked to read an input or write a result, for sampled frames and http requests.
+ *
+ * @author Eric Bottard
+ */
+@Name("riff.ConverterSelection")
+@Label("Converter Selection")
+@Category({"riff", "Frame"})
+@Description("The message converter chosen for a content type and a java type")
+@Enabled(false)
+@StackTrace(false)
+public final class ConverterSelectionEvent extends Event {
+
+    public static final String READ = "read";
+
+    public static final String WRITE = "write";
+
+    @Label("Function")
+    private String function;
+
+    @Label("Direction")
+    @Description("Whether the converter reads an input or writes a result")
+    private String direction;
+
+    @Label("Converter")
+    private Class<?> converter;
+
+    @Label("Java Type")
+    private Class<?> javaType;
+
+    @Label("Media Type")
+    private String mediaType;
+
+    public static void selected(String function, String direction, Object converter, Class<?> javaType, Object mediaType) {
+        ConverterSelectionEvent event = new ConverterSelectionEvent();
+        if (event.shouldCommit()) {
+            event.function = function;
+            event.direction = direction;
+            event.converter = converter.getClass();
+            event.javaType = javaType;
+            event.mediaType = String.valueOf(mediaType);
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.projectriff.invoker.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The time a sampled input spent in the function, from when it was handed to it until the result it is attributed
+ * to was produced.
+ *
+ * @author Eric Bottard
+ */
+@Name("riff.FrameApply")
+@Label("Frame Apply")
+@Category({"riff", "Frame"})
+@Description("The dwell time of an input frame sampled for tracing in the function")
+@Enabled(false)
+@StackTrace(false)
+public final class FrameApplyEvent extends Event {
+
+    @Label("Function")
+    private String function;
+
+    @Label("Trace Id")
+    private String traceId;
+
+    /**
+     * Start timing the application of the function to a frame, if the event is enabled.
+     */
+    public static FrameApplyEvent start(String function, String traceId) {
+        FrameApplyEvent event = new FrameApplyEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            event.function = function;
+            event.traceId = traceId;
+        }
+        return event;
+    }
+
+    public void produced() {
+        if (shouldCommit()) {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.projectriff.invoker.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The decoding of a sampled input frame into the value handed to the function.
+ *
+ * @author Eric Bottard
+ */
+@Name("riff.FrameDecode")
+@Label("Frame Decode")
+@Category({"riff", "Frame"})
+@Description("The decoding of an input frame sampled for tracing")
+@Enabled(false)
+@StackTrace(false)
+public final class FrameDecodeEvent extends Event {
+
+    @Label("Function")
+    private String function;
+
+    @Label("Trace Id")
+    private String traceId;
+
+    @Label("Argument")
+    private int argument;
+
+    @Label("Size")
+    @DataAmount
+    private long bytes;
+
+    @Label("Content Type")
+    private String contentType;
+
+    /**
+     * Start timing the decoding of a frame, if the event is enabled.
+     */
+    public static FrameDecodeEvent start(String function, int bytes) {
+        FrameDecodeEvent event = new FrameDecodeEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            event.function = function;
+            event.bytes = bytes;
+        }
+        return event;
+    }
+
+    public void decoded(String traceId, int argument, Object contentType) {
+        if (shouldCommit()) {
+            this.traceId = traceId;
+            this.argument = argument;
+            this.contentType = String.valueOf(contentType);
+            commit();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.projectriff.invoker.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The encoding of the result attributed to a sampled input frame.
+ *
+ * @author Eric Bottard
+ */
+@Name("riff.FrameEncode")
+@Label("Frame Encode")
+@Category({"riff", "Frame"})
+@Description("The encoding of the result of an input frame sampled for tracing")
+@Enabled(false)
+@StackTrace(false)
+public final class FrameEncodeEvent extends Event {
+
+    @Label("Function")
+    private String function;
+
+    @Label("Trace Id")
+    private String traceId;
+
+    @Label("Result")
+    private int result;
+
+    @Label("Size")
+    @DataAmount
+    private long bytes;
+
+    @Label("Content Type")
+    private String contentType;
+
+    /**
+     * Start timing the encoding of a result, if the event is enabled.
+     */
+    public static FrameEncodeEvent start(String function, String traceId, int result) {
+        FrameEncodeEvent event = new FrameEncodeEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            event.function = function;
+            event.traceId = traceId;
+            event.result = result;
+        }
+        return event;
+    }
+
+    public void encoded(Object contentType, long bytes) {
+        if (shouldCommit()) {
+            this.contentType = String.valueOf(contentType);
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.projectriff.invoker.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The handling of an http request to a function, until its response is ready to be written.
+ *
+ * @author Eric Bottard
+ */
+@Name("riff.HttpRequest")
+@Label("Http Request")
+@Category({"riff", "Invocation"})
+@Description("An http invocation of a function")
+@Enabled(false)
+@StackTrace(false)
+public final class HttpRequestEvent extends Event {
+
+    @Label("Function")
+    private String function;
+
+    @Label("Method")
+    private String method;
+
+    @Label("Status")
+    @Description("The status of the response, or 500 if the function failed")
+    private int status;
+
+    @Label("Request Size")
+    @DataAmount
+    private long requestBytes;
+
+    @Label("Response Size")
+    @DataAmount
+    private long responseBytes;
+
+    @Label("Coalesced")
+    @Description("Whether the response was shared with an identical request, rather than computed for this one")
+    private boolean coalesced;
+
+    /**
+     * Start timing a request, if the event is enabled.
+     */
+    public static HttpRequestEvent start(String function, String method, int requestBytes) {
+        HttpRequestEvent event = new HttpRequestEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            event.function = function;
+            event.method = method;
+            event.requestBytes = requestBytes;
+        }
+        return event;
+    }
+
+    public void coalesced() {
+        coalesced = true;
+    }
+
+    public void responded(int status, long responseBytes) {
+        if (shouldCommit()) {
+            this.status = status;
+            this.responseBytes = responseBytes;
+            commit();
+        }
+    }
+}
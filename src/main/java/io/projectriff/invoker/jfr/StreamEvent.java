@@ -0,0 +1,92 @@
+package io.projectriff.invoker.jfr;
+
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A gRPC invocation stream, from its start frame until it ends.
+ *
+ * <p>
+ * Like the other invoker events, it is disabled by default and enabled by the {@code riff.jfc} settings file shipped
+ * with the invoker, which can be combined with the settings of the JDK:
+ * {@code -XX:StartFlightRecording:settings=default,settings=riff.jfc}. Frames are counted without synchronization,
+ * as inputs and outputs are each signalled serially.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+@Name("riff.Stream")
+@Label("Invocation Stream")
+@Category({"riff", "Invocation"})
+@Description("A gRPC invocation of a function")
+@Enabled(false)
+@StackTrace(false)
+public final class StreamEvent extends Event {
+
+    @Label("Function")
+    private String function;
+
+    @Label("Arity")
+    @Description("The number of inputs of the function")
+    private int arity;
+
+    @Label("Results")
+    @Description("The number of outputs the client expects")
+    private int results;
+
+    @Label("Expected Content Types")
+    @Description("What the client accepts for each output, separated by semicolons")
+    private String expectedContentTypes;
+
+    @Label("Content Types")
+    @Description("The content type dictionary of the stream")
+    private String contentTypes;
+
+    @Label("Frames In")
+    private long framesIn;
+
+    @Label("Frames Out")
+    private long framesOut;
+
+    @Label("Outcome")
+    @Description("How the stream ended: onComplete, onError or cancel")
+    private String outcome;
+
+    /**
+     * Start timing a stream, if the event is enabled.
+     */
+    public static StreamEvent start(String function, int arity, List<String> expectedContentTypes, List<String> contentTypes) {
+        StreamEvent event = new StreamEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            event.function = function;
+            event.arity = arity;
+            event.results = expectedContentTypes.size();
+            event.expectedContentTypes = String.join("; ", expectedContentTypes);
+            event.contentTypes = String.join(", ", contentTypes);
+        }
+        return event;
+    }
+
+    public void frameIn() {
+        framesIn++;
+    }
+
+    public void frameOut() {
+        framesOut++;
+    }
+
+    public void ended(String outcome) {
+        if (shouldCommit()) {
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package io.projectriff.invoker.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * Generates load over http, with each stream being a thread issuing one request at a time. In open-loop mode, inputs
+ * that are due while all threads are busy wait for one, and that wait counts in their latency.
+ *
+ * @author Eric Bottard
+ */
+class HttpLoadGenerator extends LoadGenerator {
+
+    private final URL url;
+
+    private final AtomicLong outstanding = new AtomicLong();
+
+    private ExecutorService executor;
+
+    HttpLoadGenerator(LoadOptions options) throws IOException {
+        super(options);
+        Assert.isTrue(options.getArgs() == 1 && options.getResults() == 1,
+                "Functions invoked over http have exactly one argument and one result");
+        String base = options.getHttp().endsWith("/") ? options.getHttp() : options.getHttp() + "/";
+        this.url = new URL(base + options.getFunction());
+        // The invoker closes connections after each response
+        System.setProperty("http.keepAlive", "false");
+    }
+
+    @Override
+    protected void open() {
+        int threads = options.getMode() == LoadOptions.Mode.OPEN
+                ? options.getStreams()
+                : options.getStreams() * options.getConcurrency();
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "loadgen-http-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    protected void fire(int stream, long intended) {
+        outstanding.incrementAndGet();
+        executor.execute(() -> call(intended));
+    }
+
+    @Override
+    protected void startClosedLoop() {
+        int threads = options.getStreams() * options.getConcurrency();
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                while (System.nanoTime() - end < 0L) {
+                    outstanding.incrementAndGet();
+                    call(System.nanoTime());
+                }
+            });
+        }
+    }
+
+    @Override
+    protected long drain(long deadline) throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        return outstanding.get();
+    }
+
+    @Override
+    protected void close() {
+        executor.shutdownNow();
+    }
+
+    private void call(long intended) {
+        byte[] payload;
+        synchronized (this) {
+            payload = nextPayload();
+        }
+        report.sent(intended);
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(payload.length);
+            connection.setRequestProperty("Content-Type", options.getContentType());
+            connection.setRequestProperty("Accept", options.getAccept());
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(payload);
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 == 2) {
+                try (InputStream in = connection.getInputStream()) {
+                    in.readAllBytes();
+                }
+                report.received(intended);
+            }
+            else {
+                report.error("http " + status);
+            }
+        }
+        catch (IOException e) {
+            report.error(e.getClass().getSimpleName());
+        }
+        finally {
+            outstanding.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package io.projectriff.invoker.loadgen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends load to a running invoker and reports how it coped, either over gRPC or over http.
+ *
+ * <p>
+ * In {@link LoadOptions.Mode#OPEN open-loop} mode, inputs are due at a constant rate and spread over streams in turn.
+ * An input is sent as soon as it is due, or right away if the generator fell behind, and its latency is always
+ * measured from when it was due. This way, results are not skewed by coordinated omission (a slow response delaying
+ * the inputs that would have measured the slowness). In {@link LoadOptions.Mode#CLOSED closed-loop} mode, each
+ * stream keeps a fixed number of inputs outstanding, which measures the throughput the invoker can sustain.
+ * </p>
+ *
+ * <p>
+ * Latencies are measured between an input and the result it produced, assuming the function produces one result
+ * (on its first output) per input. For a function with several arguments, an input is one frame on each argument.
+ * As an example, start an invoker running one of the sample functions:
+ * </p>
+ *
+ * <pre>
+ * FUNCTION_LOCATION=file://$PWD/src/test/functions/hundred-divider-1.0.0.jar FUNCTION_BEAN=com.acme.HundredDivider \
+ *     java -jar target/java-function-invoker-1.0.0-SNAPSHOT.jar
+ * </pre>
+ *
+ * <p>
+ * then run the load generator from the same jar:
+ * </p>
+ *
+ * <pre>
+ * java -cp target/java-function-invoker-1.0.0-SNAPSHOT.jar -Dloader.main=io.projectriff.invoker.loadgen.LoadGenerator \
+ *     org.springframework.boot.loader.PropertiesLauncher --mode=open --rate=5000 --streams=4 --payload=7 --json=report.json
+ * </pre>
+ *
+ * @author Eric Bottard
+ * @see LoadOptions
+ */
+public abstract class LoadGenerator {
+
+    /*
+     * How long to wait for outstanding results, once done sending.
+     */
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(10L);
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    protected final LoadOptions options;
+
+    private final byte[][] payloads;
+
+    private long inputs;
+
+    protected LoadReport report;
+
+    protected long end;
+
+    protected LoadGenerator(LoadOptions options) {
+        this.options = options;
+        this.payloads = options.getPayload() != null
+                ? new byte[][] {options.getPayload().getBytes(StandardCharsets.UTF_8)}
+                : randomPayloads(64, options.getPayloadSize());
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadOptions options = LoadOptions.parse(args);
+        LoadGenerator generator = create(options);
+        System.out.printf("Sending %s-loop load to %s for %s, after %s of warmup%n", options.getMode().name().toLowerCase(),
+                options.isHttp() ? options.getHttp() : options.getTarget(), options.getDuration(), options.getWarmup());
+        LoadReport report = generator.run();
+        System.out.print(report.toText());
+        if ("-".equals(options.getJson())) {
+            System.out.println(report.toJson());
+        }
+        else if (options.getJson() != null) {
+            Files.write(Paths.get(options.getJson()), report.toJson().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Return a generator sending load over http or gRPC, depending on the given options.
+     */
+    public static LoadGenerator create(LoadOptions options) throws IOException {
+        return options.isHttp() ? new HttpLoadGenerator(options) : new RpcLoadGenerator(options);
+    }
+
+    public LoadReport run() throws Exception {
+        long start = System.nanoTime();
+        long measureFrom = start + options.getWarmup().toNanos();
+        this.end = measureFrom + options.getDuration().toNanos();
+        this.report = new LoadReport(measureFrom, end);
+        open();
+        try {
+            if (options.getMode() == LoadOptions.Mode.OPEN) {
+                pace(start);
+            }
+            else {
+                startClosedLoop();
+                long remaining;
+                while ((remaining = end - System.nanoTime()) > 0L) {
+                    LockSupport.parkNanos(remaining);
+                }
+            }
+            report.finish(drain(end + DRAIN_NANOS));
+        }
+        finally {
+            close();
+        }
+        return report;
+    }
+
+    /*
+     * Fires inputs at their due time, catching up without delay when late.
+     */
+    private void pace(long start) {
+        int streams = options.getStreams();
+        double period = 1e9d / options.getRate();
+        for (long i = 0L; ; i++) {
+            long intended = start + (long) (i * period);
+            if (intended - end >= 0L) {
+                return;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0L) {
+                LockSupport.parkNanos(wait);
+            }
+            fire((int) (i % streams), intended);
+        }
+    }
+
+    /**
+     * Return the payload of the next input.
+     */
+    protected byte[] nextPayload() {
+        return payloads[(int) (inputs++ % payloads.length)];
+    }
+
+    private static byte[][] randomPayloads(int count, int size) {
+        byte[][] result = new byte[count][size];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (byte[] payload : result) {
+            for (int i = 0; i < size; i++) {
+                payload[i] = (byte) ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Set up streams or connections.
+     */
+    protected abstract void open() throws Exception;
+
+    /**
+     * Send an input on the given stream, that was due at the given time (open-loop mode).
+     */
+    protected abstract void fire(int stream, long intended);
+
+    /**
+     * Start sending inputs, until {@link #end} (closed-loop mode).
+     */
+    protected abstract void startClosedLoop();
+
+    /**
+     * Stop sending inputs, and wait for outstanding results until the given time. Returns the number of inputs still
+     * outstanding.
+     */
+    protected abstract long drain(long deadline) throws InterruptedException;
+
+    protected abstract void close() throws InterruptedException;
+}
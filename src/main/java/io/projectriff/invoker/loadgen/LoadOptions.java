@@ -0,0 +1,263 @@
+package io.projectriff.invoker.loadgen;
+
+import java.time.Duration;
+
+import io.projectriff.invoker.shm.WaitStrategy;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.ConfigurationPropertySources;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.util.Assert;
+
+/**
+ * The settings of a load generation run, bound from {@code --name=value} command line arguments (with relaxed names,
+ * so that both {@code --payload-size} and {@code --payloadSize} work, and durations such as {@code 30s}).
+ *
+ * @author Eric Bottard
+ */
+public class LoadOptions {
+
+    public enum Mode {
+
+        /**
+         * Inputs are sent at a constant rate, whether or not results keep up. Latencies are measured from when an
+         * input was due to be sent, so that a stalled invoker shows up in all the latencies it causes.
+         */
+        OPEN,
+
+        /**
+         * Each stream (or connection) keeps a fixed number of inputs outstanding, sending a new one whenever a result
+         * comes back.
+         */
+        CLOSED
+    }
+
+    /**
+     * The {@code host:port} of the invoker's gRPC endpoint, {@code unix:<path>} for its domain socket or
+     * {@code shm:<path>} for its shared memory file.
+     */
+    private String target = "localhost:8081";
+
+    /**
+     * How to wait for results, when targeting a shared memory file.
+     */
+    private WaitStrategy waitStrategy = WaitStrategy.BACKOFF;
+
+    /**
+     * The URL of the invoker's http endpoint. Setting this sends load over http rather than gRPC.
+     */
+    private String http;
+
+    /**
+     * The name of the function to invoke, for invokers hosting several functions.
+     */
+    private String function = "";
+
+    private Mode mode = Mode.CLOSED;
+
+    /**
+     * The number of inputs sent per second, across all streams, in open-loop mode.
+     */
+    private int rate = 1000;
+
+    /**
+     * The number of inputs each stream keeps outstanding, in closed-loop mode.
+     */
+    private int concurrency = 1;
+
+    /**
+     * The number of concurrent invocations (gRPC) or connections (http).
+     */
+    private int streams = 1;
+
+    /**
+     * The number of input arguments of the function. Each input is sent as one frame per argument.
+     */
+    private int args = 1;
+
+    /**
+     * The number of results of the function.
+     */
+    private int results = 1;
+
+    /**
+     * The payload of inputs. Defaults to random text of {@link #payloadSize} characters.
+     */
+    private String payload;
+
+    private int payloadSize = 16;
+
+    private String contentType = "text/plain";
+
+    private String accept = "text/plain";
+
+    private Duration duration = Duration.ofSeconds(30L);
+
+    /**
+     * How long to send load for before starting to record results, so that they're free of JIT compilation and
+     * connection setup.
+     */
+    private Duration warmup = Duration.ofSeconds(5L);
+
+    /**
+     * A file to write the report to as JSON, or {@code -} for the standard output.
+     */
+    private String json;
+
+    public static LoadOptions parse(String... args) {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new SimpleCommandLinePropertySource(args));
+        // Nothing is bound without any arguments, leaving the defaults
+        LoadOptions defaults = new LoadOptions();
+        LoadOptions options = new Binder(ConfigurationPropertySources.get(environment))
+                .bind("", Bindable.ofInstance(defaults))
+                .orElse(defaults);
+        Assert.isTrue(options.streams > 0, "streams should be positive");
+        Assert.isTrue(options.args > 0, "args should be positive");
+        Assert.isTrue(options.results > 0, "results should be positive");
+        Assert.isTrue(options.rate > 0, "rate should be positive");
+        Assert.isTrue(options.concurrency > 0, "concurrency should be positive");
+        return options;
+    }
+
+    public boolean isHttp() {
+        return http != null;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    public String getHttp() {
+        return http;
+    }
+
+    public void setHttp(String http) {
+        this.http = http;
+    }
+
+    public String getFunction() {
+        return function;
+    }
+
+    public void setFunction(String function) {
+        this.function = function;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public int getStreams() {
+        return streams;
+    }
+
+    public void setStreams(int streams) {
+        this.streams = streams;
+    }
+
+    public int getArgs() {
+        return args;
+    }
+
+    public void setArgs(int args) {
+        this.args = args;
+    }
+
+    public int getResults() {
+        return results;
+    }
+
+    public void setResults(int results) {
+        this.results = results;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public void setPayload(String payload) {
+        this.payload = payload;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    public void setPayloadSize(int payloadSize) {
+        this.payloadSize = payloadSize;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getAccept() {
+        return accept;
+    }
+
+    public void setAccept(String accept) {
+        this.accept = accept;
+    }
+
+    public Duration getDuration() {
+        return duration;
+    }
+
+    public void setDuration(Duration duration) {
+        this.duration = duration;
+    }
+
+    public Duration getWarmup() {
+        return warmup;
+    }
+
+    public void setWarmup(Duration warmup) {
+        this.warmup = warmup;
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    public void setJson(String json) {
+        this.json = json;
+    }
+}
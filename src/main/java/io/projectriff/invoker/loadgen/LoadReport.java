@@ -0,0 +1,178 @@
+package io.projectriff.invoker.loadgen;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Collects the outcome of a load generation run: latencies (in an HDR histogram, so that percentiles are accurate up
+ * to the slowest results), throughput and errors. Only inputs due during the measurement window (after warmup, until
+ * load stops) are counted, and their results are waited for even if they come after the window closes.
+ *
+ * @author Eric Bottard
+ */
+public class LoadReport {
+
+    private static final double[] PERCENTILES = {50d, 90d, 99d, 99.9d, 99.99d};
+
+    private static final long HIGHEST_MICROS = TimeUnit.HOURS.toMicros(1L);
+
+    private final Recorder recorder = new Recorder(HIGHEST_MICROS, 3);
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder received = new LongAdder();
+
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    /*
+     * Results that arrived during the measurement window, whatever input they were for.
+     */
+    private final LongAdder windowResults = new LongAdder();
+
+    private final long measureFrom;
+
+    private volatile long measureUntil;
+
+    private Histogram latencies;
+
+    private long outstanding;
+
+    LoadReport(long measureFrom, long measureUntil) {
+        this.measureFrom = measureFrom;
+        this.measureUntil = measureUntil;
+    }
+
+    /**
+     * Record that an input, that was due to be sent at the given time, has been sent.
+     */
+    void sent(long intendedAt) {
+        if (intendedAt - measureFrom >= 0L && intendedAt - measureUntil < 0L) {
+            sent.increment();
+        }
+    }
+
+    /**
+     * Record a result, for an input that was due to be sent at the given time (or {@code 0} for results that can't
+     * be attributed to an input).
+     */
+    void received(long intendedAt) {
+        long now = System.nanoTime();
+        if (now - measureFrom >= 0L && now - measureUntil <= 0L) {
+            windowResults.increment();
+        }
+        if (intendedAt != 0L && intendedAt - measureFrom >= 0L) {
+            received.increment();
+            recorder.recordValue(Math.min(HIGHEST_MICROS, TimeUnit.NANOSECONDS.toMicros(now - intendedAt)));
+        }
+    }
+
+    void error(String kind) {
+        long now = System.nanoTime();
+        if (now - measureFrom >= 0L && now - measureUntil <= 0L) {
+            errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Close the measurement window at the given time, for runs whose length is not known upfront.
+     */
+    void endWindow(long at) {
+        this.measureUntil = at;
+    }
+
+    /**
+     * Record the final outcome, once outstanding results have been waited for.
+     */
+    void finish(long outstanding) {
+        this.outstanding = outstanding;
+        this.latencies = recorder.getIntervalHistogram();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getErrors() {
+        return errors.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * Return the number of results per second received during the measurement window.
+     */
+    public double getThroughput() {
+        return windowResults.sum() * 1e9d / (measureUntil - measureFrom);
+    }
+
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Duration     %10.1f s%n", (measureUntil - measureFrom) / 1e9d));
+        sb.append(String.format("Sent         %10d%n", getSent()));
+        sb.append(String.format("Received     %10d%n", getReceived()));
+        sb.append(String.format("Outstanding  %10d%n", outstanding));
+        sb.append(String.format("Throughput   %10.1f /s%n", getThroughput()));
+        sb.append(String.format("Latency (ms) over %d samples%n", latencies.getTotalCount()));
+        sb.append(String.format("  min        %10.3f%n", latencies.getMinValue() / 1e3d));
+        sb.append(String.format("  mean       %10.3f%n", latencies.getMean() / 1e3d));
+        for (double p : PERCENTILES) {
+            sb.append(String.format("  p%-9s %10.3f%n", format(p), latencies.getValueAtPercentile(p) / 1e3d));
+        }
+        sb.append(String.format("  max        %10.3f%n", latencies.getMaxValue() / 1e3d));
+        sb.append(String.format("Errors       %10d%n", getErrors()));
+        new TreeMap<>(errors).forEach((kind, count) -> sb.append(String.format("  %-40s %d%n", kind, count.sum())));
+        return sb.toString();
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"durationSeconds\":").append((measureUntil - measureFrom) / 1e9d);
+        sb.append(",\"sent\":").append(getSent());
+        sb.append(",\"received\":").append(getReceived());
+        sb.append(",\"outstanding\":").append(outstanding);
+        sb.append(",\"throughput\":").append(getThroughput());
+        sb.append(",\"latencyMillis\":{");
+        sb.append("\"samples\":").append(latencies.getTotalCount());
+        sb.append(",\"min\":").append(latencies.getMinValue() / 1e3d);
+        sb.append(",\"mean\":").append(latencies.getMean() / 1e3d);
+        for (double p : PERCENTILES) {
+            sb.append(",\"p").append(format(p)).append("\":").append(latencies.getValueAtPercentile(p) / 1e3d);
+        }
+        sb.append(",\"max\":").append(latencies.getMaxValue() / 1e3d);
+        sb.append("},\"errors\":{");
+        String separator = "";
+        for (Map.Entry<String, LongAdder> error : new TreeMap<>(errors).entrySet()) {
+            sb.append(separator).append('"').append(escape(error.getKey())).append("\":").append(error.getValue().sum());
+            separator = ",";
+        }
+        return sb.append("}}").toString();
+    }
+
+    private static String format(double percentile) {
+        return percentile == Math.rint(percentile) ? Integer.toString((int) percentile) : Double.toString(percentile);
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
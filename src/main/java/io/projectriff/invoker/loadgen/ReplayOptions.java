@@ -0,0 +1,115 @@
+package io.projectriff.invoker.loadgen;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import io.projectriff.invoker.shm.WaitStrategy;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.ConfigurationPropertySources;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.util.Assert;
+
+/**
+ * The settings of a replay run, bound from {@code --name=value} command line arguments the same way as
+ * {@link LoadOptions}.
+ *
+ * @author Eric Bottard
+ */
+public class ReplayOptions {
+
+    /**
+     * The recording to replay: either one of its files, or their base path (the {@code riff.invoker.recording.file}
+     * of the invoker that recorded it) to replay the latest recording made there.
+     */
+    private Path recording;
+
+    /**
+     * The {@code host:port} of the invoker's gRPC endpoint, {@code unix:<path>} for its domain socket or
+     * {@code shm:<path>} for its shared memory file.
+     */
+    private String target = "localhost:8081";
+
+    /**
+     * How to wait for results, when targeting a shared memory file.
+     */
+    private WaitStrategy waitStrategy = WaitStrategy.BACKOFF;
+
+    /**
+     * How fast to replay, relative to the original traffic: {@code 1} for the original speed, {@code 2} for twice as
+     * fast and so on. {@code 0} sends everything as fast as possible.
+     */
+    private double speed = 1d;
+
+    /**
+     * How long to wait for outstanding results, once everything has been sent.
+     */
+    private Duration drain = Duration.ofSeconds(10L);
+
+    /**
+     * A file to write the report to as JSON, or {@code -} for the standard output.
+     */
+    private String json;
+
+    public static ReplayOptions parse(String... args) {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new SimpleCommandLinePropertySource(args));
+        // Nothing is bound without any arguments, leaving the defaults
+        ReplayOptions defaults = new ReplayOptions();
+        ReplayOptions options = new Binder(ConfigurationPropertySources.get(environment))
+                .bind("", Bindable.ofInstance(defaults))
+                .orElse(defaults);
+        Assert.notNull(options.recording, "recording is required");
+        Assert.isTrue(options.speed >= 0d, "speed should not be negative");
+        return options;
+    }
+
+    public Path getRecording() {
+        return recording;
+    }
+
+    public void setRecording(Path recording) {
+        this.recording = recording;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    public void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    public Duration getDrain() {
+        return drain;
+    }
+
+    public void setDrain(Duration drain) {
+        this.drain = drain;
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    public void setJson(String json) {
+        this.json = json;
+    }
+}
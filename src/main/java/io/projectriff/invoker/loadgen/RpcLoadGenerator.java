@@ -0,0 +1,210 @@
+package io.projectriff.invoker.loadgen;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+import io.projectriff.invoker.client.FunctionProxy;
+import io.projectriff.invoker.compression.CompressionCodecs;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import io.projectriff.invoker.rpc.StartFrame;
+import io.projectriff.invoker.shm.WaitStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+
+/**
+ * Generates load over the riff gRPC protocol, with each stream being one long-lived invocation. An invocation that
+ * fails is counted as an error, and replaced by a new one shortly after. Inputs due in the meantime are counted as
+ * dropped.
+ *
+ * @author Eric Bottard
+ */
+class RpcLoadGenerator extends LoadGenerator {
+
+    private static final Duration REOPEN_DELAY = Duration.ofMillis(100L);
+
+    private ManagedChannel channel;
+
+    private ReactorRiffGrpc.ReactorRiffStub stub;
+
+    private InputSignal start;
+
+    private Stream[] streams;
+
+    RpcLoadGenerator(LoadOptions options) {
+        super(options);
+    }
+
+    @Override
+    protected void open() throws IOException {
+        channel = newChannel(options.getTarget(), options.getWaitStrategy());
+        stub = ReactorRiffGrpc.newReactorStub(channel);
+        start = InputSignal.newBuilder()
+                .setStart(StartFrame.newBuilder()
+                        .addAllExpectedContentTypes(Collections.nCopies(options.getResults(), options.getAccept()))
+                        .setFunctionName(options.getFunction()))
+                .build();
+        streams = new Stream[options.getStreams()];
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = new Stream();
+            streams[i].invoke();
+        }
+    }
+
+    /**
+     * Open a channel to the given {@code host:port}, {@code unix:<path>} or {@code shm:<path>} target.
+     */
+    static ManagedChannel newChannel(String target, WaitStrategy waitStrategy) throws IOException {
+        if (target.startsWith(FunctionProxy.DOMAIN_SOCKET_PREFIX)) {
+            return FunctionProxy.domainSocketChannel(target.substring(FunctionProxy.DOMAIN_SOCKET_PREFIX.length()));
+        }
+        if (target.startsWith(FunctionProxy.SHARED_MEMORY_PREFIX)) {
+            return FunctionProxy.sharedMemoryChannel(target.substring(FunctionProxy.SHARED_MEMORY_PREFIX.length()),
+                    waitStrategy);
+        }
+        return ManagedChannelBuilder.forTarget(target)
+                .usePlaintext()
+                .compressorRegistry(CompressionCodecs.compressorRegistry())
+                .decompressorRegistry(CompressionCodecs.decompressorRegistry())
+                .build();
+    }
+
+    @Override
+    protected void fire(int stream, long intended) {
+        streams[stream].send(intended);
+    }
+
+    @Override
+    protected void startClosedLoop() {
+        for (Stream stream : streams) {
+            stream.prime();
+        }
+    }
+
+    @Override
+    protected long drain(long deadline) throws InterruptedException {
+        long outstanding = 0L;
+        for (Stream stream : streams) {
+            outstanding += stream.drain(deadline);
+        }
+        return outstanding;
+    }
+
+    @Override
+    protected void close() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5L, TimeUnit.SECONDS);
+    }
+
+    private synchronized InputSignal nextInput(int argIndex) {
+        return InputSignal.newBuilder()
+                .setData(InputFrame.newBuilder()
+                        .setPayload(ByteString.copyFrom(nextPayload()))
+                        .setContentType(options.getContentType())
+                        .setArgIndex(argIndex))
+                .build();
+    }
+
+    private class Stream {
+
+        /*
+         * The times at which inputs in flight were due, oldest first.
+         */
+        private final Queue<Long> inFlight = new ConcurrentLinkedQueue<>();
+
+        private UnicastProcessor<InputSignal> inputs;
+
+        private CountDownLatch done;
+
+        private boolean draining;
+
+        private synchronized void invoke() {
+            inputs = UnicastProcessor.create();
+            done = new CountDownLatch(1);
+            CountDownLatch terminated = done;
+            UnicastProcessor<InputSignal> invocationInputs = inputs;
+            stub.invoke(Flux.concat(Mono.just(start), invocationInputs))
+                    .subscribe(this::onNext, e -> onError(invocationInputs, terminated, e), terminated::countDown);
+        }
+
+        private void prime() {
+            for (int i = 0; i < options.getConcurrency(); i++) {
+                send(System.nanoTime());
+            }
+        }
+
+        private synchronized void send(long intended) {
+            if (draining) {
+                return;
+            }
+            if (inputs == null) {
+                report.error("dropped (invocation failed)");
+                return;
+            }
+            inFlight.add(intended);
+            for (int arg = 0; arg < options.getArgs(); arg++) {
+                inputs.onNext(nextInput(arg));
+            }
+            report.sent(intended);
+        }
+
+        private void onNext(OutputSignal signal) {
+            if (!signal.hasData() || signal.getData().getResultIndex() != 0) {
+                return;
+            }
+            Long intended = inFlight.poll();
+            report.received(intended == null ? 0L : intended);
+            if (options.getMode() == LoadOptions.Mode.CLOSED && System.nanoTime() - end < 0L) {
+                send(System.nanoTime());
+            }
+        }
+
+        private void onError(UnicastProcessor<InputSignal> failed, CountDownLatch terminated, Throwable e) {
+            report.error(e instanceof StatusRuntimeException
+                    ? "grpc " + ((StatusRuntimeException) e).getStatus().getCode()
+                    : e.getClass().getSimpleName());
+            synchronized (this) {
+                if (inputs == failed) {
+                    inputs = null;
+                    inFlight.clear();
+                    Mono.delay(REOPEN_DELAY).subscribe(t -> reopen());
+                }
+            }
+            terminated.countDown();
+        }
+
+        private synchronized void reopen() {
+            if (draining || System.nanoTime() - end >= 0L) {
+                return;
+            }
+            invoke();
+            if (options.getMode() == LoadOptions.Mode.CLOSED) {
+                prime();
+            }
+        }
+
+        private long drain(long deadline) throws InterruptedException {
+            CountDownLatch terminated;
+            synchronized (this) {
+                draining = true;
+                if (inputs != null) {
+                    inputs.onComplete();
+                }
+                terminated = done;
+            }
+            terminated.await(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return inFlight.size();
+        }
+    }
+}
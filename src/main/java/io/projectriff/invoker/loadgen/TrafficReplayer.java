@@ -0,0 +1,195 @@
+package io.projectriff.invoker.loadgen;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import io.grpc.ManagedChannel;
+import io.grpc.StatusRuntimeException;
+import io.projectriff.invoker.recording.Recording;
+import io.projectriff.invoker.recording.TrafficRecorder;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+
+/**
+ * Replays the invocations captured by a {@link TrafficRecorder} against a running invoker, over gRPC, and reports
+ * how it coped the way {@link LoadGenerator} does.
+ *
+ * <p>
+ * Each recorded stream is replayed as an invocation of its own, with the same start frame (hence the same function)
+ * and input signals. Signals are sent at the time they were originally received, scaled by the replay speed, or as
+ * fast as possible. As in open-loop load generation, latencies are measured from when an input was due to be sent,
+ * between inputs on the first argument and results on the first output, assuming one result per input.
+ * </p>
+ *
+ * <pre>
+ * java -cp target/java-function-invoker-1.0.0-SNAPSHOT.jar -Dloader.main=io.projectriff.invoker.loadgen.TrafficReplayer \
+ *     org.springframework.boot.loader.PropertiesLauncher --recording=/var/riff/traffic --speed=2
+ * </pre>
+ *
+ * @author Eric Bottard
+ * @see ReplayOptions
+ */
+public class TrafficReplayer {
+
+    private final ReplayOptions options;
+
+    private final List<Stream> streams = new ArrayList<>();
+
+    private final AtomicLong lastResult = new AtomicLong();
+
+    private ReactorRiffGrpc.ReactorRiffStub stub;
+
+    private LoadReport report;
+
+    public TrafficReplayer(ReplayOptions options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ReplayOptions options = ReplayOptions.parse(args);
+        System.out.printf("Replaying %s to %s at %s%n", options.getRecording(), options.getTarget(),
+                options.getSpeed() == 0d ? "full speed" : options.getSpeed() + "x the original speed");
+        LoadReport report = new TrafficReplayer(options).run();
+        System.out.print(report.toText());
+        if ("-".equals(options.getJson())) {
+            System.out.println(report.toJson());
+        }
+        else if (options.getJson() != null) {
+            Files.write(Paths.get(options.getJson()), report.toJson().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public LoadReport run() throws Exception {
+        Recording recording = Recording.open(options.getRecording());
+        ManagedChannel channel = RpcLoadGenerator.newChannel(options.getTarget(), options.getWaitStrategy());
+        try {
+            stub = ReactorRiffGrpc.newReactorStub(channel);
+            long start = System.nanoTime();
+            // Measures everything, the window being closed once done
+            report = new LoadReport(start, start + Long.MAX_VALUE / 2);
+            long sent = replay(recording, start);
+            long outstanding = drain(System.nanoTime() + options.getDrain().toNanos());
+            long last = lastResult.get();
+            report.endWindow(last != 0L && last - sent > 0L ? last : sent);
+            report.finish(outstanding);
+            return report;
+        }
+        finally {
+            channel.shutdownNow().awaitTermination(5L, TimeUnit.SECONDS);
+        }
+    }
+
+    /*
+     * Sends recorded signals when they are due, and returns when the last one was sent.
+     */
+    private long replay(Recording recording, long start) throws Exception {
+        Map<Long, Stream> open = new HashMap<>();
+        long first = -1L;
+        double speed = options.getSpeed();
+        while (recording.next()) {
+            long intended = System.nanoTime();
+            if (speed > 0d) {
+                first = first < 0L ? recording.getNanos() : first;
+                intended = start + (long) ((recording.getNanos() - first) / speed);
+                long wait = intended - System.nanoTime();
+                if (wait > 0L) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            if (recording.isEndOfStream()) {
+                Stream stream = open.remove(recording.getStream());
+                if (stream != null) {
+                    stream.complete();
+                }
+                continue;
+            }
+            InputSignal signal = recording.getSignal();
+            if (signal.hasStart()) {
+                Stream stream = new Stream(signal);
+                open.put(recording.getStream(), stream);
+                streams.add(stream);
+                continue;
+            }
+            Stream stream = open.get(recording.getStream());
+            if (stream == null) {
+                // Dropped by the recorder, or in a file that was deleted since
+                report.error("skipped (start not recorded)");
+                continue;
+            }
+            stream.send(signal, intended);
+        }
+        // Streams still running when recording stopped
+        open.values().forEach(Stream::complete);
+        return System.nanoTime();
+    }
+
+    private long drain(long deadline) throws InterruptedException {
+        long outstanding = 0L;
+        for (Stream stream : streams) {
+            stream.done.await(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            outstanding += stream.inFlight.size();
+        }
+        return outstanding;
+    }
+
+    private class Stream {
+
+        /*
+         * The times at which inputs in flight were due, oldest first.
+         */
+        private final Queue<Long> inFlight = new ConcurrentLinkedQueue<>();
+
+        private final UnicastProcessor<InputSignal> inputs = UnicastProcessor.create();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private Stream(InputSignal start) {
+            stub.invoke(Flux.concat(Mono.just(start), inputs))
+                    .subscribe(this::onNext, this::onError, done::countDown);
+        }
+
+        private void send(InputSignal signal, long intended) {
+            if (signal.hasData() && signal.getData().getArgIndex() == 0) {
+                inFlight.add(intended);
+                report.sent(intended);
+            }
+            inputs.onNext(signal);
+        }
+
+        private void complete() {
+            inputs.onComplete();
+        }
+
+        private void onNext(OutputSignal signal) {
+            if (!signal.hasData() || signal.getData().getResultIndex() != 0) {
+                return;
+            }
+            Long intended = inFlight.poll();
+            report.received(intended == null ? 0L : intended);
+            lastResult.set(System.nanoTime());
+        }
+
+        private void onError(Throwable e) {
+            report.error(e instanceof StatusRuntimeException
+                    ? "grpc " + ((StatusRuntimeException) e).getStatus().getCode()
+                    : e.getClass().getSimpleName());
+            inFlight.clear();
+            done.countDown();
+        }
+    }
+}
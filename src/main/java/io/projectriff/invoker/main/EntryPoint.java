@@ -8,10 +8,7 @@ public class EntryPoint {
 
 	public static void main(String[] args) throws InterruptedException {
 		new ApplicationBootstrap().run(JavaFunctionInvoker.class);
-		Object o = new Object();
-		synchronized (o) {
-			o.wait();
-		}
+		JavaFunctionInvoker.awaitTermination();
 	}
 
 }
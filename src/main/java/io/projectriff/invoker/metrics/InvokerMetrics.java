@@ -0,0 +1,348 @@
+package io.projectriff.invoker.metrics;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.projectriff.invoker.server.StreamMemoryBudget;
+
+/**
+ * Hot path instrumentation of the invoker (or of a client, using a different prefix).
+ *
+ * <p>
+ * {@code frames.in} and {@code frames.out} respectively count {@code InputFrame}s and {@code OutputFrame}s, whichever
+ * side is recording. {@code decode} always measures bytes to object conversion, and {@code encode} the opposite.
+ * </p>
+ *
+ * <p>
+ * All meters are resolved once and kept in fields (or per index arrays), so that recording is a matter of
+ * incrementing a striped counter or a histogram, with no registry lookup. Timers publish percentile histograms.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class InvokerMetrics {
+
+    public static final String PREFIX = "riff.invoker";
+
+    public static final String CLIENT_PREFIX = "riff.client";
+
+    private final MeterRegistry registry;
+
+    private final String prefix;
+
+    private final Tags tags;
+
+    private final IndexedCounters framesIn;
+
+    private final IndexedCounters framesOut;
+
+    private final Counter bytesIn;
+
+    private final Counter bytesOut;
+
+    private final Timer decodeTimer;
+
+    private final Timer encodeTimer;
+
+    private final Timer applyTimer;
+
+    private final Timer httpTimer;
+
+    private final Timer traceTotal;
+
+    private final Timer traceNetwork;
+
+    private final Timer traceDecode;
+
+    private final Timer traceDwell;
+
+    private final Timer traceEncode;
+
+    private final Counter readConverterMisses;
+
+    private final Counter writeConverterMisses;
+
+    private final Counter expired;
+
+    private final Counter resumed;
+
+    private final Counter cacheHits;
+
+    private final Counter cacheMisses;
+
+    private final Counter cacheEvictions;
+
+    private final Counter coalesced;
+
+    private final DistributionSummary batchSizes;
+
+    /*
+     * Keyed by class name rather than by class, so that exceptions thrown by a function don't pin its classloader
+     * after it has been swapped out.
+     */
+    private final Map<String, Counter> errors = new ConcurrentHashMap<>();
+
+    private final Map<String, Counter> elementErrors = new ConcurrentHashMap<>();
+
+    private final List<Supplier<Collection<StreamMemoryBudget>>> streamSources = new CopyOnWriteArrayList<>();
+
+    private final AtomicBoolean streamGauges = new AtomicBoolean();
+
+    public InvokerMetrics(MeterRegistry registry) {
+        this(registry, PREFIX);
+    }
+
+    public InvokerMetrics(MeterRegistry registry, String prefix) {
+        this(registry, prefix, Tags.empty());
+    }
+
+    private InvokerMetrics(MeterRegistry registry, String prefix, Tags tags) {
+        this.registry = registry;
+        this.prefix = prefix;
+        this.tags = tags;
+        this.framesIn = new IndexedCounters(registry, prefix + ".frames.in", tags, "arg");
+        this.framesOut = new IndexedCounters(registry, prefix + ".frames.out", tags, "result");
+        this.bytesIn = Counter.builder(prefix + ".bytes.in").tags(tags).baseUnit("bytes").register(registry);
+        this.bytesOut = Counter.builder(prefix + ".bytes.out").tags(tags).baseUnit("bytes").register(registry);
+        this.decodeTimer = histogram(prefix + ".decode", "Time spent converting an input frame to an object");
+        this.encodeTimer = histogram(prefix + ".encode", "Time spent converting a result to an output frame");
+        this.applyTimer = histogram(prefix + ".apply", "Time spent calling the function (assembly only, for streaming functions)");
+        this.httpTimer = histogram(prefix + ".http.requests", "Time spent handling an http request, end to end");
+        this.traceTotal = histogram(prefix + ".trace.total", "Round trip of a traced frame, as seen by the client");
+        this.traceNetwork = histogram(prefix + ".trace.network", "Part of a traced round trip not spent in the invoker (subject to clock skew)");
+        this.traceDecode = histogram(prefix + ".trace.decode", "Time the invoker spent decoding a traced frame");
+        this.traceDwell = histogram(prefix + ".trace.dwell", "Time between a traced frame reaching the function and a result being attributed to it");
+        this.traceEncode = histogram(prefix + ".trace.encode", "Time the invoker spent encoding the result attributed to a traced frame");
+        this.readConverterMisses = Counter.builder(prefix + ".converter.misses").tags(tags).tag("direction", "read").register(registry);
+        this.writeConverterMisses = Counter.builder(prefix + ".converter.misses").tags(tags).tag("direction", "write").register(registry);
+        this.expired = Counter.builder(prefix + ".deadline.expired").tags(tags)
+                .description("Invocations abandoned, or inputs skipped, because the client deadline had passed")
+                .register(registry);
+        this.resumed = Counter.builder(prefix + ".streams.resumed").tags(tags)
+                .description("Resumable invocations picking up where a broken stream left off")
+                .register(registry);
+        this.cacheHits = Counter.builder(prefix + ".cache.requests").tags(tags).tag("result", "hit").register(registry);
+        this.cacheMisses = Counter.builder(prefix + ".cache.requests").tags(tags).tag("result", "miss").register(registry);
+        this.cacheEvictions = Counter.builder(prefix + ".cache.evictions").tags(tags).register(registry);
+        this.coalesced = Counter.builder(prefix + ".http.coalesced").tags(tags)
+                .description("Http requests answered with the result of an identical request already in flight")
+                .register(registry);
+        this.batchSizes = DistributionSummary.builder(prefix + ".batch.size").tags(tags)
+                .description("Number of elements in the chunks handed to functions that take chunks")
+                .register(registry);
+    }
+
+    /**
+     * Return an instance that records to the global registry, which is a no-op unless some registry was added to it.
+     */
+    public static InvokerMetrics global() {
+        return new InvokerMetrics(Metrics.globalRegistry);
+    }
+
+    /**
+     * Return an instance for the invoker side, whose meters are all tagged with the given function name.
+     */
+    public static InvokerMetrics forFunction(MeterRegistry registry, String name) {
+        return new InvokerMetrics(registry, PREFIX, Tags.of("function", name));
+    }
+
+    private Timer histogram(String name, String description) {
+        return Timer.builder(name)
+                .description(description)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    /**
+     * Report the given streams in gauges about the currently active streams, until {@link #unbindStreams(Supplier)}
+     * is called. Several sources (adapters of successive versions of a function) may be bound at the same time.
+     */
+    public void bindStreams(Supplier<Collection<StreamMemoryBudget>> streams) {
+        streamSources.add(streams);
+        if (streamGauges.compareAndSet(false, true)) {
+            // Gauges only weakly reference their state, which is this (long lived) instance
+            Gauge.builder(prefix + ".streams.active", this, m -> m.sumStreams(b -> 1L))
+                    .tags(tags)
+                    .register(registry);
+            Gauge.builder(prefix + ".elements.inflight", this,
+                    m -> m.sumStreams(b -> b.getQueuedFrames() + b.getPendingOutputs()))
+                    .tags(tags)
+                    .register(registry);
+            Gauge.builder(prefix + ".queued.bytes", this, m -> m.sumStreams(StreamMemoryBudget::getQueuedBytes))
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(registry);
+        }
+    }
+
+    public void unbindStreams(Supplier<Collection<StreamMemoryBudget>> streams) {
+        streamSources.remove(streams);
+    }
+
+    private double sumStreams(ToLongFunction<StreamMemoryBudget> value) {
+        long sum = 0L;
+        for (Supplier<Collection<StreamMemoryBudget>> source : streamSources) {
+            for (StreamMemoryBudget budget : source.get()) {
+                sum += value.applyAsLong(budget);
+            }
+        }
+        return sum;
+    }
+
+    public void frameIn(int argIndex, int bytes) {
+        framesIn.get(argIndex).increment();
+        bytesIn.increment(bytes);
+    }
+
+    public void frameOut(int resultIndex, int bytes) {
+        framesOut.get(resultIndex).increment();
+        bytesOut.increment(bytes);
+    }
+
+    public void decoded(long startNanos) {
+        decodeTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void encoded(long startNanos) {
+        encodeTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void applied(long startNanos) {
+        applyTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void httpRequest(long startNanos, int requestBytes, int responseBytes) {
+        httpTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        frameIn(0, requestBytes);
+        frameOut(0, responseBytes);
+    }
+
+    /**
+     * Record the latency breakdown of a traced frame. All durations are in nanoseconds.
+     */
+    public void traced(long total, long network, long decode, long dwell, long encode) {
+        traceTotal.record(total, TimeUnit.NANOSECONDS);
+        traceNetwork.record(Math.max(0L, network), TimeUnit.NANOSECONDS);
+        traceDecode.record(decode, TimeUnit.NANOSECONDS);
+        traceDwell.record(dwell, TimeUnit.NANOSECONDS);
+        traceEncode.record(encode, TimeUnit.NANOSECONDS);
+    }
+
+    public void readConverterMiss() {
+        readConverterMisses.increment();
+    }
+
+    public void writeConverterMiss() {
+        writeConverterMisses.increment();
+    }
+
+    public void expired() {
+        expired.increment();
+    }
+
+    public void resumed() {
+        resumed.increment();
+    }
+
+    public void cacheHit() {
+        cacheHits.increment();
+    }
+
+    public void cacheMiss() {
+        cacheMisses.increment();
+    }
+
+    public void cacheEviction() {
+        cacheEvictions.increment();
+    }
+
+    public void coalesced() {
+        coalesced.increment();
+    }
+
+    public void batched(int size) {
+        batchSizes.record(size);
+    }
+
+    /**
+     * Record an input element that could not be processed, in an invocation that carried on regardless. Compared to
+     * {@code frames.in}, gives the element error rate.
+     */
+    public void elementError(String stage) {
+        elementErrors.computeIfAbsent(stage, st -> Counter.builder(prefix + ".element.errors").tags(tags)
+                .tag("stage", st)
+                .register(registry))
+                .increment();
+    }
+
+    public void error(Throwable t) {
+        errors.computeIfAbsent(t.getClass().getName(), c -> Counter.builder(prefix + ".errors").tags(tags)
+                .tag("type", c)
+                .register(registry))
+                .increment();
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Counters tagged with a (small) index, resolved once and cached in a copy-on-grow array.
+     */
+    static class IndexedCounters {
+
+        private final MeterRegistry registry;
+
+        private final String name;
+
+        private final Tags tags;
+
+        private final String tag;
+
+        private volatile Counter[] counters = new Counter[0];
+
+        IndexedCounters(MeterRegistry registry, String name, Tags tags, String tag) {
+            this.registry = registry;
+            this.name = name;
+            this.tags = tags;
+            this.tag = tag;
+        }
+
+        Counter get(int index) {
+            Counter[] current = counters;
+            if (index < current.length) {
+                return current[index];
+            }
+            return grow(index);
+        }
+
+        private synchronized Counter grow(int index) {
+            Counter[] current = counters;
+            if (index < current.length) {
+                return current[index];
+            }
+            Counter[] grown = Arrays.copyOf(current, index + 1);
+            for (int i = current.length; i < grown.length; i++) {
+                grown[i] = Counter.builder(name).tags(tags).tag(tag, Integer.toString(i)).register(registry);
+            }
+            counters = grown;
+            return grown[index];
+        }
+    }
+}
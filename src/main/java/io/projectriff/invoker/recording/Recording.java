@@ -0,0 +1,214 @@
+package io.projectriff.invoker.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.projectriff.invoker.rpc.InputSignal;
+
+/**
+ * Reads back the invocation traffic written by a {@link TrafficRecorder}, one record at a time, through memory
+ * mapping.
+ *
+ * <p>
+ * A recording is a sequence of files, {@code <base>.1}, {@code <base>.2} and so on. Each starts with a 16 bytes
+ * header: a magic number and the time (in milliseconds since the epoch) recording started, which tells files of
+ * successive recordings to the same base apart. Records follow, made of:
+ * </p>
+ *
+ * <ul>
+ * <li>the length of the serialized signal, or {@code -1} for the end of a stream (4 bytes)</li>
+ * <li>the time it was received, in nanoseconds since recording started (8 bytes)</li>
+ * <li>the stream (invocation) it was received on, numbered from 1 (8 bytes)</li>
+ * <li>the serialized {@link InputSignal}, the first one of a stream carrying its start frame</li>
+ * </ul>
+ *
+ * <p>
+ * Numbers are big-endian. A record cut short (by the invoker dying while writing it) ends its file.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public final class Recording {
+
+    static final byte[] MAGIC = "riffrec1".getBytes(StandardCharsets.US_ASCII);
+
+    static final int FILE_HEADER_BYTES = 16;
+
+    static final int RECORD_HEADER_BYTES = 20;
+
+    static final int END_OF_STREAM = -1;
+
+    private final List<Path> files;
+
+    private int nextFile;
+
+    private ByteBuffer current;
+
+    private long stream;
+
+    private long nanos;
+
+    private InputSignal signal;
+
+    private Recording(List<Path> files) {
+        this.files = files;
+    }
+
+    /**
+     * Open either a single file of a recording, or (given their base path) all the files of the latest recording
+     * made to that base.
+     */
+    public static Recording open(Path path) throws IOException {
+        if (Files.isRegularFile(path)) {
+            return new Recording(List.of(path));
+        }
+        List<Path> segments = segments(path);
+        if (segments.isEmpty()) {
+            throw new IOException("No recording at " + path);
+        }
+        long started = startedMillis(segments.get(segments.size() - 1));
+        List<Path> latest = new ArrayList<>();
+        for (Path segment : segments) {
+            if (startedMillis(segment) == started) {
+                latest.add(segment);
+            }
+        }
+        return new Recording(latest);
+    }
+
+    public List<Path> getFiles() {
+        return files;
+    }
+
+    /**
+     * Move to the next record, returning {@code false} once there are no more.
+     */
+    public boolean next() throws IOException {
+        while (current == null || current.remaining() < RECORD_HEADER_BYTES) {
+            if (nextFile == files.size()) {
+                return false;
+            }
+            current = map(files.get(nextFile++));
+        }
+        int length = current.getInt();
+        nanos = current.getLong();
+        stream = current.getLong();
+        if (length == END_OF_STREAM) {
+            signal = null;
+            return true;
+        }
+        if (length < 0 || length > current.remaining()) {
+            current = null;
+            return next();
+        }
+        // Parsed from a copy: protobuf's decoder for direct buffers reads from the wrong address on some JVMs
+        byte[] bytes = new byte[length];
+        current.get(bytes);
+        try {
+            signal = InputSignal.parseFrom(bytes);
+        }
+        catch (InvalidProtocolBufferException e) {
+            throw new IOException("Corrupted record in " + files.get(nextFile - 1), e);
+        }
+        return true;
+    }
+
+    /**
+     * Return the stream of the current record.
+     */
+    public long getStream() {
+        return stream;
+    }
+
+    /**
+     * Return when the current record was received, in nanoseconds since recording started.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Return the signal of the current record, or {@code null} if it marks the end of its stream.
+     */
+    public InputSignal getSignal() {
+        return signal;
+    }
+
+    public boolean isEndOfStream() {
+        return signal == null;
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            checkHeader(file, buffer);
+            return buffer.position(FILE_HEADER_BYTES);
+        }
+    }
+
+    private static long startedMillis(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            checkHeader(file, header.flip());
+            return header.getLong(MAGIC.length);
+        }
+    }
+
+    private static void checkHeader(Path file, ByteBuffer buffer) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        if (buffer.limit() >= FILE_HEADER_BYTES) {
+            buffer.duplicate().position(0).get(magic);
+        }
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException(file + " is not a recording");
+        }
+    }
+
+    static Path segment(Path base, long index) {
+        return base.resolveSibling(base.getFileName() + "." + index);
+    }
+
+    /**
+     * Return the files of the recordings made to the given base, oldest first.
+     */
+    static List<Path> segments(Path base) throws IOException {
+        Path directory = base.toAbsolutePath().getParent();
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        String prefix = base.getFileName() + ".";
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> index(f, prefix) > 0L)
+                    .sorted(Comparator.comparingLong(f -> index(f, prefix)))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    static long lastIndex(Path base) throws IOException {
+        List<Path> segments = segments(base);
+        return segments.isEmpty() ? 0L : index(segments.get(segments.size() - 1), base.getFileName() + ".");
+    }
+
+    private static long index(Path file, String prefix) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(prefix) || name.length() == prefix.length()) {
+            return -1L;
+        }
+        String suffix = name.substring(prefix.length());
+        return suffix.chars().allMatch(Character::isDigit) && suffix.length() < 18 ? Long.parseLong(suffix) : -1L;
+    }
+}
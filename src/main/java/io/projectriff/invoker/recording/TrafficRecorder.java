@@ -0,0 +1,242 @@
+package io.projectriff.invoker.recording;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.projectriff.invoker.rpc.InputSignal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+
+/**
+ * Records what gRPC invocations receive (their start frame, then every input signal) with timestamps, so that
+ * captured traffic can be turned into a benchmark by replaying it.
+ *
+ * <p>
+ * Invocations are never slowed down by recording: they hand signals over to a writer thread through a bounded queue,
+ * without serializing or copying them, and signals that don't fit are dropped (and counted). The writer appends
+ * records to a file until it reaches its maximum size, then moves on to the next one, only keeping the most recent
+ * files.
+ * </p>
+ *
+ * @author Eric Bottard
+ * @see Recording
+ */
+public final class TrafficRecorder implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrafficRecorder.class);
+
+    /*
+     * Writes happen when the buffer is full, or once what it holds is that old.
+     */
+    private static final long FLUSH_INTERVAL_MILLIS = 100L;
+
+    private static final int BATCH_SIZE = 1024;
+
+    private final Path base;
+
+    private final long maxFileSize;
+
+    private final int maxFiles;
+
+    private final BlockingQueue<Entry> queue;
+
+    private final AtomicLong streams = new AtomicLong();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final long origin = System.nanoTime();
+
+    private final long startedMillis = System.currentTimeMillis();
+
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    /*
+     * Only accessed by the writer thread.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    private FileChannel file;
+
+    private long fileSize;
+
+    private long fileIndex;
+
+    private long flushedAt = System.nanoTime();
+
+    /**
+     * Record to files named after the given base, of at most {@code maxFileSize} bytes each, keeping the last
+     * {@code maxFiles} of them. Files left by a previous recording to the same base are kept, and numbered before the
+     * new ones.
+     */
+    public TrafficRecorder(Path base, long maxFileSize, int maxFiles, int queueSize) throws IOException {
+        this.base = base;
+        // Files are memory mapped when replayed
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+        this.maxFiles = maxFiles;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        Files.createDirectories(base.toAbsolutePath().getParent());
+        this.fileIndex = Recording.lastIndex(base);
+        this.writer = new Thread(this::write, "riff-recorder");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Record the signals of an invocation, as the function reads them.
+     */
+    public Flux<InputSignal> record(Flux<InputSignal> signals) {
+        long stream = streams.incrementAndGet();
+        return signals.doOnNext(signal -> offer(new Entry(stream, System.nanoTime(), signal)))
+                .doFinally(signal -> offer(new Entry(stream, System.nanoTime(), null)));
+    }
+
+    private void offer(Entry entry) {
+        if (closed || !queue.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Return the number of signals (and stream ends) that could not be recorded, as the writer fell behind.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Write what has been recorded so far, and stop recording.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5L));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (getDropped() > 0L) {
+            logger.warn("Could not record {} input signals to {}, as the recorder fell behind", getDropped(), base);
+        }
+    }
+
+    private void write() {
+        try {
+            List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+            while (!closed || !queue.isEmpty()) {
+                Entry entry = queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    append(entry);
+                    // Takes the lock of the queue once for many entries
+                    queue.drainTo(batch, BATCH_SIZE);
+                    for (Entry next : batch) {
+                        append(next);
+                    }
+                    batch.clear();
+                }
+                if (System.nanoTime() - flushedAt >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS)) {
+                    flush();
+                }
+            }
+            flush();
+        }
+        catch (IOException e) {
+            logger.error("Stopped recording invocations to {}", base, e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            closed = true;
+            queue.clear();
+            try {
+                if (file != null) {
+                    file.close();
+                }
+            }
+            catch (IOException e) {
+                logger.warn("Could not close recording file", e);
+            }
+        }
+    }
+
+    private void append(Entry entry) throws IOException {
+        byte[] payload = entry.signal == null ? new byte[0] : entry.signal.toByteArray();
+        long recordBytes = Recording.RECORD_HEADER_BYTES + payload.length;
+        if (file == null || fileSize + recordBytes > maxFileSize && fileSize > Recording.FILE_HEADER_BYTES) {
+            rotate();
+        }
+        if (buffer.remaining() < Recording.RECORD_HEADER_BYTES) {
+            flush();
+        }
+        buffer.putInt(entry.signal == null ? Recording.END_OF_STREAM : payload.length)
+                .putLong(entry.nanos - origin)
+                .putLong(entry.stream);
+        for (int offset = 0; offset < payload.length; ) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int length = Math.min(buffer.remaining(), payload.length - offset);
+            buffer.put(payload, offset, length);
+            offset += length;
+        }
+        fileSize += recordBytes;
+    }
+
+    private void rotate() throws IOException {
+        if (file != null) {
+            flush();
+            file.close();
+        }
+        fileIndex++;
+        file = FileChannel.open(Recording.segment(base, fileIndex), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.put(Recording.MAGIC).putLong(startedMillis);
+        fileSize = Recording.FILE_HEADER_BYTES;
+        if (fileIndex > maxFiles) {
+            Files.deleteIfExists(Recording.segment(base, fileIndex - maxFiles));
+        }
+    }
+
+    private void flush() throws IOException {
+        flushedAt = System.nanoTime();
+        if (file == null) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static final class Entry {
+
+        private final long stream;
+
+        private final long nanos;
+
+        private final InputSignal signal;
+
+        private Entry(long stream, long nanos, InputSignal signal) {
+            this.stream = stream;
+            this.nanos = nanos;
+            this.signal = signal;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.projectriff.invoker.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the operations that change what the invoker runs, such as swapping a new version of the functions in.
+ *
+ * <p>
+ * These must never be reachable by whoever can invoke the functions: this handler is only installed on a separate
+ * listener bound to the loopback interface, not on the data port nor its domain socket.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+@ChannelHandler.Sharable
+class AdminHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdminHandler.class);
+
+    /**
+     * The path (for POST requests only) that swaps a new version of the functions in, given its {@code location} and
+     * function {@code classes} as query parameters.
+     */
+    static final String HOT_SWAP_PATH = "/swap";
+
+    private final FunctionHost host;
+
+    AdminHandler(FunctionHost host) {
+        this.host = host;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext context, FullHttpRequest request) {
+        QueryStringDecoder uri = new QueryStringDecoder(request.uri());
+        if (!HOT_SWAP_PATH.equals(uri.path())) {
+            writeStatus(context, HttpResponseStatus.NOT_FOUND, null);
+        }
+        else if (!HttpMethod.POST.equals(request.method())) {
+            writeStatus(context, HttpResponseStatus.METHOD_NOT_ALLOWED, null);
+        }
+        else {
+            swap(context, uri.parameters());
+        }
+    }
+
+    /*
+     * Loading and warming up the new functions happens off the event loop.
+     */
+    private void swap(ChannelHandlerContext context, Map<String, List<String>> parameters) {
+        List<String> location = parameters.get("location");
+        List<String> classes = parameters.get("classes");
+        if (location == null || classes == null) {
+            writeStatus(context, HttpResponseStatus.BAD_REQUEST, "Both 'location' and 'classes' parameters are required");
+            return;
+        }
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return host.reload(location.get(0), String.join(",", classes));
+            }
+            catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((generation, error) -> {
+            if (error != null) {
+                logger.error("Could not swap functions in", error.getCause());
+                writeStatus(context, HttpResponseStatus.INTERNAL_SERVER_ERROR, error.getCause().toString());
+            }
+            else {
+                writeStatus(context, HttpResponseStatus.OK, generation.toString());
+            }
+        });
+    }
+
+    private static void writeStatus(ChannelHandlerContext context, HttpResponseStatus status, String message) {
+        DefaultFullHttpResponse response = message == null ? new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status)
+                : new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer(message, StandardCharsets.UTF_8));
+        context.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext context, Throwable cause) {
+        logger.error("Closing admin connection after unexpected error", cause);
+        context.close();
+    }
+}
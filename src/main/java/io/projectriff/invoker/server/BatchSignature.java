@@ -0,0 +1,188 @@
+package io.projectriff.invoker.server;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.core.ResolvableType;
+import reactor.core.publisher.Flux;
+
+/**
+ * Describes a function input or result that carries elements in chunks, such as {@code Flux<List<T>>} or
+ * {@code Flux<int[]>}, so that the function pays per-element signalling (and, for primitive arrays, boxing) once per
+ * chunk rather than once per element.
+ *
+ * <p>
+ * Frames still carry one element each: consecutive input frames of an argument are gathered into a chunk before
+ * reaching the function, and chunks produced by the function are split back into one result frame per element.
+ * Supported chunks are {@link List}s and arrays of {@code int}, {@code long}, {@code float} and {@code double}.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+final class BatchSignature {
+
+    private enum Kind {
+        LIST, INT_ARRAY, LONG_ARRAY, FLOAT_ARRAY, DOUBLE_ARRAY
+    }
+
+    private final Kind kind;
+
+    private final Class<?> elementType;
+
+    private BatchSignature(Kind kind, Class<?> elementType) {
+        this.kind = kind;
+        this.elementType = elementType;
+    }
+
+    /**
+     * Return the batch signature of the given {@code Flux<X>} type, or {@code null} if {@code X} is not a chunk.
+     */
+    static BatchSignature of(ResolvableType fluxType) {
+        if (!Flux.class.equals(fluxType.resolve())) {
+            return null;
+        }
+        ResolvableType chunk = fluxType.getGeneric(0);
+        Class<?> chunkClass = chunk.resolve();
+        if (chunkClass == null) {
+            return null;
+        }
+        if (List.class.equals(chunkClass)) {
+            Class<?> elementType = chunk.resolveGeneric(0);
+            return elementType == null ? null : new BatchSignature(Kind.LIST, elementType);
+        }
+        if (int[].class.equals(chunkClass)) {
+            return new BatchSignature(Kind.INT_ARRAY, Integer.class);
+        }
+        if (long[].class.equals(chunkClass)) {
+            return new BatchSignature(Kind.LONG_ARRAY, Long.class);
+        }
+        if (float[].class.equals(chunkClass)) {
+            return new BatchSignature(Kind.FLOAT_ARRAY, Float.class);
+        }
+        if (double[].class.equals(chunkClass)) {
+            return new BatchSignature(Kind.DOUBLE_ARRAY, Double.class);
+        }
+        return null;
+    }
+
+    /**
+     * Return the batch signature of each parameter of the given function method (with {@code null} for parameters
+     * that are not chunked).
+     */
+    static BatchSignature[] ofParameters(Method m) {
+        BatchSignature[] result = new BatchSignature[m.getParameterCount()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = of(ResolvableType.forMethodParameter(m, i));
+        }
+        return result;
+    }
+
+    /**
+     * Return the batch signature of the results of the given function method, which returns either a {@code Flux}
+     * or an array of them (that then all share the same signature), or {@code null} if they are not chunked.
+     */
+    static BatchSignature ofResults(Method m) {
+        ResolvableType type = ResolvableType.forMethodReturnType(m);
+        return of(type.isArray() ? type.getComponentType() : type);
+    }
+
+    /**
+     * Return the type of the elements carried by frames for a {@code Flux<X>} parameter: that of the elements of
+     * {@code X} if it is a chunk, {@code X} itself otherwise.
+     */
+    static Class<?> elementType(ResolvableType fluxType) {
+        BatchSignature batch = of(fluxType);
+        return batch != null ? batch.elementType : fluxType.resolveGeneric(0);
+    }
+
+    /**
+     * Return whether any parameter or result of the given function method is chunked.
+     */
+    static boolean isBatched(Method m) {
+        for (BatchSignature batch : ofParameters(m)) {
+            if (batch != null) {
+                return true;
+            }
+        }
+        return ofResults(m) != null;
+    }
+
+    /**
+     * Gather the given elements into a chunk.
+     */
+    Object toChunk(List<?> elements) {
+        int size = elements.size();
+        switch (kind) {
+            case INT_ARRAY:
+                int[] ints = new int[size];
+                for (int i = 0; i < size; i++) {
+                    ints[i] = (Integer) elements.get(i);
+                }
+                return ints;
+            case LONG_ARRAY:
+                long[] longs = new long[size];
+                for (int i = 0; i < size; i++) {
+                    longs[i] = (Long) elements.get(i);
+                }
+                return longs;
+            case FLOAT_ARRAY:
+                float[] floats = new float[size];
+                for (int i = 0; i < size; i++) {
+                    floats[i] = (Float) elements.get(i);
+                }
+                return floats;
+            case DOUBLE_ARRAY:
+                double[] doubles = new double[size];
+                for (int i = 0; i < size; i++) {
+                    doubles[i] = (Double) elements.get(i);
+                }
+                return doubles;
+            default:
+                return elements;
+        }
+    }
+
+    /**
+     * Split a chunk back into its elements.
+     */
+    List<?> elements(Object chunk) {
+        switch (kind) {
+            case INT_ARRAY:
+                int[] ints = (int[]) chunk;
+                List<Object> fromInts = new ArrayList<>(ints.length);
+                for (int i : ints) {
+                    fromInts.add(i);
+                }
+                return fromInts;
+            case LONG_ARRAY:
+                long[] longs = (long[]) chunk;
+                List<Object> fromLongs = new ArrayList<>(longs.length);
+                for (long l : longs) {
+                    fromLongs.add(l);
+                }
+                return fromLongs;
+            case FLOAT_ARRAY:
+                float[] floats = (float[]) chunk;
+                List<Object> fromFloats = new ArrayList<>(floats.length);
+                for (float f : floats) {
+                    fromFloats.add(f);
+                }
+                return fromFloats;
+            case DOUBLE_ARRAY:
+                double[] doubles = (double[]) chunk;
+                List<Object> fromDoubles = new ArrayList<>(doubles.length);
+                for (double d : doubles) {
+                    fromDoubles.add(d);
+                }
+                return fromDoubles;
+            default:
+                return (List<?>) chunk;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return kind == Kind.LIST ? "List<" + elementType.getSimpleName() + ">" : kind.name().toLowerCase();
+    }
+}
@@ -0,0 +1,54 @@
+package io.projectriff.invoker.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helps the servers listen on Unix domain sockets, using Netty's native epoll transport.
+ *
+ * @author Eric Bottard
+ */
+final class DomainSockets {
+
+    private static final Logger logger = LoggerFactory.getLogger(DomainSockets.class);
+
+    private DomainSockets() {
+    }
+
+    /**
+     * Return the address to bind to the given path, removing a socket file left behind by a previous run.
+     */
+    static DomainSocketAddress bindAddress(Path path) throws IOException {
+        Epoll.ensureAvailability();
+        Files.deleteIfExists(path);
+        if (path.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+        }
+        return new DomainSocketAddress(path.toFile());
+    }
+
+    static EventLoopGroup newEventLoopGroup(int threads, String name) {
+        return new EpollEventLoopGroup(threads, new DefaultThreadFactory(name));
+    }
+
+    /**
+     * Remove the socket file once the server is done with it.
+     */
+    static void release(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            logger.warn("Could not delete domain socket {}", path, e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package io.projectriff.invoker.server;
+
+import java.util.Map;
+
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import io.projectriff.invoker.rpc.ErrorFrame;
+import io.projectriff.invoker.rpc.OutputSignal;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.UnicastProcessor;
+
+/**
+ * Collects the per element failures of an invocation started with {@code continueOnError}, as error frames to be
+ * merged with the regular output frames.
+ *
+ * @author Eric Bottard
+ */
+class ElementErrors {
+
+    private final UnicastProcessor<OutputSignal> frames = UnicastProcessor.create();
+
+    private final InvokerMetrics metrics;
+
+    ElementErrors(InvokerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /*
+     * Synchronized as partitioned streams report from several threads.
+     */
+    synchronized void report(ErrorFrame.Stage stage, int argIndex, int resultIndex, long sequence, Throwable error,
+                             Map<String, String> headers) {
+        metrics.elementError(stage.name().toLowerCase());
+        metrics.error(error);
+        ErrorFrame.Builder frame = ErrorFrame.newBuilder()
+                .setStage(stage)
+                .setArgIndex(argIndex)
+                .setResultIndex(resultIndex)
+                .setSequence(sequence)
+                .setType(error.getClass().getName())
+                .putAllHeaders(headers);
+        if (error.getMessage() != null) {
+            frame.setMessage(error.getMessage());
+        }
+        frames.onNext(OutputSignal.newBuilder().setError(frame).build());
+    }
+
+    /**
+     * Merge error frames with the given (regular) output frames, completing when those do.
+     */
+    Flux<OutputSignal> mergeWith(Flux<OutputSignal> outputs) {
+        return outputs.doOnTerminate(frames::onComplete)
+                .mergeWith(frames);
+    }
+}
@@ -0,0 +1,162 @@
+package io.projectriff.invoker.server;
+
+import java.beans.Introspector;
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.CachedIntrospectionResults;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * One version of the set of hosted functions, together with everything that is resolved once for them (gRPC adapters
+ * and http targets).
+ *
+ * <p>
+ * Each gRPC stream or http request {@link #tryAcquire() acquires} the generation that is current when it starts and
+ * {@link #release() releases} it when done. Once a newer generation has been swapped in, this one is
+ * {@link #retire() retired}: it stops being acquired, and is closed when the last in-flight invocation releases it.
+ * Closing releases the classloader, if this generation owns one.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class FunctionGeneration {
+
+    private static final Logger logger = LoggerFactory.getLogger(FunctionGeneration.class);
+
+    private final int version;
+
+    private final List<HostedFunction> functions;
+
+    private final Map<String, ReactorServerAdapter> adapters;
+
+    private final Map<String, HttpServerHandler.Target> httpTargets;
+
+    private final URLClassLoader classLoader;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /*
+     * Shared by all generations of the same host.
+     */
+    private final AtomicInteger hostInFlight;
+
+    private volatile boolean retired;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    FunctionGeneration(int version, List<HostedFunction> functions, Map<String, ReactorServerAdapter> adapters,
+                       Map<String, HttpServerHandler.Target> httpTargets, URLClassLoader classLoader,
+                       AtomicInteger hostInFlight) {
+        this.version = version;
+        this.functions = functions;
+        this.adapters = adapters;
+        this.httpTargets = httpTargets;
+        this.classLoader = classLoader;
+        this.hostInFlight = hostInFlight;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public List<HostedFunction> getFunctions() {
+        return functions;
+    }
+
+    public Set<String> getFunctionNames() {
+        return adapters.keySet();
+    }
+
+    /**
+     * Return the classloader owned by this generation, if any.
+     */
+    public URLClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Return the gRPC adapter of the function of the given name (the first function if empty), or {@code null}.
+     */
+    ReactorServerAdapter adapter(String name) {
+        return adapters.get(name.isEmpty() ? functions.get(0).getName() : name);
+    }
+
+    /**
+     * Return the http target of the function of the given name (the first function if empty), or {@code null}.
+     */
+    HttpServerHandler.Target httpTarget(String name) {
+        return httpTargets.get(name.isEmpty() ? functions.get(0).getName() : name);
+    }
+
+    /**
+     * Register an in-flight invocation, unless this generation has been retired in the meantime.
+     */
+    boolean tryAcquire() {
+        inFlight.incrementAndGet();
+        hostInFlight.incrementAndGet();
+        if (retired) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    void release() {
+        hostInFlight.decrementAndGet();
+        if (inFlight.decrementAndGet() == 0 && retired) {
+            close();
+        }
+    }
+
+    void retire() {
+        retired = true;
+        if (inFlight.get() == 0) {
+            close();
+        }
+    }
+
+    private void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        adapters.values().forEach(ReactorServerAdapter::unbindMetrics);
+        if (classLoader != null) {
+            // Reflection caches hold (softly) on to the functions classes, don't wait for memory pressure
+            ResolvableType.clearCache();
+            ReflectionUtils.clearCache();
+            AnnotationUtils.clearCache();
+            CachedIntrospectionResults.clearClassLoader(classLoader);
+            Introspector.flushCaches();
+            try {
+                classLoader.close();
+            }
+            catch (IOException e) {
+                logger.warn("Could not close the classloader of function generation {}", version, e);
+            }
+        }
+        logger.info("Released function generation {}", version);
+    }
+
+    @Override
+    public String toString() {
+        return "generation " + version + " " + functions;
+    }
+}
@@ -0,0 +1,421 @@
+package io.projectriff.invoker.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URLClassLoader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.projectriff.invoker.artifact.ArtifactCache;
+import io.projectriff.invoker.flow.FlowTuner;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import io.projectriff.invoker.recording.TrafficRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Holds the current {@link FunctionGeneration} that both the gRPC and http endpoints dispatch to, and allows swapping a
+ * new version of the functions in while the invoker is running.
+ *
+ * <p>
+ * A new generation is fully prepared (classes loaded, adapters and converters created, each function called once)
+ * before it is atomically made current. Invocations that started on the previous generation complete on it, and its
+ * classloader is released once the last of them is done.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class FunctionHost {
+
+    private static final Logger logger = LoggerFactory.getLogger(FunctionHost.class);
+
+    private static final Duration WARM_UP_TIMEOUT = Duration.ofSeconds(10L);
+
+    private final InvokerProperties properties;
+
+    private final MeterRegistry registry;
+
+    private final FunctionLoader loader;
+
+    /*
+     * Metrics outlive generations, so that successive versions of a function report to the same meters.
+     */
+    private final Map<String, InvokerMetrics> metrics = new ConcurrentHashMap<>();
+
+    private final AtomicInteger versions = new AtomicInteger();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /*
+     * Shared by all functions and generations, so that a recording covers whatever the invoker received.
+     */
+    private final TrafficRecorder recorder;
+
+    /*
+     * Shared as well, as message sizes are mostly a matter of what clients send.
+     */
+    private final FlowTuner flow;
+
+    /*
+     * Where partitions of the streams of all partitioned functions are handled, null if there are none.
+     */
+    private final Scheduler partitionScheduler;
+
+    private volatile FunctionGeneration current;
+
+    private volatile boolean accepting = true;
+
+    public FunctionHost(InvokerProperties properties, MeterRegistry registry) {
+        this.properties = properties;
+        this.registry = registry;
+        Gauge.builder(InvokerMetrics.PREFIX + ".invocations.inflight", inFlight, AtomicInteger::get)
+                .description("Streams and http requests currently being handled, across all functions and versions")
+                .register(registry);
+        this.loader = new FunctionLoader(newArtifactCache(properties.getArtifacts()));
+        this.recorder = newRecorder(properties.getRecording());
+        if (recorder != null) {
+            FunctionCounter.builder(InvokerMetrics.PREFIX + ".recording.dropped", recorder, TrafficRecorder::getDropped)
+                    .description("Input signals that were not recorded, as the recorder fell behind")
+                    .register(registry);
+        }
+        InvokerProperties.Flow config = properties.getFlow();
+        this.flow = new FlowTuner(config.isAutoTune(), config.getWindowSize().toBytes());
+        if (flow.isAutoTune()) {
+            Gauge.builder(InvokerMetrics.PREFIX + ".flow.received.size", flow, FlowTuner::getAverageReceivedBytes)
+                    .description("The average size of gRPC messages received, which stream prefetches are tuned to")
+                    .baseUnit("bytes")
+                    .register(registry);
+            Gauge.builder(InvokerMetrics.PREFIX + ".flow.sent.size", flow, FlowTuner::getAverageSentBytes)
+                    .description("The average size of results sent, which stream prefetches are tuned to")
+                    .baseUnit("bytes")
+                    .register(registry);
+        }
+        InvokerProperties.Partitioning partitioning = properties.getPartitioning();
+        this.partitionScheduler = partitioning.getFunctions().isEmpty() ? null
+                : Schedulers.newParallel("riff-partition", Math.max(1, partitioning.getThreads()), true);
+    }
+
+    private static ArtifactCache newArtifactCache(InvokerProperties.Artifacts config) {
+        if (config.getCacheDirectory() == null) {
+            return null;
+        }
+        try {
+            return new ArtifactCache(config.getCacheDirectory());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not cache function jars in " + config.getCacheDirectory(), e);
+        }
+    }
+
+    private static TrafficRecorder newRecorder(InvokerProperties.Recording config) {
+        if (config.getFile() == null) {
+            return null;
+        }
+        try {
+            return new TrafficRecorder(config.getFile(), config.getMaxFileSize().toBytes(), config.getMaxFiles(),
+                    config.getQueueSize());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not record invocations to " + config.getFile(), e);
+        }
+    }
+
+    /**
+     * Install the initial functions, unless this has already been done.
+     */
+    public synchronized FunctionGeneration start(List<HostedFunction> functions) throws Exception {
+        if (current == null) {
+            swap(functions, null);
+        }
+        return current;
+    }
+
+    /**
+     * Load the given function classes from a new classloader over the given location, then swap them in. Functions
+     * keep the name of the currently hosted function of the same class, if any.
+     */
+    public FunctionGeneration reload(String location, String classNames) throws Exception {
+        URLClassLoader classLoader = loader.isolatedClassLoader(location);
+        try {
+            return swap(keepNames(loader.load(classLoader, classNames)), classLoader);
+        }
+        catch (Exception | LinkageError e) {
+            classLoader.close();
+            throw e;
+        }
+    }
+
+    /*
+     * A new version of a function keeps the name of the one it replaces (the function of the same class), which per
+     * function configuration, metrics and routing are keyed on, whichever way the previous version was loaded.
+     */
+    private synchronized List<HostedFunction> keepNames(List<HostedFunction> functions) {
+        if (current == null) {
+            return functions;
+        }
+        Map<String, String> names = new HashMap<>();
+        for (HostedFunction hf : current.getFunctions()) {
+            names.putIfAbsent(hf.getTargetClassName(), hf.getName());
+        }
+        List<HostedFunction> result = new ArrayList<>(functions);
+        boolean[] renamed = new boolean[result.size()];
+        Set<String> used = new HashSet<>();
+        for (int i = 0; i < result.size(); i++) {
+            String name = names.remove(result.get(i).getTargetClassName());
+            if (name != null) {
+                result.set(i, result.get(i).withName(name));
+                renamed[i] = true;
+                used.add(name);
+            }
+        }
+        // New functions keep their default name, unless one of the others already goes by it
+        for (int i = 0, n = 0; i < result.size(); i++) {
+            if (renamed[i] || used.add(result.get(i).getName())) {
+                continue;
+            }
+            while (used.contains("function" + n)) {
+                n++;
+            }
+            result.set(i, result.get(i).withName("function" + n));
+            used.add("function" + n);
+        }
+        return result;
+    }
+
+    /**
+     * Prepare and warm up a new generation of the given functions, then make it current and retire the previous one.
+     *
+     * @param classLoader the classloader owned by the new generation, to be closed when it is retired, if any
+     */
+    public synchronized FunctionGeneration swap(List<HostedFunction> functions, URLClassLoader classLoader) throws Exception {
+        Set<String> unknown = new LinkedHashSet<>(properties.getCache().getPureFunctions());
+        functions.forEach(hf -> unknown.remove(hf.getName()));
+        if (!unknown.isEmpty()) {
+            throw new IllegalStateException("Pure functions " + unknown + " are not hosted");
+        }
+        Map<String, ReactorServerAdapter> adapters = new LinkedHashMap<>();
+        Map<String, HttpServerHandler.Target> httpTargets = new LinkedHashMap<>();
+        try {
+            for (HostedFunction hf : functions) {
+                InvokerMetrics m = metricsFor(hf.getName());
+                if (partitionScheduler != null && properties.getPartitioning().getFunctions().contains(hf.getName())) {
+                    warnIfStateful(hf);
+                }
+                adapters.put(hf.getName(), new ReactorServerAdapter(hf.getName(), hf.getFunction(), hf.getMethod(), hf.getInputTypes(), properties, m,
+                        resultCache(hf.getName(), m), recorder, flow, partitionScheduler));
+                httpTargets.put(hf.getName(), new HttpServerHandler.Target(hf, m,
+                        properties.getHttp().getCoalescedFunctions().contains(hf.getName())));
+                warmUp(hf);
+            }
+        }
+        catch (Exception | LinkageError e) {
+            // The current generation keeps serving, without gauges reporting the streams of this one
+            adapters.values().forEach(ReactorServerAdapter::unbindMetrics);
+            throw e;
+        }
+        FunctionGeneration next = new FunctionGeneration(versions.incrementAndGet(), functions, adapters, httpTargets,
+                classLoader, inFlight);
+        FunctionGeneration previous = current;
+        current = next;
+        logger.info("Serving function {}", next);
+        if (previous != null) {
+            previous.retire();
+        }
+        return next;
+    }
+
+    /*
+     * The partitions of a stream are so many subscriptions to the same function instance, hence running it
+     * concurrently, which is only safe if it keeps no state of its own. Partitioning is asked for explicitly, so this
+     * only warns, when it looks like the function does.
+     */
+    private static void warnIfStateful(HostedFunction hf) {
+        String field = statefulField(hf.getTarget());
+        if (field != null) {
+            logger.warn("Function {} is partitioned, but may keep state in {}, which its partitions would share. "
+                    + "Partitioned functions should keep their state within the stream they are given", hf.getName(), field);
+        }
+    }
+
+    /**
+     * Return the first field of the given function (or of what its final fields hold) that looks like it may hold
+     * state, or {@code null}. This is a best-effort guess, not a guarantee: non-final fields are reported, as are final
+     * fields holding non-empty arrays, collections or maps other than immutable ones, atomics or {@link Appendable}s.
+     */
+    static String statefulField(Object function) {
+        return statefulField(function, 2);
+    }
+
+    private static String statefulField(Object target, int depth) {
+        for (Class<?> type = target.getClass(); type != null && type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                String name = type.getName() + "." + field.getName();
+                if (!Modifier.isFinal(modifiers)) {
+                    return name;
+                }
+                Object value = valueOf(field, target);
+                if (value == null) {
+                    continue;
+                }
+                if (isMutable(value)) {
+                    return name;
+                }
+                // Look into holders of the function's own making, but not into those of the JDK
+                if (depth > 0 && !value.getClass().getName().startsWith("java.")) {
+                    String nested = statefulField(value, depth - 1);
+                    if (nested != null) {
+                        return nested;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Object valueOf(Field field, Object target) {
+        try {
+            return field.trySetAccessible() ? field.get(target) : null;
+        }
+        catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static boolean isMutable(Object value) {
+        Class<?> type = value.getClass();
+        if (type.isArray()) {
+            return Array.getLength(value) > 0;
+        }
+        if (value instanceof Collection || value instanceof Map) {
+            String name = type.getName();
+            return !name.startsWith("java.util.ImmutableCollections$") && !name.startsWith("java.util.Collections$Unmodifiable")
+                    && !name.startsWith("java.util.Collections$Empty") && !name.startsWith("java.util.Collections$Singleton");
+        }
+        return value instanceof Appendable || type.getName().startsWith("java.util.concurrent.atomic.");
+    }
+
+    /*
+     * Results are remembered per generation, as a new version of a function may well compute different ones.
+     */
+    private ResultCache resultCache(String name, InvokerMetrics metrics) {
+        InvokerProperties.Cache config = properties.getCache();
+        return config.getPureFunctions().contains(name)
+                ? new ResultCache(config.getMaxSize().toBytes(), config.getTtl(), metrics)
+                : null;
+    }
+
+    /**
+     * Return the current generation, registering an in-flight invocation on it that must be
+     * {@link FunctionGeneration#release() released} once done.
+     */
+    public FunctionGeneration acquire() {
+        while (true) {
+            FunctionGeneration generation = current;
+            if (generation == null) {
+                throw new IllegalStateException("Functions have not been started yet");
+            }
+            if (generation.tryAcquire()) {
+                return generation;
+            }
+            if (generation == current) {
+                throw new IllegalStateException("Functions have been shut down");
+            }
+            // Lost a race with a swap, the next read sees the new generation
+        }
+    }
+
+    /**
+     * Return the number of invocations in flight, across all generations.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Return whether new invocations are still accepted, <i>i.e.</i> shutdown has not started.
+     */
+    public boolean isAccepting() {
+        return accepting;
+    }
+
+    /**
+     * Stop accepting new invocations, as the first step of a graceful shutdown. In-flight ones complete normally.
+     */
+    public void stopAccepting() {
+        accepting = false;
+    }
+
+    /**
+     * Retire the current generation, releasing it as soon as in-flight invocations are done, and stop recording. To
+     * be called last when shutting down.
+     */
+    public synchronized void close() {
+        accepting = false;
+        if (current != null) {
+            current.retire();
+        }
+        if (recorder != null) {
+            recorder.close();
+        }
+        if (partitionScheduler != null) {
+            partitionScheduler.dispose();
+        }
+    }
+
+    public FlowTuner getFlowTuner() {
+        return flow;
+    }
+
+    public FunctionGeneration getCurrent() {
+        return current;
+    }
+
+    public InvokerMetrics metricsFor(String name) {
+        return metrics.computeIfAbsent(name, n -> InvokerMetrics.forFunction(registry, n));
+    }
+
+    /*
+     * Calls the function once with empty inputs, so that its classes are initialized before the first real invocation.
+     */
+    private void warmUp(HostedFunction hf) {
+        try {
+            MethodHandle mh = MethodHandles.publicLookup().unreflect(hf.getMethod()).bindTo(hf.getFunction());
+            Object[] args = new Object[hf.getMethod().getParameterCount()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = Flux.empty();
+            }
+            Object result = mh.invokeWithArguments(args);
+            Flux<?>[] outputs = result instanceof Flux<?>[] ? (Flux<?>[]) result
+                    : result instanceof Flux ? new Flux<?>[] {(Flux<?>) result} : new Flux<?>[0];
+            Flux.merge(outputs).then().block(WARM_UP_TIMEOUT);
+        }
+        catch (Throwable t) {
+            logger.warn("Warm up of {} failed", hf.getName(), t);
+        }
+    }
+}
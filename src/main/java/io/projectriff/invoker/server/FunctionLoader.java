@@ -0,0 +1,136 @@
+package io.projectriff.invoker.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import io.projectriff.invoker.artifact.ArtifactCache;
+import io.projectriff.invoker.artifact.ExplodedArtifact;
+import io.projectriff.invoker.artifact.IndexedClassLoader;
+import org.springframework.core.ResolvableType;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+
+/**
+ * Loads functions from a jar into a fresh classloader, without going through the function deployer. Used to swap a
+ * new version of the functions in, while the invoker is running.
+ *
+ * <p>
+ * Function classes are instantiated with their no-arg constructor. Plain {@link Function}s are adapted to a
+ * {@link Flux} signature, other functions are expected to already have one. Functions are named {@code function0},
+ * {@code function1}, <i>etc.</i> in the order their classes are given. When swapped in, a function that replaces one
+ * of the same class keeps that function's name instead (see {@link FunctionHost#reload(String, String)}).
+ * </p>
+ *
+ * <p>
+ * If given an {@link ArtifactCache}, local jars are loaded from their unpacked and indexed copy in the cache, which
+ * also allows Spring Boot fat jars to be loaded.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class FunctionLoader {
+
+    private final FunctionMethodResolver methodResolver = new FunctionalInterfaceMethodResolver();
+
+    private final ArtifactCache cache;
+
+    public FunctionLoader() {
+        this(null);
+    }
+
+    public FunctionLoader(ArtifactCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Create a classloader over the given comma separated list of jar URLs (or paths). The invoker's own classes
+     * (reactor, {@code java.util.function}, <i>etc.</i>) are shared with the functions, via the parent classloader.
+     */
+    public URLClassLoader isolatedClassLoader(String location) throws IOException {
+        List<ExplodedArtifact> artifacts = new ArrayList<>();
+        List<URL> urls = new ArrayList<>();
+        for (String l : StringUtils.commaDelimitedListToStringArray(location)) {
+            l = l.trim();
+            URL url = l.contains(":/") ? new URL(l) : Paths.get(l).toUri().toURL();
+            Path jar = !l.contains(":/") ? Paths.get(l) : "file".equals(url.getProtocol()) ? Paths.get(URI.create(l)) : null;
+            if (cache != null && jar != null && Files.isRegularFile(jar)) {
+                artifacts.add(cache.open(jar));
+            }
+            else {
+                urls.add(url);
+            }
+        }
+        if (artifacts.isEmpty()) {
+            return new URLClassLoader(urls.toArray(new URL[0]), FunctionLoader.class.getClassLoader());
+        }
+        return new IndexedClassLoader(artifacts, urls.toArray(new URL[0]), FunctionLoader.class.getClassLoader());
+    }
+
+    /**
+     * Instantiate the given comma separated list of function classes from the given classloader.
+     */
+    public List<HostedFunction> load(ClassLoader classLoader, String classNames) throws Exception {
+        List<HostedFunction> result = new ArrayList<>();
+        String[] names = StringUtils.commaDelimitedListToStringArray(classNames);
+        for (int i = 0; i < names.length; i++) {
+            Class<?> clazz = Class.forName(names[i].trim(), true, classLoader);
+            Object function = clazz.getDeclaredConstructor().newInstance();
+            Class<?>[] inputTypes;
+            if (function instanceof Function && !isFluxSignature(function)) {
+                inputTypes = new Class<?>[] {ResolvableType.forClass(clazz).as(Function.class).resolveGeneric(0)};
+                function = new FluxMappingFunction<>((Function<?, ?>) function);
+            }
+            else {
+                Method m = methodResolver.resolve(function);
+                inputTypes = new Class<?>[m.getParameterCount()];
+                for (int p = 0; p < inputTypes.length; p++) {
+                    inputTypes[p] = BatchSignature.elementType(ResolvableType.forMethodParameter(m, p));
+                }
+            }
+            result.add(new HostedFunction("function" + i, function, methodResolver.resolve(function), inputTypes));
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("No function classes given");
+        }
+        return result;
+    }
+
+    private boolean isFluxSignature(Object function) {
+        return methodResolver.resolve(function).getParameterTypes()[0].isAssignableFrom(Flux.class);
+    }
+
+    /**
+     * Adapts a plain function to work on each element of a {@link Flux}.
+     */
+    public static class FluxMappingFunction<T, R> implements Function<Flux<T>, Flux<R>> {
+
+        private final Function<T, R> target;
+
+        FluxMappingFunction(Function<T, R> target) {
+            this.target = target;
+        }
+
+        public Function<T, R> getTarget() {
+            return target;
+        }
+
+        @Override
+        public Flux<R> apply(Flux<T> input) {
+            return input.map(target);
+        }
+
+        @Override
+        public String toString() {
+            return target.toString();
+        }
+    }
+}
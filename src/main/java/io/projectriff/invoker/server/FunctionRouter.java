@@ -0,0 +1,51 @@
+package io.projectriff.invoker.server;
+
+import io.grpc.Status;
+import io.projectriff.invoker.flow.InboundWindow;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.rpc.ReactorRiffGrpc;
+import reactor.core.publisher.Flux;
+
+/**
+ * A riff gRPC service that dispatches each invocation to the adapter of the function named in its start frame,
+ * or to the default (first) function if none is named.
+ *
+ * <p>
+ * All functions are served by the same gRPC server, hence share its event loops and executor. Each stream stays on
+ * the {@link FunctionGeneration generation} of functions that was current when it started, even if a newer one is
+ * swapped in before it completes.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class FunctionRouter extends ReactorRiffGrpc.RiffImplBase {
+
+    private final FunctionHost host;
+
+    public FunctionRouter(FunctionHost host) {
+        this.host = host;
+    }
+
+    @Override
+    public Flux<OutputSignal> invoke(Flux<InputSignal> request) {
+        // Inputs are only read from the transport as the adapter takes them, and the call is not cancelled by
+        // operators cancelling them once complete
+        return InboundWindow.consumeCurrent(new HalfCloseOperator<>(request)).switchOnFirst((first, stream) -> {
+            String name = first.hasValue() && first.get().hasStart() ? first.get().getStart().getFunctionName() : "";
+            if (!host.isAccepting()) {
+                return Flux.error(Status.UNAVAILABLE.withDescription("Invoker is shutting down").asRuntimeException());
+            }
+            FunctionGeneration generation = host.acquire();
+            ReactorServerAdapter adapter = generation.adapter(name);
+            if (adapter == null) {
+                generation.release();
+                return Flux.error(Status.NOT_FOUND
+                        .withDescription(String.format("No function named '%s', known functions are %s", name, generation.getFunctionNames()))
+                        .asRuntimeException());
+            }
+            // An adapter reports protocol errors (e.g. a missing start frame) itself
+            return adapter.invoke(stream).doFinally(s -> generation.release());
+        });
+    }
+}
@@ -1,5 +1,7 @@
 package io.projectriff.invoker.server;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.cloud.function.context.FunctionCatalog;
 import org.springframework.cloud.function.context.FunctionRegistry;
 import org.springframework.cloud.function.context.catalog.FunctionInspector;
@@ -10,6 +12,9 @@ import org.springframework.core.ResolvableType;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 
@@ -17,36 +22,71 @@ import reactor.core.publisher.Flux;
 
 public class HackyFunctionResolver {
 
+    private static final Logger logger = LoggerFactory.getLogger(HackyFunctionResolver.class);
+
     private final FunctionRegistry functionRegistry;
 
     private final FunctionInspector functionInspector;
 
+    private List<HostedFunction> hostedFunctions;
+
     public HackyFunctionResolver(FunctionRegistry functionRegistry, FunctionInspector fi) {
         this.functionRegistry = functionRegistry;
         functionInspector = fi;
     }
 
     public Object resolveFunction() throws Exception {
-        Field processor1 = functionRegistry.getClass().getDeclaredField("processor");
-        processor1.setAccessible(true);
-        Object processor = processor1.get(functionRegistry);
-
-        Field registry = processor.getClass().getDeclaredField("names");
-        registry.setAccessible(true);
-        Map<?, ?> map = (Map) registry.get(processor);
+        Map<?, ?> map = registeredFunctions();
 
         Object o = map.keySet().stream()
                 .filter(HackyFunctionResolver::isFluxifying)
                 .findFirst()
                 .get();
-        System.out.println("Amongst " + map.toString().replace(",", "\n"));
-        System.out.println("Electing: " + o);
+        logger.debug("Amongst {}", map);
+        logger.info("Electing: {}", o);
         return o;
     }
 
+    /**
+     * Resolve all the functions that can be hosted, keyed by their name in the registry. The first one is the default
+     * function, used when an invocation doesn't name its target.
+     */
+    public synchronized List<HostedFunction> resolveFunctions() throws Exception {
+        if (hostedFunctions == null) {
+            List<HostedFunction> result = new ArrayList<>();
+            for (Map.Entry<?, ?> entry : registeredFunctions().entrySet()) {
+                Object function = entry.getKey();
+                if (isFluxifying(function)) {
+                    Method m = new FunctionalInterfaceMethodResolver().resolve(function);
+                    result.add(new HostedFunction(String.valueOf(entry.getValue()), function, m, resolveInputTypes(function, m)));
+                }
+            }
+            if (result.isEmpty()) {
+                throw new IllegalStateException("Could not find any function to host");
+            }
+            logger.info("Hosting: {}", result);
+            hostedFunctions = Collections.unmodifiableList(result);
+        }
+        return hostedFunctions;
+    }
+
+    private Map<?, ?> registeredFunctions() throws Exception {
+        Field processor1 = functionRegistry.getClass().getDeclaredField("processor");
+        processor1.setAccessible(true);
+        Object processor = processor1.get(functionRegistry);
+
+        Field registry = processor.getClass().getDeclaredField("names");
+        registry.setAccessible(true);
+        return (Map) registry.get(processor);
+    }
+
+    /**
+     * Return the type of the elements that input frames carry, for each argument. For arguments that receive chunks
+     * of elements (see {@link BatchSignature}), this is the type of the elements, not of the chunks.
+     */
     public Class[] resolveInputTypes(Object function, Method m) {
         Class<?> result = functionInspector.getOutputType(function);
-        if (function instanceof Function && result != Object.class) {
+        if (function instanceof Function && result != Object.class && !BatchSignature.isBatched(m)) {
             return new Class[]{result};
         }
 
@@ -59,7 +99,7 @@ public class HackyFunctionResolver {
             // throw new RuntimeException("Expected parameter of type Flux at position " + i + ": " +
             // m);
             // }
-            types[i] = type.resolveGeneric(0);
+            types[i] = BatchSignature.elementType(type);
         }
         return types;
 
@@ -0,0 +1,88 @@
+package io.projectriff.invoker.server;
+
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxOperator;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+/**
+ * An operator that stops passing cancellation upstream once the inputs of a call have completed, that is once the
+ * client half-closed it.
+ *
+ * <p>
+ * Some operators cancel their source as it completes ({@code groupBy} does, once its last group is done). Most sources
+ * ignore that, but reactive-grpc takes the cancellation of the inputs of a call as the cancellation of the whole
+ * call, and fails it with "Server canceled request" 100ms later unless results are done by then. A function still
+ * working on its last inputs would have its results cut short.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+class HalfCloseOperator<T> extends FluxOperator<T, T> {
+
+    HalfCloseOperator(Flux<T> source) {
+        super(source);
+    }
+
+    @Override
+    public void subscribe(CoreSubscriber<? super T> actual) {
+        source.subscribe(new HalfCloseSubscriber<>(actual));
+    }
+
+    static final class HalfCloseSubscriber<T> implements CoreSubscriber<T>, Subscription {
+
+        private final CoreSubscriber<? super T> actual;
+
+        private Subscription upstream;
+
+        private volatile boolean done;
+
+        HalfCloseSubscriber(CoreSubscriber<? super T> actual) {
+            this.actual = actual;
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(upstream, s)) {
+                upstream = s;
+                actual.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            actual.onNext(t);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            done = true;
+            actual.onError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            actual.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            if (!done) {
+                upstream.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package io.projectriff.invoker.server;
+
+import java.lang.reflect.Method;
+
+import org.springframework.cloud.function.core.FluxFunction;
+
+/**
+ * A function hosted by this invoker, together with the things that are resolved once for it: its functional method
+ * and the types of its inputs.
+ *
+ * @author Eric Bottard
+ */
+public class HostedFunction {
+
+    private final String name;
+
+    private final Object function;
+
+    private final Method method;
+
+    private final Class<?>[] inputTypes;
+
+    public HostedFunction(String name, Object function, Method method, Class<?>[] inputTypes) {
+        this.name = name;
+        this.function = function;
+        this.method = method;
+        this.inputTypes = inputTypes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Object getFunction() {
+        return function;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public Class<?>[] getInputTypes() {
+        return inputTypes;
+    }
+
+    /**
+     * Return the user function, looking through the adapters that give plain functions a {@code Flux} signature.
+     */
+    public Object getTarget() {
+        if (function instanceof FunctionLoader.FluxMappingFunction) {
+            return ((FunctionLoader.FluxMappingFunction<?, ?>) function).getTarget();
+        }
+        else if (function instanceof FluxFunction) {
+            return ((FluxFunction<?, ?>) function).getTarget();
+        }
+        return function;
+    }
+
+    /**
+     * Return the name of the class of the user function. This does not depend on how the function was loaded.
+     */
+    public String getTargetClassName() {
+        return getTarget().getClass().getName();
+    }
+
+    /**
+     * Return a copy of this function, hosted under another name.
+     */
+    public HostedFunction withName(String name) {
+        return new HostedFunction(name, function, method, inputTypes);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + function + ")";
+    }
+}
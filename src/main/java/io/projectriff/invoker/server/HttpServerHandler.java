@@ -3,17 +3,36 @@ package io.projectriff.invoker.server;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
 import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http2.Http2StreamChannel;
 import io.projectriff.invoker.HttpMessageUtils;
+import io.projectriff.invoker.admission.AdmissionController;
+import io.projectriff.invoker.admission.Priority;
+import io.projectriff.invoker.jfr.ConverterSelectionEvent;
+import io.projectriff.invoker.jfr.HttpRequestEvent;
+import io.projectriff.invoker.MediaTypeCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpInputMessage;
 import org.springframework.http.HttpOutputMessage;
@@ -21,33 +40,61 @@ import org.springframework.http.MediaType;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.http.converter.HttpMessageNotWritableException;
+import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
-import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @ChannelHandler.Sharable
 class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
 
-	private final MethodHandle methodHandle;
+	private static final Logger logger = LoggerFactory.getLogger(HttpServerHandler.class);
 
-	private final Class<?>[] inputTypes;
+	/**
+	 * The path (for GET requests only) that exposes metrics in the Prometheus format.
+	 */
+	static final String METRICS_PATH = "/metrics";
 
-	private final List<HttpMessageConverter> converters = new ArrayList<>();
+	/**
+	 * A request header setting how long (in milliseconds) the client is willing to wait for the response. The
+	 * invocation is abandoned, and a 504 returned, once that time has passed.
+	 */
+	static final String TIMEOUT_HEADER = "RiffTimeout";
 
-	public HttpServerHandler(Method method, Object function, Class[] types) throws Exception {
-		MethodHandle methodHandle = MethodHandles.publicLookup().unreflect(method);
-		this.methodHandle = methodHandle.bindTo(function);
-		this.inputTypes = types;
+	private final FunctionHost host;
 
-		HttpMessageUtils.installDefaultConverters(converters);
+	private final MeterRegistry registry;
+
+	private final AdmissionController admission;
+
+	private final Duration defaultTimeout;
+
+	/**
+	 * Create a handler routing requests on {@literal /<name>} to the function of that name, and requests on
+	 * {@literal /} to the default function.
+	 */
+	public HttpServerHandler(FunctionHost host, MeterRegistry registry, InvokerProperties properties,
+			AdmissionController admission) {
+		this.host = host;
+		this.registry = registry;
+		this.admission = admission;
+		this.defaultTimeout = properties.getHttp().getTimeout();
 	}
 
 	@Override
@@ -56,13 +103,149 @@ class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
 			return;
 		}
 		FullHttpRequest request = (FullHttpRequest) msg;
+		String path = new QueryStringDecoder(request.uri()).path();
+		boolean keepAlive = HttpUtil.isKeepAlive(request);
+		if (HttpMethod.GET.equals(request.method()) && METRICS_PATH.equals(path)) {
+			writeMetrics(context, keepAlive);
+			return;
+		}
+		if (!host.isAccepting()) {
+			writeStatus(context, HttpResponseStatus.SERVICE_UNAVAILABLE, null, keepAlive);
+			return;
+		}
+		long timeout;
+		try {
+			timeout = timeoutNanos(request.headers().get(TIMEOUT_HEADER));
+		}
+		catch (IllegalArgumentException e) {
+			writeStatus(context, HttpResponseStatus.BAD_REQUEST, e.getMessage(), keepAlive);
+			return;
+		}
+		AdmissionController.Permit permit = null;
+		if (admission != null) {
+			permit = admission.tryAcquire(Priority.parse(request.headers().get(Priority.HEADER)));
+			if (permit == null) {
+				writeStatus(context, HttpResponseStatus.SERVICE_UNAVAILABLE, "Concurrency limit reached", keepAlive);
+				return;
+			}
+		}
+		FunctionGeneration generation = host.acquire();
+		Mono<Boolean> executed;
+		try {
+			Target target = generation.httpTarget(path.isEmpty() ? "" : path.substring(1));
+			if (target == null) {
+				writeStatus(context, HttpResponseStatus.NOT_FOUND, null, keepAlive);
+				executed = Mono.just(false);
+			}
+			else {
+				executed = invoke(context, request, target, timeout, keepAlive);
+			}
+		}
+		catch (RuntimeException e) {
+			released(generation, permit, false);
+			throw e;
+		}
+		// Requests answered by another one's execution don't tell anything about latency
+		AdmissionController.Permit p = permit;
+		executed.subscribe(success -> released(generation, p, success), e -> released(generation, p, false));
+	}
+
+	private static void released(FunctionGeneration generation, AdmissionController.Permit permit, boolean success) {
+		generation.release();
+		if (permit != null && success) {
+			permit.success(1);
+		}
+		else if (permit != null) {
+			permit.ignore();
+		}
+	}
+
+	/*
+	 * Emits whether the function was executed for this request, rather than shared with an identical one, once the
+	 * response has been handed to the channel. The request must not be used once this method returns, as it is
+	 * released by then, hence the input is read right away. Event loops only wait for functions that don't
+	 * produce their result on another thread.
+	 */
+	private Mono<Boolean> invoke(ChannelHandlerContext context, FullHttpRequest request, Target target, long timeout,
+			boolean keepAlive) {
+		HttpRequestEvent event = HttpRequestEvent.start(target.name, request.method().name(), request.content().readableBytes());
+		if (target.inFlight == null) {
+			return compute(request, target, timeout, event)
+					.doOnNext(response -> write(context, response, keepAlive))
+					.doOnError(e -> failed(context, target, e, keepAlive))
+					.thenReturn(true);
+		}
+		io.netty.handler.codec.http.HttpHeaders headers = request.headers();
+		RequestKey key = new RequestKey(ByteBufUtil.getBytes(request.content()),
+				headers.get(HttpHeaderNames.CONTENT_TYPE), headers.get(HttpHeaderNames.ACCEPT));
+		CompletableFuture<Response> leader = new CompletableFuture<>();
+		CompletableFuture<Response> existing = target.inFlight.putIfAbsent(key, leader);
+		if (existing != null) {
+			// Netty hands writes from another thread over to the channel event loop
+			target.metrics.coalesced();
+			event.coalesced();
+			existing.whenComplete((response, error) -> {
+				responded(event, response);
+				if (error != null) {
+					writeStatus(context, HttpResponseStatus.INTERNAL_SERVER_ERROR, message(error), keepAlive);
+				}
+				else {
+					write(context, response, keepAlive);
+				}
+			});
+			return Mono.just(false);
+		}
+		// Requests arriving once the outcome is known get a fresh execution
+		return compute(request, target, timeout, event)
+				.doOnNext(response -> {
+					target.inFlight.remove(key, leader);
+					leader.complete(response);
+					write(context, response, keepAlive);
+				})
+				.doOnError(e -> {
+					target.inFlight.remove(key, leader);
+					leader.completeExceptionally(e);
+					failed(context, target, e, keepAlive);
+				})
+				.thenReturn(true);
+	}
+
+	private Mono<Response> compute(FullHttpRequest request, Target target, long timeout, HttpRequestEvent event) {
+		return compute(request, target, timeout)
+				.doOnNext(response -> responded(event, response))
+				.doOnError(e -> responded(event, null));
+	}
+
+	private static void responded(HttpRequestEvent event, Response response) {
+		if (response == null) {
+			event.responded(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), 0L);
+		}
+		else {
+			event.responded(response.status.code(), response.body.readableBytes());
+		}
+	}
+
+	/*
+	 * Reads the input right away, then emits the response once the function produced its result.
+	 */
+	private Mono<Response> compute(FullHttpRequest request, Target target, long timeout) {
+		Class<?>[] inputTypes = target.inputTypes;
+		List<HttpMessageConverter> converters = target.converters;
+		InvokerMetrics metrics = target.metrics;
 		ByteBuf content = request.content();
+		long start = System.nanoTime();
+		int requestBytes = content.readableBytes();
 
 		try {
 
 			io.netty.handler.codec.http.HttpHeaders headers = request.headers();
-			MediaType contentType = MediaType.parseMediaType(headers.getAsString(HttpHeaderNames.CONTENT_TYPE));
-			List<MediaType> accept = MediaType.parseMediaTypes(headers.getAsString(HttpHeaderNames.ACCEPT));
+			long deadline = start + timeout;
+			if (timeout <= 0L) {
+				metrics.expired();
+				return Mono.just(new Response(HttpResponseStatus.GATEWAY_TIMEOUT, Unpooled.EMPTY_BUFFER, EmptyHttpHeaders.INSTANCE));
+			}
+			MediaType contentType = MediaTypeCache.parse(headers.getAsString(HttpHeaderNames.CONTENT_TYPE));
+			List<MediaType> accept = MediaTypeCache.parseList(headers.getAsString(HttpHeaderNames.ACCEPT));
 
 			Object arg = null;
 			HttpInputMessage inputMessage = new HttpInputMessage() {
@@ -72,11 +255,16 @@ class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
 					return new ByteBufInputStream(content);
 				}
 
+				private HttpHeaders h;
+
 				@Override
 				public HttpHeaders getHeaders() {
-					var h = new HttpHeaders();
-					for (Map.Entry<String, String> header : headers) {
-						h.add(header.getKey(), header.getValue());
+					if (h == null) {
+						var copy = new HttpHeaders();
+						for (Map.Entry<String, String> header : headers) {
+							copy.add(header.getKey(), header.getValue());
+						}
+						h = HttpHeaders.readOnlyHttpHeaders(copy);
 					}
 					return h;
 				}
@@ -84,64 +272,259 @@ class HttpServerHandler extends SimpleChannelInboundHandler<Object> {
 			for (HttpMessageConverter converter : converters) {
 				if (converter.canRead(inputTypes[0], contentType)) {
 					arg = converter.read(inputTypes[0], inputMessage);
+					ConverterSelectionEvent.selected(target.name, ConverterSelectionEvent.READ, converter, inputTypes[0], contentType);
 					break;
 				}
 			}
 			if (arg == null) {
+				metrics.readConverterMiss();
 				throw new HttpMessageNotReadableException("Could not read data", inputMessage);
 			}
-			Flux<?> result = (Flux<?>) methodHandle.invokeWithArguments(Flux.just(arg));
-			Object value = result.blockFirst();
-//			Object value = methodHandle.invokeWithArguments(arg);
-            ByteBuf out = Unpooled.buffer();
-
-            ByteBufOutputStream os = new ByteBufOutputStream(out);
-			DefaultFullHttpResponse response = new DefaultFullHttpResponse(
-					HttpVersion.HTTP_1_1,
-					HttpResponseStatus.OK,
-					out);
-            HttpHeaders outHeaders = new HttpHeaders();
-
-            boolean wrote = false;
-			for (MediaType accepted : accept) {
-				for (HttpMessageConverter converter : converters) {
-					if (converter.canWrite(value.getClass(), accepted)) {
-                        converter.write(value, accepted, new HttpOutputMessage() {
-
-                            @Override
-                            public OutputStream getBody() throws IOException {
-                                return os;
-                            }
-
-                            @Override
-                            public HttpHeaders getHeaders() {
-                                return outHeaders;
-                            }
-                        });
-                        wrote = true;
-                        break;
-					}
-				}
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0L) {
+				// Skipped: nobody is waiting for the result anymore
+				metrics.expired();
+				return Mono.just(new Response(HttpResponseStatus.GATEWAY_TIMEOUT, Unpooled.EMPTY_BUFFER, EmptyHttpHeaders.INSTANCE));
 			}
-			if (!wrote) {
-				throw new HttpMessageNotWritableException("Could not write response");
+			Object input = target.inputBatch == null ? arg : target.inputBatch.toChunk(List.of(arg));
+			Flux<?> result = (Flux<?>) target.methodHandle.invokeWithArguments(Flux.just(input));
+			if (target.resultBatch != null) {
+				result = result.concatMapIterable(target.resultBatch::elements);
 			}
+			return result.next()
+					.timeout(Duration.ofNanos(remaining))
+					.switchIfEmpty(Mono.error(() -> new HttpMessageNotWritableException("Function produced no result")))
+					.<Response>handle((value, sink) -> {
+						try {
+							sink.next(encode(value, accept, target, start, requestBytes));
+						}
+						catch (IOException e) {
+							sink.error(new HttpMessageNotWritableException("Could not write response", e));
+						}
+					})
+					.onErrorResume(TimeoutException.class, e -> {
+						// Abandoned: nobody is waiting for the result anymore
+						metrics.expired();
+						return Mono.just(new Response(HttpResponseStatus.GATEWAY_TIMEOUT, Unpooled.EMPTY_BUFFER, EmptyHttpHeaders.INSTANCE));
+					})
+					.doOnError(metrics::error);
+		}
+		catch (Throwable throwable) {
+			metrics.error(throwable);
+			return Mono.error(throwable instanceof RuntimeException ? throwable : new RuntimeException(throwable));
+		}
+	}
+
+	private Response encode(Object value, List<MediaType> accept, Target target, long start, int requestBytes) throws IOException {
+		ByteBuf out = Unpooled.buffer();
+		ByteBufOutputStream os = new ByteBufOutputStream(out);
+		HttpHeaders outHeaders = new HttpHeaders();
+
+		boolean wrote = false;
+		for (MediaType accepted : accept) {
+			for (HttpMessageConverter converter : target.converters) {
+				if (converter.canWrite(value.getClass(), accepted)) {
+					converter.write(value, accepted, new HttpOutputMessage() {
+
+						@Override
+						public OutputStream getBody() throws IOException {
+							return os;
+						}
+
+						@Override
+						public HttpHeaders getHeaders() {
+							return outHeaders;
+						}
+					});
+					ConverterSelectionEvent.selected(target.name, ConverterSelectionEvent.WRITE, converter, value.getClass(), accepted);
+					wrote = true;
+					break;
+				}
+			}
+		}
+		if (!wrote) {
+			target.metrics.writeConverterMiss();
+			throw new HttpMessageNotWritableException("Could not write response");
+		}
 
-			outHeaders.forEach((k, vs) -> response.headers().add(k, vs));
-			context.write(response);
+		io.netty.handler.codec.http.HttpHeaders responseHeaders = new DefaultHttpHeaders();
+		outHeaders.forEach(responseHeaders::add);
+		target.metrics.httpRequest(start, requestBytes, out.readableBytes());
+		return new Response(HttpResponseStatus.OK, out, responseHeaders);
+	}
+
+	/*
+	 * Executions that fail are answered with a 500, to the request that ran the function as well as to those that
+	 * shared its execution.
+	 */
+	private void failed(ChannelHandlerContext context, Target target, Throwable error, boolean keepAlive) {
+		logger.error("Invocation of function " + target.name + " failed", error);
+		writeStatus(context, HttpResponseStatus.INTERNAL_SERVER_ERROR, message(error), keepAlive);
+	}
+
+	private static String message(Throwable error) {
+		Throwable cause = Exceptions.unwrap(error);
+		return cause.getMessage() == null ? cause.getClass().getName() : cause.getMessage();
+	}
+
+	private void write(ChannelHandlerContext context, Response response, boolean keepAlive) {
+		DefaultFullHttpResponse message = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, response.status,
+				response.body.retainedDuplicate());
+		message.headers().add(response.headers);
+		send(context, message, keepAlive);
+	}
+
+	/*
+	 * HTTP/1.1 connections are kept for further requests if the client asked to, whatever the response. An HTTP/2
+	 * stream is ended by its response, and its channel is left to the multiplex codec.
+	 */
+	private static void send(ChannelHandlerContext context, FullHttpResponse message, boolean keepAlive) {
+		if (context.channel() instanceof Http2StreamChannel) {
+			context.writeAndFlush(message);
+		}
+		else if (keepAlive) {
+			HttpUtil.setContentLength(message, message.content().readableBytes());
+			context.writeAndFlush(message);
+		}
+		else {
+			context.write(message);
 			context.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
 		}
-		catch (Throwable throwable) {
-			if (throwable instanceof RuntimeException) {
-				throw (RuntimeException) throwable;
+	}
+
+	private void writeMetrics(ChannelHandlerContext context, boolean keepAlive) {
+		if (!(registry instanceof PrometheusMeterRegistry)) {
+			writeStatus(context, HttpResponseStatus.NOT_FOUND, null, keepAlive);
+			return;
+		}
+		DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+				Unpooled.copiedBuffer(((PrometheusMeterRegistry) registry).scrape(), StandardCharsets.UTF_8));
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, TextFormat.CONTENT_TYPE_004);
+		send(context, response, keepAlive);
+	}
+
+	/*
+	 * The timeout requested by the client, capped by the configured one if any. Unbounded if neither is set. Requests
+	 * with a malformed header are rejected before being admitted.
+	 */
+	private long timeoutNanos(String header) {
+		long timeout = defaultTimeout == null ? Long.MAX_VALUE / 2 : defaultTimeout.toNanos();
+		if (header != null) {
+			try {
+				timeout = Math.min(timeout, TimeUnit.MILLISECONDS.toNanos(Long.parseLong(header.trim())));
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid " + TIMEOUT_HEADER + " header: " + header, e);
 			}
-			throw new RuntimeException(throwable);
 		}
+		return timeout;
+	}
+
+	private static void writeStatus(ChannelHandlerContext context, HttpResponseStatus status, String message, boolean keepAlive) {
+		DefaultFullHttpResponse response = message == null ? new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status)
+				: new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer(message, StandardCharsets.UTF_8));
+		send(context, response, keepAlive);
 	}
 
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-		cause.printStackTrace();
+		logger.error("Closing http connection after unexpected error", cause);
 		ctx.close();
 	}
+
+	/**
+	 * What is resolved once per hosted function. Converters are not shared, as they cache type information about the
+	 * function classes.
+	 */
+	static class Target {
+
+		private final String name;
+
+		private final MethodHandle methodHandle;
+
+		private final Class<?>[] inputTypes;
+
+		private final List<HttpMessageConverter> converters = new ArrayList<>();
+
+		private final InvokerMetrics metrics;
+
+		/*
+		 * How the single argument and result are chunked, if the function takes chunks of elements.
+		 */
+		private final BatchSignature inputBatch;
+
+		private final BatchSignature resultBatch;
+
+		/*
+		 * The executions currently shared by identical requests, if coalescing is enabled for the function.
+		 */
+		private final Map<RequestKey, CompletableFuture<Response>> inFlight;
+
+		Target(HostedFunction function, InvokerMetrics metrics, boolean coalesce) throws IllegalAccessException {
+			this.name = function.getName();
+			this.methodHandle = MethodHandles.publicLookup().unreflect(function.getMethod()).bindTo(function.getFunction());
+			this.inputTypes = function.getInputTypes();
+			this.metrics = metrics;
+			BatchSignature[] inputBatches = BatchSignature.ofParameters(function.getMethod());
+			this.inputBatch = inputBatches.length > 0 ? inputBatches[0] : null;
+			this.resultBatch = BatchSignature.ofResults(function.getMethod());
+			this.inFlight = coalesce ? new ConcurrentHashMap<>() : null;
+			HttpMessageUtils.installDefaultConverters(converters);
+		}
+	}
+
+	/**
+	 * The outcome of executing a request, which may be written to several channels. The body is never released, and
+	 * each write uses its own view of it.
+	 */
+	private static class Response {
+
+		private final HttpResponseStatus status;
+
+		private final ByteBuf body;
+
+		private final io.netty.handler.codec.http.HttpHeaders headers;
+
+		private Response(HttpResponseStatus status, ByteBuf body, io.netty.handler.codec.http.HttpHeaders headers) {
+			this.status = status;
+			this.body = body;
+			this.headers = headers;
+		}
+	}
+
+	/**
+	 * What makes two requests to the same function produce the same response.
+	 */
+	private static final class RequestKey {
+
+		private final byte[] body;
+
+		private final String contentType;
+
+		private final String accept;
+
+		private final int hash;
+
+		private RequestKey(byte[] body, String contentType, String accept) {
+			this.body = body;
+			this.contentType = contentType;
+			this.accept = accept;
+			this.hash = 31 * (31 * Objects.hashCode(contentType) + Objects.hashCode(accept)) + Arrays.hashCode(body);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof RequestKey)) {
+				return false;
+			}
+			RequestKey other = (RequestKey) o;
+			return hash == other.hash && Objects.equals(contentType, other.contentType)
+					&& Objects.equals(accept, other.accept) && Arrays.equals(body, other.body);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
 }
@@ -0,0 +1,729 @@
+package io.projectriff.invoker.server;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.projectriff.invoker.shm.WaitStrategy;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Tuning knobs for the invoker, bound from {@code riff.invoker.*} properties (or the equivalent
+ * {@code RIFF_INVOKER_*} environment variables).
+ *
+ * @author Eric Bottard
+ */
+@ConfigurationProperties("riff.invoker")
+public class InvokerProperties {
+
+    private final Compression compression = new Compression();
+
+    private final Stream stream = new Stream();
+
+    private final Flow flow = new Flow();
+
+    private final Tracing tracing = new Tracing();
+
+    private final HotSwap hotSwap = new HotSwap();
+
+    private final Shutdown shutdown = new Shutdown();
+
+    private final Admission admission = new Admission();
+
+    private final Grpc grpc = new Grpc();
+
+    private final Http http = new Http();
+
+    private final Cache cache = new Cache();
+
+    private final Recording recording = new Recording();
+
+    private final Artifacts artifacts = new Artifacts();
+
+    private final Partitioning partitioning = new Partitioning();
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public Stream getStream() {
+        return stream;
+    }
+
+    public Flow getFlow() {
+        return flow;
+    }
+
+    public Tracing getTracing() {
+        return tracing;
+    }
+
+    public HotSwap getHotSwap() {
+        return hotSwap;
+    }
+
+    public Shutdown getShutdown() {
+        return shutdown;
+    }
+
+    public Admission getAdmission() {
+        return admission;
+    }
+
+    public Grpc getGrpc() {
+        return grpc;
+    }
+
+    public Http getHttp() {
+        return http;
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public Recording getRecording() {
+        return recording;
+    }
+
+    public Artifacts getArtifacts() {
+        return artifacts;
+    }
+
+    public Partitioning getPartitioning() {
+        return partitioning;
+    }
+
+    public static class Compression {
+
+        /**
+         * The codec used to compress responses, if the client advertises support for it.
+         * One of {@code identity} (no compression), {@code gzip}, {@code deflate} or {@code lz4} (gRPC only, http
+         * falls back to gzip/deflate).
+         */
+        private String codec = "identity";
+
+        /**
+         * Frames (or http responses) smaller than this number of bytes are never compressed.
+         */
+        private int threshold = 1024;
+
+        public String getCodec() {
+            return codec;
+        }
+
+        public void setCodec(String codec) {
+            this.codec = codec;
+        }
+
+        public int getThreshold() {
+            return threshold;
+        }
+
+        public void setThreshold(int threshold) {
+            this.threshold = threshold;
+        }
+
+        public boolean isEnabled() {
+            return !"identity".equals(codec);
+        }
+    }
+
+    public static class Stream {
+
+        /**
+         * The maximum amount of input frames bytes queued inside the invoker for a single stream (not counting what
+         * the function itself retains). Unbounded if not set.
+         */
+        private DataSize memoryBudget;
+
+        /**
+         * If set, input frames that don't fit in the memory budget are spilled to a memory mapped file in this
+         * directory instead of applying backpressure right away.
+         */
+        private Path spillDirectory;
+
+        /**
+         * The maximum size of a spill file, per stream. Backpressure is applied when that file is full.
+         */
+        private DataSize spillSize = DataSize.ofMegabytes(256);
+
+        /**
+         * The maximum number of elements gathered into a chunk, for functions that take chunks of elements
+         * (such as {@code Flux<List<T>>} or {@code Flux<int[]>}).
+         */
+        private int batchSize = 256;
+
+        /**
+         * How long to wait for more elements before handing an incomplete chunk to the function.
+         */
+        private Duration batchLinger = Duration.ofMillis(5L);
+
+        public DataSize getMemoryBudget() {
+            return memoryBudget;
+        }
+
+        public void setMemoryBudget(DataSize memoryBudget) {
+            this.memoryBudget = memoryBudget;
+        }
+
+        public Path getSpillDirectory() {
+            return spillDirectory;
+        }
+
+        public void setSpillDirectory(Path spillDirectory) {
+            this.spillDirectory = spillDirectory;
+        }
+
+        public DataSize getSpillSize() {
+            return spillSize;
+        }
+
+        public void setSpillSize(DataSize spillSize) {
+            this.spillSize = spillSize;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public Duration getBatchLinger() {
+            return batchLinger;
+        }
+
+        public void setBatchLinger(Duration batchLinger) {
+            this.batchLinger = batchLinger;
+        }
+    }
+
+    public static class Flow {
+
+        /**
+         * Whether to lower the counts below (which then act as maximums) for each stage of a stream to hold about
+         * {@code windowSize} bytes, given the average size of the messages received and sent so far.
+         */
+        private boolean autoTune = false;
+
+        /**
+         * The amount of messages bytes each stage of a stream may hold, when auto-tuning.
+         */
+        private DataSize windowSize = DataSize.ofMegabytes(1);
+
+        /**
+         * The number of input messages of a gRPC stream read from the transport ahead of the function. Going above
+         * 512 has no effect, as that is what reactive-grpc asks for at most.
+         */
+        private int inboundWindow = 512;
+
+        /**
+         * The number of decoded inputs queued for each argument of the function.
+         */
+        private int argumentPrefetch = 256;
+
+        /**
+         * The number of results requested ahead from each output of the function, when merging them into the
+         * response.
+         */
+        private int outputPrefetch = 32;
+
+        public boolean isAutoTune() {
+            return autoTune;
+        }
+
+        public void setAutoTune(boolean autoTune) {
+            this.autoTune = autoTune;
+        }
+
+        public DataSize getWindowSize() {
+            return windowSize;
+        }
+
+        public void setWindowSize(DataSize windowSize) {
+            this.windowSize = windowSize;
+        }
+
+        public int getInboundWindow() {
+            return inboundWindow;
+        }
+
+        public void setInboundWindow(int inboundWindow) {
+            this.inboundWindow = inboundWindow;
+        }
+
+        public int getArgumentPrefetch() {
+            return argumentPrefetch;
+        }
+
+        public void setArgumentPrefetch(int argumentPrefetch) {
+            this.argumentPrefetch = argumentPrefetch;
+        }
+
+        public int getOutputPrefetch() {
+            return outputPrefetch;
+        }
+
+        public void setOutputPrefetch(int outputPrefetch) {
+            this.outputPrefetch = outputPrefetch;
+        }
+    }
+
+    public static class Tracing {
+
+        /**
+         * Whether to record and report timings for input frames that the client sampled for tracing.
+         */
+        private boolean enabled = true;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+    }
+
+    public static class HotSwap {
+
+        /**
+         * Whether a new version of the functions can be swapped in at runtime, by POSTing its {@code location} and
+         * function {@code classes} as query parameters to the {@code /swap} endpoint of the admin listener.
+         */
+        private boolean enabled = false;
+
+        /**
+         * The port of the admin http listener, which only ever binds to the loopback interface so that only
+         * processes of the same host (or pod) can swap functions in. Use {@code 0} for an ephemeral port.
+         */
+        private int port = 8082;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+    }
+
+    public static class Shutdown {
+
+        /**
+         * How long to wait, once shutdown has been requested, for in-flight streams and requests to complete before
+         * cancelling them. Should be less than the termination grace period of the platform.
+         */
+        private Duration gracePeriod = Duration.ofSeconds(20L);
+
+        public Duration getGracePeriod() {
+            return gracePeriod;
+        }
+
+        public void setGracePeriod(Duration gracePeriod) {
+            this.gracePeriod = gracePeriod;
+        }
+    }
+
+    public static class Admission {
+
+        /**
+         * Whether to reject invocations early (with {@code RESOURCE_EXHAUSTED} or a 503) once a concurrency limit,
+         * adapted from observed latency, is reached.
+         */
+        private boolean enabled = false;
+
+        private int initialLimit = 100;
+
+        private int minLimit = 10;
+
+        private int maxLimit = 1000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getInitialLimit() {
+            return initialLimit;
+        }
+
+        public void setInitialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+        }
+
+        public int getMinLimit() {
+            return minLimit;
+        }
+
+        public void setMinLimit(int minLimit) {
+            this.minLimit = minLimit;
+        }
+
+        public int getMaxLimit() {
+            return maxLimit;
+        }
+
+        public void setMaxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+        }
+    }
+
+    public static class Grpc {
+
+        /**
+         * Whether to listen on TCP port 8081.
+         */
+        private boolean tcp = true;
+
+        /**
+         * The path of a Unix domain socket to also listen on, for clients running on the same host (such as a
+         * sidecar in the same pod). Requires Linux.
+         */
+        private Path domainSocket;
+
+        /**
+         * The path of a file (best on {@code /dev/shm}) to create and share with a single client on the same host,
+         * which then talks to the invoker through rings in shared memory rather than through a socket.
+         */
+        private Path sharedMemory;
+
+        /**
+         * The size of each of the two shared memory rings, a power of two. Frames can be up to half of it.
+         */
+        private DataSize sharedMemoryRingSize = DataSize.ofMegabytes(4);
+
+        /**
+         * How the shared memory reader waits for frames, trading CPU for latency.
+         */
+        private WaitStrategy sharedMemoryWaitStrategy = WaitStrategy.BACKOFF;
+
+        public boolean isTcp() {
+            return tcp;
+        }
+
+        public void setTcp(boolean tcp) {
+            this.tcp = tcp;
+        }
+
+        public Path getDomainSocket() {
+            return domainSocket;
+        }
+
+        public void setDomainSocket(Path domainSocket) {
+            this.domainSocket = domainSocket;
+        }
+
+        public Path getSharedMemory() {
+            return sharedMemory;
+        }
+
+        public void setSharedMemory(Path sharedMemory) {
+            this.sharedMemory = sharedMemory;
+        }
+
+        public DataSize getSharedMemoryRingSize() {
+            return sharedMemoryRingSize;
+        }
+
+        public void setSharedMemoryRingSize(DataSize sharedMemoryRingSize) {
+            this.sharedMemoryRingSize = sharedMemoryRingSize;
+        }
+
+        public WaitStrategy getSharedMemoryWaitStrategy() {
+            return sharedMemoryWaitStrategy;
+        }
+
+        public void setSharedMemoryWaitStrategy(WaitStrategy sharedMemoryWaitStrategy) {
+            this.sharedMemoryWaitStrategy = sharedMemoryWaitStrategy;
+        }
+    }
+
+    public static class Http {
+
+        /**
+         * Whether to listen on TCP port 8080.
+         */
+        private boolean tcp = true;
+
+        /**
+         * The path of a Unix domain socket to also listen on, for clients running on the same host. Requires Linux.
+         */
+        private Path domainSocket;
+
+        /**
+         * Whether to also speak HTTP/2 over cleartext (h2c), to clients that either know the invoker does (prior
+         * knowledge) or ask to upgrade. Each stream of a connection is an invocation of its own, run concurrently with
+         * the others.
+         */
+        private boolean h2c = true;
+
+        /**
+         * The number of streams an HTTP/2 client may have open at once on a connection. A stream stays open until
+         * its response has been taken by the client, within the limits of HTTP/2 flow control.
+         */
+        private int maxConcurrentStreams = 100;
+
+        /**
+         * The maximum time spent on an http request, after which a 504 is returned. Clients may ask for less with
+         * the {@code RiffTimeout} header (in milliseconds). Unbounded if not set.
+         */
+        private Duration timeout = Duration.ofSeconds(60L);
+
+        /**
+         * The names of the functions for which concurrent identical requests (same body, content type and accepted
+         * types) share a single execution and response. Only suitable for functions without side effects.
+         */
+        private List<String> coalescedFunctions = new ArrayList<>();
+
+        public boolean isTcp() {
+            return tcp;
+        }
+
+        public void setTcp(boolean tcp) {
+            this.tcp = tcp;
+        }
+
+        public Path getDomainSocket() {
+            return domainSocket;
+        }
+
+        public void setDomainSocket(Path domainSocket) {
+            this.domainSocket = domainSocket;
+        }
+
+        public boolean isH2c() {
+            return h2c;
+        }
+
+        public void setH2c(boolean h2c) {
+            this.h2c = h2c;
+        }
+
+        public int getMaxConcurrentStreams() {
+            return maxConcurrentStreams;
+        }
+
+        public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+            this.maxConcurrentStreams = maxConcurrentStreams;
+        }
+
+        public Duration getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Duration timeout) {
+            this.timeout = timeout;
+        }
+
+        public List<String> getCoalescedFunctions() {
+            return coalescedFunctions;
+        }
+
+        public void setCoalescedFunctions(List<String> coalescedFunctions) {
+            this.coalescedFunctions = coalescedFunctions;
+        }
+    }
+
+    public static class Cache {
+
+        /**
+         * The names of the functions whose results only depend on their input, and can hence be remembered. Only
+         * functions applied to each element of a single input qualify, naming any other function fails startup.
+         */
+        private List<String> pureFunctions = new ArrayList<>();
+
+        /**
+         * The maximum amount of inputs and results bytes remembered, per function.
+         */
+        private DataSize maxSize = DataSize.ofMegabytes(64);
+
+        /**
+         * How long a result is remembered. Forever (until evicted) if not set.
+         */
+        private Duration ttl;
+
+        public List<String> getPureFunctions() {
+            return pureFunctions;
+        }
+
+        public void setPureFunctions(List<String> pureFunctions) {
+            this.pureFunctions = pureFunctions;
+        }
+
+        public DataSize getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(DataSize maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public Duration getTtl() {
+            return ttl;
+        }
+
+        public void setTtl(Duration ttl) {
+            this.ttl = ttl;
+        }
+    }
+
+    public static class Recording {
+
+        /**
+         * The base path of the files to record gRPC invocations to ({@code <file>.1}, {@code <file>.2} and so on),
+         * for replaying them later. Recording is off if not set.
+         */
+        private Path file;
+
+        /**
+         * The size past which recording moves on to a new file.
+         */
+        private DataSize maxFileSize = DataSize.ofMegabytes(64);
+
+        /**
+         * The number of files kept, older ones being deleted as new ones are started.
+         */
+        private int maxFiles = 10;
+
+        /**
+         * The number of signals waiting to be written, past which new ones are dropped rather than slowing
+         * invocations down.
+         */
+        private int queueSize = 65536;
+
+        public Path getFile() {
+            return file;
+        }
+
+        public void setFile(Path file) {
+            this.file = file;
+        }
+
+        public DataSize getMaxFileSize() {
+            return maxFileSize;
+        }
+
+        public void setMaxFileSize(DataSize maxFileSize) {
+            this.maxFileSize = maxFileSize;
+        }
+
+        public int getMaxFiles() {
+            return maxFiles;
+        }
+
+        public void setMaxFiles(int maxFiles) {
+            this.maxFiles = maxFiles;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+    }
+
+    public static class Artifacts {
+
+        /**
+         * A directory to unpack and index the function jars loaded by hot swaps in, so that a jar that was already
+         * loaded once (by this invoker or an earlier one) is loaded from there without unpacking or scanning it again.
+         * Jars are loaded as is if not set.
+         */
+        private Path cacheDirectory;
+
+        public Path getCacheDirectory() {
+            return cacheDirectory;
+        }
+
+        public void setCacheDirectory(Path cacheDirectory) {
+            this.cacheDirectory = cacheDirectory;
+        }
+    }
+
+    public static class Partitioning {
+
+        /**
+         * The names of the functions whose invocation streams are split by key, each partition being handled by its
+         * own subscription to the function, on a thread of the partition pool.
+         * <ul>
+         * <li>Frames of a given key are seen in order, and so are their results. Frames (and results) of different
+         * keys no longer are.</li>
+         * <li>Frames without the key header, or with an empty key, all go to the same partition, and are hence seen in
+         * order too.</li>
+         * <li>Resumable streams are never partitioned, as their acknowledgements assume that inputs are processed in
+         * the order they arrived.</li>
+         * </ul>
+         * Only suitable for functions that keep their state within the stream they are given (as {@code scan} or
+         * {@code window} do), rather than in fields of the function, as partitions share its instance. Functions that
+         * look like they keep state in fields are logged at startup, on a best-effort basis.
+         */
+        private List<String> functions = new ArrayList<>();
+
+        /**
+         * The frame header holding the partition key. Frames without it, or with an empty value, all go to the same
+         * partition.
+         */
+        private String keyHeader = "RiffPartitionKey";
+
+        /**
+         * The number of partitions each stream is split into.
+         */
+        private int partitions = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * The number of threads partitions of all streams are handled on, which user code then runs on. A pool of
+         * their own rather than Reactor's shared one, so that slow or blocking functions don't hold up anything else.
+         */
+        private int threads = Runtime.getRuntime().availableProcessors();
+
+        public List<String> getFunctions() {
+            return functions;
+        }
+
+        public void setFunctions(List<String> functions) {
+            this.functions = functions;
+        }
+
+        public String getKeyHeader() {
+            return keyHeader;
+        }
+
+        public void setKeyHeader(String keyHeader) {
+            this.keyHeader = keyHeader;
+        }
+
+        public int getPartitions() {
+            return partitions;
+        }
+
+        public void setPartitions(int partitions) {
+            this.partitions = partitions;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+    }
+}
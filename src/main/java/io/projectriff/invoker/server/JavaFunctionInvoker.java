@@ -1,27 +1,75 @@
 package io.projectriff.invoker.server;
 
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.netty.NettyServerBuilder;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpContentDecompressor;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2MultiplexCodec;
+import io.netty.handler.codec.http2.Http2MultiplexCodecBuilder;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.NettyRuntime;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.projectriff.invoker.admission.AdmissionController;
+import io.projectriff.invoker.admission.GradientConcurrencyLimit;
+import io.projectriff.invoker.admission.ServerAdmissionInterceptor;
+import io.projectriff.invoker.compression.CompressionCodecs;
+import io.projectriff.invoker.compression.ServerCompressionInterceptor;
+import io.projectriff.invoker.flow.ServerInboundWindowInterceptor;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import io.projectriff.invoker.shm.SharedMemoryServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.function.context.FunctionRegistry;
 import org.springframework.cloud.function.context.catalog.FunctionInspector;
 import org.springframework.cloud.function.deployer.EnableFunctionDeployer;
 import org.springframework.context.annotation.Bean;
+import org.springframework.util.Assert;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import java.lang.reflect.Method;
 
 /**
  * This class sets up all the necessary infrastructure for exposing a (streaming) function over riff gRPC protocol.
@@ -33,101 +81,496 @@ import java.lang.reflect.Method;
  */
 @SpringBootApplication
 @EnableFunctionDeployer
+@EnableConfigurationProperties(InvokerProperties.class)
 public class JavaFunctionInvoker {
 
+    private static final Logger logger = LoggerFactory.getLogger(JavaFunctionInvoker.class);
+
+    @Bean
+    public PrometheusMeterRegistry meterRegistry() {
+        return new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    }
+
     @Bean
     public HackyFunctionResolver functionResolver(FunctionRegistry functionRegistry, FunctionInspector fi) {
         return new HackyFunctionResolver(functionRegistry, fi);
     }
 
+    @Bean
+    public FunctionHost functionHost(InvokerProperties properties, MeterRegistry registry) {
+        return new FunctionHost(properties, registry);
+    }
+
+    /*
+     * Shared by both servers, so that the limit applies to the invoker as a whole.
+     */
+    @Bean
+    public AdmissionController admissionController(InvokerProperties properties, MeterRegistry registry) {
+        InvokerProperties.Admission admission = properties.getAdmission();
+        return new AdmissionController(new GradientConcurrencyLimit(admission.getInitialLimit(),
+                admission.getMinLimit(), admission.getMaxLimit()), registry);
+    }
+
     /*
      * Exposes an object capable of running a gRPC server with the function.
      * Startup is done in an init methodHandle to work around late initialization needs of the function deployer.
      */
-    @Bean(initMethod = "run", destroyMethod = "close")
-    public GrpcRunner grpcRunner(HackyFunctionResolver resolver) {
-        return new GrpcRunner(resolver);
+    @Bean(initMethod = "run", destroyMethod = "shutdownNow")
+    public GrpcRunner grpcRunner(HackyFunctionResolver resolver, FunctionHost host, InvokerProperties properties,
+                                 AdmissionController admission) {
+        return new GrpcRunner(resolver, host, properties, properties.getAdmission().isEnabled() ? admission : null);
     }
 
     /*
      * Exposes an object capable of running a gRPC server with the function.
      * Startup is done in an init methodHandle to work around late initialization needs of the function deployer.
      */
-    @Bean(initMethod = "run")
-    public HttpRunner httpRunner(HackyFunctionResolver resolver) {
-        return new HttpRunner(resolver);
+    @Bean(initMethod = "run", destroyMethod = "shutdownNow")
+    public HttpRunner httpRunner(HackyFunctionResolver resolver, FunctionHost host, InvokerProperties properties,
+                                 MeterRegistry registry, AdmissionController admission) {
+        return new HttpRunner(resolver, host, properties, registry,
+                properties.getAdmission().isEnabled() ? admission : null);
     }
 
-    private static class GrpcRunner {
+    /*
+     * Serves hot swaps, apart from the data port and its domain socket.
+     */
+    @Bean(initMethod = "run", destroyMethod = "shutdownNow")
+    public AdminRunner adminRunner(FunctionHost host, InvokerProperties properties) {
+        return new AdminRunner(host, properties.getHotSwap());
+    }
+
+    /*
+     * Depends on both runners, hence is destroyed before them: drains them in order, their own destroy methods then
+     * only make sure resources are released if that did not complete.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public GracefulShutdown gracefulShutdown(GrpcRunner grpcRunner, HttpRunner httpRunner, FunctionHost host,
+                                             InvokerProperties properties, MeterRegistry registry) {
+        return new GracefulShutdown(grpcRunner, httpRunner, host, properties.getShutdown().getGracePeriod(), registry);
+    }
+
+    /**
+     * Block until the invoker has been shut down, which happens when the application context is closed.
+     */
+    public static void awaitTermination() throws InterruptedException {
+        GracefulShutdown.TERMINATED.await();
+    }
+
+    /**
+     * Coordinates shutdown: stop accepting new streams and connections, let in-flight ones complete for at most a
+     * grace period, cancel the remaining ones, and then release gRPC and Netty resources.
+     */
+    private static class GracefulShutdown {
+
+        private static final CountDownLatch TERMINATED = new CountDownLatch(1);
+
+        private static final Duration FORCED_TERMINATION_TIMEOUT = Duration.ofSeconds(5L);
+
+        private final GrpcRunner grpcRunner;
+
+        private final HttpRunner httpRunner;
+
+        private final FunctionHost host;
+
+        private final Duration gracePeriod;
+
+        private final AtomicInteger draining = new AtomicInteger();
+
+        private final Counter cancelled;
+
+        GracefulShutdown(GrpcRunner grpcRunner, HttpRunner httpRunner, FunctionHost host, Duration gracePeriod,
+                         MeterRegistry registry) {
+            this.grpcRunner = grpcRunner;
+            this.httpRunner = httpRunner;
+            this.host = host;
+            this.gracePeriod = gracePeriod;
+            Gauge.builder(InvokerMetrics.PREFIX + ".shutdown.draining", draining, AtomicInteger::get)
+                    .description("1 while waiting for in-flight invocations to complete before shutting down")
+                    .register(registry);
+            this.cancelled = Counter.builder(InvokerMetrics.PREFIX + ".shutdown.cancelled")
+                    .description("In-flight invocations that were cancelled because the shutdown grace period expired")
+                    .register(registry);
+        }
+
+        public void shutdown() throws InterruptedException {
+            try {
+                draining.set(1);
+                long deadline = System.nanoTime() + gracePeriod.toNanos();
+                logger.info("Shutting down, draining {} in-flight invocations", host.getInFlight());
+
+                host.stopAccepting();
+                grpcRunner.shutdown();
+                httpRunner.shutdown();
+
+                while (host.getInFlight() > 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(50L);
+                }
+                // Calls also complete once their last output has been flushed
+                grpcRunner.awaitTermination(Duration.ofNanos(Math.max(0L, deadline - System.nanoTime())));
+
+                int remaining = host.getInFlight();
+                if (remaining > 0) {
+                    logger.warn("Grace period expired, cancelling {} in-flight invocations", remaining);
+                    cancelled.increment(remaining);
+                }
+                draining.set(0);
+                grpcRunner.shutdownNow();
+                httpRunner.shutdownNow();
+                host.close();
+            }
+            finally {
+                TERMINATED.countDown();
+            }
+        }
+    }
+
+    static class GrpcRunner {
+
+        private static final int PORT = 8081;
 
         private final HackyFunctionResolver resolver;
 
-        private Server server;
+        private final InvokerProperties properties;
 
-        GrpcRunner(HackyFunctionResolver resolver) {
+        private final FunctionHost host;
+
+        private final AdmissionController admission;
+
+        private final List<Server> servers = new ArrayList<>();
+
+        private EventLoopGroup domainSocketGroup;
+
+        GrpcRunner(HackyFunctionResolver resolver, FunctionHost host, InvokerProperties properties,
+                   AdmissionController admission) {
             this.resolver = resolver;
+            this.host = host;
+            this.properties = properties;
+            this.admission = admission;
         }
 
         public void run() throws Exception {
-            Object function = resolver.resolveFunction();
-            Method m = new FunctionalInterfaceMethodResolver().resolve(function);
-            Class[] types = resolver.resolveInputTypes(function, m);
-            ReactorServerAdapter adapter = new ReactorServerAdapter(function, m, types);
+            host.start(resolver.resolveFunctions());
+            // All functions are served by the same service, shared by the TCP and domain socket servers
+            FunctionRouter router = new FunctionRouter(host);
+
+            InvokerProperties.Compression compression = properties.getCompression();
+            List<ServerInterceptor> interceptors = new ArrayList<>();
+            InvokerProperties.Flow flow = properties.getFlow();
+            if (flow.isAutoTune() || flow.getInboundWindow() < ServerInboundWindowInterceptor.REACTIVE_GRPC_PREFETCH) {
+                interceptors.add(new ServerInboundWindowInterceptor(flow.getInboundWindow(), host.getFlowTuner()));
+            }
+            if (compression.isEnabled()) {
+                interceptors.add(new ServerCompressionInterceptor(compression.getCodec(), compression.getThreshold()));
+            }
+            if (admission != null) {
+                // Last added runs first, rejecting calls before any other work is done
+                interceptors.add(new ServerAdmissionInterceptor(admission));
+            }
+            ServerServiceDefinition service = ServerInterceptors.intercept(router, interceptors);
+
+            InvokerProperties.Grpc grpc = properties.getGrpc();
+            Assert.state(grpc.isTcp() || grpc.getDomainSocket() != null || grpc.getSharedMemory() != null,
+                    "gRPC should listen on TCP, a domain socket or shared memory");
+            if (grpc.isTcp()) {
+                servers.add(configure(NettyServerBuilder.forPort(PORT), service).build().start());
+            }
+            if (grpc.getDomainSocket() != null) {
+                domainSocketGroup = DomainSockets.newEventLoopGroup(0, "grpc-uds");
+                NettyServerBuilder builder = NettyServerBuilder.forAddress(DomainSockets.bindAddress(grpc.getDomainSocket()))
+                        .channelType(EpollServerDomainSocketChannel.class)
+                        .bossEventLoopGroup(domainSocketGroup)
+                        .workerEventLoopGroup(domainSocketGroup);
+                servers.add(configure(builder, service).build().start());
+                logger.info("gRPC listening on domain socket {}", grpc.getDomainSocket());
+            }
+            if (grpc.getSharedMemory() != null) {
+                servers.add(new SharedMemoryServer(grpc.getSharedMemory(), (int) grpc.getSharedMemoryRingSize().toBytes(),
+                        grpc.getSharedMemoryWaitStrategy(), List.of(service)).start());
+                logger.info("gRPC sharing memory through {}", grpc.getSharedMemory());
+            }
+        }
+
+        private static NettyServerBuilder configure(NettyServerBuilder builder, ServerServiceDefinition service) {
+            return builder.compressorRegistry(CompressionCodecs.compressorRegistry())
+                    .decompressorRegistry(CompressionCodecs.decompressorRegistry())
+                    .addService(service);
+        }
 
-            server = ServerBuilder.forPort(8081).addService(adapter).build();
-            server.start();
+        /**
+         * Stop accepting new streams, letting in-flight ones complete.
+         */
+        public void shutdown() {
+            servers.forEach(Server::shutdown);
         }
 
-        public void close() {
-            server.shutdown();
+        public boolean awaitTermination(Duration timeout) throws InterruptedException {
+            long deadline = System.nanoTime() + timeout.toNanos();
+            boolean terminated = true;
+            for (Server server : servers) {
+                terminated &= server.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            return terminated;
+        }
+
+        /**
+         * Cancel remaining streams and release the server resources.
+         */
+        public void shutdownNow() throws InterruptedException {
+            for (Server server : servers) {
+                if (!server.isTerminated()) {
+                    server.shutdownNow();
+                    server.awaitTermination(GracefulShutdown.FORCED_TERMINATION_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS);
+                }
+            }
+            if (domainSocketGroup != null && !domainSocketGroup.isShuttingDown()) {
+                long timeout = GracefulShutdown.FORCED_TERMINATION_TIMEOUT.toMillis();
+                domainSocketGroup.shutdownGracefully(0L, timeout, TimeUnit.MILLISECONDS).awaitUninterruptibly(timeout);
+                DomainSockets.release(properties.getGrpc().getDomainSocket());
+            }
         }
 
     }
 
-    private static class HttpRunner {
+    static class HttpRunner {
 
         private static final int PORT = 8080;
         private final HackyFunctionResolver resolver;
 
-        HttpRunner(HackyFunctionResolver resolver) {
+        private final InvokerProperties properties;
+
+        private final FunctionHost host;
+
+        private final MeterRegistry registry;
+
+        private final AdmissionController admission;
+
+        private EventLoopGroup bossGroup;
+
+        private EventLoopGroup workerGroup;
+
+        private EventLoopGroup domainSocketGroup;
+
+        private EventExecutorGroup streamExecutors;
+
+        private final List<Channel> channels = new ArrayList<>();
+
+        HttpRunner(HackyFunctionResolver resolver, FunctionHost host, InvokerProperties properties, MeterRegistry registry,
+                   AdmissionController admission) {
             this.resolver = resolver;
+            this.host = host;
+            this.properties = properties;
+            this.registry = registry;
+            this.admission = admission;
         }
 
         public void run() throws Exception {
-            Object function = resolver.resolveFunction();
-            Method m = new FunctionalInterfaceMethodResolver().resolve(function);
-            Class[] types = resolver.resolveInputTypes(function, m);
+            host.start(resolver.resolveFunctions());
+            HttpServerHandler handler = new HttpServerHandler(host, registry, properties, admission);
+
+            InvokerProperties.Http http = properties.getHttp();
+            if (http.isH2c()) {
+                // As many threads as event loops, which run HTTP/1.1 invocations
+                streamExecutors = new DefaultEventExecutorGroup(2 * NettyRuntime.availableProcessors(),
+                        new DefaultThreadFactory("http2-stream", true));
+            }
+            CustomChannelInitializer initializer = new CustomChannelInitializer(handler, properties.getCompression(),
+                    http, streamExecutors);
+
+            Assert.state(http.isTcp() || http.getDomainSocket() != null,
+                    "http should listen on TCP, a domain socket, or both");
+            if (http.isTcp()) {
+                // Configure the server.
+                bossGroup = new NioEventLoopGroup(1);
+                workerGroup = new NioEventLoopGroup();
+                ServerBootstrap b = new ServerBootstrap();
+                b.group(bossGroup, workerGroup)
+                        .channel(NioServerSocketChannel.class)
+                        .handler(new LoggingHandler(LogLevel.INFO))
+                        .childHandler(initializer);
+
+                channels.add(b.bind(PORT).sync().channel());
+            }
+            if (http.getDomainSocket() != null) {
+                domainSocketGroup = DomainSockets.newEventLoopGroup(0, "http-uds");
+                ServerBootstrap b = new ServerBootstrap();
+                b.group(domainSocketGroup)
+                        .channel(EpollServerDomainSocketChannel.class)
+                        .handler(new LoggingHandler(LogLevel.INFO))
+                        .childHandler(initializer);
+
+                channels.add(b.bind(DomainSockets.bindAddress(http.getDomainSocket())).sync().channel());
+                logger.info("http listening on domain socket {}", http.getDomainSocket());
+            }
+        }
 
-            // Configure the server.
-            EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-            EventLoopGroup workerGroup = new NioEventLoopGroup();
+        /**
+         * Stop accepting new connections. Requests already read are answered, others get a 503.
+         */
+        public void shutdown() throws InterruptedException {
+            for (Channel channel : channels) {
+                channel.close().sync();
+            }
+        }
+
+        /**
+         * Shut the event loops down, running already submitted tasks (such as pending writes) first.
+         */
+        public void shutdownNow() {
+            long timeout = GracefulShutdown.FORCED_TERMINATION_TIMEOUT.toMillis();
+            for (EventLoopGroup group : new EventLoopGroup[] {bossGroup, workerGroup, domainSocketGroup}) {
+                if (group != null && !group.isShuttingDown()) {
+                    group.shutdownGracefully(0L, timeout, TimeUnit.MILLISECONDS).awaitUninterruptibly(timeout);
+                }
+            }
+            if (streamExecutors != null && !streamExecutors.isShuttingDown()) {
+                streamExecutors.shutdownGracefully(0L, timeout, TimeUnit.MILLISECONDS).awaitUninterruptibly(timeout);
+            }
+            if (domainSocketGroup != null) {
+                DomainSockets.release(properties.getHttp().getDomainSocket());
+            }
+        }
+    }
+
+    /**
+     * Runs the admin http listener, if hot swaps are enabled. It is bound to the loopback interface only.
+     */
+    static class AdminRunner {
+
+        private final FunctionHost host;
+
+        private final InvokerProperties.HotSwap hotSwap;
+
+        private EventLoopGroup group;
+
+        private Channel channel;
+
+        AdminRunner(FunctionHost host, InvokerProperties.HotSwap hotSwap) {
+            this.host = host;
+            this.hotSwap = hotSwap;
+        }
+
+        public void run() throws InterruptedException {
+            if (!hotSwap.isEnabled()) {
+                return;
+            }
+            AdminHandler handler = new AdminHandler(host);
+            group = new NioEventLoopGroup(1, new DefaultThreadFactory("admin", true));
             ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup)
+            b.group(group)
                     .channel(NioServerSocketChannel.class)
-                    .handler(new LoggingHandler(LogLevel.INFO))
-                    .childHandler(new CustomChannelInitializer(new HttpServerHandler(m, function, types)));
+                    .childHandler(new ChannelInitializer<Channel>() {
+
+                        @Override
+                        protected void initChannel(Channel channel) {
+                            channel.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(64 * 1024), handler);
+                        }
+                    });
+            channel = b.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), hotSwap.getPort())).sync().channel();
+            logger.info("Admin listening on {}", channel.localAddress());
+        }
 
-            Channel ch = b.bind(PORT).sync().channel();
+        /**
+         * The address the admin listener is bound to, or {@code null} if not running.
+         */
+        InetSocketAddress getAddress() {
+            return channel == null ? null : (InetSocketAddress) channel.localAddress();
+        }
 
-            ch.closeFuture().sync();
+        public void shutdownNow() {
+            if (group != null && !group.isShuttingDown()) {
+                long timeout = GracefulShutdown.FORCED_TERMINATION_TIMEOUT.toMillis();
+                group.shutdownGracefully(0L, timeout, TimeUnit.MILLISECONDS).awaitUninterruptibly(timeout);
+            }
         }
     }
 
-    private static class CustomChannelInitializer extends ChannelInitializer<SocketChannel> {
+    /**
+     * Sets up connections to speak HTTP/1.1, or HTTP/2 if the client starts with its preface or asks to upgrade.
+     */
+    static class CustomChannelInitializer extends ChannelInitializer<Channel> {
+
         private final HttpServerHandler methodHandler;
 
-        public CustomChannelInitializer(HttpServerHandler methodHandler) {
+        private final InvokerProperties.Compression compression;
+
+        private final InvokerProperties.Http http;
+
+        private final EventExecutorGroup streamExecutors;
+
+        private final StreamChannelInitializer streamInitializer = new StreamChannelInitializer();
+
+        CustomChannelInitializer(HttpServerHandler methodHandler, InvokerProperties.Compression compression,
+                                 InvokerProperties.Http http, EventExecutorGroup streamExecutors) {
             this.methodHandler = methodHandler;
+            this.compression = compression;
+            this.http = http;
+            this.streamExecutors = streamExecutors;
         }
 
         @Override
-        protected void initChannel(SocketChannel socketChannel) throws Exception {
-            ChannelPipeline pipeline = socketChannel.pipeline();
-            pipeline.addLast(new HttpRequestDecoder());
-            pipeline.addLast(new HttpResponseEncoder());
-            pipeline.addLast(new HttpObjectAggregator(Integer.MAX_VALUE));
+        protected void initChannel(Channel channel) throws Exception {
+            ChannelPipeline pipeline = channel.pipeline();
+            if (http.isH2c()) {
+                Http2MultiplexCodec http2 = Http2MultiplexCodecBuilder.forServer(streamInitializer)
+                        .initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(http.getMaxConcurrentStreams()))
+                        .build();
+                HttpServerCodec http1 = new HttpServerCodec();
+                HttpServerUpgradeHandler upgrade = new HttpServerUpgradeHandler(http1,
+                        protocol -> AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)
+                                ? new Http2ServerUpgradeCodec(http2) : null,
+                        Integer.MAX_VALUE);
+                // Replaces itself with the HTTP/2 codec, or leaves HTTP/1.1 requests to the handlers below
+                pipeline.addLast(new CleartextHttp2ServerUpgradeHandler(http1, upgrade, http2));
+            }
+            else {
+                pipeline.addLast(new HttpRequestDecoder());
+                pipeline.addLast(new HttpResponseEncoder());
+            }
+            addMessageHandlers(pipeline);
             pipeline.addLast(methodHandler);
         }
+
+        private void addMessageHandlers(ChannelPipeline pipeline) {
+            pipeline.addLast(new HttpContentDecompressor());
+            pipeline.addLast(new HttpObjectAggregator(Integer.MAX_VALUE));
+            if (compression.isEnabled()) {
+                // Negotiates gzip or deflate from the Accept-Encoding request header
+                pipeline.addLast(new HttpContentCompressor(6, 15, 8, compression.getThreshold()));
+            }
+        }
+
+        /**
+         * Turns each HTTP/2 stream into a request to handle, off the connection's event loop so that the streams of a
+         * connection are invoked concurrently.
+         *
+         * <p>
+         * Streams don't read on their own: the request is read (and the client's flow control window replenished)
+         * as it is aggregated. The response is then written under the flow control of the stream, which stays open
+         * until the client has taken it, and counts towards the streams the client may open. A client not keeping up
+         * with results hence can't start more invocations.
+         * </p>
+         */
+        @ChannelHandler.Sharable
+        private class StreamChannelInitializer extends ChannelInitializer<Http2StreamChannel> {
+
+            @Override
+            protected void initChannel(Http2StreamChannel channel) throws Exception {
+                channel.config().setAutoRead(false);
+                ChannelPipeline pipeline = channel.pipeline();
+                pipeline.addLast(new ChannelInboundHandlerAdapter() {
+
+                    @Override
+                    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                        ctx.fireChannelActive();
+                        ctx.read();
+                    }
+                });
+                pipeline.addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                addMessageHandlers(pipeline);
+                pipeline.addLast(streamExecutors, methodHandler);
+            }
+        }
     }
 
 }
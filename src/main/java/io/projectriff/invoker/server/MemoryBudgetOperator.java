@@ -0,0 +1,248 @@
+package io.projectriff.invoker.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import io.projectriff.invoker.jfr.BackpressureStallEvent;
+import io.projectriff.invoker.rpc.InputSignal;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxOperator;
+import reactor.core.publisher.Operators;
+
+/**
+ * An operator that only requests input frames from upstream while its {@link StreamMemoryBudget} allows it.
+ *
+ * <p>
+ * Frames are requested one at a time. When a frame doesn't fit in the budget (or downstream has no demand for it),
+ * it is held until some queued frame is released, which in turn applies backpressure to the client.
+ * If a {@link SpillFile} is provided, later frames keep being read and are written to that file instead, to be
+ * replayed in order once there is room again. Backpressure then only kicks in once the spill file is full.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+class MemoryBudgetOperator extends FluxOperator<InputSignal, InputSignal> {
+
+    private final StreamMemoryBudget budget;
+
+    private final SpillFile spill;
+
+    MemoryBudgetOperator(Flux<InputSignal> source, StreamMemoryBudget budget, SpillFile spill) {
+        super(source);
+        this.budget = budget;
+        this.spill = spill;
+    }
+
+    static int sizeOf(InputSignal signal) {
+        return signal.getData().getSerializedSize();
+    }
+
+    @Override
+    public void subscribe(CoreSubscriber<? super InputSignal> actual) {
+        source.subscribe(new BudgetSubscriber(actual, budget, spill));
+    }
+
+    static final class BudgetSubscriber implements CoreSubscriber<InputSignal>, Subscription {
+
+        private final CoreSubscriber<? super InputSignal> actual;
+
+        private final StreamMemoryBudget budget;
+
+        private final SpillFile spill;
+
+        private final Object lock = new Object();
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile long requested;
+
+        private static final AtomicLongFieldUpdater<BudgetSubscriber> REQUESTED =
+                AtomicLongFieldUpdater.newUpdater(BudgetSubscriber.class, "requested");
+
+        private Subscription upstream;
+
+        // Head of the queue, kept in memory. Older than anything in spill, itself older than overflow
+        private InputSignal held;
+
+        // A frame that could not be spilled, read while the spill file was full
+        private InputSignal overflow;
+
+        private volatile boolean upstreamPending;
+
+        private volatile boolean done;
+
+        private volatile boolean cancelled;
+
+        private Throwable error;
+
+        // Set while the head frame is held back by the budget, if flight recording it. Only accessed when draining
+        private BackpressureStallEvent stall;
+
+        BudgetSubscriber(CoreSubscriber<? super InputSignal> actual, StreamMemoryBudget budget, SpillFile spill) {
+            this.actual = actual;
+            this.budget = budget;
+            this.spill = spill;
+            budget.onRelease(this::drain);
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(upstream, s)) {
+                this.upstream = s;
+                actual.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(InputSignal signal) {
+            synchronized (lock) {
+                if (held == null && (spill == null || spill.isEmpty())) {
+                    held = signal;
+                }
+                else if (spill.append(signal)) {
+                    budget.spilled(1);
+                }
+                else {
+                    overflow = signal;
+                }
+            }
+            upstreamPending = false;
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                Operators.addCap(REQUESTED, this, n);
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            upstream.cancel();
+            if (wip.getAndIncrement() == 0) {
+                cleanup();
+            }
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (; ; ) {
+                long r = requested;
+                long e = 0L;
+                while (e != r) {
+                    if (cancelled) {
+                        cleanup();
+                        return;
+                    }
+                    InputSignal next = head();
+                    if (next == null) {
+                        break;
+                    }
+                    if (!budget.hasRoomFor(sizeOf(next))) {
+                        if (stall == null) {
+                            stall = BackpressureStallEvent.start(budget.getQueuedBytes(), budget.getBudgetBytes(),
+                                    sizeOf(next), budget.getSpilledFrames());
+                        }
+                        break;
+                    }
+                    synchronized (lock) {
+                        held = null;
+                    }
+                    resumed();
+                    budget.acquire(sizeOf(next));
+                    actual.onNext(next);
+                    e++;
+                }
+                if (e != 0L) {
+                    Operators.produced(REQUESTED, this, e);
+                }
+                if (cancelled) {
+                    cleanup();
+                    return;
+                }
+                if (done && head() == null) {
+                    cleanup();
+                    if (error != null) {
+                        actual.onError(error);
+                    }
+                    else {
+                        actual.onComplete();
+                    }
+                    return;
+                }
+                if (!done && !upstreamPending && canReadMore()) {
+                    upstreamPending = true;
+                    upstream.request(1L);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+
+        /*
+         * Returns the oldest frame, promoting it from spill (or overflow) to memory if needed.
+         */
+        private InputSignal head() {
+            synchronized (lock) {
+                if (held == null && spill != null) {
+                    held = spill.poll();
+                    if (held != null) {
+                        budget.spilled(-1);
+                    }
+                    else if (overflow != null) {
+                        held = overflow;
+                        overflow = null;
+                    }
+                }
+                return held;
+            }
+        }
+
+        private boolean canReadMore() {
+            synchronized (lock) {
+                return spill == null ? held == null : overflow == null;
+            }
+        }
+
+        private void resumed() {
+            if (stall != null) {
+                stall.resumed();
+                stall = null;
+            }
+        }
+
+        private void cleanup() {
+            resumed();
+            synchronized (lock) {
+                held = null;
+                overflow = null;
+                if (spill != null) {
+                    spill.close();
+                }
+            }
+        }
+    }
+}
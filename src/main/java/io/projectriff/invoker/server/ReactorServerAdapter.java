@@ -1,37 +1,68 @@
 package io.projectriff.invoker.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import com.google.protobuf.ProtocolStringList;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import io.projectriff.invoker.ContentTypeDictionary;
+import io.projectriff.invoker.FrameTrace;
 import io.projectriff.invoker.HttpMessageUtils;
 import io.projectriff.invoker.InputSignalHttpInputMessage;
+import io.projectriff.invoker.MediaTypeCache;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import io.projectriff.invoker.recording.TrafficRecorder;
 import io.projectriff.invoker.SignalHttpOutputMessage;
+import io.projectriff.invoker.flow.FlowTuner;
+import io.projectriff.invoker.jfr.ConverterSelectionEvent;
+import io.projectriff.invoker.jfr.FrameDecodeEvent;
+import io.projectriff.invoker.jfr.FrameEncodeEvent;
+import io.projectriff.invoker.jfr.StreamEvent;
+import io.projectriff.invoker.rpc.ErrorFrame;
+import io.projectriff.invoker.rpc.InputFrame;
 import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputFrame;
 import io.projectriff.invoker.rpc.OutputSignal;
 import io.projectriff.invoker.rpc.ReactorRiffGrpc;
 import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.GroupedFlux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Scheduler;
 import reactor.util.function.Tuple2;
+import reactor.util.function.Tuple3;
+import reactor.util.function.Tuple4;
 import reactor.util.function.Tuples;
 
-import org.springframework.http.HttpInputMessage;
+import org.springframework.cloud.function.core.FluxFunction;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.*;
+import org.springframework.util.unit.DataSize;
 
-import static io.projectriff.invoker.HttpMessageUtils.RIFF_INPUT;
 import static io.projectriff.invoker.HttpMessageUtils.RIFF_OUTPUT;
 
 /**
@@ -50,27 +81,105 @@ import static io.projectriff.invoker.HttpMessageUtils.RIFF_OUTPUT;
  */
 public class ReactorServerAdapter<T, V> extends ReactorRiffGrpc.RiffImplBase {
 
+	private static final Logger logger = LoggerFactory.getLogger(ReactorServerAdapter.class);
+
 	private List<HttpMessageConverter> converters = new ArrayList<>();
 
+	/*
+	 * The name the function is hosted under, as reported in flight recorder events.
+	 */
+	private final String name;
+
 	private MethodHandle mh;
 
     private Class<?>[] inputTypes;
 
+	private final InvokerProperties properties;
+
+	private final Set<StreamMemoryBudget> activeStreams = ConcurrentHashMap.newKeySet();
+
+	private final InvokerMetrics metrics;
+
+	private final boolean tracing;
+
+	private final Supplier<Collection<StreamMemoryBudget>> streams = this::getActiveStreams;
+
+	/*
+	 * The function applied to each element, if the function is known to be element-wise.
+	 */
+	private final Function<Object, Object> elementFunction;
+
+	private final ResultCache cache;
+
+	/*
+	 * How each argument, and the results, are chunked (null when they carry one element at a time).
+	 */
+	private final BatchSignature[] inputBatches;
+
+	private final BatchSignature resultBatch;
+
+	private final TrafficRecorder recorder;
+
+	private final FlowTuner flow;
+
+	/*
+	 * The number of partitions invocation streams are split into by key, 1 if they are not.
+	 */
+	private final int partitions;
+
+	private final Scheduler partitionScheduler;
 
 	public ReactorServerAdapter(Object function, Method m, Class[] types) throws IllegalAccessException {
+		this(function, m, types, new InvokerProperties(), InvokerMetrics.global());
+	}
+
+	public ReactorServerAdapter(Object function, Method m, Class[] types, InvokerProperties properties, InvokerMetrics metrics) throws IllegalAccessException {
+		this("", function, m, types, properties, metrics, null, null,
+				new FlowTuner(properties.getFlow().isAutoTune(), properties.getFlow().getWindowSize().toBytes()), null);
+	}
+
+	/**
+	 * Create an adapter for the function hosted under the given name, whose results are remembered in the given cache,
+	 * if not null. Only allowed for element-wise functions of a single input, as the cache bypasses the function stream.
+	 * Invocations are recorded by the given recorder, if not null. Prefetches are sized by the given tuner. Streams are
+	 * only partitioned if given a scheduler to handle the partitions on.
+	 */
+	ReactorServerAdapter(String name, Object function, Method m, Class[] types, InvokerProperties properties, InvokerMetrics metrics, ResultCache cache,
+			TrafficRecorder recorder, FlowTuner flow, Scheduler partitionScheduler) throws IllegalAccessException {
+		this.name = name;
+		this.properties = properties;
+		this.recorder = recorder;
+		this.flow = flow;
+		this.metrics = metrics;
+		this.tracing = properties.getTracing().isEnabled();
+		metrics.bindStreams(streams);
 		MethodHandle mh = MethodHandles.publicLookup().unreflect(m);
 		mh = mh.bindTo(function);
 		this.mh = mh;
 
 		inputTypes = types;
-		System.out.println("TYPES = " + Arrays.asList(types));
+		logger.debug("Input types of {}: {}", name, Arrays.asList(types));
+		this.inputBatches = BatchSignature.ofParameters(m);
+		this.resultBatch = BatchSignature.ofResults(m);
+		this.elementFunction = elementFunction(function);
+		if (cache != null && (elementFunction == null || types.length != 1)) {
+			throw new IllegalStateException("Results of " + name + " can't be cached, as it is not applied to each element of a single input");
+		}
+		this.cache = cache;
+		InvokerProperties.Partitioning partitioning = properties.getPartitioning();
+		this.partitions = partitionScheduler != null && partitioning.getFunctions().contains(name)
+				? Math.max(1, partitioning.getPartitions()) : 1;
+		this.partitionScheduler = partitionScheduler;
 
 		HttpMessageUtils.installDefaultConverters(converters);
 	}
 
 	@Override
 	public Flux<OutputSignal> invoke(Flux<InputSignal> request) {
-		return request
+		// gRPC cancels the call once its deadline passes, but inputs already read should not reach the function
+		Context context = Context.current();
+		Deadline deadline = context.getDeadline();
+		return (recorder == null ? request : recorder.record(request))
 				.switchOnFirst((first, stream) -> {
 					if (!first.hasValue()) {
 						return Flux.error(new RuntimeException("Expected first frame to be of type Start"));
@@ -79,48 +188,396 @@ public class ReactorServerAdapter<T, V> extends ReactorRiffGrpc.RiffImplBase {
 					if (!firstSignal.hasStart()) {
 						return Flux.error(new RuntimeException("Expected first frame to be of type Start"));
 					}
+					if (firstSignal.getStart().getResumable() && elementFunction == null) {
+						return Flux.error(Status.FAILED_PRECONDITION
+								.withDescription("Only element-wise functions can be resumed, and " + name + " works on whole streams")
+								.asRuntimeException());
+					}
 
 					ProtocolStringList expectedContentTypesList = firstSignal.getStart().getExpectedContentTypesList();
-					List<List<MediaType>> accept = expectedContentTypesList.stream().map(MediaType::parseMediaTypes).collect(Collectors.toList());
-					return stream
-							.skip(1L)
-							.map(InputSignalHttpInputMessage::new)
-							.map(this::decode)
-							.transform(t())
-							.map(encode(accept))
-							.map(SignalHttpOutputMessage::asOutputSignal)
-							.doOnError(Throwable::printStackTrace);
+					List<List<MediaType>> accept = expectedContentTypesList.stream().map(MediaTypeCache::parseList).collect(Collectors.toList());
+					ContentTypeDictionary dictionary = ContentTypeDictionary.of(firstSignal.getStart());
+					StreamEvent event = StreamEvent.start(name, inputTypes.length, expectedContentTypesList, dictionary.getContentTypes());
+					StreamMemoryBudget budget = newBudget();
+					ElementErrors errors = firstSignal.getStart().getContinueOnError() ? new ElementErrors(metrics) : null;
+					StreamAcks acks = firstSignal.getStart().getResumable() ? newAcks(firstSignal.getStart().getLastAcked(), budget) : null;
+					Flux<InputSignal> inputs = budgeted(stream.skip(1L), budget);
+					if (event.isEnabled()) {
+						inputs = inputs.doOnNext(s -> event.frameIn());
+					}
+					Function<Flux<InputSignal>, Flux<OutputSignal>> process = frames -> {
+						// One per partition, as encoders reuse their message
+						Function<Tuple3<Object, Integer, FrameTrace>, SignalHttpOutputMessage> encoder = encode(accept);
+						// Where the elements given to an element-wise function come from, to report its failures
+						Queue<Tuple3<Integer, Map<String, String>, Long>> origins = errors != null && elementFunction != null
+								&& inputBatches[0] == null ? new ConcurrentLinkedQueue<>() : null;
+						return frames
+								.<Tuple4<Object, Integer, Integer, FrameTrace>>handle((s, sink) -> {
+									checkDeadline(deadline);
+									int size = MemoryBudgetOperator.sizeOf(s);
+									InputFrame frame = s.getData();
+									if (acks != null && !acks.accept(frame.getSequence())) {
+										budget.release(size);
+										return;
+									}
+									try {
+										Tuple4<Object, Integer, Integer, FrameTrace> decoded = decode(frame, dictionary, size);
+										if (acks != null) {
+											acks.received(decoded.getT2(), frame.getSequence());
+										}
+										if (origins != null) {
+											origins.add(Tuples.of(frame.getArgIndex(), frame.getHeadersMap(), frame.getSequence()));
+										}
+										sink.next(decoded);
+									}
+									catch (RuntimeException e) {
+										if (errors == null) {
+											throw e;
+										}
+										budget.release(size);
+										if (acks != null) {
+											acks.discarded(frame.getSequence());
+										}
+										errors.report(ErrorFrame.Stage.DECODE, frame.getArgIndex(), 0, frame.getSequence(), e,
+												frame.getHeadersMap());
+									}
+								})
+								.transform(t(budget, new AtomicReference<>(), errors, origins, acks))
+								.<OutputSignal>handle((t, sink) -> {
+									long sequence = acks == null ? 0L : acks.nextResult();
+									try {
+										sink.next(encoder.apply(t).asOutputSignal(dictionary, sequence));
+									}
+									catch (RuntimeException e) {
+										if (errors == null) {
+											throw e;
+										}
+										budget.outputSent();
+										errors.report(ErrorFrame.Stage.ENCODE, 0, t.getT2(), sequence, e, Map.of());
+									}
+								});
+					};
+					// Acks assume inputs are processed in arrival order, so resumable streams are never partitioned
+					Flux<OutputSignal> outputs = cache != null
+							? inputs.handle(memoized(List.copyOf(expectedContentTypesList), dictionary, encode(accept), budget, errors, acks, deadline))
+							: partitions > 1 && acks == null ? partitioned(inputs, process) : process.apply(inputs);
+					outputs = errors == null ? outputs : errors.mergeWith(outputs);
+					outputs = acks == null ? outputs : acks.mergeWith(outputs);
+					return outputs
+							.takeUntilOther(cancellation(context))
+							.doOnNext(s -> {
+								if (s.hasData()) {
+									budget.outputSent();
+									event.frameOut();
+									metrics.frameOut(s.getData().getResultIndex(), s.getData().getPayload().size());
+									flow.sent(s.getData().getPayload().size());
+									if (acks != null) {
+										acks.resultSent();
+									}
+								}
+							})
+							.doOnError(metrics::error)
+							.doOnError(e -> logger.error("Invocation of {} failed", name, e))
+							.doFinally(s -> {
+								activeStreams.remove(budget);
+								event.ended(s.toString());
+							});
 				});
 	}
 
+	/*
+	 * Fails once the call is cancelled, by the client or as its deadline passes. reactive-grpc only propagates
+	 * cancellation to the inputs, which would leave the function running once the client has sent all of them.
+	 */
+	private Mono<OutputSignal> cancellation(Context context) {
+		return Mono.create(sink -> {
+			Context.CancellationListener listener = c -> {
+				if (c.getDeadline() != null && c.getDeadline().isExpired()) {
+					metrics.expired();
+					sink.error(Status.DEADLINE_EXCEEDED.withDescription("Deadline passed before results were sent").asRuntimeException());
+				}
+				else {
+					sink.error(Status.CANCELLED.withDescription("Call cancelled by the client").asRuntimeException());
+				}
+			};
+			context.addListener(listener, Runnable::run);
+			sink.onDispose(() -> context.removeListener(listener));
+		});
+	}
+
+	/*
+	 * Splits frames by key, each partition being decoded, given to its own subscription of the function and encoded on
+	 * a thread of the partition scheduler. Results are merged as they come: those of a key keep the order of its
+	 * frames, and keyless frames all share the partition of the empty key.
+	 */
+	private Flux<OutputSignal> partitioned(Flux<InputSignal> inputs, Function<Flux<InputSignal>, Flux<OutputSignal>> process) {
+		String keyHeader = properties.getPartitioning().getKeyHeader();
+		int prefetch = flow.receiving(properties.getFlow().getArgumentPrefetch());
+		return inputs.groupBy(s -> partitionOf(s.getData().getHeadersOrDefault(keyHeader, "")), prefetch)
+				.flatMap(partition -> partition.publishOn(partitionScheduler, prefetch).transform(process),
+						partitions, flow.sending(properties.getFlow().getOutputPrefetch()));
+	}
+
+	private int partitionOf(String key) {
+		return Math.floorMod(key.hashCode(), partitions);
+	}
+
+	private void checkDeadline(Deadline deadline) {
+		if (deadline != null && deadline.isExpired()) {
+			metrics.expired();
+			throw Status.DEADLINE_EXCEEDED.withDescription("Deadline passed before input could be processed").asRuntimeException();
+		}
+	}
+
+	/**
+	 * Return the accounting of what is currently queued, for each active invocation stream.
+	 */
+	public Collection<StreamMemoryBudget> getActiveStreams() {
+		return Collections.unmodifiableSet(activeStreams);
+	}
+
+	/**
+	 * Stop reporting the streams of this adapter, typically once all of them completed after a newer version of the
+	 * function was swapped in.
+	 */
+	public void unbindMetrics() {
+		metrics.unbindStreams(streams);
+	}
+
+	private StreamAcks newAcks(long lastAcked, StreamMemoryBudget budget) {
+		if (lastAcked > 0L) {
+			metrics.resumed();
+		}
+		return new StreamAcks(lastAcked, inputTypes.length, budget);
+	}
+
+	private StreamMemoryBudget newBudget() {
+		DataSize memoryBudget = properties.getStream().getMemoryBudget();
+		StreamMemoryBudget budget = new StreamMemoryBudget(memoryBudget == null ? 0L : memoryBudget.toBytes());
+		activeStreams.add(budget);
+		return budget;
+	}
+
+	private Flux<InputSignal> budgeted(Flux<InputSignal> input, StreamMemoryBudget budget) {
+		InvokerProperties.Stream config = properties.getStream();
+		if (budget.getBudgetBytes() <= 0L) {
+			return input.doOnNext(s -> budget.acquire(MemoryBudgetOperator.sizeOf(s)));
+		}
+		SpillFile spill = config.getSpillDirectory() == null ? null
+				: new SpillFile(config.getSpillDirectory(), (int) Math.min(Integer.MAX_VALUE, config.getSpillSize().toBytes()));
+		return new MemoryBudgetOperator(input, budget, spill);
+	}
+
 	@SuppressWarnings("unchecked")
-	private Function<Flux<Tuple2<Object, Integer>>, Publisher<Tuple2<Object, Integer>>> t() {
-		Tuple2<Object, Integer>[] startTuples = new Tuple2[mh.type().parameterCount()];
+	private Function<Flux<Tuple4<Object, Integer, Integer, FrameTrace>>, Publisher<Tuple3<Object, Integer, FrameTrace>>> t(
+			StreamMemoryBudget budget, AtomicReference<FrameTrace> pendingTrace, ElementErrors errors,
+			Queue<Tuple3<Integer, Map<String, String>, Long>> origins, StreamAcks acks) {
+		Tuple4<Object, Integer, Integer, FrameTrace>[] startTuples = new Tuple4[mh.type().parameterCount()];
 		for (int i = 0; i < startTuples.length; i++) {
-			startTuples[i] = Tuples.of(new Object(), i);
+			startTuples[i] = Tuples.of(new Object(), i, 0, FrameTrace.NONE);
 		}
 
 		return f -> f.startWith(Flux.fromArray(startTuples))
-				.groupBy(Tuple2::getT2, Tuple2::getT1)
+				// Groups must at least take the start tuples, the function only subscribing once all groups are known
+				.groupBy(Tuple4::getT2, Math.max(startTuples.length, flow.receiving(properties.getFlow().getArgumentPrefetch())))
 				.take(startTuples.length)
 				.collectSortedList(Comparator.comparingInt(GroupedFlux::key))
 				.flatMapMany(groups -> {
 					try {
-						Object[] args = groups.stream().map(g -> g.skip(1)).toArray(Object[]::new);
-						Object result =  mh.invokeWithArguments(args);
+						Object[] args = groups.stream()
+								.map(g -> argument(g.skip(1), inputBatches[g.key()], budget, pendingTrace, acks))
+								.toArray(Object[]::new);
+						long start = System.nanoTime();
+						Object result = errors != null && elementFunction != null
+								? applyPerElement((Flux<Object>) args[0], errors, origins)
+								: mh.invokeWithArguments(args);
+						metrics.applied(start);
 						Flux<?>[] bareOutputs = promoteToArray(result);
-						Flux<Tuple2<Object, Integer>>[] withOutputIndices =new Flux[bareOutputs.length];
+						Flux<Tuple3<Object, Integer, FrameTrace>>[] withOutputIndices =new Flux[bareOutputs.length];
 						for (int i = 0; i < bareOutputs.length; i++) {
 							int j = i;
-							withOutputIndices[i] = bareOutputs[i].map(o -> Tuples.of(o, j));
+							Flux<?> elements = resultBatch == null ? bareOutputs[i]
+									: bareOutputs[i].concatMapIterable(resultBatch::elements);
+							withOutputIndices[i] = elements
+									.doOnNext(o -> {
+										budget.outputProduced();
+										if (acks != null) {
+											acks.produced();
+										}
+									})
+									.map(o -> Tuples.of(o, j, attributeTrace(pendingTrace)));
 						}
-						return Flux.merge(withOutputIndices);
+						return Flux.merge(flow.sending(properties.getFlow().getOutputPrefetch()), withOutputIndices);
 					} catch (Throwable t) {
 						throw Exceptions.propagate(t);
 					}
 				});
 	}
 
+	/*
+	 * Turns the decoded frames of an argument into what the function expects: their values, or chunks of them.
+	 */
+	private Flux<?> argument(Flux<Tuple4<Object, Integer, Integer, FrameTrace>> frames, BatchSignature batch,
+			StreamMemoryBudget budget, AtomicReference<FrameTrace> pendingTrace, StreamAcks acks) {
+		if (batch == null) {
+			return frames.doOnNext(t -> delivered(t, budget, pendingTrace, acks))
+					.map(Tuple4::getT1);
+		}
+		InvokerProperties.Stream config = properties.getStream();
+		// Chunks are only accounted as delivered once the function asks for them
+		return frames.bufferTimeout(config.getBatchSize(), config.getBatchLinger())
+				.onBackpressureBuffer()
+				.map(chunk -> {
+					List<Object> values = new ArrayList<>(chunk.size());
+					for (Tuple4<Object, Integer, Integer, FrameTrace> t : chunk) {
+						delivered(t, budget, pendingTrace, acks);
+						values.add(t.getT1());
+					}
+					metrics.batched(chunk.size());
+					return batch.toChunk(values);
+				});
+	}
+
+	private void delivered(Tuple4<Object, Integer, Integer, FrameTrace> t, StreamMemoryBudget budget,
+			AtomicReference<FrameTrace> pendingTrace, StreamAcks acks) {
+		budget.release(t.getT3());
+		if (acks != null) {
+			acks.delivered(t.getT2());
+		}
+		if (t.getT4() != FrameTrace.NONE) {
+			t.getT4().delivered(name);
+			pendingTrace.compareAndSet(null, t.getT4());
+		}
+	}
+
+	/*
+	 * Applies an element-wise function to each element, so that a failure only affects that element. This calls the
+	 * plain function the FluxFunction or FluxMappingFunction wraps, which is what their own apply() maps over the flux.
+	 */
+	private Flux<Object> applyPerElement(Flux<Object> input, ElementErrors errors,
+			Queue<Tuple3<Integer, Map<String, String>, Long>> origins) {
+		return input.handle((value, sink) -> {
+			Tuple3<Integer, Map<String, String>, Long> origin = origins == null ? null : origins.poll();
+			Object result;
+			try {
+				result = elementFunction.apply(value);
+			}
+			catch (RuntimeException e) {
+				errors.report(ErrorFrame.Stage.APPLY, origin == null ? 0 : origin.getT1(), 0, origin == null ? 0L : origin.getT3(),
+						e, origin == null ? Map.of() : origin.getT2());
+				return;
+			}
+			if (result != null) {
+				sink.next(result);
+			}
+		});
+	}
+
+	/*
+	 * Processes each input on its own, going through the result cache, for pure element-wise functions.
+	 */
+	private BiConsumer<InputSignal, SynchronousSink<OutputSignal>> memoized(List<String> accept, ContentTypeDictionary dictionary,
+			Function<Tuple3<Object, Integer, FrameTrace>, SignalHttpOutputMessage> encoder, StreamMemoryBudget budget,
+			ElementErrors errors, StreamAcks acks, Deadline deadline) {
+		return (s, sink) -> {
+			checkDeadline(deadline);
+			int size = MemoryBudgetOperator.sizeOf(s);
+			InputFrame frame = s.getData();
+			budget.release(size);
+			if (acks != null) {
+				if (!acks.accept(frame.getSequence())) {
+					return;
+				}
+				acks.received(0, frame.getSequence());
+				acks.delivered(0);
+			}
+			// Traced frames are not served from the cache, as their timings would be meaningless
+			ResultCache.Key key = tracing && frame.containsHeaders(FrameTrace.TRACE_ID) ? null
+					: new ResultCache.Key(frame.getArgIndex(), dictionary.resolve(frame.getContentTypeRef(), frame.getContentType()),
+							accept, frame.getPayload());
+			OutputFrame result = key == null ? null : cache.get(key);
+			if (result != null) {
+				metrics.frameIn(0, size);
+			}
+			else {
+				ErrorFrame.Stage stage = ErrorFrame.Stage.DECODE;
+				try {
+					Tuple4<Object, Integer, Integer, FrameTrace> decoded = decode(frame, dictionary, size);
+					FrameTrace trace = decoded.getT4();
+					if (trace != FrameTrace.NONE) {
+						trace.delivered(name);
+					}
+					stage = ErrorFrame.Stage.APPLY;
+					long start = System.nanoTime();
+					Object value = elementFunction.apply(decoded.getT1());
+					metrics.applied(start);
+					if (value == null) {
+						return;
+					}
+					if (trace != FrameTrace.NONE) {
+						trace.produced();
+					}
+					stage = ErrorFrame.Stage.ENCODE;
+					result = encoder.apply(Tuples.of(value, 0, trace)).asOutputSignal().getData();
+				}
+				catch (RuntimeException e) {
+					if (errors == null) {
+						throw e;
+					}
+					errors.report(stage, frame.getArgIndex(), 0, frame.getSequence(), e,
+							stage == ErrorFrame.Stage.ENCODE ? Map.of() : frame.getHeadersMap());
+					return;
+				}
+				if (key != null) {
+					cache.put(key, result);
+				}
+			}
+			budget.outputProduced();
+			sink.next(OutputSignal.newBuilder().setData(tagged(result, dictionary, frame.getSequence())).build());
+		};
+	}
+
+	/*
+	 * Adapts a (possibly cached) result to the dictionary of the stream, and to the input it is sent for.
+	 */
+	private static OutputFrame tagged(OutputFrame frame, ContentTypeDictionary dictionary, long sequence) {
+		int ref = dictionary.refOf(frame.getContentType());
+		if (ref == 0 && sequence == 0L) {
+			return frame;
+		}
+		OutputFrame.Builder builder = frame.toBuilder();
+		if (ref != 0) {
+			builder.clearContentType().setContentTypeRef(ref);
+		}
+		return builder.setSequence(sequence).build();
+	}
+
+	/*
+	 * Attributes the oldest traced input handed to the function (if any) to the result being produced.
+	 */
+	private FrameTrace attributeTrace(AtomicReference<FrameTrace> pendingTrace) {
+		if (pendingTrace.get() == null) {
+			return FrameTrace.NONE;
+		}
+		FrameTrace trace = pendingTrace.getAndSet(null);
+		if (trace == null) {
+			return FrameTrace.NONE;
+		}
+		trace.produced();
+		return trace;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Function<Object, Object> elementFunction(Object function) {
+		if (function instanceof FluxFunction) {
+			return ((FluxFunction<Object, Object>) function).getTarget();
+		}
+		if (function instanceof FunctionLoader.FluxMappingFunction) {
+			return ((FunctionLoader.FluxMappingFunction<Object, Object>) function).getTarget();
+		}
+		return null;
+	}
+
 	private Flux<?>[] promoteToArray(Object result) {
 		Flux<?>[] bareOutputs = new Flux<?>[1];
 		if (result.getClass().isArray()) {
@@ -131,13 +588,20 @@ public class ReactorServerAdapter<T, V> extends ReactorRiffGrpc.RiffImplBase {
 		return bareOutputs;
 	}
 
-	private Function<Tuple2<Object, Integer>, SignalHttpOutputMessage> encode(List<List<MediaType>> expectedContentTypesList) {
+	/*
+	 * The returned function writes every result to the same message, which must hence be turned into a signal before
+	 * the function is applied again, and never from several threads at once.
+	 */
+	private Function<Tuple3<Object, Integer, FrameTrace>, SignalHttpOutputMessage> encode(List<List<MediaType>> expectedContentTypesList) {
+		SignalHttpOutputMessage out = new SignalHttpOutputMessage();
 		return t -> {
+			long start = System.nanoTime();
 			Integer index = t.getT2();
 			Object o = t.getT1();
-			SignalHttpOutputMessage out = new SignalHttpOutputMessage();
+			out.reset();
 			out.getHeaders().set(RIFF_OUTPUT, index.toString());
 			List<MediaType> expectedContentTypes = expectedContentTypesList.get(index);
+			FrameEncodeEvent event = t.getT3() != FrameTrace.NONE ? FrameEncodeEvent.start(name, t.getT3().getTraceId(), index) : null;
 			for (MediaType accepted : expectedContentTypes) {
 				for (HttpMessageConverter converter : converters) {
 					for (Object mt : converter.getSupportedMediaTypes()) {
@@ -145,6 +609,12 @@ public class ReactorServerAdapter<T, V> extends ReactorRiffGrpc.RiffImplBase {
 						if (accepted.includes(mediaType) && converter.canWrite(o.getClass(), mediaType)) {
 							try {
 								converter.write(o, mediaType, out);
+								if (t.getT3() != FrameTrace.NONE) {
+									t.getT3().writeTo(out.getHeaders(), System.nanoTime() - start);
+									ConverterSelectionEvent.selected(name, ConverterSelectionEvent.WRITE, converter, o.getClass(), mediaType);
+									event.encoded(mediaType, out.size());
+								}
+								metrics.encoded(start);
 								return out;
 							}
 							catch (IOException e) {
@@ -154,28 +624,43 @@ public class ReactorServerAdapter<T, V> extends ReactorRiffGrpc.RiffImplBase {
 					}
 				}
 			}
+			metrics.writeConverterMiss();
 			throw new HttpMessageNotWritableException(
 					String.format("could not find converter for accept = '%s' and return value of type %s", expectedContentTypesList,
 							o.getClass()));
 		};
 	}
 
-	private Tuple2<Object, Integer> decode(HttpInputMessage m) {
-		MediaType contentType = m.getHeaders().getContentType();
-		Integer riffInput = Integer.valueOf(m.getHeaders().getFirst(RIFF_INPUT));
+	private Tuple4<Object, Integer, Integer, FrameTrace> decode(InputFrame frame, ContentTypeDictionary dictionary, int size) {
+		long start = System.nanoTime();
+		long receivedAt = tracing && frame.getHeadersCount() > 0 ? FrameTrace.nowMicros() : 0L;
+		FrameDecodeEvent event = receivedAt != 0L ? FrameDecodeEvent.start(name, size) : null;
+		InputSignalHttpInputMessage m = new InputSignalHttpInputMessage(frame, dictionary);
+		MediaType contentType = m.getContentType();
+		Integer riffInput = m.getArgIndex();
 
 		var type = inputTypes[riffInput];
 
 		for (HttpMessageConverter converter : converters) {
 			if (converter.canRead(type, contentType)) {
 				try {
-					return Tuples.of((T) converter.read(type, m), riffInput);
+					Object value = converter.read(type, m);
+					FrameTrace trace = receivedAt != 0L ? FrameTrace.of(frame.getHeadersMap(), receivedAt, start) : FrameTrace.NONE;
+					if (trace != FrameTrace.NONE) {
+						ConverterSelectionEvent.selected(name, ConverterSelectionEvent.READ, converter, type, contentType);
+						event.decoded(trace.getTraceId(), riffInput, contentType);
+					}
+					Tuple4<Object, Integer, Integer, FrameTrace> result = Tuples.of(value, riffInput, size, trace);
+					metrics.decoded(start);
+					metrics.frameIn(riffInput, size);
+					return result;
 				}
 				catch (IOException e) {
 					throw new RuntimeException(e);
 				}
 			}
 		}
+		metrics.readConverterMiss();
 		throw new HttpMessageNotReadableException("No suitable converter", m);
 	}
 
@@ -0,0 +1,149 @@
+package io.projectriff.invoker.server;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.google.protobuf.ByteString;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import io.projectriff.invoker.rpc.OutputFrame;
+
+import org.springframework.http.MediaType;
+
+/**
+ * Remembers the encoded result of a pure, element-wise function for recently seen inputs, so that decoding, applying
+ * the function and encoding can all be skipped when the same input comes again.
+ *
+ * <p>
+ * Inputs are identified by their bytes and content type, and by all the content types the client accepts, which drive
+ * encoding: streams expecting different output types never share results. Results are kept as output frames that don't depend on a particular stream. The cache is bounded by the
+ * bytes of inputs and results it retains, evicting least recently used entries first, and entries optionally expire
+ * some time after they were computed.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+class ResultCache {
+
+    /*
+     * Rough bookkeeping overhead of an entry, on top of the payloads.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long maxBytes;
+
+    private final long ttlNanos;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final InvokerMetrics metrics;
+
+    private long bytes;
+
+    ResultCache(long maxBytes, Duration ttl, InvokerMetrics metrics) {
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttl == null ? 0L : ttl.toNanos();
+        this.metrics = metrics;
+    }
+
+    /**
+     * Return the result remembered for the given input, or {@code null}.
+     */
+    OutputFrame get(Key key) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && ttlNanos > 0L && System.nanoTime() - entry.createdAt > ttlNanos) {
+                remove(key, entry);
+                entry = null;
+            }
+            if (entry != null) {
+                metrics.cacheHit();
+                return entry.result;
+            }
+        }
+        metrics.cacheMiss();
+        return null;
+    }
+
+    void put(Key key, OutputFrame result) {
+        long size = key.payload.size() + result.getSerializedSize() + ENTRY_OVERHEAD;
+        if (size > maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            Entry previous = entries.put(key, new Entry(result, size, System.nanoTime()));
+            bytes += size - (previous == null ? 0L : previous.size);
+            Iterator<Map.Entry<Key, Entry>> lru = entries.entrySet().iterator();
+            while (bytes > maxBytes && lru.hasNext()) {
+                bytes -= lru.next().getValue().size;
+                lru.remove();
+                metrics.cacheEviction();
+            }
+        }
+    }
+
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        bytes -= entry.size;
+    }
+
+    /**
+     * Identifies an input, in all respects that can influence the encoded result.
+     */
+    static final class Key {
+
+        private final int argIndex;
+
+        private final MediaType contentType;
+
+        private final List<String> accept;
+
+        private final ByteString payload;
+
+        private final int hash;
+
+        Key(int argIndex, MediaType contentType, List<String> accept, ByteString payload) {
+            this.argIndex = argIndex;
+            this.contentType = contentType;
+            this.accept = accept;
+            this.payload = payload;
+            this.hash = Objects.hash(argIndex, contentType, accept, payload);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && argIndex == other.argIndex && contentType.equals(other.contentType)
+                    && accept.equals(other.accept) && payload.equals(other.payload);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+
+        private final OutputFrame result;
+
+        private final long size;
+
+        private final long createdAt;
+
+        private Entry(OutputFrame result, long size, long createdAt) {
+            this.result = result;
+            this.size = size;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package io.projectriff.invoker.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import io.projectriff.invoker.rpc.InputSignal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sun.misc.Unsafe;
+
+/**
+ * A FIFO of {@link InputSignal}s backed by a memory mapped file, used to park input frames that don't fit in a
+ * stream {@link StreamMemoryBudget}.
+ *
+ * <p>
+ * Frames are stored length-prefixed, one after the other. Space is reclaimed when the file has been completely
+ * drained, at which point writing starts over from the beginning. The file is only created (and mapped) when the
+ * first frame is appended, so that streams that never spill don't pay for it, and is unmapped and deleted on
+ * {@link #close()}. Not thread safe.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+class SpillFile implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillFile.class);
+
+    private final Path directory;
+
+    private final int capacity;
+
+    private Path path;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private int readPosition;
+
+    private int writePosition;
+
+    private boolean closed;
+
+    SpillFile(Path directory, int capacity) {
+        this.directory = directory;
+        this.capacity = capacity;
+    }
+
+    /**
+     * The file frames are spilled to, or {@code null} if nothing was ever spilled (or this has been closed).
+     */
+    Path getPath() {
+        return path;
+    }
+
+    boolean isEmpty() {
+        return readPosition == writePosition;
+    }
+
+    /**
+     * Append a frame at the end of this file, returning {@code false} if there is not enough room left (or if this
+     * has been closed, frames may still arrive while a stream is being cancelled).
+     */
+    boolean append(InputSignal signal) {
+        int size = signal.getSerializedSize();
+        if (closed || writePosition + Integer.BYTES + size > capacity) {
+            return false;
+        }
+        if (buffer == null) {
+            open();
+        }
+        buffer.putInt(writePosition, size);
+        ByteBuffer target = buffer.duplicate();
+        target.position(writePosition + Integer.BYTES);
+        target.put(signal.toByteArray());
+        writePosition += Integer.BYTES + size;
+        return true;
+    }
+
+    /**
+     * Remove and return the oldest frame of this file, or {@code null} if empty.
+     */
+    InputSignal poll() {
+        if (isEmpty()) {
+            return null;
+        }
+        int size = buffer.getInt(readPosition);
+        byte[] bytes = new byte[size];
+        ByteBuffer source = buffer.duplicate();
+        source.position(readPosition + Integer.BYTES);
+        source.get(bytes);
+        try {
+            InputSignal signal = InputSignal.parseFrom(bytes);
+            readPosition += Integer.BYTES + size;
+            if (readPosition == writePosition) {
+                readPosition = writePosition = 0;
+            }
+            return signal;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void open() {
+        try {
+            Files.createDirectories(directory);
+            path = Files.createTempFile(directory, "riff-spill-", ".bin");
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Drop any spilled frame, unmap and delete the file. Safe to call several times.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        readPosition = writePosition = 0;
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (buffer != null) {
+                unmap(buffer);
+            }
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        }
+        catch (IOException e) {
+            logger.warn("Could not delete spill file {}", path, e);
+        }
+        finally {
+            buffer = null;
+            channel = null;
+            path = null;
+        }
+    }
+
+    /*
+     * Mapped buffers are otherwise only unmapped once garbage collected, which may be long after the stream is over.
+     * The buffer must not be accessed afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            ((Unsafe) field.get(null)).invokeCleaner(buffer);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Could not unmap spill file, leaving it to the garbage collector", e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package io.projectriff.invoker.server;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.grpc.Status;
+import io.projectriff.invoker.rpc.Ack;
+import io.projectriff.invoker.rpc.OutputSignal;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.UnicastProcessor;
+
+/**
+ * Tracks which input frames of a resumable invocation have been processed, and emits {@code Ack} signals for them.
+ *
+ * <p>
+ * Only element-wise functions are resumable, so each result comes from the input being applied when it was produced,
+ * and is tagged with the sequence number of that input. An input is processed once its result has been sent, or once
+ * the function moved on to the next input without producing any. Inputs are acknowledged in order, so an ack only
+ * covers the longest run of processed inputs. Acks are only emitted when no result produced by the function is still
+ * on its way out, so that a client never drops an input whose result it could still lose. Acks are coalesced while the
+ * client lags behind.
+ * </p>
+ *
+ * <p>
+ * A result may reach the client while the ack covering its input doesn't, if the stream breaks in between. That input
+ * is then processed again after resuming, and the client drops the duplicate result by its sequence number.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+class StreamAcks {
+
+    private final StreamMemoryBudget budget;
+
+    private final UnicastProcessor<Boolean> scheduled = UnicastProcessor.create();
+
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    /*
+     * Sequence numbers in arrival order, not acknowledged yet.
+     */
+    private final ArrayDeque<Long> arrived = new ArrayDeque<>();
+
+    private final Set<Long> processed = new HashSet<>();
+
+    private final ArrayDeque<Long>[] received;
+
+    /*
+     * The inputs results were produced from, for results on their way out.
+     */
+    private final ArrayDeque<Long> producedFrom = new ArrayDeque<>();
+
+    private final long[] inProgress;
+
+    private final long resumedAfter;
+
+    private long lastReceived;
+
+    private long acked;
+
+    private volatile long safe;
+
+    @SuppressWarnings("unchecked")
+    StreamAcks(long lastAcked, int arity, StreamMemoryBudget budget) {
+        this.resumedAfter = this.lastReceived = this.acked = this.safe = lastAcked;
+        this.budget = budget;
+        this.received = new ArrayDeque[arity];
+        for (int i = 0; i < arity; i++) {
+            received[i] = new ArrayDeque<>();
+        }
+        this.inProgress = new long[arity];
+    }
+
+    /**
+     * Check the sequence number of an incoming frame, returning {@code false} for a frame that was already
+     * acknowledged (and should be skipped).
+     */
+    synchronized boolean accept(long sequence) {
+        if (sequence > 0L && sequence <= resumedAfter) {
+            return false;
+        }
+        if (sequence != lastReceived + 1) {
+            throw Status.FAILED_PRECONDITION
+                    .withDescription(String.format("Expected input frame #%d, got #%d", lastReceived + 1, sequence))
+                    .asRuntimeException();
+        }
+        lastReceived = sequence;
+        arrived.add(sequence);
+        return true;
+    }
+
+    /**
+     * Record that a frame was decoded, and is queued for the function.
+     */
+    synchronized void received(int argIndex, long sequence) {
+        received[argIndex].add(sequence);
+    }
+
+    /**
+     * Record that a frame won't reach the function (because it could not be decoded).
+     */
+    synchronized void discarded(long sequence) {
+        processed.add(sequence);
+        advance();
+    }
+
+    /**
+     * Record that the next frame of the given argument is being handed to the function.
+     */
+    void delivered(int argIndex) {
+        synchronized (this) {
+            if (inProgress[argIndex] != 0L) {
+                processed.add(inProgress[argIndex]);
+            }
+            Long sequence = received[argIndex].poll();
+            inProgress[argIndex] = sequence == null ? 0L : sequence;
+            advance();
+        }
+        flush();
+    }
+
+    /**
+     * Record that the function produced a result from the input it is being applied to.
+     */
+    synchronized void produced() {
+        producedFrom.add(inProgress[0]);
+    }
+
+    /**
+     * Return the sequence number of the input the next result to be sent was produced from. To be called once for
+     * each produced result, in order.
+     */
+    synchronized long nextResult() {
+        Long sequence = producedFrom.poll();
+        return sequence == null ? 0L : sequence;
+    }
+
+    /**
+     * Record that a result has been sent.
+     */
+    void resultSent() {
+        synchronized (this) {
+            for (int i = 0; i < inProgress.length; i++) {
+                if (inProgress[i] != 0L) {
+                    processed.add(inProgress[i]);
+                    inProgress[i] = 0L;
+                }
+            }
+            advance();
+        }
+        flush();
+    }
+
+    private void advance() {
+        Long head;
+        while ((head = arrived.peek()) != null && processed.remove(head)) {
+            arrived.poll();
+            acked = head;
+        }
+    }
+
+    private void flush() {
+        if (budget.getPendingOutputs() > 0L) {
+            return;
+        }
+        synchronized (this) {
+            if (acked <= safe) {
+                return;
+            }
+            safe = acked;
+        }
+        if (pending.compareAndSet(false, true)) {
+            scheduled.onNext(Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Merge acks with the given output signals, completing when those do.
+     */
+    Flux<OutputSignal> mergeWith(Flux<OutputSignal> outputs) {
+        Flux<OutputSignal> acks = scheduled.map(b -> {
+            pending.set(false);
+            return OutputSignal.newBuilder().setAck(Ack.newBuilder().setSequence(safe)).build();
+        });
+        return outputs.doOnTerminate(scheduled::onComplete)
+                .mergeWith(acks);
+    }
+}
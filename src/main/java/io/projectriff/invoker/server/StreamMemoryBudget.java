@@ -0,0 +1,95 @@
+package io.projectriff.invoker.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of what is queued inside the adapter for a single invocation stream: input frames that have been
+ * read from the wire but not yet handed to the function, and function results that have not been sent yet.
+ *
+ * <p>
+ * When a budget is set, input frames are only admitted (and hence requested from the client) as long as the queued
+ * bytes stay under that budget. A frame is always admitted when nothing is queued, so that a single frame larger
+ * than the budget can't stall the stream.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class StreamMemoryBudget {
+
+    private final long budgetBytes;
+
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    private final AtomicLong queuedFrames = new AtomicLong();
+
+    private final AtomicLong pendingOutputs = new AtomicLong();
+
+    private final AtomicLong spilledFrames = new AtomicLong();
+
+    private volatile Runnable onRelease = () -> {};
+
+    StreamMemoryBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * The maximum number of bytes of input frames queued for this stream, or {@code 0} if unbounded.
+     */
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getQueuedFrames() {
+        return queuedFrames.get();
+    }
+
+    /**
+     * The number of function results waiting to be encoded and sent to the client.
+     */
+    public long getPendingOutputs() {
+        return pendingOutputs.get();
+    }
+
+    /**
+     * The number of input frames currently spilled to disk.
+     */
+    public long getSpilledFrames() {
+        return spilledFrames.get();
+    }
+
+    boolean hasRoomFor(int size) {
+        long queued = queuedBytes.get();
+        return budgetBytes <= 0 || queued == 0 || queued + size <= budgetBytes;
+    }
+
+    void acquire(int size) {
+        queuedBytes.addAndGet(size);
+        queuedFrames.incrementAndGet();
+    }
+
+    void release(int size) {
+        queuedBytes.addAndGet(-size);
+        queuedFrames.decrementAndGet();
+        onRelease.run();
+    }
+
+    void outputProduced() {
+        pendingOutputs.incrementAndGet();
+    }
+
+    void outputSent() {
+        pendingOutputs.decrementAndGet();
+    }
+
+    void spilled(int delta) {
+        spilledFrames.addAndGet(delta);
+    }
+
+    void onRelease(Runnable onRelease) {
+        this.onRelease = onRelease;
+    }
+}
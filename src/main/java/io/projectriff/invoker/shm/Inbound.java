@@ -0,0 +1,93 @@
+package io.projectriff.invoker.shm;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+import reactor.core.scheduler.Scheduler;
+
+/**
+ * Hands the messages received on a call to its listener as they are requested, the way gRPC does, on the worker of
+ * the call (which runs callbacks one at a time and in order). The end of the call is signalled once messages
+ * received before it have been delivered, unless it is aborted.
+ *
+ * @author Eric Bottard
+ */
+final class Inbound {
+
+    private final Scheduler.Worker worker;
+
+    private final Consumer<byte[]> listener;
+
+    private final Queue<byte[]> pending = new ArrayDeque<>();
+
+    private long demand;
+
+    private Runnable end;
+
+    private boolean ended;
+
+    private boolean aborted;
+
+    Inbound(Scheduler.Worker worker, Consumer<byte[]> listener) {
+        this.worker = worker;
+        this.listener = listener;
+    }
+
+    synchronized void received(byte[] message) {
+        if (!ended && end == null) {
+            pending.add(message);
+            drain();
+        }
+    }
+
+    synchronized void request(int count) {
+        demand = Math.min(Long.MAX_VALUE / 2, demand + count);
+        drain();
+    }
+
+    /**
+     * Run the given callback once pending messages have been delivered.
+     */
+    synchronized void end(Runnable callback) {
+        if (!ended && end == null) {
+            end = callback;
+            drain();
+        }
+    }
+
+    /**
+     * Run the given callback next, dropping pending messages.
+     */
+    synchronized void abort(Runnable callback) {
+        if (!aborted) {
+            pending.clear();
+            end = null;
+            ended = true;
+            aborted = true;
+            worker.schedule(callback);
+        }
+    }
+
+    /**
+     * Run a callback on the worker of the call, unless it was aborted.
+     */
+    synchronized void schedule(Runnable callback) {
+        if (!aborted) {
+            worker.schedule(callback);
+        }
+    }
+
+    private void drain() {
+        while (demand > 0L && !pending.isEmpty()) {
+            demand--;
+            byte[] message = pending.poll();
+            worker.schedule(() -> listener.accept(message));
+        }
+        if (end != null && pending.isEmpty()) {
+            ended = true;
+            worker.schedule(end);
+            end = null;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package io.projectriff.invoker.shm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A single-producer, single-consumer ring of variable length records, in a region of (shared) memory.
+ *
+ * <p>
+ * The region starts with the consumer's head and the producer's tail, each on its own cache line. They are
+ * positions that only ever grow, and index the data that follows modulo its (power of two) capacity. The producer
+ * writes a record past the tail and then publishes it by moving the tail with a release store. The consumer reads
+ * the tail with an acquire load, hence sees the records before it, and gives the room back by moving the head in the
+ * same way. Neither side takes a lock or makes a system call.
+ * </p>
+ *
+ * <p>
+ * Records are aligned on 8 bytes and start with a 16 bytes header: their type, payload length and stream. A record
+ * that does not fit before the end of the data is written at its start instead, with a {@link #PADDING} marker
+ * telling the consumer to skip what is left at the end.
+ * </p>
+ *
+ * <p>
+ * A {@code RingBuffer} is used for one side of the ring only, and is not thread safe.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+final class RingBuffer {
+
+    static final int HEADER_BYTES = 128;
+
+    private static final int HEAD_OFFSET = 0;
+
+    private static final int TAIL_OFFSET = 64;
+
+    private static final int RECORD_HEADER_BYTES = 16;
+
+    private static final int PADDING = -1;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer region;
+
+    private final int offset;
+
+    private final ByteBuffer data;
+
+    private final int capacity;
+
+    private final int mask;
+
+    /*
+     * Producer side: where the next record goes, and the last known head.
+     * Consumer side: the position of the next record to read.
+     */
+    private long position;
+
+    private long cachedHead;
+
+    private long pending;
+
+    /**
+     * Map a ring onto the given region, where it takes {@code HEADER_BYTES + capacity} bytes from {@code offset}.
+     */
+    RingBuffer(ByteBuffer region, int offset, int capacity) {
+        if (Integer.bitCount(capacity) != 1 || capacity < 1024) {
+            throw new IllegalArgumentException("Ring capacity should be a power of two of at least 1024, not " + capacity);
+        }
+        this.region = region;
+        this.offset = offset;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        ByteBuffer slice = region.duplicate();
+        slice.position(offset + HEADER_BYTES).limit(offset + HEADER_BYTES + capacity);
+        this.data = slice.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Pick up from wherever the other side (or a previous user of this side) left the ring.
+     */
+    RingBuffer asProducer() {
+        position = tail();
+        cachedHead = head();
+        return this;
+    }
+
+    RingBuffer asConsumer() {
+        position = head();
+        return this;
+    }
+
+    /**
+     * Return the largest payload a record can have.
+     */
+    int maxPayload() {
+        return capacity / 2 - RECORD_HEADER_BYTES;
+    }
+
+    /**
+     * Reserve room for a record, waiting as long as the ring is full and {@code open} holds. Return a buffer to write
+     * the payload to, from its position to its limit, that is published by {@link #commit()}.
+     *
+     * @throws IllegalStateException if {@code open} stopped holding before there was room
+     */
+    ByteBuffer claim(int type, long stream, int length, WaitStrategy waitStrategy, BooleanSupplier open) {
+        if (length > maxPayload()) {
+            throw new IllegalArgumentException(String.format("A %d bytes record can't fit in a %d bytes ring", length, capacity));
+        }
+        int recordBytes = align(RECORD_HEADER_BYTES + length);
+        long tail = position;
+        int index = (int) (tail & mask);
+        int contiguous = capacity - index;
+        awaitRoom(tail, recordBytes <= contiguous ? recordBytes : contiguous + recordBytes, waitStrategy, open);
+        data.clear();
+        if (recordBytes > contiguous) {
+            data.putInt(index, PADDING);
+            tail += contiguous;
+            index = 0;
+        }
+        data.putInt(index, type);
+        data.putInt(index + 4, length);
+        data.putLong(index + 8, stream);
+        pending = tail + recordBytes;
+        data.limit(index + RECORD_HEADER_BYTES + length).position(index + RECORD_HEADER_BYTES);
+        return data;
+    }
+
+    void commit() {
+        position = pending;
+        LONGS.setRelease(region, offset + TAIL_OFFSET, position);
+    }
+
+    private void awaitRoom(long tail, int bytes, WaitStrategy waitStrategy, BooleanSupplier open) {
+        for (int attempts = 0; bytes > capacity - (tail - cachedHead); attempts++) {
+            cachedHead = head();
+            if (bytes <= capacity - (tail - cachedHead)) {
+                return;
+            }
+            if ((attempts & 0xff) == 0xff && !open.getAsBoolean()) {
+                throw new IllegalStateException("Ring stayed full and the other side went away");
+            }
+            waitStrategy.idle(attempts);
+        }
+    }
+
+    /**
+     * Hand the records published so far to the given handler, and return how many there were. The payload buffer is
+     * only valid for the duration of the callback.
+     */
+    int read(RecordHandler handler) {
+        long tail = tail();
+        long head = position;
+        int count = 0;
+        while (head != tail) {
+            int index = (int) (head & mask);
+            data.clear();
+            int type = data.getInt(index);
+            if (type == PADDING) {
+                head += capacity - index;
+                continue;
+            }
+            int length = data.getInt(index + 4);
+            long stream = data.getLong(index + 8);
+            data.limit(index + RECORD_HEADER_BYTES + length).position(index + RECORD_HEADER_BYTES);
+            handler.onRecord(type, stream, data);
+            head += align(RECORD_HEADER_BYTES + length);
+            count++;
+        }
+        if (count > 0 || head != position) {
+            position = head;
+            LONGS.setRelease(region, offset + HEAD_OFFSET, head);
+        }
+        return count;
+    }
+
+    /**
+     * Drop the records not consumed yet, from the producer side, once the consumer is known to be gone.
+     */
+    void discard() {
+        LONGS.setRelease(region, offset + HEAD_OFFSET, position);
+        cachedHead = position;
+    }
+
+    private long head() {
+        return (long) LONGS.getAcquire(region, offset + HEAD_OFFSET);
+    }
+
+    private long tail() {
+        return (long) LONGS.getAcquire(region, offset + TAIL_OFFSET);
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    @FunctionalInterface
+    interface RecordHandler {
+
+        void onRecord(int type, long stream, ByteBuffer payload);
+    }
+}
@@ -0,0 +1,358 @@
+package io.projectriff.invoker.shm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * One side of a connection over a {@link RingFile}: reads the records of the other side on a dedicated thread, and
+ * writes its own records (from any thread, one at a time, which keeps the ring single-producer).
+ *
+ * <p>
+ * Records carry gRPC calls, multiplexed by stream id: the client {@link #OPEN opens} a call, then both sides
+ * exchange {@link #MESSAGE messages} as the other one {@link #REQUEST requests} them, the client
+ * {@link #HALF_CLOSE half-closes} or {@link #CANCEL cancels} the call and the invoker {@link #CLOSE closes} it with a
+ * status. The client says {@link #GOODBYE goodbye} when it shuts down, and each side signals it is alive with a
+ * heartbeat, so that calls fail instead of hanging when the other side dies.
+ * </p>
+ *
+ * <p>
+ * The reader thread never writes, so that two sides with full rings can't wait for each other. Callbacks that may
+ * write (that is, all of gRPC's) run elsewhere.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+final class RingConnection {
+
+    private static final Logger logger = LoggerFactory.getLogger(RingConnection.class);
+
+    static final int OPEN = 1;
+
+    static final int MESSAGE = 2;
+
+    static final int REQUEST = 3;
+
+    static final int HALF_CLOSE = 4;
+
+    static final int CANCEL = 5;
+
+    static final int CLOSE = 6;
+
+    static final int GOODBYE = 7;
+
+    /*
+     * Runs call callbacks. They may block (as they would on gRPC's default executor), hence get their own thread
+     * while they run.
+     */
+    static final Scheduler CALLBACKS = Schedulers.newElastic("riff-shm-call", 60, true);
+
+    private static final long HEARTBEAT_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    private static final long PEER_TIMEOUT_MILLIS = 5_000L;
+
+    private final RingFile file;
+
+    private final boolean server;
+
+    private final RingBuffer inbound;
+
+    private final RingBuffer outbound;
+
+    private final WaitStrategy waitStrategy;
+
+    private final Handler handler;
+
+    private final Object writeLock = new Object();
+
+    private byte[] scratch = new byte[4096];
+
+    private final Thread reader;
+
+    private volatile boolean running = true;
+
+    RingConnection(RingFile file, boolean server, WaitStrategy waitStrategy, Handler handler) {
+        this.file = file;
+        this.server = server;
+        this.inbound = (server ? file.toServer() : file.toClient()).asConsumer();
+        this.outbound = (server ? file.toClient() : file.toServer()).asProducer();
+        this.waitStrategy = waitStrategy;
+        this.handler = handler;
+        this.reader = new Thread(this::read, "riff-shm-" + (server ? "server" : "client") + "-reader");
+        this.reader.setDaemon(true);
+    }
+
+    void start() {
+        reader.start();
+    }
+
+    /**
+     * Stop reading, and tell the other side this one is gone.
+     */
+    void stop() throws InterruptedException {
+        running = false;
+        if (Thread.currentThread() != reader) {
+            reader.join(TimeUnit.SECONDS.toMillis(5L));
+        }
+        file.stop(server);
+    }
+
+    RingFile getFile() {
+        return file;
+    }
+
+    /**
+     * Return whether the other side is there, and signalled it was alive recently.
+     */
+    boolean isPeerAlive() {
+        long beat = file.lastBeat(!server);
+        return running && file.isAttached() && beat != 0L && System.currentTimeMillis() - beat < PEER_TIMEOUT_MILLIS;
+    }
+
+    private void read() {
+        int idle = 0;
+        long nextBeat = System.nanoTime();
+        while (running) {
+            int read = inbound.read(this::dispatch);
+            long now = System.nanoTime();
+            if (now - nextBeat >= 0L) {
+                file.beat(server);
+                nextBeat = now + HEARTBEAT_NANOS;
+                // An invoker waits for clients to come, a client gives up on a missing invoker
+                if ((file.isAttached() || !server) && !isPeerAlive() && running) {
+                    handler.onPeerGone();
+                }
+            }
+            if (read > 0) {
+                idle = 0;
+            }
+            else {
+                waitStrategy.idle(idle);
+                idle = Math.min(idle + 1, 1 << 20);
+            }
+        }
+    }
+
+    private void dispatch(int type, long stream, ByteBuffer payload) {
+        try {
+            handler.onRecord(type, stream, payload);
+        }
+        catch (RuntimeException e) {
+            logger.error("Failed to handle shared memory record of type {} on stream {}", type, stream, e);
+        }
+    }
+
+    /**
+     * Drop whatever the other side left, after it is gone.
+     */
+    void reset() {
+        inbound.read((type, stream, payload) -> {
+        });
+        synchronized (writeLock) {
+            outbound.discard();
+        }
+    }
+
+    void send(int type, long stream) {
+        synchronized (writeLock) {
+            outbound.claim(type, stream, 0, waitStrategy, this::isPeerAlive);
+            outbound.commit();
+        }
+    }
+
+    void send(int type, long stream, long value) {
+        synchronized (writeLock) {
+            outbound.claim(type, stream, Long.BYTES, waitStrategy, this::isPeerAlive).putLong(value);
+            outbound.commit();
+        }
+    }
+
+    void send(int type, long stream, byte[] bytes) {
+        synchronized (writeLock) {
+            outbound.claim(type, stream, bytes.length, waitStrategy, this::isPeerAlive).put(bytes);
+            outbound.commit();
+        }
+    }
+
+    /**
+     * Send a message. Protobuf messages are serialized into a buffer reused across messages, rather than straight into
+     * the ring: protobuf's encoder for direct buffers writes to the wrong address on some JVMs.
+     */
+    <T> void sendMessage(long stream, T message, MethodDescriptor.Marshaller<T> marshaller) {
+        if (!(message instanceof MessageLite)) {
+            send(MESSAGE, stream, toBytes(marshaller.stream(message)));
+            return;
+        }
+        MessageLite protobuf = (MessageLite) message;
+        int size = protobuf.getSerializedSize();
+        synchronized (writeLock) {
+            if (scratch.length < size) {
+                scratch = new byte[Math.max(size, 2 * scratch.length)];
+            }
+            CodedOutputStream out = CodedOutputStream.newInstance(scratch, 0, size);
+            try {
+                protobuf.writeTo(out);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            outbound.claim(MESSAGE, stream, size, waitStrategy, this::isPeerAlive).put(scratch, 0, size);
+            outbound.commit();
+        }
+    }
+
+    int maxMessageSize() {
+        return outbound.maxPayload();
+    }
+
+    static byte[] toBytes(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] toBytes(InputStream in) {
+        try (InputStream stream = in) {
+            return stream.readAllBytes();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encode the payload of an {@link #OPEN} record: the full method name, the time left before the call's deadline
+     * (or {@code -1}) and the call's ASCII headers. Strings are written as their UTF-8 length then bytes, as
+     * {@code writeUTF} can't write more than 64KB.
+     */
+    static byte[] encodeOpen(String method, long timeoutNanos, Metadata headers) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeString(out, method);
+            out.writeLong(timeoutNanos);
+            for (String key : headers.keys()) {
+                if (!key.endsWith(Metadata.BINARY_HEADER_SUFFIX)) {
+                    for (String value : headers.getAll(Metadata.Key.of(key, Metadata.ASCII_STRING_MARSHALLER))) {
+                        out.writeBoolean(true);
+                        writeString(out, key);
+                        writeString(out, value);
+                    }
+                }
+            }
+            out.writeBoolean(false);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Open decodeOpen(ByteBuffer payload) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(toBytes(payload)))) {
+            String method = readString(in);
+            long timeoutNanos = in.readLong();
+            Metadata headers = new Metadata();
+            while (in.readBoolean()) {
+                headers.put(Metadata.Key.of(readString(in), Metadata.ASCII_STRING_MARSHALLER), readString(in));
+            }
+            return new Open(method, timeoutNanos, headers);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encode the payload of a {@link #CLOSE} record: the status code and description. The description is cut so that
+     * the payload takes at most {@code maxBytes}, as a record that doesn't fit in the ring could never be sent, leaving
+     * the other side waiting for the call to close.
+     */
+    static byte[] encodeStatus(Status status, int maxBytes) {
+        byte[] description = status.getDescription() != null ? status.getDescription().getBytes(StandardCharsets.UTF_8)
+                : new byte[0];
+        int length = Math.min(description.length, Math.max(0, maxBytes - 2 * Integer.BYTES));
+        // Not in the middle of a character
+        while (length < description.length && length > 0 && (description[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(status.getCode().value());
+            out.writeInt(length);
+            out.write(description, 0, length);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Status decodeStatus(ByteBuffer payload) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(toBytes(payload)))) {
+            Status status = Status.fromCodeValue(in.readInt());
+            String description = readString(in);
+            return description.isEmpty() ? status : status.withDescription(description);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static final class Open {
+
+        final String method;
+
+        final long timeoutNanos;
+
+        final Metadata headers;
+
+        private Open(String method, long timeoutNanos, Metadata headers) {
+            this.method = method;
+            this.timeoutNanos = timeoutNanos;
+            this.headers = headers;
+        }
+    }
+
+    interface Handler {
+
+        /**
+         * Handle a record from the other side, on the reader thread. The payload buffer is only valid for the
+         * duration of the callback.
+         */
+        void onRecord(int type, long stream, ByteBuffer payload);
+
+        /**
+         * React to the other side having gone away without saying goodbye, on the reader thread.
+         */
+        void onPeerGone();
+    }
+}
@@ -0,0 +1,145 @@
+package io.projectriff.invoker.shm;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The file shared by the invoker and its client, holding a ring in each direction. Best placed on a memory backed
+ * file system, such as {@code /dev/shm}, so that it never hits the disk.
+ *
+ * <p>
+ * The first page holds a header: a magic number (written last by the invoker, once the rest is set up), the ring
+ * capacity, whether a client is attached, and a heartbeat from each side. Rings follow, client to invoker first.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+final class RingFile {
+
+    private static final long MAGIC = 0x72696666_72696e67L; // "riffring"
+
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+
+    private static final int VERSION_OFFSET = 8;
+
+    private static final int CAPACITY_OFFSET = 12;
+
+    private static final int ATTACHED_OFFSET = 64;
+
+    private static final int SERVER_HEARTBEAT_OFFSET = 128;
+
+    private static final int CLIENT_HEARTBEAT_OFFSET = 192;
+
+    private static final int HEADER_BYTES = 4096;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final Path path;
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    private RingFile(Path path, MappedByteBuffer buffer, int capacity) {
+        this.path = path;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Create the file, replacing any previous one, with rings of the given capacity (a power of two).
+     */
+    static RingFile create(Path path, int capacity) throws IOException {
+        Files.deleteIfExists(path);
+        MappedByteBuffer buffer = map(path, HEADER_BYTES + 2 * (RingBuffer.HEADER_BYTES + capacity), true);
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        RingFile file = new RingFile(path, buffer, capacity);
+        file.beat(true);
+        LONGS.setRelease(buffer, MAGIC_OFFSET, MAGIC);
+        return file;
+    }
+
+    /**
+     * Open a file created by a running invoker.
+     */
+    static RingFile open(Path path) throws IOException {
+        long size = Files.size(path);
+        MappedByteBuffer buffer = map(path, size, false);
+        buffer.order(ByteOrder.nativeOrder());
+        if (size < HEADER_BYTES || (long) LONGS.getAcquire(buffer, MAGIC_OFFSET) != MAGIC) {
+            throw new IOException(path + " is not a riff shared memory file, or the invoker is still setting it up");
+        }
+        if (buffer.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException("Unsupported version " + buffer.getInt(VERSION_OFFSET) + " of " + path);
+        }
+        return new RingFile(path, buffer, buffer.getInt(CAPACITY_OFFSET));
+    }
+
+    private static MappedByteBuffer map(Path path, long size, boolean create) throws IOException {
+        try (FileChannel channel = create
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping outlives the channel
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    RingBuffer toServer() {
+        return new RingBuffer(buffer, HEADER_BYTES, capacity);
+    }
+
+    RingBuffer toClient() {
+        return new RingBuffer(buffer, HEADER_BYTES + RingBuffer.HEADER_BYTES + capacity, capacity);
+    }
+
+    /**
+     * Claim the client side of the rings, which only one client can have at a time.
+     */
+    boolean attach() {
+        return LONGS.compareAndSet(buffer, ATTACHED_OFFSET, 0L, 1L);
+    }
+
+    void detach() {
+        LONGS.setRelease(buffer, ATTACHED_OFFSET, 0L);
+    }
+
+    boolean isAttached() {
+        return (long) LONGS.getAcquire(buffer, ATTACHED_OFFSET) != 0L;
+    }
+
+    /**
+     * Record that the given side is alive.
+     */
+    void beat(boolean server) {
+        LONGS.setRelease(buffer, server ? SERVER_HEARTBEAT_OFFSET : CLIENT_HEARTBEAT_OFFSET, System.currentTimeMillis());
+    }
+
+    /**
+     * Record that the given side is gone for good.
+     */
+    void stop(boolean server) {
+        LONGS.setRelease(buffer, server ? SERVER_HEARTBEAT_OFFSET : CLIENT_HEARTBEAT_OFFSET, 0L);
+    }
+
+    /**
+     * Return when the given side last signalled it was alive, or {@code 0} if it stopped.
+     */
+    long lastBeat(boolean server) {
+        return (long) LONGS.getAcquire(buffer, server ? SERVER_HEARTBEAT_OFFSET : CLIENT_HEARTBEAT_OFFSET);
+    }
+}
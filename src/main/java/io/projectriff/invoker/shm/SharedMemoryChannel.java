@@ -0,0 +1,331 @@
+package io.projectriff.invoker.shm;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+
+/**
+ * A channel to an invoker running a {@link SharedMemoryServer} on the same host, over the shared memory file it
+ * created. Only one such channel can be attached to an invoker at a time.
+ *
+ * <p>
+ * Calls behave like they do on a regular channel, with flow control and deadlines. They fail with
+ * {@code UNAVAILABLE} if the invoker goes away, after which the channel is terminated.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class SharedMemoryChannel extends ManagedChannel {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedMemoryChannel.class);
+
+    private final RingConnection connection;
+
+    private final Map<Long, ClientStream<?, ?>> calls = new ConcurrentHashMap<>();
+
+    private final AtomicLong ids = new AtomicLong();
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private volatile boolean shutdown;
+
+    /**
+     * Attach to the invoker that created the given file.
+     *
+     * @throws IOException if there is no such invoker, or it already has a client attached
+     */
+    public SharedMemoryChannel(Path path, WaitStrategy waitStrategy) throws IOException {
+        RingFile file = RingFile.open(path);
+        // Look alive before attaching, so that the invoker does not take this client for a dead previous one
+        file.beat(false);
+        if (!file.attach()) {
+            throw new IOException("Another client is attached to " + path + " (or died less than a few seconds ago)");
+        }
+        this.connection = new RingConnection(file, false, waitStrategy, new Handler());
+        this.connection.start();
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions) {
+        return new ClientStream<>(ids.incrementAndGet(), method, callOptions);
+    }
+
+    @Override
+    public String authority() {
+        return "localhost";
+    }
+
+    /**
+     * Refuse new calls, and detach from the invoker once in-flight ones complete.
+     */
+    @Override
+    public SharedMemoryChannel shutdown() {
+        shutdown = true;
+        if (calls.isEmpty()) {
+            terminate();
+        }
+        return this;
+    }
+
+    @Override
+    public SharedMemoryChannel shutdownNow() {
+        shutdown = true;
+        calls.values().forEach(call -> call.cancel("Channel shut down", null));
+        terminate();
+        return this;
+    }
+
+    private synchronized void terminate() {
+        if (terminated.getCount() == 0L) {
+            return;
+        }
+        try {
+            if (connection.isPeerAlive()) {
+                connection.send(RingConnection.GOODBYE, 0L);
+            }
+            connection.stop();
+        }
+        catch (IllegalStateException e) {
+            // The invoker went away as well
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        terminated.countDown();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0L;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    private void closed(ClientStream<?, ?> call) {
+        calls.remove(call.id, call);
+        if (shutdown && calls.isEmpty()) {
+            terminate();
+        }
+    }
+
+    /*
+     * Runs on the reader thread: hands records over to calls, which run their callbacks on their own worker.
+     */
+    private class Handler implements RingConnection.Handler {
+
+        @Override
+        public void onRecord(int type, long stream, ByteBuffer payload) {
+            ClientStream<?, ?> call = calls.get(stream);
+            if (call == null) {
+                return;
+            }
+            switch (type) {
+                case RingConnection.MESSAGE:
+                    call.inbound.received(RingConnection.toBytes(payload));
+                    break;
+                case RingConnection.REQUEST:
+                    call.credit(payload.getLong());
+                    break;
+                case RingConnection.CLOSE:
+                    call.remoteClose(RingConnection.decodeStatus(payload));
+                    break;
+                default:
+                    logger.warn("Ignoring shared memory record of unknown type {}", type);
+            }
+        }
+
+        @Override
+        public void onPeerGone() {
+            shutdown = true;
+            calls.values().forEach(call -> call.localClose(Status.UNAVAILABLE.withDescription("Invoker went away")));
+            terminate();
+        }
+    }
+
+    private class ClientStream<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+
+        private final long id;
+
+        private final MethodDescriptor<ReqT, RespT> method;
+
+        private final CallOptions callOptions;
+
+        private final Scheduler.Worker worker = RingConnection.CALLBACKS.createWorker();
+
+        private final Inbound inbound;
+
+        private final AtomicLong credits = new AtomicLong();
+
+        private volatile ClientCall.Listener<RespT> listener;
+
+        private volatile boolean closed;
+
+        private Disposable deadlineTimer;
+
+        ClientStream(long id, MethodDescriptor<ReqT, RespT> method, CallOptions callOptions) {
+            this.id = id;
+            this.method = method;
+            this.callOptions = callOptions;
+            this.inbound = new Inbound(worker, bytes -> listener.onMessage(method.parseResponse(new ByteArrayInputStream(bytes))));
+        }
+
+        @Override
+        public void start(Listener<RespT> listener, Metadata headers) {
+            this.listener = listener;
+            if (shutdown) {
+                localClose(Status.UNAVAILABLE.withDescription("Channel shut down"));
+                return;
+            }
+            Deadline deadline = earliest(callOptions.getDeadline(), Context.current().getDeadline());
+            long timeoutNanos = -1L;
+            if (deadline != null) {
+                timeoutNanos = Math.max(0L, deadline.timeRemaining(TimeUnit.NANOSECONDS));
+                deadlineTimer = worker.schedule(() -> {
+                    if (!closed) {
+                        send(RingConnection.CANCEL);
+                        localClose(Status.DEADLINE_EXCEEDED.withDescription("Deadline exceeded after " + deadline));
+                    }
+                }, timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+            calls.put(id, this);
+            try {
+                connection.send(RingConnection.OPEN, id, RingConnection.encodeOpen(method.getFullMethodName(), timeoutNanos, headers));
+            }
+            catch (IllegalStateException e) {
+                localClose(Status.UNAVAILABLE.withDescription("Invoker went away"));
+            }
+            catch (IllegalArgumentException e) {
+                localClose(Status.RESOURCE_EXHAUSTED.withDescription("Call headers don't fit in the ring: " + e.getMessage()));
+            }
+        }
+
+        private Deadline earliest(Deadline a, Deadline b) {
+            return a == null ? b : b == null ? a : a.minimum(b);
+        }
+
+        void credit(long count) {
+            if (credits.getAndAdd(count) <= 0L && credits.get() > 0L) {
+                inbound.schedule(() -> listener.onReady());
+            }
+        }
+
+        /**
+         * Complete the call with the status the invoker closed it with, after results received so far if successful.
+         */
+        void remoteClose(Status status) {
+            closed = true;
+            if (status.isOk()) {
+                inbound.end(() -> finish(status));
+            }
+            else {
+                inbound.abort(() -> finish(status));
+            }
+        }
+
+        void localClose(Status status) {
+            closed = true;
+            inbound.abort(() -> finish(status));
+        }
+
+        private void finish(Status status) {
+            try {
+                listener.onClose(status, new Metadata());
+            }
+            finally {
+                if (deadlineTimer != null) {
+                    deadlineTimer.dispose();
+                }
+                worker.dispose();
+                closed(this);
+            }
+        }
+
+        @Override
+        public void request(int numMessages) {
+            inbound.request(numMessages);
+            if (!closed) {
+                try {
+                    connection.send(RingConnection.REQUEST, id, numMessages);
+                }
+                catch (IllegalStateException e) {
+                    localClose(Status.UNAVAILABLE.withDescription("Invoker went away"));
+                }
+            }
+        }
+
+        @Override
+        public void cancel(String message, Throwable cause) {
+            if (!closed) {
+                send(RingConnection.CANCEL);
+                localClose(Status.CANCELLED.withDescription(message).withCause(cause));
+            }
+        }
+
+        @Override
+        public void halfClose() {
+            send(RingConnection.HALF_CLOSE);
+        }
+
+        @Override
+        public void sendMessage(ReqT message) {
+            if (closed) {
+                return;
+            }
+            credits.decrementAndGet();
+            try {
+                connection.sendMessage(id, message, method.getRequestMarshaller());
+            }
+            catch (IllegalStateException e) {
+                localClose(Status.UNAVAILABLE.withDescription("Invoker went away"));
+            }
+            catch (IllegalArgumentException e) {
+                send(RingConnection.CANCEL);
+                localClose(Status.RESOURCE_EXHAUSTED.withDescription(e.getMessage()));
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return !closed && credits.get() > 0L;
+        }
+
+        private void send(int type) {
+            try {
+                connection.send(type, id);
+            }
+            catch (IllegalStateException e) {
+                localClose(Status.UNAVAILABLE.withDescription("Invoker went away"));
+            }
+            catch (IllegalArgumentException e) {
+                localClose(Status.RESOURCE_EXHAUSTED.withDescription("Call headers don't fit in the ring: " + e.getMessage()));
+            }
+        }
+    }
+}
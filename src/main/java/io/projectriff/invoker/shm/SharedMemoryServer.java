@@ -0,0 +1,383 @@
+package io.projectriff.invoker.shm;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.scheduler.Scheduler;
+
+/**
+ * A gRPC server for a single co-located client, such as a sidecar in the same pod, that talks to it over rings in a
+ * shared memory file rather than over a socket. This skips the kernel network stack, HTTP/2 framing and the copies
+ * in between: input frames are parsed from a copy of the ring, and output frames are serialized straight into it.
+ *
+ * <p>
+ * Services are those of a regular server, so interceptors and the functions behind them work the same. Compression
+ * does not apply, and call headers are limited to ASCII ones. One client can be attached at a time, others are
+ * refused until it goes away (saying goodbye, or not signalling it is alive for a few seconds). Use a
+ * {@link SharedMemoryChannel} on the client side.
+ * </p>
+ *
+ * @author Eric Bottard
+ * @see RingFile
+ */
+public class SharedMemoryServer extends Server {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedMemoryServer.class);
+
+    /*
+     * Only provides deadlines to call contexts, calls are cancelled by the client once theirs has passed.
+     */
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "riff-shm-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path path;
+
+    private final int ringCapacity;
+
+    private final WaitStrategy waitStrategy;
+
+    private final List<ServerServiceDefinition> services;
+
+    private final Map<Long, ServerStream<?, ?>> calls = new ConcurrentHashMap<>();
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private RingConnection connection;
+
+    private volatile boolean shutdown;
+
+    /**
+     * Create a server that will share the given file (which it creates, replacing any previous one) with a client,
+     * with rings of {@code ringCapacity} bytes (a power of two) in each direction.
+     */
+    public SharedMemoryServer(Path path, int ringCapacity, WaitStrategy waitStrategy,
+                              List<ServerServiceDefinition> services) {
+        this.path = path;
+        this.ringCapacity = ringCapacity;
+        this.waitStrategy = waitStrategy;
+        this.services = services;
+    }
+
+    @Override
+    public SharedMemoryServer start() throws IOException {
+        connection = new RingConnection(RingFile.create(path, ringCapacity), true, waitStrategy, new Handler());
+        connection.start();
+        return this;
+    }
+
+    @Override
+    public List<ServerServiceDefinition> getServices() {
+        return services;
+    }
+
+    /**
+     * Refuse new calls, letting in-flight ones complete.
+     */
+    @Override
+    public SharedMemoryServer shutdown() {
+        shutdown = true;
+        if (calls.isEmpty()) {
+            terminate();
+        }
+        return this;
+    }
+
+    @Override
+    public SharedMemoryServer shutdownNow() {
+        shutdown();
+        calls.values().forEach(call -> call.cancel(Status.UNAVAILABLE.withDescription("Invoker is shutting down"), true));
+        terminate();
+        return this;
+    }
+
+    private synchronized void terminate() {
+        if (terminated.getCount() == 0L) {
+            return;
+        }
+        try {
+            if (connection != null) {
+                connection.stop();
+            }
+            Files.deleteIfExists(path);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException e) {
+            logger.warn("Could not delete shared memory file {}", path, e);
+        }
+        terminated.countDown();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0L;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    @Override
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    private ServerMethodDefinition<?, ?> lookup(String fullMethodName) {
+        for (ServerServiceDefinition service : services) {
+            ServerMethodDefinition<?, ?> method = service.getMethod(fullMethodName);
+            if (method != null) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private void closed(ServerStream<?, ?> call) {
+        calls.remove(call.id, call);
+        if (shutdown && calls.isEmpty()) {
+            terminate();
+        }
+    }
+
+    /*
+     * Runs on the reader thread: hands records over to calls, which run their callbacks on their own worker.
+     */
+    private class Handler implements RingConnection.Handler {
+
+        @Override
+        public void onRecord(int type, long stream, ByteBuffer payload) {
+            if (type == RingConnection.OPEN) {
+                open(stream, RingConnection.decodeOpen(payload));
+                return;
+            }
+            if (type == RingConnection.GOODBYE) {
+                onPeerGone();
+                return;
+            }
+            ServerStream<?, ?> call = calls.get(stream);
+            if (call == null) {
+                return;
+            }
+            switch (type) {
+                case RingConnection.MESSAGE:
+                    call.inbound.received(RingConnection.toBytes(payload));
+                    break;
+                case RingConnection.REQUEST:
+                    call.credit(payload.getLong());
+                    break;
+                case RingConnection.HALF_CLOSE:
+                    call.halfClosed();
+                    break;
+                case RingConnection.CANCEL:
+                    call.cancel(Status.CANCELLED.withDescription("Cancelled by client"), false);
+                    break;
+                default:
+                    logger.warn("Ignoring shared memory record of unknown type {}", type);
+            }
+        }
+
+        private void open(long stream, RingConnection.Open open) {
+            ServerMethodDefinition<?, ?> method = lookup(open.method);
+            Status refusal = shutdown ? Status.UNAVAILABLE.withDescription("Invoker is shutting down")
+                    : method == null ? Status.UNIMPLEMENTED.withDescription("Unknown method " + open.method)
+                    : null;
+            if (refusal != null) {
+                // The only write from the reader thread, which the client always makes room for
+                connection.send(RingConnection.CLOSE, stream, RingConnection.encodeStatus(refusal, connection.maxMessageSize()));
+                return;
+            }
+            ServerStream<?, ?> call = new ServerStream<>(stream, method, open);
+            calls.put(stream, call);
+            call.start();
+        }
+
+        /*
+         * Fail the calls of the client that went away, and make room for the next one.
+         */
+        @Override
+        public void onPeerGone() {
+            calls.values().forEach(call -> call.cancel(Status.CANCELLED.withDescription("Client went away"), false));
+            connection.reset();
+            connection.getFile().detach();
+        }
+    }
+
+    private class ServerStream<ReqT, RespT> extends ServerCall<ReqT, RespT> {
+
+        private final long id;
+
+        private final ServerMethodDefinition<ReqT, RespT> method;
+
+        private final RingConnection.Open open;
+
+        private final Context.CancellableContext context;
+
+        private final Scheduler.Worker worker = RingConnection.CALLBACKS.createWorker();
+
+        private final Inbound inbound;
+
+        private final AtomicLong credits = new AtomicLong();
+
+        private volatile ServerCall.Listener<ReqT> listener;
+
+        private volatile boolean cancelled;
+
+        private volatile boolean closed;
+
+        ServerStream(long id, ServerMethodDefinition<ReqT, RespT> method, RingConnection.Open open) {
+            this.id = id;
+            this.method = method;
+            this.open = open;
+            this.context = open.timeoutNanos >= 0L
+                    ? Context.current().withDeadline(Deadline.after(open.timeoutNanos, TimeUnit.NANOSECONDS), DEADLINES)
+                    : Context.current().withCancellation();
+            this.inbound = new Inbound(worker, bytes -> context.run(() -> listener.onMessage(
+                    method.getMethodDescriptor().parseRequest(new ByteArrayInputStream(bytes)))));
+        }
+
+        void start() {
+            inbound.schedule(() -> context.run(() -> {
+                listener = method.getServerCallHandler().startCall(this, open.headers);
+                if (isReady()) {
+                    listener.onReady();
+                }
+            }));
+        }
+
+        void halfClosed() {
+            inbound.end(() -> context.run(() -> listener.onHalfClose()));
+        }
+
+        void credit(long count) {
+            if (credits.getAndAdd(count) <= 0L && credits.get() > 0L) {
+                inbound.schedule(() -> context.run(() -> listener.onReady()));
+            }
+        }
+
+        /**
+         * Cancel the call, telling the client unless it is the one that cancelled (or is gone).
+         */
+        void cancel(Status status, boolean notify) {
+            cancelled = true;
+            if (!closed) {
+                closed = true;
+                if (notify) {
+                    send(RingConnection.CLOSE, RingConnection.encodeStatus(status, connection.maxMessageSize()));
+                }
+            }
+            inbound.abort(() -> {
+                try {
+                    context.run(() -> listener.onCancel());
+                }
+                finally {
+                    context.cancel(null);
+                    worker.dispose();
+                    closed(this);
+                }
+            });
+        }
+
+        @Override
+        public void request(int numMessages) {
+            inbound.request(numMessages);
+            send(RingConnection.REQUEST, numMessages);
+        }
+
+        @Override
+        public void sendHeaders(Metadata headers) {
+        }
+
+        @Override
+        public void sendMessage(RespT message) {
+            if (cancelled) {
+                return;
+            }
+            credits.decrementAndGet();
+            connection.sendMessage(id, message, method.getMethodDescriptor().getResponseMarshaller());
+        }
+
+        @Override
+        public boolean isReady() {
+            return !cancelled && credits.get() > 0L;
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            send(RingConnection.CLOSE, RingConnection.encodeStatus(status, connection.maxMessageSize()));
+            inbound.abort(() -> {
+                try {
+                    context.run(() -> listener.onComplete());
+                }
+                finally {
+                    context.cancel(null);
+                    worker.dispose();
+                    closed(this);
+                }
+            });
+        }
+
+        private void send(int type, long value) {
+            try {
+                connection.send(type, id, value);
+            }
+            catch (IllegalStateException e) {
+                // The client went away, which cancels the call
+            }
+        }
+
+        private void send(int type, byte[] payload) {
+            try {
+                connection.send(type, id, payload);
+            }
+            catch (IllegalStateException e) {
+                // The client went away, which cancels the call
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public MethodDescriptor<ReqT, RespT> getMethodDescriptor() {
+            return method.getMethodDescriptor();
+        }
+    }
+}
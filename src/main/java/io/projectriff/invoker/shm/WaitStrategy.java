@@ -0,0 +1,74 @@
+package io.projectriff.invoker.shm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a side of a shared memory connection waits, when there is nothing to read or no room to write. This trades
+ * latency for CPU: the other side can't wake a waiting thread up, so a thread that sleeps only notices new records
+ * when it wakes up.
+ *
+ * @author Eric Bottard
+ */
+public enum WaitStrategy {
+
+    /**
+     * Keep polling. Lowest latency, but each waiting thread burns a core, so only use this when the invoker and its
+     * client have cores to spare.
+     */
+    BUSY_SPIN {
+        @Override
+        void idle(int attempts) {
+            Thread.onSpinWait();
+        }
+    },
+
+    /**
+     * Poll for a little while, then sleep for {@value #PARK_MICROS}µs between polls.
+     */
+    PARK {
+        @Override
+        void idle(int attempts) {
+            if (attempts < SPINS) {
+                Thread.onSpinWait();
+            }
+            else {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(PARK_MICROS));
+            }
+        }
+    },
+
+    /**
+     * Poll, then yield, then sleep for longer and longer (up to {@value #MAX_BACKOFF_MICROS}µs) while there is still
+     * nothing to do. This reacts quickly to a busy peer and costs next to nothing when idle, much like a futex would,
+     * at the cost of up to a millisecond of latency for the first record after a lull.
+     */
+    BACKOFF {
+        @Override
+        void idle(int attempts) {
+            if (attempts < SPINS) {
+                Thread.onSpinWait();
+            }
+            else if (attempts < SPINS + YIELDS) {
+                Thread.yield();
+            }
+            else {
+                int doublings = Math.min(10, (attempts - SPINS - YIELDS) / 8);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(Math.min(MAX_BACKOFF_MICROS, 1L << doublings)));
+            }
+        }
+    };
+
+    private static final int SPINS = 100;
+
+    private static final int YIELDS = 50;
+
+    private static final long PARK_MICROS = 50L;
+
+    private static final long MAX_BACKOFF_MICROS = 1000L;
+
+    /**
+     * Wait a bit, after {@code attempts} consecutive polls found nothing to do.
+     */
+    abstract void idle(int attempts);
+}
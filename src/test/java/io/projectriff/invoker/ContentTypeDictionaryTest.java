@@ -0,0 +1,117 @@
+package io.projectriff.invoker;
+
+import java.util.List;
+import java.util.Set;
+
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputSignal;
+import org.junit.Test;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import static io.projectriff.invoker.HttpMessageUtils.RIFF_INPUT;
+import static io.projectriff.invoker.HttpMessageUtils.RIFF_OUTPUT;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests referring to content types by their index in a {@link ContentTypeDictionary}, and the headers frames are
+ * decoded with.
+ *
+ * @author Eric Bottard
+ */
+public class ContentTypeDictionaryTest {
+
+    private final ContentTypeDictionary dictionary = new ContentTypeDictionary(
+            List.of("application/json", "text/plain"));
+
+    @Test
+    public void testDeclaredContentTypesAreSentAsRefs() {
+        InputSignal declared = input("text/plain", 1, null).asInputSignal(dictionary);
+        assertThat(declared.getData().getContentTypeRef(), equalTo(2));
+        assertThat(declared.getData().getContentType(), equalTo(""));
+
+        InputSignal other = input("application/xml", 1, null).asInputSignal(dictionary);
+        assertThat(other.getData().getContentTypeRef(), equalTo(0));
+        assertThat(other.getData().getContentType(), equalTo("application/xml"));
+
+        OutputSignal output = output("application/json", 0, null).asOutputSignal(dictionary);
+        assertThat(output.getData().getContentTypeRef(), equalTo(1));
+    }
+
+    @Test
+    public void testRefsResolveToInternedContentTypes() {
+        InputSignal signal = input("text/plain", 1, null).asInputSignal(dictionary);
+        InputSignalHttpInputMessage first = new InputSignalHttpInputMessage(signal.getData(), dictionary);
+        InputSignalHttpInputMessage second = new InputSignalHttpInputMessage(signal.getData(), dictionary);
+
+        assertThat(first.getContentType(), equalTo(MediaType.TEXT_PLAIN));
+        assertThat(second.getContentType(), sameInstance(first.getContentType()));
+        assertThat(MediaTypeCache.parse("text/plain"), sameInstance(first.getContentType()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownRefIsRejected() {
+        dictionary.resolve(3, "");
+    }
+
+    @Test
+    public void testInputHeadersDontDependOnCustomHeaders() {
+        InputSignal plain = input("text/plain", 1, null).asInputSignal(dictionary);
+        InputSignal custom = input("text/plain", 1, "bar").asInputSignal(dictionary);
+
+        HttpHeaders plainHeaders = new InputSignalHttpInputMessage(plain.getData(), dictionary).getHeaders();
+        HttpHeaders customHeaders = new InputSignalHttpInputMessage(custom.getData(), dictionary).getHeaders();
+
+        assertThat(plainHeaders.getFirst(RIFF_INPUT), equalTo("1"));
+        assertThat(plainHeaders.getContentType(), equalTo(MediaType.TEXT_PLAIN));
+        assertThat(plainHeaders.getFirst("Foo"), nullValue());
+        assertThat(customHeaders.getFirst(RIFF_INPUT), equalTo("1"));
+        assertThat(customHeaders.getContentType(), equalTo(MediaType.TEXT_PLAIN));
+        assertThat(customHeaders.getFirst("Foo"), equalTo("bar"));
+        // Frames of another argument don't share the headers of the first one
+        InputSignal otherArg = input("text/plain", 0, null).asInputSignal(dictionary);
+        assertThat(new InputSignalHttpInputMessage(otherArg.getData(), dictionary).getHeaders().getFirst(RIFF_INPUT),
+                equalTo("0"));
+    }
+
+    @Test
+    public void testOutputHeadersDontDependOnCustomHeaders() {
+        OutputSignal plain = output("application/json", 2, null).asOutputSignal(dictionary);
+        OutputSignal custom = output("application/json", 2, "bar").asOutputSignal(dictionary);
+
+        HttpHeaders plainHeaders = new OutputSignalHttpInputMessage(plain, dictionary).getHeaders();
+        HttpHeaders customHeaders = new OutputSignalHttpInputMessage(custom, dictionary).getHeaders();
+
+        assertThat(plainHeaders.getFirst(RIFF_OUTPUT), equalTo("2"));
+        assertThat(plainHeaders.getContentType(), equalTo(MediaType.APPLICATION_JSON));
+        assertThat(customHeaders.getFirst(RIFF_OUTPUT), equalTo("2"));
+        assertThat(customHeaders.getContentType(), equalTo(MediaType.APPLICATION_JSON));
+        assertThat(customHeaders.getFirst("Foo"), equalTo("bar"));
+        // Neither the index nor the content type travel as custom headers
+        assertThat(custom.getData().getHeadersMap().keySet(), equalTo(Set.of("Foo")));
+    }
+
+    private static SignalHttpOutputMessage input(String contentType, int argIndex, String foo) {
+        SignalHttpOutputMessage message = new SignalHttpOutputMessage();
+        message.getHeaders().set(HttpHeaders.CONTENT_TYPE, contentType);
+        message.getHeaders().set(RIFF_INPUT, Integer.toString(argIndex));
+        if (foo != null) {
+            message.getHeaders().set("Foo", foo);
+        }
+        return message;
+    }
+
+    private static SignalHttpOutputMessage output(String contentType, int resultIndex, String foo) {
+        SignalHttpOutputMessage message = new SignalHttpOutputMessage();
+        message.getHeaders().set(HttpHeaders.CONTENT_TYPE, contentType);
+        message.getHeaders().set(RIFF_OUTPUT, Integer.toString(resultIndex));
+        if (foo != null) {
+            message.getHeaders().set("Foo", foo);
+        }
+        return message;
+    }
+}
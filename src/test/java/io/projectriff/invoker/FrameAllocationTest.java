@@ -0,0 +1,128 @@
+package io.projectriff.invoker;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+import io.projectriff.invoker.rpc.OutputSignal;
+import org.junit.Test;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import static io.projectriff.invoker.HttpMessageUtils.RIFF_INPUT;
+import static io.projectriff.invoker.HttpMessageUtils.RIFF_OUTPUT;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests counting the bytes allocated on the per frame paths that are meant to reuse their objects.
+ *
+ * @author Eric Bottard
+ */
+public class FrameAllocationTest {
+
+    private static final int FRAMES = 200_000;
+
+    private static final List<MediaType> CONTENT_TYPES = List.of(MediaType.TEXT_PLAIN, MediaType.APPLICATION_JSON,
+            MediaType.parseMediaType("text/plain;charset=UTF-8"));
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void testFrameHeadersAreShared() {
+        HttpHeaders headers = MediaTypeCache.frameHeaders(MediaTypeCache.parse("text/plain"), RIFF_OUTPUT, 3);
+
+        assertThat(headers.getFirst(RIFF_OUTPUT), equalTo("3"));
+        assertThat(headers.getContentType(), equalTo(MediaType.TEXT_PLAIN));
+        assertThat(MediaTypeCache.frameHeaders(MediaTypeCache.parse("text/plain"), RIFF_OUTPUT, 3), sameInstance(headers));
+        assertThat(MediaTypeCache.frameHeaders(MediaTypeCache.parse("text/plain"), RIFF_OUTPUT, 2), not(sameInstance(headers)));
+        assertThat(MediaTypeCache.frameHeaders(MediaTypeCache.parse("text/plain"), RIFF_INPUT, 3).getFirst(RIFF_INPUT),
+                equalTo("3"));
+        // Equal content types that are not the same instance get the same headers, if not the same object
+        assertThat(MediaTypeCache.frameHeaders(MediaType.parseMediaType("text/plain"), RIFF_OUTPUT, 3), equalTo(headers));
+    }
+
+    @Test
+    public void testLookingUpFrameHeadersDoesNotAllocate() {
+        Runnable lookups = () -> {
+            for (int i = 0; i < FRAMES; i++) {
+                MediaTypeCache.frameHeaders(CONTENT_TYPES.get(i % 3), (i & 4) == 0 ? RIFF_INPUT : RIFF_OUTPUT, i % 4);
+            }
+        };
+        // Leave the JIT a chance to compile the lookup before counting
+        lookups.run();
+        lookups.run();
+
+        long perFrame = allocatedBy(lookups) / FRAMES;
+        assertThat("bytes per lookup: " + perFrame, perFrame, equalTo(0L));
+    }
+
+    @Test
+    public void testResetMessagesCanBeWrittenAgain() throws IOException {
+        SignalHttpOutputMessage message = new SignalHttpOutputMessage();
+        OutputSignal first = write(message, "first", 0);
+        message.reset();
+        OutputSignal second = write(message, "second", 1);
+
+        assertThat(first.getData().getPayload().toStringUtf8(), equalTo("first"));
+        assertThat(first.getData().getResultIndex(), equalTo(0));
+        assertThat(first.getData().getHeadersMap().keySet(), equalTo(Set.of("Foo")));
+        assertThat(second.getData().getPayload().toStringUtf8(), equalTo("second"));
+        assertThat(second.getData().getResultIndex(), equalTo(1));
+        assertThat(second.getData().getHeadersMap().keySet(), equalTo(Set.of("Foo")));
+    }
+
+    @Test
+    public void testReusedMessagesAllocateLessPerFrame() {
+        SignalHttpOutputMessage reused = new SignalHttpOutputMessage();
+        Runnable reusing = () -> {
+            for (int i = 0; i < FRAMES; i++) {
+                reused.reset();
+                writeUnchecked(reused, "riff", 0);
+            }
+        };
+        Runnable allocating = () -> {
+            for (int i = 0; i < FRAMES; i++) {
+                writeUnchecked(new SignalHttpOutputMessage(), "riff", 0);
+            }
+        };
+        reusing.run();
+        allocating.run();
+
+        long reusingPerFrame = allocatedBy(reusing) / FRAMES;
+        long allocatingPerFrame = allocatedBy(allocating) / FRAMES;
+        assertThat("bytes per frame: " + reusingPerFrame + " reused, " + allocatingPerFrame + " allocated",
+                reusingPerFrame < allocatingPerFrame, is(true));
+    }
+
+    private static long allocatedBy(Runnable work) {
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        work.run();
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+
+    private static OutputSignal write(SignalHttpOutputMessage message, String payload, int index) throws IOException {
+        message.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+        message.getHeaders().set(RIFF_OUTPUT, Integer.toString(index));
+        message.getHeaders().set("Foo", payload);
+        message.getBody().write(payload.getBytes(StandardCharsets.UTF_8));
+        return message.asOutputSignal();
+    }
+
+    private static void writeUnchecked(SignalHttpOutputMessage message, String payload, int index) {
+        try {
+            write(message, payload, index);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -175,6 +175,54 @@ public class IntegrationTest {
 
     }
 
+    /*
+     * This tests that compression is negotiated in both directions, and transparent to the function.
+     */
+    @Test
+    public void testCompressedInvocation() throws Exception {
+        setFunctionLocation("hundred-divider-1.0.0");
+        setFunctionBean("com.acme.HundredDivider");
+        processBuilder.environment().put("RIFF_INVOKER_COMPRESSION_CODEC", "gzip");
+        processBuilder.environment().put("RIFF_INVOKER_COMPRESSION_THRESHOLD", "0");
+        process = processBuilder.start();
+
+        Function<Flux<Integer>, Flux<Integer>[]> function = FunctionProxy.builder(Function.class)
+                .channel(connect())
+                .outputTypes(Integer.class)
+                .compression("gzip", 0)
+                .build();
+
+        Flux<Integer>[] response = function.apply(Flux.just(1, 2, 4));
+        StepVerifier.create(response[0])
+                .expectNext(100, 50, 25)
+                .verifyComplete();
+    }
+
+    /*
+     * This tests that a stream in flight when the invoker is asked to stop is allowed to complete.
+     */
+    @Test
+    public void testGracefulShutdown() throws Exception {
+        setFunctionLocation("hundred-divider-1.0.0");
+        setFunctionBean("com.acme.HundredDivider");
+        process = processBuilder.start();
+
+        Function<Flux<Integer>, Flux<Integer>[]> function = FunctionProxy.create(Function.class, connect(), Integer.class);
+
+        Flux<Integer> input = Flux.just(1, 2, 4, 5, 10)
+                .delayElements(Duration.ofMillis(300))
+                .doOnNext(i -> {
+                    if (i == 2) {
+                        process.destroy(); // SIGTERM
+                    }
+                });
+        Flux<Integer>[] response = function.apply(input);
+        StepVerifier.create(response[0])
+                .expectNext(100, 50, 25, 20, 10)
+                .verifyComplete();
+        assertThat(process.waitFor(10, TimeUnit.SECONDS), CoreMatchers.is(true));
+    }
+
     /*
      * This tests the client triggering an onError() event.
      */
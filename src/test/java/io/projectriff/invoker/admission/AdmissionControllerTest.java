@@ -0,0 +1,87 @@
+package io.projectriff.invoker.admission;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests for {@link AdmissionController}.
+ *
+ * @author Eric Bottard
+ */
+public class AdmissionControllerTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    public void testPrioritiesGetTheirShareOfTheLimit() {
+        AdmissionController controller = new AdmissionController(new GradientConcurrencyLimit(10, 10, 10), registry);
+
+        assertThat(acquireAll(controller, Priority.SHEDDABLE).size(), equalTo(5));
+        assertThat(acquireAll(controller, Priority.NORMAL).size(), equalTo(4));
+        assertThat(acquireAll(controller, Priority.CRITICAL).size(), equalTo(1));
+        assertThat(controller.getInFlight(), equalTo(10));
+
+        assertThat(rejected(Priority.SHEDDABLE), equalTo(1d));
+        assertThat(rejected(Priority.NORMAL), equalTo(1d));
+        assertThat(rejected(Priority.CRITICAL), equalTo(1d));
+    }
+
+    @Test
+    public void testReleasingAPermitAdmitsAnotherInvocation() {
+        AdmissionController controller = new AdmissionController(new GradientConcurrencyLimit(1, 1, 1), registry);
+        AdmissionController.Permit permit = controller.tryAcquire(Priority.NORMAL);
+        assertThat(permit, notNullValue());
+        assertThat(controller.tryAcquire(Priority.CRITICAL), nullValue());
+
+        permit.ignore();
+        // Releasing twice doesn't free a slot that isn't there
+        permit.ignore();
+        permit.success(1);
+        assertThat(controller.getInFlight(), equalTo(0));
+        assertThat(controller.tryAcquire(Priority.NORMAL), notNullValue());
+        assertThat(controller.tryAcquire(Priority.NORMAL), nullValue());
+    }
+
+    @Test
+    public void testSuccessfulInvocationsFeedTheLimit() {
+        AdmissionController controller = new AdmissionController(new GradientConcurrencyLimit(4, 1, 100), registry);
+        for (int i = 0; i < 200; i++) {
+            List<AdmissionController.Permit> permits = acquireAll(controller, Priority.CRITICAL);
+            permits.forEach(p -> p.success(1));
+        }
+        assertThat(controller.getLimit() > 4, equalTo(true));
+        assertThat(registry.get(AdmissionController.METRICS_PREFIX + ".limit").gauge().value(),
+                equalTo((double) controller.getLimit()));
+
+        // Failures release their slot, but don't tell anything about latency
+        int limit = controller.getLimit();
+        for (int i = 0; i < 200; i++) {
+            acquireAll(controller, Priority.CRITICAL).forEach(AdmissionController.Permit::ignore);
+        }
+        assertThat(controller.getLimit(), equalTo(limit));
+        assertThat(controller.getInFlight(), equalTo(0));
+    }
+
+    private static List<AdmissionController.Permit> acquireAll(AdmissionController controller, Priority priority) {
+        List<AdmissionController.Permit> permits = new ArrayList<>();
+        for (AdmissionController.Permit p = controller.tryAcquire(priority); p != null; p = controller.tryAcquire(priority)) {
+            permits.add(p);
+        }
+        return permits;
+    }
+
+    private double rejected(Priority priority) {
+        return registry.get(AdmissionController.METRICS_PREFIX + ".rejected")
+                .tag("priority", priority.name().toLowerCase())
+                .counter()
+                .count();
+    }
+}
@@ -0,0 +1,104 @@
+package io.projectriff.invoker.admission;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests for {@link GradientConcurrencyLimit}.
+ *
+ * @author Eric Bottard
+ */
+public class GradientConcurrencyLimitTest {
+
+    private static final long NO_LOAD = 1_000_000L;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInitialLimitMustBeWithinBounds() {
+        new GradientConcurrencyLimit(200, 1, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMinLimitMustBePositive() {
+        new GradientConcurrencyLimit(10, 0, 100);
+    }
+
+    @Test
+    public void testLimitGrowsUpToMaxWhileLatencyStaysFlat() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(10, 1, 100);
+        int previous = limit.getLimit();
+        for (int i = 0; i < 500; i++) {
+            limit.onSample(NO_LOAD, limit.getLimit());
+            assertThat(limit.getLimit() >= previous, is(true));
+            previous = limit.getLimit();
+        }
+        assertThat(limit.getLimit(), equalTo(100));
+    }
+
+    @Test
+    public void testLimitDoesNotGrowWhileMostlyUnused() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(10, 1, 100);
+        for (int i = 0; i < 500; i++) {
+            limit.onSample(NO_LOAD, 4);
+        }
+        assertThat(limit.getLimit(), equalTo(10));
+    }
+
+    @Test
+    public void testLatencyWithinToleranceKeepsTheLimit() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(50, 1, 50);
+        limit.onSample(NO_LOAD, 50);
+        for (int i = 0; i < 500; i++) {
+            limit.onSample(NO_LOAD * 14 / 10, 50);
+        }
+        assertThat(limit.getLimit(), equalTo(50));
+    }
+
+    @Test
+    public void testLimitShrinksAsLatencyGrows() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(100, 1, 100);
+        limit.onSample(NO_LOAD, 100);
+        int previous = limit.getLimit();
+        for (int i = 0; i < 10; i++) {
+            limit.onSample(4 * NO_LOAD, 100);
+            assertThat(limit.getLimit() < previous, is(true));
+            previous = limit.getLimit();
+        }
+        // Converges towards the point where the queue allowance makes up for the halving: limit / 2 = sqrt(limit)
+        for (int i = 0; i < 500; i++) {
+            limit.onSample(4 * NO_LOAD, 100);
+        }
+        assertThat(limit.getLimit(), equalTo(4));
+    }
+
+    @Test
+    public void testLimitStaysAboveMin() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(100, 20, 100);
+        limit.onSample(NO_LOAD, 100);
+        for (int i = 0; i < 500; i++) {
+            limit.onSample(100 * NO_LOAD, 100);
+        }
+        assertThat(limit.getLimit(), equalTo(20));
+    }
+
+    @Test
+    public void testNoLoadLatencyIsProbedAgainPeriodically() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(100, 1, 100);
+        for (int i = 1; i < 2000; i++) {
+            limit.onSample(NO_LOAD, 100);
+        }
+        assertThat(limit.getLimit(), equalTo(100));
+
+        // The probe halves the limit, then forgets the latency measured so far
+        limit.onSample(NO_LOAD, 100);
+        assertThat(limit.getLimit(), equalTo(50));
+
+        // Hence a slower workload becomes the new normal, instead of being seen as queueing forever
+        for (int i = 0; i < 500; i++) {
+            limit.onSample(10 * NO_LOAD, limit.getLimit());
+        }
+        assertThat(limit.getLimit(), equalTo(100));
+    }
+}
@@ -0,0 +1,130 @@
+package io.projectriff.invoker.client;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.server.FunctionHost;
+import io.projectriff.invoker.server.FunctionRouter;
+import io.projectriff.invoker.server.InvokerProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests balancing invocations over several (in-process) invoker replicas.
+ *
+ * @author Eric Bottard
+ */
+public class BalancedChannelTest {
+
+    private static final String LOCATION = new File("src/test/functions/hundred-divider-1.0.0.jar").getAbsolutePath();
+
+    private static final int REPLICAS = 3;
+
+    private final List<FunctionHost> hosts = new ArrayList<>();
+
+    private final List<Server> servers = new ArrayList<>();
+
+    private final List<AtomicInteger> calls = new ArrayList<>();
+
+    private BalancedChannel channel;
+
+    @Before
+    public void startReplicas() throws Exception {
+        List<String> targets = new ArrayList<>();
+        for (int i = 0; i < REPLICAS; i++) {
+            FunctionHost host = new FunctionHost(new InvokerProperties(), new SimpleMeterRegistry());
+            host.reload(LOCATION, "com.acme.HundredDivider");
+            AtomicInteger counter = new AtomicInteger();
+            ServerInterceptor counting = new ServerInterceptor() {
+                @Override
+                public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                             ServerCallHandler<ReqT, RespT> next) {
+                    counter.incrementAndGet();
+                    return next.startCall(call, headers);
+                }
+            };
+            String name = "balanced-channel-test-" + i;
+            servers.add(InProcessServerBuilder.forName(name)
+                    .addService(ServerInterceptors.intercept(new FunctionRouter(host), counting))
+                    .build()
+                    .start());
+            hosts.add(host);
+            calls.add(counter);
+            targets.add(name);
+        }
+        channel = new BalancedChannel(() -> targets, Duration.ofMinutes(1L), t -> InProcessChannelBuilder.forName(t).build());
+    }
+
+    @After
+    public void stopReplicas() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        for (Server server : servers) {
+            server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testInvocationsAreSpreadOverReplicas() {
+        Function<Flux<Integer>, Flux<Integer>[]> function = FunctionProxy.create(Function.class, channel, Integer.class);
+        for (int i = 0; i < 60; i++) {
+            assertThat(function.apply(Flux.just(1, 2, 4))[0].collectList().block(), equalTo(List.of(100, 50, 25)));
+        }
+        for (AtomicInteger counter : calls) {
+            assertTrue("Some replica was never invoked: " + calls, counter.get() > 0);
+        }
+        assertThat(channel.getOutstanding().values().stream().mapToInt(Integer::intValue).sum(), is(0));
+    }
+
+    @Test
+    public void testRoutingKeyAlwaysReachesSameReplica() {
+        Function<Flux<Integer>, Flux<Integer>[]> function = FunctionProxy.builder(Function.class)
+                .channel(channel)
+                .outputTypes(Integer.class)
+                .routingKey("customer-42")
+                .build();
+        for (int i = 0; i < 20; i++) {
+            function.apply(Flux.just(1))[0].blockLast();
+        }
+        assertThat(calls.stream().filter(c -> c.get() > 0).count(), is(1L));
+        assertThat(calls.stream().mapToInt(AtomicInteger::get).sum(), is(20));
+    }
+
+    @Test
+    public void testUnavailableReplicaIsAvoided() {
+        hosts.get(1).stopAccepting();
+        Function<Flux<Integer>, Flux<Integer>[]> function = FunctionProxy.create(Function.class, channel, Integer.class);
+        int failures = 0;
+        for (int i = 0; i < 30; i++) {
+            try {
+                function.apply(Flux.just(1, 2))[0].blockLast();
+            }
+            catch (RuntimeException e) {
+                failures++;
+            }
+        }
+        assertTrue("Too many failed invocations: " + failures, failures <= 1);
+        assertTrue("Draining replica kept being invoked: " + calls, calls.get(1).get() <= 1);
+        assertThat(calls.get(0).get() + calls.get(2).get() + calls.get(1).get(), is(30));
+    }
+}
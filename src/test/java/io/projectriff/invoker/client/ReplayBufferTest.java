@@ -0,0 +1,100 @@
+package io.projectriff.invoker.client;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.google.protobuf.ByteString;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests for {@link ReplayBuffer}.
+ *
+ * @author Eric Bottard
+ */
+public class ReplayBufferTest {
+
+    /*
+     * The room each frame takes in the buffer, with its length prefix.
+     */
+    private static final int FRAME_SIZE = Integer.BYTES + frame(1L).getSerializedSize();
+
+    @Test
+    public void testFramesAreReplayedUntilAcknowledged() {
+        ReplayBuffer buffer = new ReplayBuffer(10 * FRAME_SIZE);
+        for (long i = 1L; i <= 5L; i++) {
+            assertThat(buffer.offer(frame(i)), is(true));
+        }
+        assertThat(sequences(buffer), equalTo(List.of(1L, 2L, 3L, 4L, 5L)));
+
+        buffer.ack(3L);
+        assertThat(buffer.getLastAcked(), equalTo(3L));
+        assertThat(sequences(buffer), equalTo(List.of(4L, 5L)));
+
+        // Acks may be stale, or cover frames not sent yet
+        buffer.ack(2L);
+        assertThat(sequences(buffer), equalTo(List.of(4L, 5L)));
+        buffer.ack(7L);
+        assertThat(buffer.isEmpty(), is(true));
+        assertThat(buffer.getLastAcked(), equalTo(5L));
+    }
+
+    @Test
+    public void testFullBufferRefusesFramesUntilSomeAreAcknowledged() {
+        ReplayBuffer buffer = new ReplayBuffer(3 * FRAME_SIZE);
+        assertThat(buffer.offer(frame(1L)), is(true));
+        assertThat(buffer.offer(frame(2L)), is(true));
+        assertThat(buffer.offer(frame(3L)), is(true));
+        assertThat(buffer.offer(frame(4L)), is(false));
+        assertThat(sequences(buffer), equalTo(List.of(1L, 2L, 3L)));
+
+        buffer.ack(1L);
+        assertThat(buffer.offer(frame(4L)), is(true));
+        assertThat(sequences(buffer), equalTo(List.of(2L, 3L, 4L)));
+    }
+
+    @Test
+    public void testFramesWrapAroundTheEndOfTheRing() {
+        // Not a multiple of the frame size, so that frames and their length prefix get split at the end
+        ReplayBuffer buffer = new ReplayBuffer(3 * FRAME_SIZE + 3);
+        long next = 1L;
+        for (int round = 0; round < 50; round++) {
+            while (buffer.offer(frame(next))) {
+                next++;
+            }
+            List<Long> unacked = sequences(buffer);
+            assertThat(unacked.size(), equalTo(3));
+            assertThat(unacked.get(2), equalTo(next - 1));
+            // Frames keep their content across the wrap
+            assertThat(buffer.unacked().get(0).getData().getPayload(), equalTo(payload(unacked.get(0))));
+            buffer.ack(unacked.get(round % 3));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFramesLargerThanTheBufferAreRejected() {
+        new ReplayBuffer(FRAME_SIZE - 1).offer(frame(1L));
+    }
+
+    private static List<Long> sequences(ReplayBuffer buffer) {
+        return buffer.unacked().stream().map(s -> s.getData().getSequence()).collect(Collectors.toList());
+    }
+
+    private static InputSignal frame(long sequence) {
+        return InputSignal.newBuilder()
+                .setData(InputFrame.newBuilder().setSequence(sequence).setPayload(payload(sequence)))
+                .build();
+    }
+
+    /*
+     * Of the same size for all sequence numbers used here, so that all frames take the same room.
+     */
+    private static ByteString payload(long sequence) {
+        return ByteString.copyFromUtf8(String.format("payload-%06d", sequence));
+    }
+}
@@ -0,0 +1,200 @@
+package io.projectriff.invoker.client;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.server.FunctionHost;
+import io.projectriff.invoker.server.FunctionRouter;
+import io.projectriff.invoker.server.FunctionalInterfaceMethodResolver;
+import io.projectriff.invoker.server.HostedFunction;
+import io.projectriff.invoker.server.InvokerProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that resumable invocations survive their stream breaking, without losing nor repeating results.
+ *
+ * @author Eric Bottard
+ */
+public class ResumableInvocationTest {
+
+    private static final String LOCATION = new File("src/test/functions/hundred-divider-1.0.0.jar").getAbsolutePath();
+
+    private static final String CLASS = "com.acme.HundredDivider";
+
+    private static final List<Integer> INPUTS = IntStream.rangeClosed(1, 20).boxed().collect(Collectors.toList());
+
+    private static final List<Integer> RESULTS = INPUTS.stream().map(i -> 100 / i).collect(Collectors.toList());
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final Breaker breaker = new Breaker();
+
+    private FunctionHost host;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    @Before
+    public void startServer() throws Exception {
+        // A plain function, which the invoker applies to each element
+        host = new FunctionHost(new InvokerProperties(), registry);
+        host.reload(LOCATION, CLASS);
+        server = InProcessServerBuilder.forName("resumable-test")
+                .addService(ServerInterceptors.intercept(new FunctionRouter(host), breaker))
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName("resumable-test").build();
+    }
+
+    @After
+    public void stopServer() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        host.close();
+    }
+
+    @Test
+    public void testResultsAreReceivedOnceAcrossABrokenStream() {
+        // Right after a result went out, and before the ack of its input could
+        breaker.breakAfter(5);
+        assertThat(invoke(channel, 4096), equalTo(RESULTS));
+        assertThat(breaker.calls.get(), equalTo(2));
+        assertThat(registry.get(InvokerMetrics.PREFIX + ".streams.resumed").counter().count(), equalTo(1d));
+    }
+
+    @Test
+    public void testInputsWaitForRoomInTheReplayBuffer() {
+        breaker.breakAfter(7);
+        // Only room for a couple of frames, so that inputs are held until acks come
+        assertThat(invoke(channel, 64), equalTo(RESULTS));
+        assertThat(breaker.calls.get(), equalTo(2));
+    }
+
+    @Test
+    public void testStreamFunctionsCanNotBeResumed() throws Exception {
+        Windows windows = new Windows();
+        FunctionHost streams = new FunctionHost(new InvokerProperties(), registry);
+        streams.start(List.of(new HostedFunction("windows", windows,
+                new FunctionalInterfaceMethodResolver().resolve(windows), new Class<?>[] {Integer.class})));
+        Server server = InProcessServerBuilder.forName("resumable-test-streams").addService(new FunctionRouter(streams))
+                .build()
+                .start();
+        ManagedChannel channel = InProcessChannelBuilder.forName("resumable-test-streams").build();
+        try {
+            invoke(channel, 4096);
+            fail("Expected the invocation to be rejected");
+        }
+        catch (RuntimeException e) {
+            assertThat(Status.fromThrowable(Exceptions.unwrap(e)).getCode(), equalTo(Status.Code.FAILED_PRECONDITION));
+        }
+        finally {
+            channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+            streams.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Integer> invoke(ManagedChannel channel, int replayBufferBytes) {
+        Function<Flux<Integer>, Flux<Integer>[]> function = FunctionProxy.builder(Function.class)
+                .channel(channel)
+                .outputTypes(Integer.class)
+                .resumable(replayBufferBytes, 3)
+                .build();
+        // Paced, as acks only go out once results caught up, and the stream is only broken once something was acked
+        Flux<Integer> inputs = Flux.fromIterable(INPUTS).delayElements(Duration.ofMillis(10));
+        return function.apply(inputs)[0].collectList().block(Duration.ofSeconds(20));
+    }
+
+    /**
+     * Breaks the first call, as if the connection was lost, once it sent a given number of results and at least one ack.
+     */
+    private static class Breaker implements ServerInterceptor {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private volatile int after = Integer.MAX_VALUE;
+
+        void breakAfter(int results) {
+            this.after = results;
+        }
+
+        @Override
+        public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                     ServerCallHandler<ReqT, RespT> next) {
+            if (calls.incrementAndGet() > 1) {
+                return next.startCall(call, headers);
+            }
+            return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+
+                private int results;
+
+                private boolean acked;
+
+                private boolean closed;
+
+                @Override
+                public synchronized void sendMessage(RespT message) {
+                    if (closed) {
+                        return;
+                    }
+                    super.sendMessage(message);
+                    acked |= ((OutputSignal) message).hasAck();
+                    // Once something was acked, so that the stream is resumed past the start
+                    if (((OutputSignal) message).hasData() && ++results >= after && acked) {
+                        closed = true;
+                        super.close(Status.UNAVAILABLE.withDescription("Connection lost"), new Metadata());
+                    }
+                }
+
+                @Override
+                public synchronized void close(Status status, Metadata trailers) {
+                    if (!closed) {
+                        closed = true;
+                        super.close(status, trailers);
+                    }
+                }
+            }, headers);
+        }
+    }
+
+    /**
+     * Sums pairs of elements, whose results can't be traced back to a single input.
+     */
+    public static class Windows implements Function<Flux<Integer>, Flux<Integer>> {
+
+        @Override
+        public Flux<Integer> apply(Flux<Integer> input) {
+            return input.buffer(2).map(w -> w.get(0) + w.get(w.size() - 1));
+        }
+    }
+}
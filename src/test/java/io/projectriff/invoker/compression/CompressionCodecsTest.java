@@ -0,0 +1,267 @@
+package io.projectriff.invoker.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import com.google.protobuf.ByteString;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.Codec;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.Status;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests for the riff {@link Codec}s, and for the size threshold below which messages are sent uncompressed.
+ *
+ * @author Eric Bottard
+ */
+public class CompressionCodecsTest {
+
+    private static final InputSignal MESSAGE = signal(100);
+
+    private static final int SIZE = MESSAGE.getSerializedSize();
+
+    @Test
+    public void testMessagesAreCompressedFromTheThreshold() {
+        assertThat(CompressionCodecs.shouldCompress(MESSAGE, SIZE + 1), is(false));
+        assertThat(CompressionCodecs.shouldCompress(MESSAGE, SIZE), is(true));
+        assertThat(CompressionCodecs.shouldCompress(MESSAGE, SIZE - 1), is(true));
+        // Whatever isn't protobuf is left to the codec
+        assertThat(CompressionCodecs.shouldCompress("riff", Integer.MAX_VALUE), is(true));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testServerInterceptorAppliesTheThreshold() {
+        List<Boolean> compressed = new ArrayList<>();
+        List<String> codecs = new ArrayList<>();
+        ServerCall<InputSignal, InputSignal> call = new RecordingServerCall(compressed, codecs);
+        ServerCall<InputSignal, InputSignal>[] intercepted = new ServerCall[1];
+        new ServerCompressionInterceptor("lz4", SIZE).interceptCall(call, new Metadata(), (c, h) -> {
+            intercepted[0] = c;
+            return new ServerCall.Listener<InputSignal>() {
+            };
+        });
+
+        sendAround(intercepted[0]::sendMessage);
+        assertThat(codecs, equalTo(List.of("lz4")));
+        assertThat(compressed, equalTo(List.of(false, true, true)));
+    }
+
+    @Test
+    public void testClientInterceptorAppliesTheThreshold() {
+        List<Boolean> compressed = new ArrayList<>();
+        List<String> codecs = new ArrayList<>();
+        Channel channel = new Channel() {
+
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method, CallOptions options) {
+                codecs.add(options.getCompressor());
+                return new RecordingClientCall<>(compressed);
+            }
+
+            @Override
+            public String authority() {
+                return "riff";
+            }
+        };
+        ClientCall<InputSignal, InputSignal> call = new ClientCompressionInterceptor("deflate", SIZE)
+                .interceptCall(null, CallOptions.DEFAULT, channel);
+
+        sendAround(call::sendMessage);
+        assertThat(codecs, equalTo(List.of("deflate")));
+        assertThat(compressed, equalTo(List.of(false, true, true)));
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws IOException {
+        DeflateCodec codec = new DeflateCodec();
+        for (byte[] payload : payloads()) {
+            byte[] compressed = compress(codec, payload);
+            assertThat(decompress(codec, compressed), equalTo(payload));
+            // zlib wrapped, with the default 32K window
+            assertThat(compressed[0], equalTo((byte) 0x78));
+        }
+    }
+
+    @Test
+    public void testLz4RoundTrip() throws IOException {
+        Lz4Codec codec = new Lz4Codec();
+        for (byte[] payload : payloads()) {
+            byte[] compressed = compress(codec, payload);
+            assertThat(decompress(codec, compressed), equalTo(payload));
+            // The magic number of the LZ4 frame format, little endian
+            assertThat(new byte[] {compressed[0], compressed[1], compressed[2], compressed[3]},
+                    equalTo(new byte[] {0x04, 0x22, 0x4D, 0x18}));
+        }
+    }
+
+    @Test
+    public void testCodecsShrinkRepetitivePayloads() throws IOException {
+        byte[] payload = text(64 * 1024);
+        for (Codec codec : List.of(new DeflateCodec(), new Lz4Codec(), new Codec.Gzip())) {
+            assertThat(codec.getMessageEncoding(), compress(codec, payload).length < payload.length / 4, is(true));
+        }
+    }
+
+    @Test
+    public void testRegistriesKnowAllCodecs() {
+        for (String encoding : List.of("identity", "gzip", "deflate", "lz4")) {
+            assertThat(encoding, CompressionCodecs.compressorRegistry().lookupCompressor(encoding), notNullValue());
+            assertThat(encoding, CompressionCodecs.decompressorRegistry().lookupDecompressor(encoding), notNullValue());
+        }
+        assertThat(CompressionCodecs.decompressorRegistry().getAdvertisedMessageEncodings(),
+                hasItems("gzip", "deflate", "lz4"));
+    }
+
+    /*
+     * Sends messages one byte smaller than the threshold, of the threshold size, and one byte bigger.
+     */
+    private static void sendAround(Consumer<InputSignal> send) {
+        send.accept(signal(99));
+        send.accept(MESSAGE);
+        send.accept(signal(101));
+    }
+
+    private static List<byte[]> payloads() {
+        byte[] random = new byte[100_000];
+        new Random(42L).nextBytes(random);
+        return List.of(new byte[0], new byte[] {42}, text(1000), text(1024 * 1024), random);
+    }
+
+    private static byte[] text(int size) {
+        StringBuilder text = new StringBuilder(size);
+        for (int i = 0; text.length() < size; i++) {
+            text.append("{\"id\":").append(i).append(",\"name\":\"riff\"}");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] compress(Codec codec, byte[] payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = codec.compress(bytes)) {
+            out.write(payload);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] decompress(Codec codec, byte[] compressed) throws IOException {
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static InputSignal signal(int payloadSize) {
+        return InputSignal.newBuilder()
+                .setData(InputFrame.newBuilder().setPayload(ByteString.copyFrom(new byte[payloadSize])))
+                .build();
+    }
+
+    private static class RecordingServerCall extends ServerCall<InputSignal, InputSignal> {
+
+        private final List<Boolean> compressed;
+
+        private final List<String> codecs;
+
+        private boolean enabled;
+
+        RecordingServerCall(List<Boolean> compressed, List<String> codecs) {
+            this.compressed = compressed;
+            this.codecs = codecs;
+        }
+
+        @Override
+        public void setCompression(String compressor) {
+            codecs.add(compressor);
+        }
+
+        @Override
+        public void setMessageCompression(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        @Override
+        public void sendMessage(InputSignal message) {
+            compressed.add(enabled);
+        }
+
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void sendHeaders(Metadata headers) {
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public MethodDescriptor<InputSignal, InputSignal> getMethodDescriptor() {
+            return null;
+        }
+    }
+
+    private static class RecordingClientCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+
+        private final List<Boolean> compressed;
+
+        private boolean enabled;
+
+        RecordingClientCall(List<Boolean> compressed) {
+            this.compressed = compressed;
+        }
+
+        @Override
+        public void setMessageCompression(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        @Override
+        public void sendMessage(ReqT message) {
+            compressed.add(enabled);
+        }
+
+        @Override
+        public void start(Listener<RespT> responseListener, Metadata headers) {
+        }
+
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void cancel(String message, Throwable cause) {
+        }
+
+        @Override
+        public void halfClose() {
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package io.projectriff.invoker.flow;
+
+import com.google.protobuf.ByteString;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests for {@link FlowTuner}.
+ *
+ * @author Eric Bottard
+ */
+public class FlowTunerTest {
+
+    @Test
+    public void testConfiguredCountsAreUsedAsIsUnlessAutoTuning() {
+        FlowTuner tuner = new FlowTuner(false, 1024L);
+        tuner.received(1024);
+        tuner.sent(1024);
+
+        assertThat(tuner.isAutoTune(), is(false));
+        assertThat(tuner.receiving(256), equalTo(256));
+        assertThat(tuner.sending(32), equalTo(32));
+        assertThat(tuner.getAverageReceivedBytes(), equalTo(0L));
+
+        // Nor without a window
+        assertThat(new FlowTuner(true, 0L).isAutoTune(), is(false));
+    }
+
+    @Test
+    public void testCountsFitTheWindow() {
+        FlowTuner tuner = new FlowTuner(true, 64 * 1024L);
+        // Nothing is known before messages went through
+        assertThat(tuner.receiving(256), equalTo(256));
+
+        tuner.received(1024);
+        assertThat(tuner.receiving(256), equalTo(64));
+        // The configured count is a maximum
+        assertThat(tuner.receiving(16), equalTo(16));
+        // And each stage holds at least one message
+        tuner.received(10 * 1024 * 1024);
+        assertThat(tuner.receiving(256), equalTo(1));
+    }
+
+    @Test
+    public void testSizesAreRunningAverages() {
+        FlowTuner tuner = new FlowTuner(true, 64 * 1024L);
+        tuner.received(100);
+        assertThat(tuner.getAverageReceivedBytes(), equalTo(100L));
+        // A new sample weighs a sixteenth
+        tuner.received(1100);
+        assertThat(tuner.getAverageReceivedBytes(), equalTo(162L));
+        for (int i = 0; i < 200; i++) {
+            tuner.received(1100);
+        }
+        assertThat(tuner.getAverageReceivedBytes(), equalTo(1100L));
+
+        // Each direction on its own
+        assertThat(tuner.getAverageSentBytes(), equalTo(0L));
+        assertThat(tuner.sending(32), equalTo(32));
+        tuner.sent(8 * 1024);
+        assertThat(tuner.sending(32), equalTo(8));
+        assertThat(tuner.receiving(256), equalTo(59));
+    }
+
+    @Test
+    public void testSizesAreThoseOfProtobufMessages() {
+        InputSignal signal = InputSignal.newBuilder()
+                .setData(InputFrame.newBuilder().setPayload(ByteString.copyFrom(new byte[1000])))
+                .build();
+        assertThat(FlowTuner.sizeOf(signal), equalTo(signal.getSerializedSize()));
+        assertThat(FlowTuner.sizeOf("not protobuf"), equalTo(0));
+    }
+}
@@ -0,0 +1,248 @@
+package io.projectriff.invoker.flow;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.client.FunctionProxy;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.server.FunctionHost;
+import io.projectriff.invoker.server.FunctionRouter;
+import io.projectriff.invoker.server.FunctionalInterfaceMethodResolver;
+import io.projectriff.invoker.server.HostedFunction;
+import io.projectriff.invoker.server.InvokerProperties;
+import org.junit.After;
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.UnicastProcessor;
+
+import org.springframework.util.unit.DataSize;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests for {@link InboundWindow}, and for the windows {@link ServerInboundWindowInterceptor} gives gRPC calls.
+ *
+ * @author Eric Bottard
+ */
+public class InboundWindowTest {
+
+    private static final String SERVER_NAME = "inbound-window-test";
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private FunctionHost host;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    @After
+    public void stopServer() throws Exception {
+        if (channel != null) {
+            channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+        if (server != null) {
+            server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+        if (host != null) {
+            host.close();
+        }
+    }
+
+    @Test
+    public void testRequestsArePassedOnInBatchesWithinTheWindow() {
+        List<Integer> grants = new ArrayList<>();
+        InboundWindow window = new InboundWindow(8, new FlowTuner(false, 0L));
+        window.attach(grants::add);
+
+        // What reactive-grpc asks for at once
+        window.request(512);
+        assertThat(grants, equalTo(List.of(8)));
+        // Not for a single message
+        window.received("a");
+        assertThat(grants, equalTo(List.of(8)));
+        // But once a quarter of the window is free
+        window.received("b");
+        assertThat(grants, equalTo(List.of(8, 2)));
+
+        // Never more than asked for
+        grants.clear();
+        window = new InboundWindow(8, new FlowTuner(false, 0L));
+        window.attach(grants::add);
+        window.request(3);
+        window.request(10);
+        assertThat(grants, equalTo(List.of(3, 5)));
+    }
+
+    @Test
+    public void testConsumedWindowsReleaseRoomAsMessagesAreRead() {
+        List<Integer> grants = new ArrayList<>();
+        InboundWindow window = new InboundWindow(8, new FlowTuner(false, 0L));
+        window.attach(grants::add);
+        UnicastProcessor<String> messages = UnicastProcessor.create();
+        List<String> read = new ArrayList<>();
+        Subscription[] subscription = new Subscription[1];
+        window.consume(messages).subscribe(read::add, e -> {}, () -> {}, s -> subscription[0] = s);
+
+        window.request(512);
+        for (int i = 0; i < 8; i++) {
+            messages.onNext("m" + i);
+            window.received("m" + i);
+        }
+        // Received, but queued until read
+        assertThat(grants, equalTo(List.of(8)));
+
+        subscription[0].request(2L);
+        assertThat(read, equalTo(List.of("m0", "m1")));
+        assertThat(grants, equalTo(List.of(8, 2)));
+    }
+
+    @Test
+    public void testAutoTunedWindowsGrowUntilTheyFitTheBudget() {
+        FlowTuner tuner = new FlowTuner(true, 10_000L);
+        InboundWindow window = new InboundWindow(512, tuner);
+        List<Integer> grants = new ArrayList<>();
+        window.attach(grants::add);
+        InputSignal message = signal(1000);
+        int fit = (int) (10_000L / FlowTuner.sizeOf(message));
+
+        window.request(512);
+        // Before any message went through, one at a time
+        assertThat(grants, equalTo(List.of(1)));
+
+        int delivered = 0;
+        int largest = 0;
+        for (int outstanding = 1; outstanding > 0; outstanding = sum(grants) - delivered) {
+            largest = Math.max(largest, outstanding);
+            window.received(message);
+            delivered++;
+        }
+        assertThat(delivered, equalTo(512));
+        assertThat(largest, equalTo(fit));
+        assertThat(tuner.getAverageReceivedBytes(), equalTo((long) FlowTuner.sizeOf(message)));
+    }
+
+    @Test
+    public void testGrpcCallsRequestWithinTheWindow() throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getFlow().setInboundWindow(8);
+        List<Integer> requests = start(properties);
+
+        List<String> inputs = IntStream.range(0, 200).mapToObj(i -> "riff" + i).collect(Collectors.toList());
+        assertThat(invoke(inputs), equalTo(inputs.stream().map(String::toUpperCase).collect(Collectors.toList())));
+        // The start frame, the inputs, and what is asked for ahead of the end of the stream
+        assertThat(sum(requests) >= inputs.size() + 1, is(true));
+        assertThat(requests.stream().allMatch(n -> n <= 8), is(true));
+    }
+
+    @Test
+    public void testAutoTunedGrpcCallsRequestWhatFitsTheWindowSize() throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getFlow().setAutoTune(true);
+        properties.getFlow().setWindowSize(DataSize.ofKilobytes(16L));
+        List<Integer> requests = start(properties);
+
+        String large = String.join("", Collections.nCopies(4000, "r"));
+        List<String> inputs = IntStream.range(0, 200).mapToObj(i -> large + i).collect(Collectors.toList());
+        assertThat(invoke(inputs), equalTo(inputs.stream().map(String::toUpperCase).collect(Collectors.toList())));
+
+        FlowTuner tuner = host.getFlowTuner();
+        long average = tuner.getAverageReceivedBytes();
+        assertThat(average > 4000L, is(true));
+        // Far less than the configured window from the start, then what fits once the average settled
+        assertThat(requests.stream().allMatch(n -> n < 8), is(true));
+        List<Integer> settled = requests.subList(requests.size() / 2, requests.size());
+        assertThat(settled.stream().allMatch(n -> n <= 16 * 1024L / average), is(true));
+        assertThat(registry.find(InvokerMetrics.PREFIX + ".flow.received.size").gauge(), notNullValue());
+    }
+
+    /*
+     * Serve the upper function with the given flow properties, and return the requests reaching the transport.
+     */
+    private List<Integer> start(InvokerProperties properties) throws Exception {
+        host = new FunctionHost(properties, registry);
+        Upper upper = new Upper();
+        host.start(List.of(new HostedFunction("upper", upper, new FunctionalInterfaceMethodResolver().resolve(upper),
+                new Class<?>[] {String.class})));
+        List<Integer> requests = new CopyOnWriteArrayList<>();
+        ServerInterceptor transport = new ServerInterceptor() {
+
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+                    @Override
+                    public void request(int numMessages) {
+                        requests.add(numMessages);
+                        super.request(numMessages);
+                    }
+                }, headers);
+            }
+        };
+        InvokerProperties.Flow flow = properties.getFlow();
+        // The last interceptor is the first to see the call, hence sees what the window passes on
+        server = InProcessServerBuilder.forName(SERVER_NAME)
+                .addService(ServerInterceptors.intercept(new FunctionRouter(host),
+                        new ServerInboundWindowInterceptor(flow.getInboundWindow(), host.getFlowTuner()), transport))
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(SERVER_NAME).build();
+        return requests;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> invoke(List<String> inputs) {
+        Function<Flux<String>, Flux<String>[]> function = FunctionProxy.builder(Function.class)
+                .channel(channel)
+                .outputTypes(String.class)
+                .functionName("upper")
+                .build();
+        return function.apply(Flux.fromIterable(inputs))[0].collectList().block(Duration.ofSeconds(10));
+    }
+
+    private static InputSignal signal(int size) {
+        return InputSignal.newBuilder()
+                .setData(InputFrame.newBuilder().setPayload(ByteString.copyFrom(new byte[size])))
+                .build();
+    }
+
+    private static int sum(List<Integer> values) {
+        return values.stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Upper cases its inputs.
+     */
+    public static class Upper implements Function<Flux<String>, Flux<String>> {
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.map(String::toUpperCase);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package io.projectriff.invoker.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.server.FunctionHost;
+import io.projectriff.invoker.server.FunctionRouter;
+import io.projectriff.invoker.server.FunctionalInterfaceMethodResolver;
+import io.projectriff.invoker.server.HostedFunction;
+import io.projectriff.invoker.server.InvokerProperties;
+import io.projectriff.invoker.shm.WaitStrategy;
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import org.springframework.boot.context.properties.bind.BindException;
+
+import static io.projectriff.invoker.loadgen.LoadReportTest.value;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link LoadGenerator}: the open-loop arrival schedule and the latencies it leads to, over a fake transport
+ * then over gRPC and http, and the binding of {@link LoadOptions}.
+ *
+ * @author Eric Bottard
+ */
+public class LoadGeneratorTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    private FunctionHost host;
+
+    private Server server;
+
+    private HttpServer http;
+
+    @After
+    public void stopServers() throws Exception {
+        if (server != null) {
+            server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+        if (host != null) {
+            host.close();
+        }
+        if (http != null) {
+            http.stop(0);
+        }
+    }
+
+    @Test
+    public void testOpenLoopInputsAreDueAtAConstantRate() throws Exception {
+        Recording generator = new Recording(LoadOptions.parse("--mode=open", "--rate=200", "--streams=3",
+                "--warmup=50ms", "--duration=200ms"), 0L);
+        generator.run();
+
+        // Due every 5ms, from the start of warmup until the end of the run
+        assertThat(generator.intended.size(), equalTo(50));
+        long start = generator.intended.get(0);
+        for (int i = 0; i < generator.intended.size(); i++) {
+            assertThat(generator.intended.get(i) - start, equalTo(i * 5 * MILLIS));
+            assertThat(generator.streams.get(i), equalTo(i % 3));
+            // Never sent early
+            assertThat(generator.fired.get(i) - generator.intended.get(i) >= 0L, is(true));
+        }
+    }
+
+    @Test
+    public void testOpenLoopCatchesUpWithoutWaiting() throws Exception {
+        // The first input takes 100ms to send, while others are due every millisecond
+        Recording generator = new Recording(LoadOptions.parse("--mode=open", "--rate=1000", "--warmup=0s",
+                "--duration=300ms"), 100L * MILLIS);
+        LoadReport report = generator.run();
+
+        assertThat(generator.intended.size(), equalTo(300));
+        // Those due in the meantime are sent right away, rather than on a schedule shifted by the stall
+        assertThat(generator.fired.get(90) - generator.fired.get(1) < 45L * MILLIS, is(true));
+        assertThat(generator.fired.get(299) - generator.fired.get(0) < 320L * MILLIS, is(true));
+
+        // Their latencies include the time they were held back, and not only the time they took once sent
+        assertThat(report.getSent(), equalTo(300L));
+        assertThat(report.getReceived(), equalTo(300L));
+        String json = report.toJson();
+        assertThat(value(json, "samples"), equalTo(300d));
+        assertThat(value(json, "max") >= 95d, is(true));
+        assertThat(value(json, "p90") >= 50d, is(true));
+    }
+
+    @Test
+    public void testRpcOpenLoopDoesNotWaitOnResults() throws Exception {
+        startGrpc(new Slow());
+        LoadReport open = LoadGenerator.create(LoadOptions.parse("--target=localhost:" + server.getPort(),
+                "--function=slow", "--mode=open", "--rate=100", "--warmup=0s", "--duration=500ms")).run();
+
+        assertThat(open.getSent(), equalTo(50L));
+        assertThat(open.getReceived(), equalTo(50L));
+        assertThat(open.getErrors(), equalTo(0L));
+        // The last input was due at 490ms, and its result came after 2s
+        String json = open.toJson();
+        assertThat(value(json, "min") >= 40d, is(true));
+        assertThat(value(json, "max") >= 1400d, is(true));
+
+        LoadReport closed = LoadGenerator.create(LoadOptions.parse("--target=localhost:" + server.getPort(),
+                "--function=slow", "--mode=closed", "--warmup=0s", "--duration=500ms")).run();
+        assertThat(closed.getSent() <= 15L, is(true));
+        assertThat(closed.getReceived(), equalTo(closed.getSent()));
+        assertThat(value(closed.toJson(), "max") < 1000d, is(true));
+    }
+
+    @Test
+    public void testHttpLatenciesIncludeWaitingForAConnection() throws Exception {
+        List<String> requests = new CopyOnWriteArrayList<>();
+        startHttp(requests, 40L);
+        LoadReport report = LoadGenerator.create(LoadOptions.parse("--http=" + url(), "--function=slow", "--mode=open",
+                "--rate=100", "--streams=1", "--payload=riff", "--content-type=text/csv", "--warmup=0s",
+                "--duration=300ms")).run();
+
+        assertThat(report.getSent(), equalTo(30L));
+        assertThat(report.getReceived(), equalTo(30L));
+        assertThat(report.getErrors(), equalTo(0L));
+        // A single connection, busy for 40ms per input due every 10ms
+        assertThat(value(report.toJson(), "max") >= 800d, is(true));
+        assertThat(Set.copyOf(requests), equalTo(Set.of("POST /slow text/csv text/plain riff")));
+    }
+
+    @Test
+    public void testHttpErrorsAreReported() throws Exception {
+        startHttp(new ArrayList<>(), -1L);
+        LoadReport report = LoadGenerator.create(LoadOptions.parse("--http=" + url() + "/", "--mode=closed",
+                "--warmup=0s", "--duration=100ms")).run();
+
+        assertThat(report.getReceived(), equalTo(0L));
+        assertThat(report.getErrors() > 0L, is(true));
+        assertThat(report.toJson().endsWith("\"errors\":{\"http 503\":" + report.getErrors() + "}}"), is(true));
+    }
+
+    @Test
+    public void testOptionsDefaults() {
+        LoadOptions options = LoadOptions.parse();
+        assertThat(options.getTarget(), equalTo("localhost:8081"));
+        assertThat(options.isHttp(), is(false));
+        assertThat(options.getHttp(), nullValue());
+        assertThat(options.getMode(), equalTo(LoadOptions.Mode.CLOSED));
+        assertThat(options.getRate(), equalTo(1000));
+        assertThat(options.getStreams(), equalTo(1));
+        assertThat(options.getConcurrency(), equalTo(1));
+        assertThat(options.getArgs(), equalTo(1));
+        assertThat(options.getResults(), equalTo(1));
+        assertThat(options.getPayload(), nullValue());
+        assertThat(options.getPayloadSize(), equalTo(16));
+        assertThat(options.getDuration(), equalTo(Duration.ofSeconds(30L)));
+        assertThat(options.getWarmup(), equalTo(Duration.ofSeconds(5L)));
+        assertThat(options.getWaitStrategy(), equalTo(WaitStrategy.BACKOFF));
+        assertThat(options.getJson(), nullValue());
+    }
+
+    @Test
+    public void testOptionsAreBoundWithRelaxedNames() throws IOException {
+        LoadOptions options = LoadOptions.parse("--target=unix:/tmp/riff.sock", "--wait-strategy=busy-spin",
+                "--function=upper", "--mode=open", "--rate=5000", "--streams=4", "--concurrency=8", "--args=2",
+                "--results=3", "--payloadSize=7", "--content-type=application/json", "--accept=text/csv",
+                "--duration=1m", "--warmup=250ms", "--json=-");
+        assertThat(options.getTarget(), equalTo("unix:/tmp/riff.sock"));
+        assertThat(options.getWaitStrategy(), equalTo(WaitStrategy.BUSY_SPIN));
+        assertThat(options.getFunction(), equalTo("upper"));
+        assertThat(options.getMode(), equalTo(LoadOptions.Mode.OPEN));
+        assertThat(options.getRate(), equalTo(5000));
+        assertThat(options.getStreams(), equalTo(4));
+        assertThat(options.getConcurrency(), equalTo(8));
+        assertThat(options.getArgs(), equalTo(2));
+        assertThat(options.getResults(), equalTo(3));
+        assertThat(options.getPayloadSize(), equalTo(7));
+        assertThat(options.getContentType(), equalTo("application/json"));
+        assertThat(options.getAccept(), equalTo("text/csv"));
+        assertThat(options.getDuration(), equalTo(Duration.ofMinutes(1L)));
+        assertThat(options.getWarmup(), equalTo(Duration.ofMillis(250L)));
+        assertThat(options.getJson(), equalTo("-"));
+        assertThat(LoadOptions.parse("--payload-size=9").getPayloadSize(), equalTo(9));
+        assertThat(LoadGenerator.create(options), instanceOf(RpcLoadGenerator.class));
+
+        LoadOptions http = LoadOptions.parse("--http=http://localhost:8080");
+        assertThat(http.isHttp(), is(true));
+        assertThat(LoadGenerator.create(http), instanceOf(HttpLoadGenerator.class));
+    }
+
+    @Test
+    public void testInvalidOptionsAreRejected() throws IOException {
+        for (String invalid : List.of("--streams=0", "--args=0", "--results=0", "--rate=0", "--concurrency=-1")) {
+            try {
+                LoadOptions.parse(invalid);
+                fail(invalid);
+            }
+            catch (IllegalArgumentException expected) {
+            }
+        }
+        for (String invalid : List.of("--rate=fast", "--mode=ajar", "--duration=forever")) {
+            try {
+                LoadOptions.parse(invalid);
+                fail(invalid);
+            }
+            catch (BindException expected) {
+            }
+        }
+        try {
+            LoadGenerator.create(LoadOptions.parse("--http=http://localhost:8080", "--args=2"));
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void startGrpc(Function<Flux<String>, Flux<String>> function) throws Exception {
+        host = new FunctionHost(new InvokerProperties(), new SimpleMeterRegistry());
+        host.start(List.of(new HostedFunction("slow", function,
+                new FunctionalInterfaceMethodResolver().resolve(function), new Class<?>[] {String.class})));
+        server = NettyServerBuilder.forPort(0).addService(new FunctionRouter(host)).build().start();
+    }
+
+    /*
+     * Answers each request after the given time, one at a time, or with a 503 when negative.
+     */
+    private void startHttp(List<String> requests, long millis) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        http.setExecutor(Executors.newSingleThreadExecutor());
+        http.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody(); OutputStream out = exchange.getResponseBody()) {
+                requests.add(String.join(" ", exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+                        exchange.getRequestHeaders().getFirst("Content-Type"),
+                        exchange.getRequestHeaders().getFirst("Accept"),
+                        new String(in.readAllBytes(), StandardCharsets.UTF_8)));
+                if (millis < 0L) {
+                    exchange.sendResponseHeaders(503, -1L);
+                    return;
+                }
+                pause(millis * MILLIS);
+                byte[] body = "RIFF".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                out.write(body);
+            }
+        });
+        http.start();
+    }
+
+    private String url() {
+        return "http://localhost:" + http.getAddress().getPort();
+    }
+
+    private static void pause(long nanos) {
+        long until = System.nanoTime() + nanos;
+        for (long left = nanos; left > 0L; left = until - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    /**
+     * Upper cases its inputs, taking 40ms for each, one at a time.
+     */
+    public static class Slow implements Function<Flux<String>, Flux<String>> {
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.concatMap(s -> Mono.just(s.toUpperCase()).delayElement(Duration.ofMillis(40L)));
+        }
+    }
+
+    /**
+     * Records when inputs were due and when they were sent, each result coming back as soon as its input was sent.
+     */
+    private static class Recording extends LoadGenerator {
+
+        private final List<Long> intended = new ArrayList<>();
+
+        private final List<Long> fired = new ArrayList<>();
+
+        private final List<Integer> streams = new ArrayList<>();
+
+        private final long firstSendNanos;
+
+        Recording(LoadOptions options, long firstSendNanos) {
+            super(options);
+            this.firstSendNanos = firstSendNanos;
+        }
+
+        @Override
+        protected void open() {
+        }
+
+        @Override
+        protected void fire(int stream, long intended) {
+            if (this.intended.isEmpty()) {
+                pause(firstSendNanos);
+            }
+            this.fired.add(System.nanoTime());
+            this.intended.add(intended);
+            this.streams.add(stream);
+            report.sent(intended);
+            report.received(intended);
+        }
+
+        @Override
+        protected void startClosedLoop() {
+        }
+
+        @Override
+        protected long drain(long deadline) {
+            return 0L;
+        }
+
+        @Override
+        protected void close() {
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package io.projectriff.invoker.loadgen;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.endsWith;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests for {@link LoadReport}: what counts in the measurement window, and how the outcome is written out.
+ *
+ * @author Eric Bottard
+ */
+public class LoadReportTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    @Test
+    public void testOnlyInputsDueDuringTheWindowAreCounted() {
+        long now = System.nanoTime();
+        LoadReport report = new LoadReport(now - 1000 * MILLIS, now + 1000 * MILLIS);
+
+        // Due during warmup, then during the window, then after it closed
+        report.sent(now - 1500 * MILLIS);
+        report.sent(now - 500 * MILLIS);
+        report.sent(now);
+        report.sent(now + 1500 * MILLIS);
+        report.received(now - 1500 * MILLIS);
+        report.received(now - 500 * MILLIS);
+        report.received(now);
+        // Can't be attributed to an input, but arrived during the window
+        report.received(0L);
+        report.finish(1L);
+
+        assertThat(report.getSent(), equalTo(2L));
+        assertThat(report.getReceived(), equalTo(2L));
+        assertThat(report.getThroughput(), equalTo(2.0d));
+        assertThat(value(report.toJson(), "samples"), equalTo(2.0d));
+    }
+
+    @Test
+    public void testLatenciesAreMeasuredFromWhenInputsWereDue() {
+        long now = System.nanoTime();
+        LoadReport report = new LoadReport(now - 1000 * MILLIS, now + 1000 * MILLIS);
+        report.received(now - 200 * MILLIS);
+        report.received(now - 400 * MILLIS);
+        report.finish(0L);
+
+        String json = report.toJson();
+        assertThat(value(json, "min") >= 200d, is(true));
+        assertThat(value(json, "max") >= 400d, is(true));
+        assertThat(value(json, "max") < 1000d, is(true));
+    }
+
+    @Test
+    public void testErrorsAreCountedByKindDuringTheWindow() {
+        long now = System.nanoTime();
+        LoadReport report = new LoadReport(now - 1000 * MILLIS, now + 1000 * MILLIS);
+        report.error("grpc UNAVAILABLE");
+        report.error("grpc UNAVAILABLE");
+        report.error("http 503");
+        report.finish(0L);
+        assertThat(report.getErrors(), equalTo(3L));
+
+        LoadReport later = new LoadReport(now + 1000 * MILLIS, now + 2000 * MILLIS);
+        later.error("grpc UNAVAILABLE");
+        later.finish(0L);
+        assertThat(later.getErrors(), equalTo(0L));
+    }
+
+    @Test
+    public void testJson() {
+        long now = System.nanoTime();
+        LoadReport report = new LoadReport(now - 1000 * MILLIS, now + 1000 * MILLIS);
+        report.sent(now - 100 * MILLIS);
+        report.sent(now - 50 * MILLIS);
+        report.received(now - 100 * MILLIS);
+        report.error("quoted \"kind\"\\\n");
+        report.error("grpc UNAVAILABLE");
+        report.finish(1L);
+
+        String json = report.toJson();
+        assertThat(json, startsWith("{\"durationSeconds\":2.0,\"sent\":2,\"received\":1,\"outstanding\":1,"
+                + "\"throughput\":0.5,\"latencyMillis\":{\"samples\":1,\"min\":"));
+        for (String percentile : new String[] {"p50", "p90", "p99", "p99.9", "p99.99"}) {
+            assertThat(json, containsString("\"" + percentile + "\":"));
+        }
+        // Sorted by kind, and escaped
+        assertThat(json, endsWith("},\"errors\":{\"grpc UNAVAILABLE\":1,\"quoted \\\"kind\\\"\\\\\\u000a\":1}}"));
+    }
+
+    @Test
+    public void testText() {
+        long now = System.nanoTime();
+        LoadReport report = new LoadReport(now - 1000 * MILLIS, now + 1000 * MILLIS);
+        report.sent(now - 100 * MILLIS);
+        report.received(now - 100 * MILLIS);
+        report.error("http 503");
+        report.finish(0L);
+
+        String text = report.toText();
+        assertThat(text, startsWith(String.format("Duration            2.0 s%n"
+                + "Sent                  1%n"
+                + "Received              1%n"
+                + "Outstanding           0%n"
+                + "Throughput          0.5 /s%n"
+                + "Latency (ms) over 1 samples%n")));
+        assertThat(text, containsString(String.format("%n  p99.9 ")));
+        assertThat(text, endsWith(String.format("Errors                1%n  http 503%32s 1%n", "")));
+    }
+
+    /*
+     * The first number the given field of a JSON report has.
+     */
+    static double value(String json, String field) {
+        Matcher matcher = Pattern.compile("\"" + Pattern.quote(field) + "\":([-0-9.E]+)").matcher(json);
+        assertThat(field, matcher.find(), is(true));
+        return Double.parseDouble(matcher.group(1));
+    }
+}
@@ -0,0 +1,223 @@
+package io.projectriff.invoker.loadgen;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.client.FunctionProxy;
+import io.projectriff.invoker.recording.Recording;
+import io.projectriff.invoker.recording.TrafficRecorder;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.StartFrame;
+import io.projectriff.invoker.server.FunctionHost;
+import io.projectriff.invoker.server.FunctionRouter;
+import io.projectriff.invoker.server.FunctionalInterfaceMethodResolver;
+import io.projectriff.invoker.server.HostedFunction;
+import io.projectriff.invoker.server.InvokerProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import org.springframework.util.FileSystemUtils;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests that invocations recorded by a {@link TrafficRecorder} are read back by {@link Recording}, and replayed to
+ * another invoker by {@link TrafficReplayer}.
+ *
+ * @author Eric Bottard
+ */
+public class TrafficReplayerTest {
+
+    private Path directory;
+
+    private Path base;
+
+    private final List<FunctionHost> hosts = new ArrayList<>();
+
+    private final List<Server> servers = new ArrayList<>();
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("riff-recording");
+        base = directory.resolve("traffic");
+    }
+
+    @After
+    public void stopServers() throws Exception {
+        for (Server server : servers) {
+            server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+        hosts.forEach(FunctionHost::close);
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void testInvocationsAreRecordedAndReplayed() throws Exception {
+        Upper recorded = new Upper();
+        Server original = start(recorded, true);
+        assertThat(invoke(original, Flux.just("a", "b", "c")), equalTo(List.of("A", "B", "C")));
+        assertThat(invoke(original, Flux.just("d", "e")), equalTo(List.of("D", "E")));
+        // Writes what is left
+        hosts.get(0).close();
+
+        // As sent by the client, that is JSON encoded
+        Map<Long, List<String>> streams = read(Recording.open(base));
+        assertThat(streams, equalTo(Map.of(
+                1L, List.of("start upper", "\"a\"", "\"b\"", "\"c\"", "end"),
+                2L, List.of("start upper", "\"d\"", "\"e\"", "end"))));
+
+        Upper replayed = new Upper();
+        Server other = start(replayed, false);
+        LoadReport report = new TrafficReplayer(ReplayOptions.parse("--recording=" + base,
+                "--target=localhost:" + other.getPort(), "--speed=0")).run();
+
+        assertThat(report.getSent(), equalTo(5L));
+        assertThat(report.getReceived(), equalTo(5L));
+        assertThat(report.getErrors(), equalTo(0L));
+        // Streams are replayed concurrently, each in order
+        assertThat(Set.copyOf(replayed.invocations), equalTo(Set.of(List.of("a", "b", "c"), List.of("d", "e"))));
+    }
+
+    @Test
+    public void testReplayKeepsTheOriginalPace() throws Exception {
+        Server original = start(new Upper(), true);
+        invoke(original, Flux.just("a", "b", "c").delayElements(Duration.ofMillis(100L)));
+        hosts.get(0).close();
+
+        Server other = start(new Upper(), false);
+        long start = System.nanoTime();
+        LoadReport report = new TrafficReplayer(ReplayOptions.parse("--recording=" + base,
+                "--target=localhost:" + other.getPort(), "--speed=1")).run();
+
+        assertThat(report.getReceived(), equalTo(3L));
+        assertThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250L), is(true));
+    }
+
+    @Test
+    public void testRecordingsRotateAcrossFiles() throws Exception {
+        // Around 50 bytes per record, hence a few records per file
+        TrafficRecorder recorder = new TrafficRecorder(base, 200L, 100, 1024);
+        recorder.record(signals(20)).blockLast();
+        recorder.close();
+        Recording recording = Recording.open(base);
+        assertThat(recording.getFiles().size() > 1, is(true));
+        assertThat(read(recording).get(1L), equalTo(expected(20)));
+
+        // A later recording to the same base, of which only the latest files are kept
+        Thread.sleep(5L);
+        recorder = new TrafficRecorder(base, 200L, 2, 1024);
+        recorder.record(signals(20)).blockLast();
+        recorder.close();
+        recording = Recording.open(base);
+        assertThat(recording.getFiles().size(), equalTo(2));
+        List<String> tail = read(recording).values().iterator().next();
+        List<String> all = expected(20);
+        assertThat(tail, equalTo(all.subList(all.size() - tail.size(), all.size())));
+    }
+
+    private Server start(Upper function, boolean record) throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        if (record) {
+            properties.getRecording().setFile(base);
+        }
+        FunctionHost host = new FunctionHost(properties, new SimpleMeterRegistry());
+        hosts.add(host);
+        host.start(List.of(new HostedFunction("upper", function,
+                new FunctionalInterfaceMethodResolver().resolve(function), new Class<?>[] {String.class})));
+        // Warming up hands an empty stream over
+        function.invocations.clear();
+        Server server = NettyServerBuilder.forPort(0).addService(new FunctionRouter(host)).build().start();
+        servers.add(server);
+        return server;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> invoke(Server server, Flux<String> inputs) throws InterruptedException {
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+        try {
+            Function<Flux<String>, Flux<String>[]> function = FunctionProxy.builder(Function.class)
+                    .channel(channel)
+                    .outputTypes(String.class)
+                    .functionName("upper")
+                    .build();
+            return function.apply(inputs)[0].collectList().block(Duration.ofSeconds(10));
+        }
+        finally {
+            channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+    }
+
+    /*
+     * The records of each stream, as "start <function>", the payload of data or "end".
+     */
+    private static Map<Long, List<String>> read(Recording recording) throws Exception {
+        Map<Long, List<String>> streams = new TreeMap<>();
+        long previous = 0L;
+        while (recording.next()) {
+            assertThat(recording.getNanos() >= previous, is(true));
+            previous = recording.getNanos();
+            InputSignal signal = recording.getSignal();
+            streams.computeIfAbsent(recording.getStream(), s -> new ArrayList<>())
+                    .add(recording.isEndOfStream() ? "end"
+                            : signal.hasStart() ? "start " + signal.getStart().getFunctionName()
+                            : signal.getData().getPayload().toStringUtf8());
+        }
+        return streams;
+    }
+
+    private static Flux<InputSignal> signals(int count) {
+        InputSignal start = InputSignal.newBuilder()
+                .setStart(StartFrame.newBuilder().setFunctionName("upper"))
+                .build();
+        return Flux.range(0, count)
+                .map(i -> InputSignal.newBuilder()
+                        .setData(InputFrame.newBuilder().setPayload(ByteString.copyFromUtf8("input-" + i)))
+                        .build())
+                .startWith(start);
+    }
+
+    private static List<String> expected(int count) {
+        List<String> records = new ArrayList<>();
+        records.add("start upper");
+        records.addAll(IntStream.range(0, count).mapToObj(i -> "input-" + i).collect(Collectors.toList()));
+        records.add("end");
+        return records;
+    }
+
+    /**
+     * Upper cases its inputs, remembering those of each invocation.
+     */
+    public static class Upper implements Function<Flux<String>, Flux<String>> {
+
+        private final List<List<String>> invocations = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            List<String> inputs = new CopyOnWriteArrayList<>();
+            invocations.add(inputs);
+            return input.doOnNext(inputs::add).map(String::toUpperCase);
+        }
+    }
+}
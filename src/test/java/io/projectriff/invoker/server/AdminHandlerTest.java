@@ -0,0 +1,117 @@
+package io.projectriff.invoker.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests that hot swaps are served by the admin listener, on the loopback interface only, and no longer on the data
+ * port.
+ *
+ * @author Eric Bottard
+ */
+public class AdminHandlerTest {
+
+    private static final String LOCATION = new File("src/test/functions/hundred-divider-1.0.0.jar").getAbsolutePath();
+
+    private static final String CLASS = "com.acme.HundredDivider";
+
+    private FunctionHost host;
+
+    private JavaFunctionInvoker.AdminRunner admin;
+
+    @Before
+    public void startAdmin() throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getHotSwap().setEnabled(true);
+        properties.getHotSwap().setPort(0);
+        host = new FunctionHost(properties, new SimpleMeterRegistry());
+        host.reload(LOCATION, CLASS);
+        admin = new JavaFunctionInvoker.AdminRunner(host, properties.getHotSwap());
+        admin.run();
+    }
+
+    @After
+    public void stopAdmin() {
+        admin.shutdownNow();
+        host.close();
+    }
+
+    @Test
+    public void testAdminListenerOnlyBindsToLoopback() {
+        assertThat(admin.getAddress().getAddress().isLoopbackAddress(), is(true));
+    }
+
+    @Test
+    public void testFunctionsAreSwappedIn() throws IOException {
+        String query = "location=" + URLEncoder.encode(LOCATION, "UTF-8") + "&classes=" + CLASS;
+        assertThat(request("POST", "/swap?" + query), equalTo(200));
+        assertThat(host.getCurrent().getVersion(), equalTo(2));
+    }
+
+    @Test
+    public void testInvalidRequestsAreRejected() throws IOException {
+        assertThat(request("POST", "/swap?classes=" + CLASS), equalTo(400));
+        assertThat(request("GET", "/swap"), equalTo(405));
+        assertThat(request("POST", "/other"), equalTo(404));
+        assertThat(request("POST", "/swap?location=nowhere.jar&classes=" + CLASS), equalTo(500));
+        assertThat(host.getCurrent().getVersion(), equalTo(1));
+    }
+
+    @Test
+    public void testDisabledAdminDoesNotListen() throws InterruptedException {
+        InvokerProperties.HotSwap disabled = new InvokerProperties.HotSwap();
+        disabled.setPort(0);
+        JavaFunctionInvoker.AdminRunner runner = new JavaFunctionInvoker.AdminRunner(host, disabled);
+        runner.run();
+        assertThat(runner.getAddress(), nullValue());
+        runner.shutdownNow();
+    }
+
+    @Test
+    public void testDataPortDoesNotSwap() {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getHotSwap().setEnabled(true);
+        EmbeddedChannel http = new EmbeddedChannel(new HttpServerHandler(host, new SimpleMeterRegistry(), properties, null));
+        http.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST,
+                "/swap?location=" + LOCATION + "&classes=" + CLASS, Unpooled.EMPTY_BUFFER));
+
+        FullHttpResponse response = http.readOutbound();
+        assertThat(response.status(), equalTo(HttpResponseStatus.NOT_FOUND));
+        assertThat(host.getCurrent().getVersion(), equalTo(1));
+        response.release();
+    }
+
+    private int request(String method, String path) throws IOException {
+        URL url = new URL("http", admin.getAddress().getHostString(), admin.getAddress().getPort(), path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setReadTimeout(30_000);
+        try {
+            return connection.getResponseCode();
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+}
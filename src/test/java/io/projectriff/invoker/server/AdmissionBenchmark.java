@@ -0,0 +1,100 @@
+package io.projectriff.invoker.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.admission.AdmissionController;
+import io.projectriff.invoker.admission.GradientConcurrencyLimit;
+import io.projectriff.invoker.loadgen.LoadGenerator;
+import io.projectriff.invoker.loadgen.LoadOptions;
+import io.projectriff.invoker.loadgen.LoadReport;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Overloads a function over http, with and without admission control, to compare the latency of the requests that
+ * get served. The function has a fixed service time on a single thread, so the default rate is about twice its
+ * capacity.
+ *
+ * <p>
+ * Not run as part of the build. Run its {@code main} method from the project directory, optionally with load
+ * generator options (<i>e.g.</i> {@code --rate=800 --duration=60s}) which override the defaults.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class AdmissionBenchmark {
+
+    private static final long SERVICE_TIME_NANOS = 2_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(List.of(args));
+        for (String option : List.of("--mode=open", "--rate=1000", "--streams=64", "--payload=riff",
+                "--content-type=text/plain", "--accept=text/plain", "--warmup=5s", "--duration=15s")) {
+            String name = option.substring(0, option.indexOf('=') + 1);
+            if (options.stream().noneMatch(o -> o.startsWith(name))) {
+                options.add(option);
+            }
+        }
+
+        Scheduler worker = Schedulers.newSingle("service");
+        try {
+            for (int round = 0; round < 2; round++) {
+                run("no admission control", false, worker, options);
+                run("admission control", true, worker, options);
+            }
+        }
+        finally {
+            worker.dispose();
+        }
+    }
+
+    private static void run(String label, boolean admit, Scheduler worker, List<String> options) throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        InvokerProperties properties = new InvokerProperties();
+        InvokerProperties.Admission limits = properties.getAdmission();
+        AdmissionController admission = admit ? new AdmissionController(new GradientConcurrencyLimit(
+                limits.getInitialLimit(), limits.getMinLimit(), limits.getMaxLimit()), registry) : null;
+        FunctionHost host = new FunctionHost(properties, registry);
+        host.start(List.of(FunctionRouterTest.hosted("busy", new Busy(worker))));
+        // Enough event loops that requests queue up in the function rather than in the server
+        try (HttpTestServer server = new HttpTestServer(host, registry, properties, admission, 64)) {
+            List<String> withTarget = new ArrayList<>(options);
+            withTarget.add(0, "--http=" + server.getUrl());
+            withTarget.add(0, "--function=busy");
+            LoadReport report = LoadGenerator.create(LoadOptions.parse(withTarget.toArray(new String[0]))).run();
+            System.out.printf("%n== %s: %.0f/s%s%n%s", label, report.getThroughput(),
+                    admission != null ? ", final limit " + admission.getLimit() : "", report.toText());
+        }
+        finally {
+            host.close();
+        }
+    }
+
+    /**
+     * Spends a fixed amount of time per element, one element at a time across all invocations.
+     */
+    public static class Busy implements Function<Flux<String>, Flux<String>> {
+
+        private final Scheduler worker;
+
+        Busy(Scheduler worker) {
+            this.worker = worker;
+        }
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.publishOn(worker).map(s -> {
+                long end = System.nanoTime() + SERVICE_TIME_NANOS;
+                while (System.nanoTime() - end < 0L) {
+                    LockSupport.parkNanos(end - System.nanoTime());
+                }
+                return s;
+            });
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package io.projectriff.invoker.server;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.admission.AdmissionController;
+import io.projectriff.invoker.admission.GradientConcurrencyLimit;
+import io.projectriff.invoker.admission.Priority;
+import io.projectriff.invoker.admission.ServerAdmissionInterceptor;
+import io.projectriff.invoker.client.FunctionProxy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.Disposable;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+
+import org.springframework.util.StreamUtils;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that invocations over the concurrency limit are rejected early, over gRPC and http.
+ *
+ * @author Eric Bottard
+ */
+public class AdmissionTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final CountDownLatch gate = new CountDownLatch(1);
+
+    private FunctionHost host;
+
+    private AdmissionController admission;
+
+    @Before
+    public void startHost() throws Exception {
+        host = new FunctionHost(new InvokerProperties(), registry);
+        host.start(List.of(FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper()),
+                FunctionRouterTest.hosted("gated", new Gated(gate))));
+        // Normal invocations may use one slot, critical ones two
+        admission = new AdmissionController(new GradientConcurrencyLimit(2, 2, 2), registry);
+    }
+
+    @After
+    public void stopHost() {
+        gate.countDown();
+        host.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStreamsOverTheLimitAreRejected() throws Exception {
+        Server server = InProcessServerBuilder.forName("admission-test")
+                .addService(ServerInterceptors.intercept(new FunctionRouter(host), new ServerAdmissionInterceptor(admission)))
+                .build()
+                .start();
+        ManagedChannel channel = InProcessChannelBuilder.forName("admission-test").build();
+        try {
+            // A stream that stays open, holding its permit
+            Function<Flux<String>, Flux<String>[]> normal = FunctionProxy.builder(Function.class)
+                    .channel(channel).outputTypes(String.class).functionName("upper").build();
+            CompletableFuture<String> first = new CompletableFuture<>();
+            Disposable open = normal.apply(Flux.just("a").concatWith(Flux.never()))[0].subscribe(first::complete);
+            assertThat(first.get(10, TimeUnit.SECONDS), equalTo("A"));
+            awaitInFlight(1);
+
+            try {
+                normal.apply(Flux.just("b"))[0].blockLast(Duration.ofSeconds(10));
+                fail("Expected the stream to be rejected");
+            }
+            catch (RuntimeException e) {
+                // Depending on timing, the status may bubble up wrapped by reactor
+                assertThat(Status.fromThrowable(Exceptions.unwrap(e)).getCode(), equalTo(Status.Code.RESOURCE_EXHAUSTED));
+            }
+
+            // Critical invocations may still use the rest of the limit
+            Function<Flux<String>, Flux<String>[]> critical = FunctionProxy.builder(Function.class)
+                    .channel(channel).outputTypes(String.class).functionName("upper").priority(Priority.CRITICAL).build();
+            assertThat(critical.apply(Flux.just("c"))[0].collectList().block(Duration.ofSeconds(10)), equalTo(List.of("C")));
+
+            // Cancelling the open stream releases its permit
+            open.dispose();
+            awaitInFlight(0);
+            assertThat(normal.apply(Flux.just("d"))[0].collectList().block(Duration.ofSeconds(10)), equalTo(List.of("D")));
+            awaitInFlight(0);
+        }
+        finally {
+            channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testRequestsOverTheLimitAreRejected() throws Exception {
+        try (HttpTestServer server = new HttpTestServer(host, registry, new InvokerProperties(), admission)) {
+            CompletableFuture<Integer> pending = CompletableFuture.supplyAsync(() -> post(server, "gated", null));
+            awaitInFlight(1);
+
+            assertThat(post(server, "upper", null), equalTo(503));
+            assertThat(post(server, "upper", Priority.CRITICAL), equalTo(200));
+
+            gate.countDown();
+            assertThat(pending.get(10, TimeUnit.SECONDS), equalTo(200));
+            awaitInFlight(0);
+            assertThat(post(server, "upper", null), equalTo(200));
+        }
+    }
+
+    /*
+     * Permits are released once responses have been written, possibly after clients have read them.
+     */
+    private void awaitInFlight(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (admission.getInFlight() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(admission.getInFlight(), equalTo(expected));
+    }
+
+    private static int post(HttpTestServer server, String function, Priority priority) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(server.getUrl() + function).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setReadTimeout(30_000);
+            connection.setRequestProperty("Content-Type", "text/plain");
+            connection.setRequestProperty("Accept", "text/plain");
+            if (priority != null) {
+                connection.setRequestProperty(Priority.HEADER, priority.name());
+            }
+            StreamUtils.copy("riff", StandardCharsets.UTF_8, connection.getOutputStream());
+            try {
+                return connection.getResponseCode();
+            }
+            finally {
+                connection.disconnect();
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Holds each element until a gate opens.
+     */
+    public static class Gated implements Function<Flux<String>, Flux<String>> {
+
+        private final CountDownLatch gate;
+
+        Gated(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.map(s -> {
+                try {
+                    gate.await(30, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return s;
+            });
+        }
+    }
+}
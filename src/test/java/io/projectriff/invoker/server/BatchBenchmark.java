@@ -0,0 +1,108 @@
+package io.projectriff.invoker.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.loadgen.LoadGenerator;
+import io.projectriff.invoker.loadgen.LoadOptions;
+import io.projectriff.invoker.loadgen.LoadReport;
+import reactor.core.publisher.Flux;
+
+import org.springframework.boot.convert.DurationStyle;
+
+/**
+ * Compares the elements per second of the same numeric function, taking one element at a time and taking chunks of
+ * elements ({@code Flux<int[]>}).
+ *
+ * <p>
+ * Not run as part of the build. Run its {@code main} method from the project directory, optionally with load
+ * generator options (<i>e.g.</i> {@code --streams=8 --concurrency=64 --duration=60s}) which override the defaults.
+ * Chunks are sized by {@code --batch-size=} and {@code --batch-linger=}, which default to the invoker's defaults.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class BatchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        List<String> options = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--batch-size=")) {
+                properties.getStream().setBatchSize(Integer.parseInt(arg.substring("--batch-size=".length())));
+            }
+            else if (arg.startsWith("--batch-linger=")) {
+                properties.getStream().setBatchLinger(DurationStyle.detectAndParse(arg.substring("--batch-linger=".length())));
+            }
+            else {
+                options.add(arg);
+            }
+        }
+        for (String option : List.of("--streams=4", "--concurrency=256", "--payload=4", "--content-type=application/json",
+                "--accept=application/json", "--warmup=5s", "--duration=15s")) {
+            String name = option.substring(0, option.indexOf('=') + 1);
+            if (options.stream().noneMatch(o -> o.startsWith(name))) {
+                options.add(option);
+            }
+        }
+
+        FunctionHost host = new FunctionHost(properties, new SimpleMeterRegistry());
+        host.start(List.of(hosted("elements", new Elements()), hosted("chunks", new Chunks())));
+        Server server = NettyServerBuilder.forPort(0).addService(new FunctionRouter(host)).build().start();
+        try {
+            // Alternated, so that the JIT state of the client does not favor either
+            for (int round = 0; round < 2; round++) {
+                run("one element at a time", "elements", server, options);
+                run("chunks of " + properties.getStream().getBatchSize(), "chunks", server, options);
+            }
+        }
+        finally {
+            server.shutdownNow().awaitTermination(5L, TimeUnit.SECONDS);
+            host.close();
+        }
+    }
+
+    private static void run(String label, String function, Server server, List<String> options) throws Exception {
+        List<String> withTarget = new ArrayList<>(options);
+        withTarget.add(0, "--target=localhost:" + server.getPort());
+        withTarget.add(0, "--function=" + function);
+        LoadReport report = LoadGenerator.create(LoadOptions.parse(withTarget.toArray(new String[0]))).run();
+        System.out.printf("%n== %s: %.0f elements/s%n%s", label, report.getThroughput(), report.toText());
+    }
+
+    /*
+     * The chunks a function takes are told by the generic signature of its method.
+     */
+    private static HostedFunction hosted(String name, Object function) {
+        return new HostedFunction(name, function, new FunctionalInterfaceMethodResolver().resolve(function),
+                new Class<?>[] {Integer.class});
+    }
+
+    /**
+     * Doubles each element.
+     */
+    public static class Elements implements Function<Flux<Integer>, Flux<Integer>> {
+
+        @Override
+        public Flux<Integer> apply(Flux<Integer> input) {
+            return input.map(i -> 2 * i);
+        }
+    }
+
+    /**
+     * Doubles each element of a chunk.
+     */
+    public static class Chunks implements Function<Flux<int[]>, Flux<int[]>> {
+
+        @Override
+        public Flux<int[]> apply(Flux<int[]> input) {
+            return input.map(chunk -> IntStream.of(chunk).map(i -> 2 * i).toArray());
+        }
+    }
+}
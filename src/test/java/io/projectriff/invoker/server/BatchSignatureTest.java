@@ -0,0 +1,199 @@
+package io.projectriff.invoker.server;
+
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.client.FunctionProxy;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import org.springframework.core.ResolvableType;
+import org.springframework.util.StreamUtils;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests for {@link BatchSignature}, and for functions taking and returning chunks of elements.
+ *
+ * @author Eric Bottard
+ */
+public class BatchSignatureTest {
+
+    private static final List<Integer> INPUTS = IntStream.rangeClosed(1, 10).boxed().collect(Collectors.toList());
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final Doubler doubler = new Doubler();
+
+    private FunctionHost host;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    @After
+    public void stopServer() throws InterruptedException {
+        if (channel != null) {
+            channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+        if (host != null) {
+            host.close();
+        }
+    }
+
+    @Test
+    public void testChunkedSignaturesAreRecognized() {
+        Method doubler = method(new Doubler());
+        assertThat(BatchSignature.ofParameters(doubler)[0].toString(), equalTo("int_array"));
+        assertThat(BatchSignature.ofResults(doubler).toString(), equalTo("int_array"));
+        assertThat(BatchSignature.isBatched(doubler), is(true));
+        assertThat(BatchSignature.elementType(ResolvableType.forMethodParameter(doubler, 0)), equalTo(Integer.class));
+
+        Method lists = method(new Lists());
+        assertThat(BatchSignature.ofParameters(lists)[0].toString(), equalTo("List<String>"));
+        assertThat(BatchSignature.elementType(ResolvableType.forMethodParameter(lists, 0)), equalTo(String.class));
+
+        // Plain elements, and types that merely look like chunks, are not
+        Method upper = method(new FunctionRouterTest.Upper());
+        assertThat(BatchSignature.ofParameters(upper)[0], nullValue());
+        assertThat(BatchSignature.isBatched(upper), is(false));
+        assertThat(BatchSignature.elementType(ResolvableType.forMethodParameter(upper, 0)), equalTo(String.class));
+        assertThat(BatchSignature.of(ResolvableType.forClassWithGenerics(Flux.class, String[].class)), nullValue());
+        assertThat(BatchSignature.of(ResolvableType.forClassWithGenerics(List.class, Integer.class)), nullValue());
+    }
+
+    @Test
+    public void testChunksRoundTrip() {
+        assertRoundTrip(int[].class, List.of(1, 2, 3));
+        assertRoundTrip(long[].class, List.of(1L, 2L, 3L));
+        assertRoundTrip(float[].class, List.of(1f, 2f, 3f));
+        assertRoundTrip(double[].class, List.of(1d, 2d, 3d));
+        assertRoundTrip(List.class, List.of("a", "b"));
+        assertRoundTrip(int[].class, List.of());
+
+        BatchSignature ints = BatchSignature.of(ResolvableType.forClassWithGenerics(Flux.class, int[].class));
+        assertThat(((int[]) ints.toChunk(List.of(4, 2))).length, equalTo(2));
+    }
+
+    @Test
+    public void testFullChunksAreHandedOverAndTheRestOnCompletion() throws Exception {
+        start(4, Duration.ofSeconds(30));
+        List<Integer> results = invoke(Flux.fromIterable(INPUTS)).collectList().block(Duration.ofSeconds(10));
+
+        assertThat(results, equalTo(INPUTS.stream().map(i -> 2 * i).collect(Collectors.toList())));
+        assertThat(doubler.chunks, equalTo(List.of(4, 4, 2)));
+        assertThat(registry.get(InvokerMetrics.PREFIX + ".batch.size").summary().count(), equalTo(3L));
+    }
+
+    @Test
+    public void testIncompleteChunksAreHandedOverAfterTheLinger() throws Exception {
+        start(4, Duration.ofMillis(50));
+        // The stream stays open, so only the linger can hand these over
+        List<Integer> results = invoke(Flux.just(1, 2, 3).concatWith(Flux.never())).take(3)
+                .collectList()
+                .block(Duration.ofSeconds(10));
+
+        assertThat(results, equalTo(List.of(2, 4, 6)));
+        assertThat(doubler.chunks, equalTo(List.of(3)));
+    }
+
+    @Test
+    public void testHttpRequestsAreChunksOfOne() throws Exception {
+        start(4, Duration.ofSeconds(30));
+        try (HttpTestServer http = new HttpTestServer(host, registry, new InvokerProperties(), null)) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(http.getUrl() + "doubler").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Accept", "application/json");
+            StreamUtils.copy("21", StandardCharsets.UTF_8, connection.getOutputStream());
+            try {
+                assertThat(connection.getResponseCode(), equalTo(200));
+                assertThat(StreamUtils.copyToString(connection.getInputStream(), StandardCharsets.UTF_8), equalTo("42"));
+            }
+            finally {
+                connection.disconnect();
+            }
+        }
+        assertThat(doubler.chunks, equalTo(List.of(1)));
+    }
+
+    private void start(int batchSize, Duration linger) throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getStream().setBatchSize(batchSize);
+        properties.getStream().setBatchLinger(linger);
+        host = new FunctionHost(properties, registry);
+        host.start(List.of(new HostedFunction("doubler", doubler, method(doubler), new Class<?>[] {Integer.class})));
+        server = InProcessServerBuilder.forName("batch-signature-test").addService(new FunctionRouter(host)).build().start();
+        channel = InProcessChannelBuilder.forName("batch-signature-test").build();
+        // Warming up hands an empty stream over, which has no chunks
+        doubler.chunks.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Flux<Integer> invoke(Flux<Integer> inputs) {
+        Function<Flux<Integer>, Flux<Integer>[]> function = FunctionProxy.builder(Function.class)
+                .channel(channel)
+                .outputTypes(Integer.class)
+                .build();
+        return function.apply(inputs)[0];
+    }
+
+    private static <T> void assertRoundTrip(Class<?> chunkType, List<T> elements) {
+        ResolvableType chunk = List.class.equals(chunkType) ? ResolvableType.forClassWithGenerics(List.class, String.class)
+                : ResolvableType.forClass(chunkType);
+        BatchSignature batch = BatchSignature.of(ResolvableType.forClassWithGenerics(Flux.class, chunk));
+        assertThat(batch.elements(batch.toChunk(elements)), equalTo(elements));
+    }
+
+    private static Method method(Object function) {
+        return new FunctionalInterfaceMethodResolver().resolve(function);
+    }
+
+    /**
+     * Doubles chunks of ints, remembering their sizes.
+     */
+    public static class Doubler implements Function<Flux<int[]>, Flux<int[]>> {
+
+        private final List<Integer> chunks = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Flux<int[]> apply(Flux<int[]> input) {
+            return input.map(chunk -> {
+                chunks.add(chunk.length);
+                return IntStream.of(chunk).map(i -> 2 * i).toArray();
+            });
+        }
+    }
+
+    /**
+     * Takes lists of strings.
+     */
+    public static class Lists implements Function<Flux<List<String>>, Flux<List<String>>> {
+
+        @Override
+        public Flux<List<String>> apply(Flux<List<String>> input) {
+            return input;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package io.projectriff.invoker.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Flux;
+
+import org.springframework.util.StreamUtils;
+
+/**
+ * Sends the same burst of http requests, whose bodies follow a Zipf distribution, to a CPU bound function with and
+ * without coalescing, and compares the number of executions, the CPU time of the process and the wall time.
+ *
+ * <p>
+ * Not run as part of the build. Run its {@code main} method from the project directory, optionally with
+ * {@code --requests=}, {@code --keys=}, {@code --skew=} and {@code --clients=} options which override the defaults.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class CoalescingBenchmark {
+
+    private static final long SERVICE_TIME_NANOS = 2_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        int requests = Integer.parseInt(option(args, "requests", "5000"));
+        int keys = Integer.parseInt(option(args, "keys", "1000"));
+        double skew = Double.parseDouble(option(args, "skew", "1.1"));
+        int clients = Integer.parseInt(option(args, "clients", "64"));
+        List<String> bodies = zipf(requests, keys, skew, new Random(42L));
+
+        // Alternated, so that the JIT state of either side does not favor one of them
+        for (int round = 0; round < 2; round++) {
+            run("no coalescing", false, bodies, clients);
+            run("coalescing", true, bodies, clients);
+        }
+    }
+
+    private static void run(String label, boolean coalesce, List<String> bodies, int clients) throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        if (coalesce) {
+            properties.getHttp().setCoalescedFunctions(List.of("busy"));
+        }
+        Busy busy = new Busy();
+        FunctionHost host = new FunctionHost(properties, new SimpleMeterRegistry());
+        host.start(List.of(FunctionRouterTest.hosted("busy", busy)));
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try (HttpTestServer server = new HttpTestServer(host, new SimpleMeterRegistry(), properties, null, clients)) {
+            long cpu = processCpuNanos();
+            long start = System.nanoTime();
+            List<Future<Integer>> responses = new ArrayList<>();
+            for (String body : bodies) {
+                responses.add(pool.submit(() -> post(server.getUrl() + "busy", body)));
+            }
+            int failed = 0;
+            for (Future<Integer> response : responses) {
+                failed += response.get() == 200 ? 0 : 1;
+            }
+            System.out.printf("== %s: %d executions for %d requests (%d failed), cpu %.1fs, wall %.1fs%n", label,
+                    busy.executions.get(), bodies.size(), failed, (processCpuNanos() - cpu) / 1e9,
+                    (System.nanoTime() - start) / 1e9);
+        }
+        finally {
+            pool.shutdownNow();
+            host.close();
+        }
+    }
+
+    private static int post(String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "text/plain");
+        connection.setRequestProperty("Accept", "text/plain");
+        StreamUtils.copy(body, StandardCharsets.UTF_8, connection.getOutputStream());
+        int status = connection.getResponseCode();
+        StreamUtils.drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        return status;
+    }
+
+    /*
+     * Draws the bodies of requests among the given number of keys, the k-th most frequent one being drawn with a
+     * probability proportional to 1 / k^skew.
+     */
+    private static List<String> zipf(int requests, int keys, double skew, Random random) {
+        double[] cumulative = new double[keys];
+        double sum = 0d;
+        for (int k = 0; k < keys; k++) {
+            sum += 1d / Math.pow(k + 1, skew);
+            cumulative[k] = sum;
+        }
+        List<String> bodies = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            int k = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            bodies.add("key-" + (k < 0 ? -k - 1 : k));
+        }
+        return bodies;
+    }
+
+    private static String option(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith("--" + name + "=")) {
+                return arg.substring(name.length() + 3);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    /**
+     * Burns a fixed amount of CPU per element.
+     */
+    public static class Busy implements Function<Flux<String>, Flux<String>> {
+
+        private final AtomicInteger executions = new AtomicInteger();
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.map(s -> {
+                executions.incrementAndGet();
+                long end = System.nanoTime() + SERVICE_TIME_NANOS;
+                while (System.nanoTime() - end < 0L) {
+                    Thread.onSpinWait();
+                }
+                return s.toUpperCase();
+            });
+        }
+    }
+}
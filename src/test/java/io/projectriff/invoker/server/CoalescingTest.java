@@ -0,0 +1,188 @@
+package io.projectriff.invoker.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import org.springframework.util.StreamUtils;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests that concurrent identical http requests share a single execution, and that waiting for it doesn't hold an
+ * event loop.
+ *
+ * @author Eric Bottard
+ */
+public class CoalescingTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final Held held = new Held();
+
+    private final ExecutorService clients = Executors.newFixedThreadPool(8);
+
+    private FunctionHost host;
+
+    private HttpTestServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getHttp().setCoalescedFunctions(List.of("held"));
+        host = new FunctionHost(properties, registry);
+        host.start(List.of(FunctionRouterTest.hosted("held", held),
+                FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper())));
+        // A single event loop, that pending requests must not hold
+        server = new HttpTestServer(host, registry, properties, null, 1);
+    }
+
+    @After
+    public void stopServer() throws InterruptedException {
+        held.release.complete(null);
+        clients.shutdownNow();
+        server.close();
+        host.close();
+    }
+
+    @Test
+    public void testIdenticalConcurrentRequestsShareOneExecution() throws Exception {
+        List<Future<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            responses.add(clients.submit(() -> post("held", "riff")));
+        }
+        awaitCoalesced(3);
+        held.release.complete(null);
+
+        for (Future<String> response : responses) {
+            assertThat(response.get(10, TimeUnit.SECONDS), equalTo("200 RIFF"));
+        }
+        assertThat(held.executions.get(), equalTo(1));
+
+        // Once answered, the same request runs the function again
+        assertThat(post("held", "riff"), equalTo("200 RIFF"));
+        assertThat(held.executions.get(), equalTo(2));
+    }
+
+    @Test
+    public void testDifferentRequestsAreNotCoalesced() throws Exception {
+        Future<String> first = clients.submit(() -> post("held", "a"));
+        Future<String> second = clients.submit(() -> post("held", "b"));
+        awaitExecutions(2);
+        held.release.complete(null);
+
+        assertThat(first.get(10, TimeUnit.SECONDS), equalTo("200 A"));
+        assertThat(second.get(10, TimeUnit.SECONDS), equalTo("200 B"));
+        assertThat(coalesced(), equalTo(0d));
+    }
+
+    @Test
+    public void testRequestsSharingAFailedExecutionGetAnError() throws Exception {
+        List<Future<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            responses.add(clients.submit(() -> post("held", "poison")));
+        }
+        awaitCoalesced(2);
+        held.release.complete(null);
+
+        for (Future<String> response : responses) {
+            assertThat(response.get(10, TimeUnit.SECONDS), equalTo("500 Can't handle poison"));
+        }
+        assertThat(held.executions.get(), equalTo(1));
+    }
+
+    @Test
+    public void testPendingRequestsDoNotHoldTheEventLoop() throws Exception {
+        Future<String> pending = clients.submit(() -> post("held", "riff"));
+        awaitExecutions(1);
+
+        // Served by the same, single, event loop
+        assertThat(post("upper", "riff"), equalTo("200 RIFF"));
+
+        held.release.complete(null);
+        assertThat(pending.get(10, TimeUnit.SECONDS), equalTo("200 RIFF"));
+    }
+
+    private void awaitCoalesced(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (coalesced() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(coalesced(), equalTo((double) expected));
+    }
+
+    private void awaitExecutions(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (held.executions.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(held.executions.get(), equalTo(expected));
+    }
+
+    private double coalesced() {
+        return registry.get(InvokerMetrics.PREFIX + ".http.coalesced").tag("function", "held").counter().count();
+    }
+
+    /*
+     * Returns the status and body of the response.
+     */
+    private String post(String function, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(server.getUrl() + function).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setReadTimeout(30_000);
+        connection.setRequestProperty("Content-Type", "text/plain");
+        connection.setRequestProperty("Accept", "text/plain");
+        StreamUtils.copy(body, StandardCharsets.UTF_8, connection.getOutputStream());
+        try {
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            return status + " " + (in == null ? "" : StreamUtils.copyToString(in, StandardCharsets.UTF_8));
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Holds each element, without blocking, until released, then upper cases it or fails on poison.
+     */
+    public static class Held implements Function<Flux<String>, Flux<String>> {
+
+        private final AtomicInteger executions = new AtomicInteger();
+
+        private final CompletableFuture<Void> release = new CompletableFuture<>();
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.doOnNext(s -> executions.incrementAndGet())
+                    .concatMap(s -> Mono.fromFuture(release).thenReturn(s))
+                    .map(s -> {
+                        if ("poison".equals(s)) {
+                            throw new IllegalArgumentException("Can't handle poison");
+                        }
+                        return s.toUpperCase();
+                    });
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package io.projectriff.invoker.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Compressor;
+import io.grpc.Decompressor;
+import io.projectriff.invoker.compression.CompressionCodecs;
+import io.projectriff.invoker.rpc.OutputFrame;
+import io.projectriff.invoker.rpc.OutputSignal;
+
+/**
+ * Measures, for each compression codec and a range of payload sizes, the CPU time spent compressing and decompressing
+ * an output frame against the bytes it saves on the wire, to help choose a codec and a threshold.
+ *
+ * <p>
+ * Not run as part of the build. Run its {@code main} method from the project directory, optionally with
+ * {@code --codecs=}, {@code --sizes=} (payload sizes in bytes), {@code --data=} ({@code json} or {@code random}) and
+ * {@code --time=} (milliseconds measured per codec and size, after as much warm-up) options which override the
+ * defaults.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class CompressionBenchmark {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        List<String> codecs = List.of(option(args, "codecs", "gzip,deflate,lz4").split(","));
+        List<Integer> sizes = Arrays.stream(option(args, "sizes", "64,256,1024,4096,16384,65536,262144,1048576").split(","))
+                .map(Integer::valueOf)
+                .collect(Collectors.toList());
+        boolean random = "random".equals(option(args, "data", "json"));
+        long time = Long.parseLong(option(args, "time", "1000")) * 1_000_000L;
+
+        // Alternated, so that the JIT state of either side does not favor one of them
+        for (int round = 0; round < 2; round++) {
+            System.out.printf("%n== round %d%n%-8s %9s %11s %7s %13s %13s %13s%n", round + 1, "codec", "frame", "compressed",
+                    "saved", "compress", "decompress", "cpu/KB saved");
+            for (int size : sizes) {
+                byte[] frame = frame(size, random);
+                for (String codec : codecs) {
+                    run(codec, CompressionCodecs.compressorRegistry().lookupCompressor(codec),
+                            CompressionCodecs.decompressorRegistry().lookupDecompressor(codec), frame, time);
+                }
+            }
+        }
+    }
+
+    private static void run(String codec, Compressor compressor, Decompressor decompressor, byte[] frame, long time)
+            throws IOException {
+        byte[] compressed = compress(compressor, frame);
+        measure(() -> compress(compressor, frame), time);
+        double compress = measure(() -> compress(compressor, frame), time);
+        measure(() -> decompress(decompressor, compressed), time);
+        double decompress = measure(() -> decompress(decompressor, compressed), time);
+
+        long saved = frame.length - compressed.length;
+        System.out.printf("%-8s %9d %11d %6.1f%% %10.1f us %10.1f us %13s%n", codec, frame.length,
+                compressed.length, 100.0 * saved / frame.length, compress / 1000, decompress / 1000,
+                saved > 0 ? String.format("%.1f us", (compress + decompress) / 1000 / (saved / 1024.0)) : "-");
+    }
+
+    /*
+     * Return the CPU time, in nanoseconds, the given work takes on average when repeated for the given time.
+     */
+    private static double measure(Work work, long time) throws IOException {
+        long cpu = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        long iterations = 0;
+        do {
+            work.run();
+            iterations++;
+        }
+        while (System.nanoTime() - start < time);
+        return (double) (threads.getCurrentThreadCpuTime() - cpu) / iterations;
+    }
+
+    /*
+     * A serialized output frame, as it would be handed to the codec by gRPC.
+     */
+    private static byte[] frame(int payloadSize, boolean random) {
+        byte[] payload = new byte[payloadSize];
+        if (random) {
+            new Random(42L).nextBytes(payload);
+        }
+        else {
+            StringBuilder json = new StringBuilder(payloadSize);
+            for (int i = 0; json.length() < payloadSize; i++) {
+                json.append("{\"id\":").append(i).append(",\"name\":\"riff-").append(i % 97).append("\",\"valid\":true},");
+            }
+            payload = json.substring(0, payloadSize).getBytes(StandardCharsets.UTF_8);
+        }
+        return OutputSignal.newBuilder()
+                .setData(OutputFrame.newBuilder()
+                        .setContentType(random ? "application/octet-stream" : "application/json")
+                        .setPayload(ByteString.copyFrom(payload)))
+                .build()
+                .toByteArray();
+    }
+
+    private static byte[] compress(Compressor compressor, byte[] frame) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(frame.length);
+        try (OutputStream out = compressor.compress(bytes)) {
+            out.write(frame);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] decompress(Decompressor decompressor, byte[] compressed) throws IOException {
+        try (InputStream in = decompressor.decompress(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static String option(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith("--" + name + "=")) {
+                return arg.substring(name.length() + 3);
+            }
+        }
+        return defaultValue;
+    }
+
+    private interface Work {
+
+        Object run() throws IOException;
+    }
+}
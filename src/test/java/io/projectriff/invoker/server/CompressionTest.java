@@ -0,0 +1,268 @@
+package io.projectriff.invoker.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerStreamTracer;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.client.FunctionProxy;
+import io.projectriff.invoker.compression.CompressionCodecs;
+import io.projectriff.invoker.compression.ServerCompressionInterceptor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests the bytes that compressed gRPC messages and http bodies actually take on the wire.
+ *
+ * @author Eric Bottard
+ */
+public class CompressionTest {
+
+    private static final int THRESHOLD = 1000;
+
+    private static final String SMALL = String.join("", Collections.nCopies(100, "r"));
+
+    private static final String LARGE = String.join("", Collections.nCopies(10_000, "r"));
+
+    private FunctionHost host;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    private final List<String> requestEncodings = new CopyOnWriteArrayList<>();
+
+    private final List<Long> inboundWireSizes = new CopyOnWriteArrayList<>();
+
+    private final List<Long> outboundWireSizes = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startHost() throws Exception {
+        host = new FunctionHost(new InvokerProperties(), new SimpleMeterRegistry());
+        host.start(List.of(FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper())));
+    }
+
+    @After
+    public void stopHost() throws Exception {
+        stopGrpc();
+        host.close();
+    }
+
+    @Test
+    public void testGrpcMessagesFromTheThresholdAreCompressed() throws Exception {
+        for (String codec : List.of("gzip", "deflate", "lz4")) {
+            startGrpc(codec);
+            assertThat(invoke(codec), equalTo(List.of(SMALL.toUpperCase(), LARGE.toUpperCase())));
+
+            assertThat(requestEncodings, equalTo(List.of(codec)));
+            // The start frame, then the inputs
+            assertThat(inboundWireSizes.size(), equalTo(3));
+            assertThat(codec, inboundWireSizes.get(1) > SMALL.length(), is(true));
+            assertThat(codec, inboundWireSizes.get(2) < LARGE.length() / 10, is(true));
+            assertThat(outboundWireSizes.size(), equalTo(2));
+            assertThat(codec, outboundWireSizes.get(0) > SMALL.length(), is(true));
+            assertThat(codec, outboundWireSizes.get(1) < LARGE.length() / 10, is(true));
+            stopGrpc();
+            requestEncodings.clear();
+            inboundWireSizes.clear();
+            outboundWireSizes.clear();
+        }
+    }
+
+    @Test
+    public void testGrpcMessagesAreNotCompressedUnlessAsked() throws Exception {
+        startGrpc(null);
+        assertThat(invoke(null), equalTo(List.of(SMALL.toUpperCase(), LARGE.toUpperCase())));
+
+        assertThat(requestEncodings, equalTo(List.of("identity")));
+        assertThat(inboundWireSizes.get(2) > LARGE.length(), is(true));
+        assertThat(outboundWireSizes.get(1) > LARGE.length(), is(true));
+    }
+
+    @Test
+    public void testHttpResponsesFromTheThresholdAreCompressed() throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getCompression().setCodec("gzip");
+        properties.getCompression().setThreshold(THRESHOLD);
+        try (HttpTestServer http = new HttpTestServer(host, new SimpleMeterRegistry(), properties, null)) {
+            Response gzipped = post(http, LARGE.getBytes(StandardCharsets.UTF_8), null, "gzip");
+            assertThat(gzipped.encoding, equalTo("gzip"));
+            assertThat(gzipped.body.length < LARGE.length() / 10, is(true));
+            assertThat(read(new GZIPInputStream(new ByteArrayInputStream(gzipped.body))), equalTo(LARGE.toUpperCase()));
+
+            Response deflated = post(http, LARGE.getBytes(StandardCharsets.UTF_8), null, "deflate");
+            assertThat(deflated.encoding, equalTo("deflate"));
+            assertThat(deflated.body.length < LARGE.length() / 10, is(true));
+            assertThat(read(new InflaterInputStream(new ByteArrayInputStream(deflated.body))), equalTo(LARGE.toUpperCase()));
+
+            Response small = post(http, SMALL.getBytes(StandardCharsets.UTF_8), null, "gzip");
+            assertThat(small.encoding, nullValue());
+            assertThat(new String(small.body, StandardCharsets.UTF_8), equalTo(SMALL.toUpperCase()));
+
+            Response identity = post(http, LARGE.getBytes(StandardCharsets.UTF_8), null, null);
+            assertThat(identity.encoding, nullValue());
+            assertThat(new String(identity.body, StandardCharsets.UTF_8), equalTo(LARGE.toUpperCase()));
+        }
+    }
+
+    @Test
+    public void testHttpRequestsMayBeCompressed() throws Exception {
+        // Whether or not responses are
+        try (HttpTestServer http = new HttpTestServer(host, new SimpleMeterRegistry(), new InvokerProperties(), null)) {
+            Response gzipped = post(http, compress(LARGE, GZIPOutputStream::new), "gzip", "gzip");
+            assertThat(gzipped.encoding, nullValue());
+            assertThat(new String(gzipped.body, StandardCharsets.UTF_8), equalTo(LARGE.toUpperCase()));
+
+            Response deflated = post(http, compress(SMALL, DeflaterOutputStream::new), "deflate", null);
+            assertThat(new String(deflated.body, StandardCharsets.UTF_8), equalTo(SMALL.toUpperCase()));
+        }
+    }
+
+    private void startGrpc(String codec) throws IOException {
+        ServerStreamTracer.Factory tracer = new ServerStreamTracer.Factory() {
+
+            @Override
+            public ServerStreamTracer newServerStreamTracer(String fullMethodName, Metadata headers) {
+                String encoding = headers.get(Metadata.Key.of("grpc-encoding", Metadata.ASCII_STRING_MARSHALLER));
+                requestEncodings.add(encoding == null ? "identity" : encoding);
+                return new ServerStreamTracer() {
+
+                    @Override
+                    public void inboundMessageRead(int seqNo, long wireSize, long uncompressedSize) {
+                        inboundWireSizes.add(wireSize);
+                    }
+
+                    @Override
+                    public void outboundMessageSent(int seqNo, long wireSize, long uncompressedSize) {
+                        outboundWireSizes.add(wireSize);
+                    }
+                };
+            }
+        };
+        FunctionRouter router = new FunctionRouter(host);
+        server = NettyServerBuilder.forAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+                .addService(codec == null ? ServerInterceptors.intercept(router)
+                        : ServerInterceptors.intercept(router, new ServerCompressionInterceptor(codec, THRESHOLD)))
+                .addStreamTracerFactory(tracer)
+                .compressorRegistry(CompressionCodecs.compressorRegistry())
+                .decompressorRegistry(CompressionCodecs.decompressorRegistry())
+                .build()
+                .start();
+        channel = NettyChannelBuilder.forAddress("localhost", server.getPort())
+                .usePlaintext()
+                .compressorRegistry(CompressionCodecs.compressorRegistry())
+                .decompressorRegistry(CompressionCodecs.decompressorRegistry())
+                .build();
+    }
+
+    private void stopGrpc() throws InterruptedException {
+        if (channel != null) {
+            channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+        if (server != null) {
+            server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> invoke(String codec) {
+        FunctionProxy.Builder<Function> builder = FunctionProxy.builder(Function.class)
+                .channel(channel)
+                .outputTypes(String.class)
+                .functionName("upper");
+        if (codec != null) {
+            builder.compression(codec, THRESHOLD);
+        }
+        Function<Flux<String>, Flux<String>[]> function = builder.build();
+        return function.apply(Flux.just(SMALL, LARGE))[0].collectList().block(Duration.ofSeconds(10));
+    }
+
+    private static Response post(HttpTestServer server, byte[] body, String contentEncoding, String acceptEncoding)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(server.getUrl() + "upper").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "text/plain");
+        connection.setRequestProperty("Accept", "text/plain");
+        if (contentEncoding != null) {
+            connection.setRequestProperty("Content-Encoding", contentEncoding);
+        }
+        if (acceptEncoding != null) {
+            connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        try {
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            assertThat(connection.getResponseCode(), equalTo(200));
+            try (InputStream in = connection.getInputStream()) {
+                return new Response(connection.getHeaderField("Content-Encoding"), in.readAllBytes());
+            }
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] compress(String value, Compressor compressor) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = compressor.wrap(bytes)) {
+            out.write(value.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private interface Compressor {
+
+        OutputStream wrap(OutputStream out) throws IOException;
+    }
+
+    private static final class Response {
+
+        private final String encoding;
+
+        private final byte[] body;
+
+        private Response(String encoding, byte[] body) {
+            this.encoding = encoding;
+            this.body = body;
+        }
+    }
+}
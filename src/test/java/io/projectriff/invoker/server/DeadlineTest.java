@@ -0,0 +1,180 @@
+package io.projectriff.invoker.server;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.client.FunctionProxy;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import org.springframework.util.StreamUtils;
+
+import static org.hamcrest.CoreMatchers.anyOf;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that client deadlines, given as gRPC deadlines or as a {@value HttpServerHandler#TIMEOUT_HEADER} http
+ * header, bound invocations.
+ *
+ * @author Eric Bottard
+ */
+public class DeadlineTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final Slow slow = new Slow();
+
+    private FunctionHost host;
+
+    @Before
+    public void startHost() throws Exception {
+        host = new FunctionHost(new InvokerProperties(), registry);
+        host.start(List.of(FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper()),
+                FunctionRouterTest.hosted("slow", slow)));
+    }
+
+    @After
+    public void stopHost() {
+        host.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGrpcDeadlineCancelsTheInvocation() throws Exception {
+        Server server = InProcessServerBuilder.forName("deadline-test").addService(new FunctionRouter(host)).build().start();
+        ManagedChannel channel = InProcessChannelBuilder.forName("deadline-test").build();
+        try {
+            Function<Flux<String>, Flux<String>[]> proxy = FunctionProxy.builder(Function.class)
+                    .channel(channel).outputTypes(String.class).functionName("slow").timeout(Duration.ofMillis(200L)).build();
+            try {
+                proxy.apply(Flux.just("a", "b"))[0].blockLast(Duration.ofSeconds(10));
+                fail("Expected the invocation to time out");
+            }
+            catch (RuntimeException e) {
+                // The invoker enforces the same deadline, and its cancellation may reach the client first
+                assertThat(Status.fromThrowable(Exceptions.unwrap(e)).getCode(),
+                        anyOf(equalTo(Status.Code.DEADLINE_EXCEEDED), equalTo(Status.Code.CANCELLED)));
+            }
+            // Whether the element reached the function or was dropped by the deadline check, the invocation ends
+            assertThat(slow.ended.await(10, TimeUnit.SECONDS), is(true));
+
+            // Invocations that complete in time are not affected
+            Function<Flux<String>, Flux<String>[]> upper = FunctionProxy.builder(Function.class)
+                    .channel(channel).outputTypes(String.class).functionName("upper").timeout(Duration.ofSeconds(10L)).build();
+            assertThat(upper.apply(Flux.just("riff"))[0].collectList().block(Duration.ofSeconds(10)), equalTo(List.of("RIFF")));
+        }
+        finally {
+            channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testHttpTimeoutHeaderBoundsTheWait() throws Exception {
+        try (HttpTestServer server = new HttpTestServer(host, registry, new InvokerProperties(), null)) {
+            assertThat(post(server, "slow", "200"), equalTo(504));
+            assertThat(slow.ended.await(10, TimeUnit.SECONDS), is(true));
+            assertThat(post(server, "upper", "10000"), equalTo(200));
+            assertThat(expired("slow"), equalTo(1d));
+        }
+    }
+
+    @Test
+    public void testHttpRequestsPastTheirDeadlineAreNotInvoked() throws Exception {
+        // The host warms functions up by invoking them once
+        int warmUp = slow.invocations.get();
+        try (HttpTestServer server = new HttpTestServer(host, registry, new InvokerProperties(), null)) {
+            assertThat(post(server, "slow", "0"), equalTo(504));
+            assertThat(slow.invocations.get(), equalTo(warmUp));
+            assertThat(expired("slow"), equalTo(1d));
+        }
+    }
+
+    @Test
+    public void testConfiguredTimeoutCapsTheHeader() throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getHttp().setTimeout(Duration.ofMillis(200L));
+        try (HttpTestServer server = new HttpTestServer(host, registry, properties, null)) {
+            assertThat(post(server, "slow", "60000"), equalTo(504));
+            assertThat(post(server, "slow", null), equalTo(504));
+            assertThat(expired("slow"), equalTo(2d));
+        }
+    }
+
+    @Test
+    public void testMalformedTimeoutHeaderIsABadRequest() throws Exception {
+        try (HttpTestServer server = new HttpTestServer(host, registry, new InvokerProperties(), null)) {
+            assertThat(post(server, "upper", "soon"), equalTo(400));
+            assertThat(post(server, "upper", "1.5"), equalTo(400));
+            assertThat(post(server, "upper", null), equalTo(200));
+        }
+    }
+
+    private double expired(String function) {
+        return registry.get(InvokerMetrics.PREFIX + ".deadline.expired").tag("function", function).counter().count();
+    }
+
+    private static int post(HttpTestServer server, String function, String timeout) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(server.getUrl() + function).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setReadTimeout(30_000);
+            connection.setRequestProperty("Content-Type", "text/plain");
+            connection.setRequestProperty("Accept", "text/plain");
+            if (timeout != null) {
+                connection.setRequestProperty(HttpServerHandler.TIMEOUT_HEADER, timeout);
+            }
+            StreamUtils.copy("riff", StandardCharsets.UTF_8, connection.getOutputStream());
+            try {
+                return connection.getResponseCode();
+            }
+            finally {
+                connection.disconnect();
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Takes much longer than any deadline used here for each element, without blocking a thread.
+     */
+    public static class Slow implements Function<Flux<String>, Flux<String>> {
+
+        private final AtomicInteger invocations = new AtomicInteger();
+
+        private final CountDownLatch ended = new CountDownLatch(1);
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.doOnSubscribe(s -> invocations.incrementAndGet())
+                    .concatMap(s -> Mono.just(s).delayElement(Duration.ofSeconds(30L)))
+                    .doOnCancel(ended::countDown)
+                    .doOnError(e -> ended.countDown());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package io.projectriff.invoker.server;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.projectriff.invoker.client.FunctionProxy;
+import io.projectriff.invoker.loadgen.LoadGenerator;
+import io.projectriff.invoker.loadgen.LoadOptions;
+import io.projectriff.invoker.loadgen.LoadReport;
+
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Compares loopback TCP and Unix domain sockets, for gRPC streams (with the load generator) and for http requests sent
+ * one at a time over a keep-alive connection. Both servers run the same way as in the invoker, listening on both
+ * transports at once.
+ *
+ * <p>
+ * Not run as part of the build, and needs Linux. Run its {@code main} method from the project directory, optionally
+ * with load generator options (<i>e.g.</i> {@code --streams=8 --concurrency=64 --duration=60s}) which override the
+ * defaults for gRPC, and {@code --requests=} for the number of http requests.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class DomainSocketBenchmark {
+
+    private static final int GRPC_PORT = 8081;
+
+    private static final int HTTP_PORT = 8080;
+
+    public static void main(String[] args) throws Exception {
+        int requests = 20_000;
+        List<String> options = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--requests=")) {
+                requests = Integer.parseInt(arg.substring("--requests=".length()));
+            }
+            else {
+                options.add(arg);
+            }
+        }
+        for (String option : List.of("--streams=4", "--concurrency=64", "--payload=riff", "--content-type=text/plain",
+                "--accept=text/plain", "--warmup=5s", "--duration=15s")) {
+            String name = option.substring(0, option.indexOf('=') + 1);
+            if (options.stream().noneMatch(o -> o.startsWith(name))) {
+                options.add(option);
+            }
+        }
+
+        Path directory = Files.createTempDirectory("riff-uds");
+        InvokerProperties properties = new InvokerProperties();
+        properties.getGrpc().setDomainSocket(directory.resolve("grpc.sock"));
+        properties.getHttp().setDomainSocket(directory.resolve("http.sock"));
+        FunctionHost host = new FunctionHost(properties, new SimpleMeterRegistry());
+        List<HostedFunction> functions = List.of(FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper()));
+        HackyFunctionResolver resolver = new HackyFunctionResolver(null, null) {
+
+            @Override
+            public List<HostedFunction> resolveFunctions() {
+                return functions;
+            }
+        };
+        JavaFunctionInvoker.GrpcRunner grpc = new JavaFunctionInvoker.GrpcRunner(resolver, host, properties, null);
+        JavaFunctionInvoker.HttpRunner http = new JavaFunctionInvoker.HttpRunner(resolver, host, properties,
+                new SimpleMeterRegistry(), null);
+        grpc.run();
+        http.run();
+        EventLoopGroup clients = new EpollEventLoopGroup(1);
+        try {
+            // Alternated, so that the JIT state of either side does not favor one of them
+            for (int round = 0; round < 2; round++) {
+                grpc("tcp", "localhost:" + GRPC_PORT, options);
+                grpc("domain socket", FunctionProxy.DOMAIN_SOCKET_PREFIX + properties.getGrpc().getDomainSocket(), options);
+                http("tcp", new InetSocketAddress("localhost", HTTP_PORT), requests, clients);
+                http("domain socket", new DomainSocketAddress(properties.getHttp().getDomainSocket().toFile()), requests, clients);
+            }
+        }
+        finally {
+            clients.shutdownGracefully(0L, 2L, TimeUnit.SECONDS).sync();
+            http.shutdown();
+            http.shutdownNow();
+            grpc.shutdownNow();
+            host.close();
+            FileSystemUtils.deleteRecursively(directory);
+        }
+    }
+
+    private static void grpc(String label, String target, List<String> options) throws Exception {
+        List<String> withTarget = new ArrayList<>(options);
+        withTarget.add(0, "--target=" + target);
+        LoadReport report = LoadGenerator.create(LoadOptions.parse(withTarget.toArray(new String[0]))).run();
+        System.out.printf("%n== gRPC over %s: %.0f/s%n%s", label, report.getThroughput(), report.toText());
+    }
+
+    /*
+     * One request at a time, so that latencies are those of the transport and not of queueing.
+     */
+    private static void http(String label, SocketAddress address, int requests, EventLoopGroup group) throws Exception {
+        SynchronousQueue<String> responses = new SynchronousQueue<>();
+        Bootstrap bootstrap = new Bootstrap().group(group)
+                .channel(address instanceof DomainSocketAddress ? EpollDomainSocketChannel.class : EpollSocketChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new HttpClientCodec(), new HttpObjectAggregator(1024 * 1024),
+                                new SimpleChannelInboundHandler<FullHttpResponse>() {
+
+                                    @Override
+                                    protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) throws Exception {
+                                        responses.put(msg.status().toString());
+                                    }
+                                });
+                    }
+                });
+        long[] latencies = new long[requests];
+        int failed = 0;
+        Channel channel = bootstrap.connect(address).sync().channel();
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            long sent = System.nanoTime();
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/upper",
+                    Unpooled.copiedBuffer("riff", StandardCharsets.UTF_8));
+            request.headers().set(HttpHeaderNames.HOST, "localhost");
+            request.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+            request.headers().set(HttpHeaderNames.ACCEPT, "text/plain");
+            request.headers().set(HttpHeaderNames.CONTENT_LENGTH, request.content().readableBytes());
+            channel.writeAndFlush(request);
+            failed += responses.take().startsWith("200") ? 0 : 1;
+            latencies[i] = System.nanoTime() - sent;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        channel.close().sync();
+        Arrays.sort(latencies);
+        System.out.printf("%n== http over %s: %.0f/s (%d failed), p50 %dus, p99 %dus%n", label, requests / seconds,
+                failed, latencies[requests / 2] / 1000, latencies[requests * 99 / 100] / 1000);
+    }
+}
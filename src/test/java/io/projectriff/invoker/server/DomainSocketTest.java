@@ -0,0 +1,186 @@
+package io.projectriff.invoker.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.grpc.ManagedChannel;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.projectriff.invoker.client.BalancedChannel;
+import io.projectriff.invoker.client.FunctionProxy;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import org.springframework.util.FileSystemUtils;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests that the gRPC and http servers can listen on Unix domain sockets only, and that clients reach them there.
+ *
+ * @author Eric Bottard
+ */
+public class DomainSocketTest {
+
+    private Path directory;
+
+    private FunctionHost host;
+
+    private HackyFunctionResolver resolver;
+
+    @Before
+    public void startHost() throws Exception {
+        Assume.assumeTrue("Domain sockets need the native epoll transport", Epoll.isAvailable());
+        directory = Files.createTempDirectory("riff-uds");
+        host = new FunctionHost(new InvokerProperties(), new SimpleMeterRegistry());
+        List<HostedFunction> functions = List.of(FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper()));
+        resolver = new HackyFunctionResolver(null, null) {
+
+            @Override
+            public List<HostedFunction> resolveFunctions() {
+                return functions;
+            }
+        };
+    }
+
+    @After
+    public void stopHost() throws IOException {
+        if (host != null) {
+            host.close();
+        }
+        if (directory != null) {
+            FileSystemUtils.deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void testGrpcIsServedOnADomainSocket() throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getGrpc().setTcp(false);
+        Path socket = directory.resolve("run/grpc.sock");
+        properties.getGrpc().setDomainSocket(socket);
+        JavaFunctionInvoker.GrpcRunner runner = new JavaFunctionInvoker.GrpcRunner(resolver, host, properties, null);
+        runner.run();
+        ManagedChannel channel = FunctionProxy.domainSocketChannel(socket.toString());
+        BalancedChannel balanced = BalancedChannel.forTargets(FunctionProxy.DOMAIN_SOCKET_PREFIX + socket);
+        try {
+            assertThat(invoke(channel, "riff"), equalTo(List.of("RIFF")));
+            assertThat(invoke(balanced, "uds"), equalTo(List.of("UDS")));
+        }
+        finally {
+            balanced.shutdownNow();
+            channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+            runner.shutdownNow();
+        }
+        // The socket file goes away with the server
+        assertThat(Files.exists(socket), is(false));
+    }
+
+    @Test
+    public void testHttpIsServedOnADomainSocket() throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getHttp().setTcp(false);
+        Path socket = directory.resolve("http.sock");
+        // Left behind by a previous run
+        Files.createFile(socket);
+        properties.getHttp().setDomainSocket(socket);
+        JavaFunctionInvoker.HttpRunner runner = new JavaFunctionInvoker.HttpRunner(resolver, host, properties,
+                new SimpleMeterRegistry(), null);
+        runner.run();
+        try {
+            assertThat(post(socket, "/upper", "riff"), equalTo("RIFF"));
+        }
+        finally {
+            runner.shutdown();
+            runner.shutdownNow();
+        }
+        assertThat(Files.exists(socket), is(false));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> invoke(io.grpc.Channel channel, String input) {
+        Function<Flux<String>, Flux<String>[]> function = FunctionProxy.builder(Function.class)
+                .channel(channel)
+                .outputTypes(String.class)
+                .functionName("upper")
+                .build();
+        return function.apply(Flux.just(input))[0].collectList().block(Duration.ofSeconds(10));
+    }
+
+    private static String post(Path socket, String path, String body) throws Exception {
+        EventLoopGroup group = new EpollEventLoopGroup(1);
+        try {
+            CompletableFuture<String> response = new CompletableFuture<>();
+            Channel channel = new Bootstrap().group(group)
+                    .channel(EpollDomainSocketChannel.class)
+                    .handler(new ChannelInitializer<Channel>() {
+
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(new HttpClientCodec(), new HttpObjectAggregator(1024 * 1024),
+                                    new SimpleChannelInboundHandler<FullHttpResponse>() {
+
+                                        @Override
+                                        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+                                            response.complete(msg.content().toString(StandardCharsets.UTF_8));
+                                        }
+
+                                        @Override
+                                        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                            response.completeExceptionally(cause);
+                                        }
+                                    });
+                        }
+                    })
+                    .connect(new DomainSocketAddress(socket.toFile()))
+                    .sync()
+                    .channel();
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, path,
+                    Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+            request.headers().set(HttpHeaderNames.HOST, "localhost");
+            request.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+            request.headers().set(HttpHeaderNames.ACCEPT, "text/plain");
+            request.headers().set(HttpHeaderNames.CONTENT_LENGTH, request.content().readableBytes());
+            channel.writeAndFlush(request);
+            try {
+                return response.get(10, TimeUnit.SECONDS);
+            }
+            finally {
+                channel.close().sync();
+            }
+        }
+        finally {
+            group.shutdownGracefully(0L, 2L, TimeUnit.SECONDS).sync();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package io.projectriff.invoker.server;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.FrameTrace;
+import io.projectriff.invoker.client.FunctionProxy;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import io.projectriff.invoker.rpc.ErrorFrame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that invocations started with {@code continueOnError} report failing elements as error frames and carry on.
+ *
+ * @author Eric Bottard
+ */
+public class ElementErrorsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final List<ErrorFrame> errors = new CopyOnWriteArrayList<>();
+
+    private FunctionHost host;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    @Before
+    public void startServer() throws Exception {
+        host = new FunctionHost(new InvokerProperties(), registry);
+        host.start(List.of(FunctionRouterTest.hosted("elements", new FunctionLoader.FluxMappingFunction<>(new Picky())),
+                FunctionRouterTest.hosted("stream", new PickyStream())));
+        server = InProcessServerBuilder.forName("element-errors-test").addService(new FunctionRouter(host)).build().start();
+        channel = InProcessChannelBuilder.forName("element-errors-test").build();
+    }
+
+    @After
+    public void stopServer() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        host.close();
+    }
+
+    @Test
+    public void testPoisonElementYieldsAnErrorFrameWhileTheStreamCarriesOn() {
+        assertThat(invoke("elements", "a", "poison", "b"), equalTo(List.of("A", "B")));
+
+        assertThat(errors.size(), equalTo(1));
+        ErrorFrame error = errors.get(0);
+        assertThat(error.getStage(), equalTo(ErrorFrame.Stage.APPLY));
+        assertThat(error.getArgIndex(), equalTo(0));
+        assertThat(error.getType(), equalTo(IllegalArgumentException.class.getName()));
+        assertThat(error.getMessage(), equalTo("Can't handle poison"));
+        // The headers of the poison frame itself, so that clients can tell which one it was
+        assertThat(error.getHeadersMap().containsKey(FrameTrace.TRACE_ID), is(true));
+        assertThat(registry.get(InvokerMetrics.PREFIX + ".element.errors").tag("stage", "apply").counter().count(),
+                equalTo(1d));
+    }
+
+    @Test
+    public void testEachPoisonElementIsReportedWithItsOwnHeaders() {
+        assertThat(invoke("elements", "poison", "a", "poison", "poison", "b"), equalTo(List.of("A", "B")));
+
+        assertThat(errors.size(), equalTo(3));
+        assertThat(errors.stream().map(e -> e.getHeadersMap().get(FrameTrace.TRACE_ID)).distinct().count(), equalTo(3L));
+    }
+
+    @Test
+    public void testFailuresOfStreamFunctionsFailTheInvocation() {
+        try {
+            invoke("stream", "a", "poison", "b");
+            fail("Expected the invocation to fail");
+        }
+        catch (RuntimeException e) {
+            // The function works on the whole stream, which the failure ended
+            assertThat(errors.isEmpty(), is(true));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> invoke(String name, String... inputs) {
+        Function<Flux<String>, Flux<String>[]> function = FunctionProxy.builder(Function.class)
+                .channel(channel)
+                .outputTypes(String.class)
+                .functionName(name)
+                .tracing(1d)
+                .onElementError(errors::add)
+                .build();
+        return function.apply(Flux.just(inputs))[0].collectList().block(Duration.ofSeconds(10));
+    }
+
+    private static String upper(String s) {
+        if ("poison".equals(s)) {
+            throw new IllegalArgumentException("Can't handle poison");
+        }
+        return s.toUpperCase();
+    }
+
+    /**
+     * An element-wise function, that fails on some elements.
+     */
+    public static class Picky implements Function<String, String> {
+
+        @Override
+        public String apply(String s) {
+            return upper(s);
+        }
+    }
+
+    /**
+     * The same, working on the whole stream.
+     */
+    public static class PickyStream implements Function<Flux<String>, Flux<String>> {
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.map(ElementErrorsTest::upper);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package io.projectriff.invoker.server;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.projectriff.invoker.client.FunctionProxy;
+import io.projectriff.invoker.jfr.BackpressureStallEvent;
+import io.projectriff.invoker.jfr.StreamEvent;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import org.springframework.util.unit.DataSize;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests that invocations emit the flight recorder events enabled by the {@code riff.jfc} settings shipped with the
+ * invoker.
+ *
+ * @author Eric Bottard
+ */
+public class FlightRecorderEventsTest {
+
+    private FunctionHost host;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    private Path file;
+
+    @Before
+    public void startServer() throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getTracing().setEnabled(true);
+        // Holds back every frame until the previous one reached the function
+        properties.getStream().setMemoryBudget(DataSize.ofBytes(1L));
+        host = new FunctionHost(properties, new SimpleMeterRegistry());
+        // Only asks for inputs one at a time, so that the next ones wait for room in the budget
+        Function<Flux<Integer>, Flux<Integer>> slow = in -> in.concatMap(i -> Mono.delay(Duration.ofMillis(2L)).map(t -> i * 2), 1);
+        // Still busy with its last inputs well after the client sent them all
+        Function<Flux<Integer>, Flux<Integer>> lagging = in -> in.concatMap(i -> Mono.delay(Duration.ofMillis(30L)).map(t -> i * 2), 1);
+        host.start(List.of(new HostedFunction("doubler", slow, Function.class.getMethod("apply", Object.class),
+                        new Class<?>[] {Integer.class}),
+                new HostedFunction("lagging", lagging, Function.class.getMethod("apply", Object.class),
+                        new Class<?>[] {Integer.class})));
+        server = InProcessServerBuilder.forName("flight-recorder-test").addService(new FunctionRouter(host)).build().start();
+        channel = InProcessChannelBuilder.forName("flight-recorder-test").build();
+        file = Files.createTempFile("riff", ".jfr");
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        host.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testInvocationsAreRecordedWithShippedSettings() throws Exception {
+        Configuration configuration;
+        try (Reader reader = new InputStreamReader(getClass().getResourceAsStream("/riff.jfc"), StandardCharsets.UTF_8)) {
+            configuration = Configuration.create(reader);
+        }
+        try (Recording recording = new Recording(configuration)) {
+            // Stalls this short are below the threshold of the shipped settings
+            recording.enable(BackpressureStallEvent.class).withoutThreshold();
+            recording.start();
+
+            Function<Flux<Integer>, Flux<Integer>[]> function = FunctionProxy.builder(Function.class)
+                    .channel(channel)
+                    .outputTypes(Integer.class)
+                    .tracing(1d)
+                    .build();
+            // Bursts of inputs, so that frames queue up while the function is busy
+            Flux<Integer> inputs = Flux.range(1, 20).buffer(5).delayElements(Duration.ofMillis(50L)).flatMapIterable(b -> b);
+            List<Integer> results = function.apply(inputs)[0].collectList().block(Duration.ofSeconds(10));
+            assertThat(results.size(), equalTo(20));
+
+            EmbeddedChannel http = new EmbeddedChannel(new HttpServerHandler(host, new SimpleMeterRegistry(), new InvokerProperties(), null));
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/doubler",
+                    Unpooled.copiedBuffer("21", StandardCharsets.UTF_8));
+            request.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json");
+            request.headers().set(HttpHeaderNames.ACCEPT, "application/json");
+            http.writeInbound(request);
+            FullHttpResponse response = readResponse(http);
+            assertThat(response.status(), equalTo(HttpResponseStatus.OK));
+            assertThat(response.content().toString(StandardCharsets.UTF_8), equalTo("42"));
+            response.release();
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Map<String, List<RecordedEvent>> byName = events.stream()
+                .filter(e -> e.getEventType().getName().startsWith("riff."))
+                .collect(Collectors.groupingBy(e -> e.getEventType().getName()));
+        assertThat(byName.keySet(), hasItems("riff.Stream", "riff.FrameDecode", "riff.FrameApply", "riff.FrameEncode",
+                "riff.ConverterSelection", "riff.BackpressureStall", "riff.HttpRequest"));
+
+        RecordedEvent stream = byName.get("riff.Stream").get(0);
+        assertThat(stream.getString("function"), equalTo("doubler"));
+        assertThat(stream.getInt("arity"), equalTo(1));
+        assertThat(stream.getLong("framesIn"), equalTo(20L));
+        assertThat(stream.getLong("framesOut"), equalTo(20L));
+        assertThat(stream.getString("outcome"), equalTo("onComplete"));
+        assertThat(byName.get("riff.FrameDecode").size(), equalTo(20));
+
+        RecordedEvent httpRequest = byName.get("riff.HttpRequest").get(0);
+        assertThat(httpRequest.getString("function"), equalTo("doubler"));
+        assertThat(httpRequest.getInt("status"), equalTo(200));
+        assertThat(httpRequest.getBoolean("coalesced"), is(false));
+    }
+
+    @Test
+    public void testStreamsOutlastingTheirInputsAreRecordedAsComplete() throws Exception {
+        try (Recording recording = new Recording()) {
+            recording.enable(StreamEvent.class);
+            recording.start();
+
+            // Results come for 300ms after the client half-closed the call
+            List<Integer> results = lagging().apply(Flux.range(1, 10))[0].collectList().block(Duration.ofSeconds(10));
+            assertThat(results, equalTo(List.of(2, 4, 6, 8, 10, 12, 14, 16, 18, 20)));
+
+            RecordedEvent stream = awaitStreamEvent(recording);
+            assertThat(stream.getString("function"), equalTo("lagging"));
+            assertThat(stream.getLong("framesIn"), equalTo(10L));
+            assertThat(stream.getLong("framesOut"), equalTo(10L));
+            assertThat(stream.getString("outcome"), equalTo("onComplete"));
+        }
+    }
+
+    @Test
+    public void testCancelledStreamsAreRecorded() throws Exception {
+        try (Recording recording = new Recording()) {
+            recording.enable(StreamEvent.class);
+            recording.start();
+
+            // Inputs that never end, until the client cancels the call on the third result
+            Flux<Integer> inputs = Flux.interval(Duration.ofMillis(10L)).map(Long::intValue);
+            List<Integer> results = lagging().apply(inputs)[0].take(3L).collectList().block(Duration.ofSeconds(10));
+            assertThat(results, equalTo(List.of(0, 2, 4)));
+
+            RecordedEvent stream = awaitStreamEvent(recording);
+            assertThat(stream.getString("function"), equalTo("lagging"));
+            assertThat(stream.getLong("framesOut") >= 3L, is(true));
+            assertThat(stream.getLong("framesOut") < stream.getLong("framesIn"), is(true));
+            assertThat(stream.getString("outcome"), equalTo("cancel"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Function<Flux<Integer>, Flux<Integer>[]> lagging() {
+        return FunctionProxy.builder(Function.class)
+                .channel(channel)
+                .outputTypes(Integer.class)
+                .functionName("lagging")
+                .build();
+    }
+
+    /*
+     * The stream event is only committed once the invoker is done with the call, after the client may have moved on.
+     */
+    private RecordedEvent awaitStreamEvent(Recording recording) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        do {
+            recording.dump(file);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+                    .filter(e -> e.getEventType().getName().equals("riff.Stream"))
+                    .collect(Collectors.toList());
+            if (!events.isEmpty()) {
+                assertThat(events.size(), equalTo(1));
+                return events.get(0);
+            }
+            Thread.sleep(20L);
+        }
+        while (System.nanoTime() < deadline);
+        throw new AssertionError("No stream event was recorded within 5s");
+    }
+
+    /*
+     * The function answers from a timer thread, which hands the response over to the channel.
+     */
+    private static FullHttpResponse readResponse(EmbeddedChannel http) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        FullHttpResponse response = http.readOutbound();
+        while (response == null && System.nanoTime() < deadline) {
+            Thread.sleep(5L);
+            http.runPendingTasks();
+            response = http.readOutbound();
+        }
+        return response;
+    }
+}
@@ -0,0 +1,124 @@
+package io.projectriff.invoker.server;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.client.FunctionProxy;
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests per-frame latency tracing, from the client stamping input frames to it recording the timings the invoker
+ * reports.
+ *
+ * @author Eric Bottard
+ */
+public class FrameTracingTest {
+
+    private final SimpleMeterRegistry clientRegistry = new SimpleMeterRegistry();
+
+    private FunctionHost host;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    private void start(boolean tracingEnabled) throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getTracing().setEnabled(tracingEnabled);
+        host = new FunctionHost(properties, new SimpleMeterRegistry());
+        host.start(List.of(FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper()),
+                FunctionRouterTest.hosted("joiner", new Joiner())));
+        server = InProcessServerBuilder.forName("frame-tracing-test").addService(new FunctionRouter(host)).build().start();
+        channel = InProcessChannelBuilder.forName("frame-tracing-test").build();
+    }
+
+    @After
+    public void stopServer() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        host.close();
+    }
+
+    @Test
+    public void testEachSampledFrameIsBrokenDown() throws Exception {
+        start(true);
+        assertThat(invoke("upper", 1d, 10).size(), equalTo(10));
+
+        assertThat(timer("total").count(), equalTo(10L));
+        assertThat(timer("decode").count(), equalTo(10L));
+        assertThat(timer("dwell").count(), equalTo(10L));
+        assertThat(timer("encode").count(), equalTo(10L));
+        assertThat(timer("network").count(), equalTo(10L));
+        assertThat(timer("total").totalTime(TimeUnit.NANOSECONDS) > 0d, is(true));
+        assertThat(timer("encode").totalTime(TimeUnit.NANOSECONDS) > 0d, is(true));
+    }
+
+    @Test
+    public void testFanInAttributesEachResultToTheOldestTracedInput() throws Exception {
+        start(true);
+        assertThat(invoke("joiner", 1d, 9), equalTo(List.of("012", "345", "678")));
+
+        assertThat(timer("total").count(), equalTo(3L));
+        assertThat(timer("dwell").count(), equalTo(3L));
+    }
+
+    @Test
+    public void testNothingIsTracedUnlessSampled() throws Exception {
+        start(true);
+        assertThat(invoke("upper", 0d, 10).size(), equalTo(10));
+
+        assertThat(timer("total").count(), equalTo(0L));
+    }
+
+    @Test
+    public void testInvokerCanOptOut() throws Exception {
+        start(false);
+        assertThat(invoke("upper", 1d, 10).size(), equalTo(10));
+
+        assertThat(timer("total").count(), equalTo(0L));
+        assertThat(timer("dwell").count(), is(0L));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> invoke(String name, double sampleRate, int count) {
+        Function<Flux<String>, Flux<String>[]> function = FunctionProxy.builder(Function.class)
+                .channel(channel)
+                .outputTypes(String.class)
+                .functionName(name)
+                .meterRegistry(clientRegistry)
+                .tracing(sampleRate)
+                .build();
+        return function.apply(Flux.range(0, count).map(String::valueOf))[0]
+                .collectList()
+                .block(Duration.ofSeconds(10));
+    }
+
+    private Timer timer(String name) {
+        return clientRegistry.get("riff.client.trace." + name).timer();
+    }
+
+    /**
+     * Joins inputs three by three.
+     */
+    public static class Joiner implements Function<Flux<String>, Flux<String>> {
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.buffer(3).map(l -> String.join("", l));
+        }
+    }
+}
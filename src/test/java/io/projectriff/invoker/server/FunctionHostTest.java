@@ -0,0 +1,179 @@
+package io.projectriff.invoker.server;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.artifact.IndexedClassLoader;
+import io.projectriff.invoker.client.FunctionProxy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import org.springframework.util.FileSystemUtils;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests swapping new versions of a function in while it is being invoked.
+ *
+ * @author Eric Bottard
+ */
+public class FunctionHostTest {
+
+    private static final String LOCATION = new File("src/test/functions/hundred-divider-1.0.0.jar").getAbsolutePath();
+
+    private static final String BOOT_LOCATION = new File("src/test/functions/hundred-divider-1.0.0-boot.jar").getAbsolutePath();
+
+    private static final String CLASS = "com.acme.HundredDivider";
+
+    private FunctionHost host;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    @Before
+    public void startServer() throws Exception {
+        host = new FunctionHost(new InvokerProperties(), new SimpleMeterRegistry());
+        host.reload(LOCATION, CLASS);
+        server = InProcessServerBuilder.forName("function-host-test").addService(new FunctionRouter(host)).build().start();
+        channel = InProcessChannelBuilder.forName("function-host-test").build();
+    }
+
+    @After
+    public void stopServer() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testRepeatedSwapsDontFailRequestsNorLeakClassLoaders() throws Exception {
+        Function<Flux<Integer>, Flux<Integer>[]> function = FunctionProxy.create(Function.class, channel, Integer.class);
+
+        // A long running stream that spans all swaps, and a steady flow of short ones
+        Mono<List<Integer>> longStream = function.apply(Flux.range(1, 200).delayElements(Duration.ofMillis(2)))[0]
+                .collectList()
+                .cache();
+        longStream.subscribe();
+        AtomicBoolean swapping = new AtomicBoolean(true);
+        CompletableFuture<List<List<Integer>>> shortStreams = CompletableFuture.supplyAsync(() -> {
+            List<List<Integer>> results = new ArrayList<>();
+            while (swapping.get()) {
+                results.add(function.apply(Flux.just(1, 2, 4))[0].collectList().block(Duration.ofSeconds(10)));
+            }
+            return results;
+        });
+
+        List<WeakReference<ClassLoader>> retired = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(30L);
+            FunctionGeneration previous = host.getCurrent();
+            retired.add(new WeakReference<>(previous.getClassLoader()));
+            previous = null;
+            host.reload(LOCATION, CLASS);
+        }
+        swapping.set(false);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 1; i <= 200; i++) {
+            expected.add(100 / i);
+        }
+        assertThat(longStream.block(Duration.ofSeconds(30)), equalTo(expected));
+        List<List<Integer>> shortResults = shortStreams.get(30, TimeUnit.SECONDS);
+        assertThat(shortResults.isEmpty(), is(false));
+        for (List<Integer> result : shortResults) {
+            assertThat(result, equalTo(List.of(100, 50, 25)));
+        }
+
+        for (int attempt = 0; attempt < 20 && retired.stream().anyMatch(r -> r.get() != null); attempt++) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        for (WeakReference<ClassLoader> ref : retired) {
+            assertThat(ref.get(), is(nullValue()));
+        }
+        assertThat(host.getCurrent().getVersion(), equalTo(11));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBootJarsAreSwappedInFromArtifactCache() throws Exception {
+        Path cache = Files.createTempDirectory("riff-artifacts");
+        InvokerProperties properties = new InvokerProperties();
+        properties.getArtifacts().setCacheDirectory(cache);
+        FunctionHost cached = new FunctionHost(properties, new SimpleMeterRegistry());
+        try {
+            // Unpacks the jar the first time, then reuses it
+            for (int i = 0; i < 2; i++) {
+                FunctionGeneration generation = cached.reload(BOOT_LOCATION, CLASS);
+                assertThat(generation.getClassLoader(), instanceOf(IndexedClassLoader.class));
+                Function<Flux<Integer>, Flux<Integer>> function = (Function<Flux<Integer>, Flux<Integer>>) generation
+                        .getFunctions().get(0).getFunction();
+                assertThat(function.apply(Flux.just(1, 2, 4)).collectList().block(Duration.ofSeconds(10)),
+                        equalTo(List.of(100, 50, 25)));
+            }
+            try (Stream<Path> unpacked = Files.list(cache)) {
+                // The stamps, and a single copy of the jar
+                assertThat(unpacked.count(), equalTo(2L));
+            }
+        }
+        finally {
+            cached.close();
+            FileSystemUtils.deleteRecursively(cache);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSwappedInFunctionsKeepTheNameOfTheFunctionTheyReplace() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        FunctionHost named = new FunctionHost(new InvokerProperties(), registry);
+        FunctionLoader loader = new FunctionLoader();
+        try {
+            // As the function deployer would, under a name of its own
+            HostedFunction deployed = loader.load(loader.isolatedClassLoader(LOCATION), CLASS).get(0).withName("divider");
+            named.start(List.of(deployed, FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper())));
+
+            FunctionGeneration generation = named.reload(LOCATION, CLASS + "," + FunctionRouterTest.Upper.class.getName());
+            assertThat(generation.getFunctionNames(), equalTo(Set.of("divider", "upper")));
+            assertThat(generation.getFunctions().get(0).getTargetClassName(), equalTo(CLASS));
+
+            // New functions get a default name
+            generation = named.reload(LOCATION, FunctionRouterTest.Lower.class.getName() + "," + CLASS);
+            assertThat(generation.getFunctions().get(0).getName(), equalTo("function0"));
+            assertThat(generation.getFunctions().get(1).getName(), equalTo("divider"));
+
+            Function<Flux<Integer>, Flux<Integer>> function = (Function<Flux<Integer>, Flux<Integer>>) generation
+                    .getFunctions().get(1).getFunction();
+            assertThat(function.apply(Flux.just(1, 2, 4)).collectList().block(Duration.ofSeconds(10)),
+                    equalTo(List.of(100, 50, 25)));
+            assertThat(registry.find("riff.invoker.frames.in").tag("function", "function1").meters().isEmpty(),
+                    is(true));
+        }
+        finally {
+            named.close();
+        }
+    }
+}
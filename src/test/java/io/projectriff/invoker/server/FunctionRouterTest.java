@@ -0,0 +1,121 @@
+package io.projectriff.invoker.server;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.client.FunctionProxy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests hosting several functions behind a single {@link FunctionRouter}.
+ *
+ * @author Eric Bottard
+ */
+public class FunctionRouterTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private FunctionHost host;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    @Before
+    public void startServer() throws Exception {
+        host = new FunctionHost(new InvokerProperties(), registry);
+        host.start(List.of(hosted("upper", new Upper()), hosted("lower", new Lower())));
+        server = InProcessServerBuilder.forName("function-router-test").addService(new FunctionRouter(host)).build().start();
+        channel = InProcessChannelBuilder.forName("function-router-test").build();
+    }
+
+    @After
+    public void stopServer() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        host.close();
+    }
+
+    static HostedFunction hosted(String name, Object function) {
+        return new HostedFunction(name, function, new FunctionalInterfaceMethodResolver().resolve(function),
+                new Class<?>[] {String.class});
+    }
+
+    @Test
+    public void testStreamsAreRoutedByFunctionName() {
+        assertThat(invoke("lower", "Riff"), equalTo(List.of("riff")));
+        assertThat(invoke("upper", "Riff"), equalTo(List.of("RIFF")));
+
+        // Each function has its own meters
+        assertThat(registry.find("riff.invoker.frames.in").tag("function", "lower").counter(), notNullValue());
+        assertThat(registry.find("riff.invoker.frames.in").tag("function", "upper").counter(), notNullValue());
+    }
+
+    @Test
+    public void testFirstFunctionIsTheDefault() {
+        assertThat(invoke(null, "Riff"), equalTo(List.of("RIFF")));
+    }
+
+    @Test
+    public void testUnknownFunctionIsNotFound() {
+        try {
+            invoke("reverse", "Riff");
+            fail("Expected the invocation to fail");
+        }
+        catch (RuntimeException e) {
+            // Depending on timing, the status may bubble up wrapped by reactor
+            Status status = Status.fromThrowable(Exceptions.unwrap(e));
+            assertThat(status.getCode(), equalTo(Status.Code.NOT_FOUND));
+            assertThat(status.getDescription(), containsString("[upper, lower]"));
+        }
+        // The stream did not leak an in-flight invocation
+        assertThat(host.getInFlight(), equalTo(0));
+        assertThat(registry.find("riff.invoker.frames.in").tag("function", "reverse").counter(), nullValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> invoke(String name, String... inputs) {
+        FunctionProxy.Builder<Function> builder = FunctionProxy.builder(Function.class).channel(channel)
+                .outputTypes(String.class);
+        if (name != null) {
+            builder.functionName(name);
+        }
+        Function<Flux<String>, Flux<String>[]> function = builder.build();
+        return function.apply(Flux.just(inputs))[0].collectList().block(Duration.ofSeconds(10));
+    }
+
+    public static class Upper implements Function<Flux<String>, Flux<String>> {
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.map(String::toUpperCase);
+        }
+    }
+
+    public static class Lower implements Function<Flux<String>, Flux<String>> {
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.map(String::toLowerCase);
+        }
+    }
+}
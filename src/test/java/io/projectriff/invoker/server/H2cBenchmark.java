@@ -0,0 +1,137 @@
+package io.projectriff.invoker.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import org.springframework.boot.convert.DurationStyle;
+
+/**
+ * Compares the throughput of concurrent http requests over a single h2c connection with that over HTTP/1.1 keep-alive
+ * connections, one per request in flight (as many as the HTTP/2 streams) or a single one. The invoker's http server
+ * runs as it does in production, on port 8080.
+ *
+ * <p>
+ * Not run as part of the build. Run its {@code main} method from the project directory, optionally with
+ * {@code --concurrency=}, {@code --warmup=} and {@code --duration=} options which override the defaults.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class H2cBenchmark {
+
+    private static final URI URL = URI.create("http://localhost:8080/upper");
+
+    private static final HttpRequest REQUEST = HttpRequest.newBuilder(URL)
+            .header("Content-Type", "text/plain")
+            .header("Accept", "text/plain")
+            .POST(HttpRequest.BodyPublishers.ofString("riff"))
+            .build();
+
+    public static void main(String[] args) throws Exception {
+        int concurrency = Integer.parseInt(option(args, "concurrency", "16"));
+        Duration warmup = DurationStyle.detectAndParse(option(args, "warmup", "5s"));
+        Duration duration = DurationStyle.detectAndParse(option(args, "duration", "15s"));
+
+        InvokerProperties properties = new InvokerProperties();
+        FunctionHost host = new FunctionHost(properties, new SimpleMeterRegistry());
+        List<HostedFunction> functions = List.of(FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper()));
+        HackyFunctionResolver resolver = new HackyFunctionResolver(null, null) {
+
+            @Override
+            public List<HostedFunction> resolveFunctions() {
+                return functions;
+            }
+        };
+        JavaFunctionInvoker.HttpRunner http = new JavaFunctionInvoker.HttpRunner(resolver, host, properties,
+                new SimpleMeterRegistry(), null);
+        http.run();
+        try {
+            // Alternated, so that the JIT state of either side does not favor one of them
+            for (int round = 0; round < 2; round++) {
+                run("HTTP/1.1 keep-alive, 1 connection", HttpClient.Version.HTTP_1_1, 1, warmup, duration);
+                run("HTTP/1.1 keep-alive, " + concurrency + " connections", HttpClient.Version.HTTP_1_1, concurrency,
+                        warmup, duration);
+                run("h2c, " + concurrency + " streams on 1 connection", HttpClient.Version.HTTP_2, concurrency,
+                        warmup, duration);
+            }
+        }
+        finally {
+            http.shutdown();
+            http.shutdownNow();
+            host.close();
+        }
+    }
+
+    private static void run(String label, HttpClient.Version version, int concurrency, Duration warmup,
+                            Duration duration) throws Exception {
+        // A new client, hence new connections, for each run
+        HttpClient client = HttpClient.newBuilder().version(version).build();
+        // With HTTP/2, upgrades the connection before the requests in flight share it
+        HttpResponse<String> first = client.send(REQUEST, HttpResponse.BodyHandlers.ofString());
+        if (first.version() != version) {
+            throw new IllegalStateException("Expected " + version + " but got " + first.version());
+        }
+        measure(client, concurrency, warmup, new Recorder(3));
+
+        Recorder latencies = new Recorder(3);
+        long start = System.nanoTime();
+        long[] counts = measure(client, concurrency, duration, latencies);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Histogram histogram = latencies.getIntervalHistogram();
+        System.out.printf("== %s: %.0f req/s (%d failed), p50 %dus, p99 %dus%n", label, counts[0] / seconds, counts[1],
+                histogram.getValueAtPercentile(50d) / 1000, histogram.getValueAtPercentile(99d) / 1000);
+    }
+
+    /*
+     * Keep the given number of requests in flight for the given duration, and return how many succeeded and failed.
+     */
+    private static long[] measure(HttpClient client, int concurrency, Duration duration, Recorder latencies)
+            throws Exception {
+        long end = System.nanoTime() + duration.toNanos();
+        LongAdder succeeded = new LongAdder();
+        LongAdder failed = new LongAdder();
+        List<CompletableFuture<Void>> loops = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            loops.add(loop(client, end, latencies, succeeded, failed));
+        }
+        CompletableFuture.allOf(loops.toArray(new CompletableFuture<?>[0])).get(duration.toMillis() + 30_000L,
+                TimeUnit.MILLISECONDS);
+        return new long[] {succeeded.sum(), failed.sum()};
+    }
+
+    private static CompletableFuture<Void> loop(HttpClient client, long end, Recorder latencies, LongAdder succeeded,
+                                                LongAdder failed) {
+        long sent = System.nanoTime();
+        if (sent - end >= 0L) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return client.sendAsync(REQUEST, HttpResponse.BodyHandlers.ofString())
+                .handle((response, error) -> {
+                    latencies.recordValue(System.nanoTime() - sent);
+                    (error == null && response.statusCode() == 200 ? succeeded : failed).increment();
+                    return null;
+                })
+                .thenCompose(ignored -> loop(client, end, latencies, succeeded, failed));
+    }
+
+    private static String option(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith("--" + name + "=")) {
+                return arg.substring(name.length() + 3);
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,303 @@
+package io.projectriff.invoker.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2MultiplexCodecBuilder;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests that the http endpoint speaks HTTP/2 to clients that upgrade or start with its preface, and keeps HTTP/1.1
+ * connections alive.
+ *
+ * @author Eric Bottard
+ */
+public class H2cTest {
+
+    private static final String OK = "HTTP/1.1 200 OK";
+
+    private FunctionHost host;
+
+    @Before
+    public void startHost() throws Exception {
+        host = new FunctionHost(new InvokerProperties(), new SimpleMeterRegistry());
+        host.start(List.of(FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper())));
+    }
+
+    @After
+    public void stopHost() {
+        host.close();
+    }
+
+    @Test
+    public void testClientsCanUpgradeToHttp2() throws Exception {
+        try (HttpTestServer server = new HttpTestServer(host, new SimpleMeterRegistry(), new InvokerProperties(), null)) {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+            // The upgrade request is answered on the first stream
+            HttpResponse<String> response = client.send(request(server, "riff"), HttpResponse.BodyHandlers.ofString());
+            assertThat(response.version(), equalTo(HttpClient.Version.HTTP_2));
+            assertThat(response.body(), equalTo("RIFF"));
+
+            // Then others share the connection
+            List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                responses.add(client.sendAsync(request(server, "riff" + i), HttpResponse.BodyHandlers.ofString()));
+            }
+            for (int i = 0; i < 8; i++) {
+                response = responses.get(i).get(10, TimeUnit.SECONDS);
+                assertThat(response.version(), equalTo(HttpClient.Version.HTTP_2));
+                assertThat(response.body(), equalTo("RIFF" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testClientsCanStartWithHttp2() throws Exception {
+        try (HttpTestServer server = new HttpTestServer(host, new SimpleMeterRegistry(), new InvokerProperties(), null)) {
+            EventLoopGroup group = new NioEventLoopGroup(1);
+            try {
+                Channel connection = connect(group, server);
+                // Streams of a single connection, in flight at the same time
+                List<CompletableFuture<String>> responses = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    responses.add(post(connection, "/upper", "riff" + i));
+                }
+                for (int i = 0; i < 8; i++) {
+                    assertThat(responses.get(i).get(10, TimeUnit.SECONDS), equalTo("RIFF" + i));
+                }
+                connection.close().sync();
+            }
+            finally {
+                group.shutdownGracefully(0L, 2L, TimeUnit.SECONDS).sync();
+            }
+        }
+    }
+
+    @Test
+    public void testHttp2CanBeTurnedOff() throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getHttp().setH2c(false);
+        try (HttpTestServer server = new HttpTestServer(host, new SimpleMeterRegistry(), properties, null)) {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+            HttpResponse<String> response = client.send(request(server, "riff"), HttpResponse.BodyHandlers.ofString());
+            assertThat(response.version(), equalTo(HttpClient.Version.HTTP_1_1));
+            assertThat(response.body(), equalTo("RIFF"));
+        }
+    }
+
+    @Test
+    public void testHttp1ConnectionsAreKeptAlive() throws Exception {
+        try (HttpTestServer server = new HttpTestServer(host, new SimpleMeterRegistry(), new InvokerProperties(), null);
+             Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            socket.setSoTimeout(5_000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            for (String body : List.of("riff", "is", "for", "functions")) {
+                write(out, "POST", "/upper", body, "");
+                assertThat(readResponse(in, OK), equalTo(body.toUpperCase()));
+            }
+            // Until the client says otherwise
+            write(out, "POST", "/upper", "bye", "Connection: close\r\n");
+            assertThat(readResponse(in, OK), equalTo("BYE"));
+            assertThat(in.read(), equalTo(-1));
+        }
+    }
+
+    @Test
+    public void testErrorsAndMetricsKeepHttp1ConnectionsAlive() throws Exception {
+        try (HttpTestServer server = new HttpTestServer(host, new PrometheusMeterRegistry(PrometheusConfig.DEFAULT),
+                new InvokerProperties(), null);
+             Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            socket.setSoTimeout(5_000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            write(out, "GET", "/metrics", "", "");
+            readResponse(in, OK);
+            write(out, "POST", "/missing", "riff", "");
+            readResponse(in, "HTTP/1.1 404 Not Found");
+            write(out, "POST", "/upper", "riff", HttpServerHandler.TIMEOUT_HEADER + ": soon\r\n");
+            readResponse(in, "HTTP/1.1 400 Bad Request");
+            // All on the same connection
+            write(out, "POST", "/upper", "riff", "");
+            assertThat(readResponse(in, OK), equalTo("RIFF"));
+        }
+    }
+
+    @Test
+    public void testErrorsAndMetricsLeaveHttp2StreamsToTheConnection() throws Exception {
+        try (HttpTestServer server = new HttpTestServer(host, new PrometheusMeterRegistry(PrometheusConfig.DEFAULT),
+                new InvokerProperties(), null)) {
+            EventLoopGroup group = new NioEventLoopGroup(1);
+            try {
+                Channel connection = connect(group, server);
+                assertThat(request(connection, HttpMethod.GET, "/metrics", "").get(10, TimeUnit.SECONDS).status(),
+                        equalTo(HttpResponseStatus.OK));
+                assertThat(request(connection, HttpMethod.POST, "/missing", "riff").get(10, TimeUnit.SECONDS).status(),
+                        equalTo(HttpResponseStatus.NOT_FOUND));
+                assertThat(post(connection, "/upper", "riff").get(10, TimeUnit.SECONDS), equalTo("RIFF"));
+                assertThat(connection.isActive(), equalTo(true));
+                connection.close().sync();
+            }
+            finally {
+                group.shutdownGracefully(0L, 2L, TimeUnit.SECONDS).sync();
+            }
+        }
+    }
+
+    private static HttpRequest request(HttpTestServer server, String body) {
+        return HttpRequest.newBuilder(URI.create(server.getUrl() + "upper"))
+                .header("Content-Type", "text/plain")
+                .header("Accept", "text/plain")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    /*
+     * Open an HTTP/2 connection with prior knowledge.
+     */
+    private static Channel connect(EventLoopGroup group, HttpTestServer server) throws InterruptedException {
+        return new Bootstrap().group(group)
+                .channel(NioSocketChannel.class)
+                .handler(Http2MultiplexCodecBuilder.forClient(new ChannelInitializer<Channel>() {
+
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        // The invoker does not push streams
+                    }
+                }).build())
+                .connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()))
+                .sync()
+                .channel();
+    }
+
+    private static CompletableFuture<String> post(Channel connection, String path, String body) throws Exception {
+        return request(connection, HttpMethod.POST, path, body)
+                .thenApply(response -> response.content().toString(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Send a request on a new stream of the given connection, and return its response, whose content is only readable
+     * until it completes.
+     */
+    private static CompletableFuture<FullHttpResponse> request(Channel connection, HttpMethod method, String path,
+                                                               String body) throws Exception {
+        CompletableFuture<FullHttpResponse> response = new CompletableFuture<>();
+        Http2StreamChannel stream = new Http2StreamChannelBootstrap(connection)
+                .handler(new ChannelInitializer<Http2StreamChannel>() {
+
+                    @Override
+                    protected void initChannel(Http2StreamChannel ch) {
+                        ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false), new HttpObjectAggregator(1024 * 1024),
+                                new SimpleChannelInboundHandler<FullHttpResponse>() {
+
+                                    @Override
+                                    protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+                                        response.complete(msg);
+                                    }
+
+                                    @Override
+                                    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                        response.completeExceptionally(cause);
+                                    }
+                                });
+                    }
+                })
+                .open()
+                .sync()
+                .getNow();
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, path,
+                Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+        request.headers().set(HttpHeaderNames.HOST, "localhost");
+        request.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+        request.headers().set(HttpHeaderNames.ACCEPT, "text/plain");
+        stream.writeAndFlush(request);
+        return response;
+    }
+
+    private static void write(OutputStream out, String method, String path, String body, String headers)
+            throws IOException {
+        String request = method + " " + path + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Accept: text/plain\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + headers
+                + "\r\n"
+                + body;
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /*
+     * Read a response with a Content-Length and the given status line, and return its body.
+     */
+    private static String readResponse(InputStream in, String statusLine) throws IOException {
+        String status = readLine(in);
+        assertThat(status, equalTo(statusLine));
+        int length = -1;
+        for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+            if (header.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(header.substring("content-length:".length()).trim());
+            }
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b == -1) {
+                throw new IOException("Connection closed");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+}
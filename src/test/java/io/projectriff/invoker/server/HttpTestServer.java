@@ -0,0 +1,71 @@
+package io.projectriff.invoker.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.projectriff.invoker.admission.AdmissionController;
+
+/**
+ * Runs the http pipeline of the invoker (the same {@link JavaFunctionInvoker.CustomChannelInitializer} and
+ * {@link HttpServerHandler}) on an ephemeral port of the loopback interface, for tests and benchmarks.
+ *
+ * @author Eric Bottard
+ */
+class HttpTestServer implements AutoCloseable {
+
+    private final EventLoopGroup group;
+
+    private final EventExecutorGroup streamExecutors;
+
+    private final Channel channel;
+
+    HttpTestServer(FunctionHost host, MeterRegistry registry, InvokerProperties properties,
+                   AdmissionController admission) throws InterruptedException {
+        this(host, registry, properties, admission, 4);
+    }
+
+    /**
+     * @param eventLoops the number of event loops, which bounds the number of http/1.1 requests computed concurrently
+     * by functions that produce their result on the calling thread
+     */
+    HttpTestServer(FunctionHost host, MeterRegistry registry, InvokerProperties properties,
+                   AdmissionController admission, int eventLoops) throws InterruptedException {
+        HttpServerHandler handler = new HttpServerHandler(host, registry, properties, admission);
+        group = new NioEventLoopGroup(eventLoops);
+        streamExecutors = properties.getHttp().isH2c() ? new DefaultEventExecutorGroup(2) : null;
+        channel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new JavaFunctionInvoker.CustomChannelInitializer(handler, properties.getCompression(),
+                        properties.getHttp(), streamExecutors))
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+                .sync()
+                .channel();
+    }
+
+    int getPort() {
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    String getUrl() {
+        return "http://localhost:" + getPort() + "/";
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        channel.close().sync();
+        group.shutdownGracefully(0L, 2L, TimeUnit.SECONDS).sync();
+        if (streamExecutors != null) {
+            streamExecutors.shutdownGracefully(0L, 2L, TimeUnit.SECONDS).sync();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package io.projectriff.invoker.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import io.projectriff.invoker.rpc.InputSignal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import org.springframework.util.FileSystemUtils;
+
+import static io.projectriff.invoker.server.SpillFileTest.frame;
+import static io.projectriff.invoker.server.SpillFileTest.payloadOf;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests for {@link MemoryBudgetOperator}, with and without a {@link SpillFile}.
+ *
+ * @author Eric Bottard
+ */
+public class MemoryBudgetOperatorTest {
+
+    private static final int FRAME_SIZE = MemoryBudgetOperator.sizeOf(frame(0));
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("riff-budget-test");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void testFramesAreOnlyRequestedWithinBudget() {
+        StreamMemoryBudget budget = new StreamMemoryBudget(3 * FRAME_SIZE);
+        AtomicInteger emitted = new AtomicInteger();
+        Flux<InputSignal> source = Flux.range(0, 10).map(SpillFileTest::frame).doOnNext(s -> emitted.incrementAndGet());
+        Collector collector = new Collector();
+        new MemoryBudgetOperator(source, budget, null).subscribe(collector);
+
+        // Three frames admitted, a fourth one read and held back by the budget
+        assertThat(collector.payloads(), equalTo(List.of(0, 1, 2)));
+        assertThat(emitted.get(), equalTo(4));
+        assertThat(budget.getQueuedBytes(), equalTo(3L * FRAME_SIZE));
+        assertThat(budget.getQueuedFrames(), equalTo(3L));
+
+        budget.release(FRAME_SIZE);
+        assertThat(collector.payloads(), equalTo(List.of(0, 1, 2, 3)));
+        assertThat(emitted.get(), equalTo(5));
+
+        for (int i = 0; i < 9; i++) {
+            budget.release(FRAME_SIZE);
+        }
+        assertThat(collector.payloads(), equalTo(IntStream.range(0, 10).boxed().collect(Collectors.toList())));
+        assertThat(collector.completed, is(true));
+        assertThat(budget.getQueuedBytes(), equalTo(0L));
+    }
+
+    @Test
+    public void testFrameLargerThanBudgetIsAdmittedWhenNothingIsQueued() {
+        StreamMemoryBudget budget = new StreamMemoryBudget(FRAME_SIZE / 2);
+        Collector collector = new Collector();
+        new MemoryBudgetOperator(Flux.range(0, 2).map(SpillFileTest::frame), budget, null).subscribe(collector);
+
+        assertThat(collector.payloads(), equalTo(List.of(0)));
+        budget.release(FRAME_SIZE);
+        assertThat(collector.payloads(), equalTo(List.of(0, 1)));
+    }
+
+    @Test
+    public void testFramesOverBudgetAreSpilledAndReplayedInOrder() throws IOException {
+        StreamMemoryBudget budget = new StreamMemoryBudget(2 * FRAME_SIZE);
+        SpillFile spill = new SpillFile(directory, 1024 * 1024);
+        Collector collector = new Collector();
+        new MemoryBudgetOperator(Flux.range(0, 10).map(SpillFileTest::frame), budget, spill).subscribe(collector);
+
+        // Two admitted, one held in memory, the rest read from the client anyway and spilled
+        assertThat(collector.payloads(), equalTo(List.of(0, 1)));
+        assertThat(budget.getSpilledFrames(), equalTo(7L));
+        assertThat(Files.exists(spill.getPath()), is(true));
+
+        for (int i = 0; i < 10; i++) {
+            budget.release(FRAME_SIZE);
+        }
+        assertThat(collector.payloads(), equalTo(IntStream.range(0, 10).boxed().collect(Collectors.toList())));
+        assertThat(budget.getSpilledFrames(), equalTo(0L));
+        assertThat(collector.completed, is(true));
+        assertThat(spill.getPath(), nullValue());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.count(), equalTo(0L));
+        }
+    }
+
+    @Test
+    public void testBackpressureAppliesOnceSpillFileIsFull() {
+        StreamMemoryBudget budget = new StreamMemoryBudget(FRAME_SIZE);
+        SpillFile spill = new SpillFile(directory, 2 * (Integer.BYTES + frame(0).getSerializedSize()));
+        AtomicInteger emitted = new AtomicInteger();
+        Flux<InputSignal> source = Flux.range(0, 10).map(SpillFileTest::frame).doOnNext(s -> emitted.incrementAndGet());
+        Collector collector = new Collector();
+        new MemoryBudgetOperator(source, budget, spill).subscribe(collector);
+
+        // One admitted, one held, two spilled and one overflowing: no more is read
+        assertThat(collector.payloads(), equalTo(List.of(0)));
+        assertThat(budget.getSpilledFrames(), equalTo(2L));
+        assertThat(emitted.get(), equalTo(5));
+
+        for (int i = 0; i < 10; i++) {
+            budget.release(FRAME_SIZE);
+        }
+        assertThat(collector.payloads(), equalTo(IntStream.range(0, 10).boxed().collect(Collectors.toList())));
+    }
+
+    @Test
+    public void testCancelReleasesTheSpillFile() throws IOException {
+        StreamMemoryBudget budget = new StreamMemoryBudget(FRAME_SIZE);
+        SpillFile spill = new SpillFile(directory, 1024 * 1024);
+        List<FluxSink<InputSignal>> sinks = new ArrayList<>();
+        AtomicInteger cancelled = new AtomicInteger();
+        Flux<InputSignal> source = Flux.<InputSignal>create(sinks::add).doOnCancel(cancelled::incrementAndGet);
+        Collector collector = new Collector();
+        new MemoryBudgetOperator(source, budget, spill).subscribe(collector);
+        for (int i = 0; i < 5; i++) {
+            sinks.get(0).next(frame(i));
+        }
+        assertThat(budget.getSpilledFrames(), equalTo(3L));
+        Path path = spill.getPath();
+
+        collector.dispose();
+        assertThat(cancelled.get(), equalTo(1));
+        assertThat(Files.exists(path), is(false));
+        assertThat(spill.getPath(), nullValue());
+        assertThat(collector.payloads(), equalTo(List.of(0)));
+    }
+
+    private static class Collector extends BaseSubscriber<InputSignal> {
+
+        private final List<InputSignal> received = new ArrayList<>();
+
+        private volatile boolean completed;
+
+        @Override
+        protected void hookOnNext(InputSignal value) {
+            received.add(value);
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            completed = true;
+        }
+
+        List<Integer> payloads() {
+            return received.stream().map(SpillFileTest::payloadOf).collect(Collectors.toList());
+        }
+    }
+}
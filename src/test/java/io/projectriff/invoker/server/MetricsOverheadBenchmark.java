@@ -0,0 +1,69 @@
+package io.projectriff.invoker.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.projectriff.invoker.loadgen.LoadGenerator;
+import io.projectriff.invoker.loadgen.LoadOptions;
+import io.projectriff.invoker.loadgen.LoadReport;
+
+/**
+ * Measures the overhead of the invoker's metrics, by sending the same load to a function hosted with a Prometheus
+ * registry and with a registry that records nothing (a composite registry without children only hands out no-op
+ * meters).
+ *
+ * <p>
+ * Not run as part of the build. Run its {@code main} method from the project directory, optionally with load
+ * generator options (<i>e.g.</i> {@code --streams=8 --concurrency=64 --duration=60s}) which override the defaults.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class MetricsOverheadBenchmark {
+
+    private static final String LOCATION = new File("src/test/functions/hundred-divider-1.0.0.jar").getAbsolutePath();
+
+    private static final String CLASS = "com.acme.HundredDivider";
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(List.of(args));
+        for (String option : List.of("--streams=4", "--concurrency=32", "--payload=4", "--content-type=application/json",
+                "--accept=application/json", "--warmup=5s", "--duration=15s")) {
+            String name = option.substring(0, option.indexOf('=') + 1);
+            if (options.stream().noneMatch(o -> o.startsWith(name))) {
+                options.add(option);
+            }
+        }
+
+        // Alternated, so that the JIT state of the client does not favor either
+        for (int round = 0; round < 2; round++) {
+            run("no-op meters", CompositeMeterRegistry::new, options);
+            run("prometheus", () -> new PrometheusMeterRegistry(PrometheusConfig.DEFAULT), options);
+        }
+    }
+
+    private static void run(String label, Supplier<MeterRegistry> registry, List<String> options) throws Exception {
+        FunctionHost host = new FunctionHost(new InvokerProperties(), registry.get());
+        host.reload(LOCATION, CLASS);
+        Server server = NettyServerBuilder.forPort(0).addService(new FunctionRouter(host)).build().start();
+        try {
+            List<String> withTarget = new ArrayList<>(options);
+            withTarget.add(0, "--target=localhost:" + server.getPort());
+            LoadReport report = LoadGenerator.create(LoadOptions.parse(withTarget.toArray(new String[0]))).run();
+            System.out.printf("%n== %s: %.0f/s%n%s", label, report.getThroughput(), report.toText());
+        }
+        finally {
+            server.shutdownNow().awaitTermination(5L, TimeUnit.SECONDS);
+            host.close();
+        }
+    }
+}
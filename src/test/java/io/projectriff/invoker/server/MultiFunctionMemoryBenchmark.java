@@ -0,0 +1,217 @@
+package io.projectriff.invoker.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.client.FunctionProxy;
+import reactor.core.publisher.Flux;
+
+/**
+ * Compares the memory taken by N functions hosted in a single invoker with that of N invokers hosting one function
+ * each. Every function is loaded from its own classloader, as separately deployed functions would be.
+ *
+ * <p>
+ * Each invoker runs in a JVM of its own, started with the same options. Once every function has served a number of
+ * invocations, each JVM reports its heap (used after a full GC, and committed) and its resident set size.
+ * </p>
+ *
+ * <p>
+ * Not run as part of the build. Run its {@code main} method from the project directory (on Linux, where the resident
+ * set size is read from {@code /proc}), optionally with {@code --functions=}, {@code --requests=} (per function) and
+ * {@code --jvm-options=} (space separated) options which override the defaults.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class MultiFunctionMemoryBenchmark {
+
+    private static final String LOCATION = new File("src/test/functions/hundred-divider-1.0.0.jar").getAbsolutePath();
+
+    private static final String CLASS = "com.acme.HundredDivider";
+
+    public static void main(String[] args) throws Exception {
+        int functions = Integer.parseInt(option(args, "functions", "10"));
+        int requests = Integer.parseInt(option(args, "requests", "10000"));
+        List<String> jvmOptions = Arrays.asList(option(args, "jvm-options", "-Xmx256m -XX:+UseG1GC").split(" "));
+
+        Memory one = measure(List.of(start(1, jvmOptions)), requests);
+        Memory shared = measure(List.of(start(functions, jvmOptions)), requests);
+        List<Invoker> invokers = new ArrayList<>();
+        for (int i = 0; i < functions; i++) {
+            invokers.add(start(1, jvmOptions));
+        }
+        Memory separate = measure(invokers, requests);
+
+        System.out.printf("%n%-32s %12s %14s %10s%n", "", "heap used", "heap committed", "rss");
+        print("1 function, 1 invoker", one);
+        print(functions + " functions, 1 invoker", shared);
+        print(functions + " functions, " + functions + " invokers", separate);
+        System.out.printf("%nEach function beyond the first: %.1f MB rss and %.2f MB heap in a shared invoker, "
+                        + "%.1f MB rss and %.2f MB heap in an invoker of its own%n",
+                mb(shared.rss - one.rss) / (functions - 1), mb(shared.heapUsed - one.heapUsed) / (functions - 1),
+                mb(separate.rss) / functions, mb(separate.heapUsed) / functions);
+    }
+
+    private static Invoker start(int functions, List<String> jvmOptions) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(jvmOptions);
+        String logback = System.getProperty("logback.configurationFile");
+        if (logback != null) {
+            command.add("-Dlogback.configurationFile=" + logback);
+        }
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), Host.class.getName(), String.valueOf(functions)));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Invoker invoker = new Invoker(process, functions);
+        invoker.port = Integer.parseInt(invoker.read("port"));
+        return invoker;
+    }
+
+    /*
+     * Warm all functions of all the given invokers up, then add up what they report.
+     */
+    @SuppressWarnings("unchecked")
+    private static Memory measure(List<Invoker> invokers, int requests) throws Exception {
+        Memory total = new Memory();
+        for (Invoker invoker : invokers) {
+            ManagedChannel channel = NettyChannelBuilder.forAddress("localhost", invoker.port).usePlaintext().build();
+            try {
+                for (int i = 0; i < invoker.functions; i++) {
+                    Function<Flux<Integer>, Flux<Integer>[]> function = FunctionProxy.builder(Function.class)
+                            .channel(channel)
+                            .outputTypes(Integer.class)
+                            .functionName("fn" + i)
+                            .build();
+                    function.apply(Flux.range(1, requests))[0].blockLast();
+                }
+            }
+            finally {
+                channel.shutdownNow().awaitTermination(5L, TimeUnit.SECONDS);
+            }
+        }
+        for (Invoker invoker : invokers) {
+            invoker.out.println("measure");
+            invoker.out.flush();
+            total.heapUsed += Long.parseLong(invoker.read("heap-used"));
+            total.heapCommitted += Long.parseLong(invoker.read("heap-committed"));
+            total.rss += Long.parseLong(invoker.read("rss"));
+            invoker.process.waitFor(10L, TimeUnit.SECONDS);
+        }
+        return total;
+    }
+
+    private static void print(String label, Memory memory) {
+        System.out.printf("%-32s %9.1f MB %11.1f MB %7.1f MB%n", label, mb(memory.heapUsed), mb(memory.heapCommitted),
+                mb(memory.rss));
+    }
+
+    private static double mb(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+
+    private static String option(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith("--" + name + "=")) {
+                return arg.substring(name.length() + 3);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Hosts the given number of functions, on a port it prints, until asked to measure its memory.
+     */
+    public static class Host {
+
+        public static void main(String[] args) throws Exception {
+            FunctionLoader loader = new FunctionLoader();
+            List<HostedFunction> functions = new ArrayList<>();
+            for (int i = 0; i < Integer.parseInt(args[0]); i++) {
+                functions.add(loader.load(loader.isolatedClassLoader(LOCATION), CLASS).get(0).withName("fn" + i));
+            }
+            FunctionHost host = new FunctionHost(new InvokerProperties(), new SimpleMeterRegistry());
+            host.start(functions);
+            Server server = NettyServerBuilder.forPort(0).addService(new FunctionRouter(host)).build().start();
+            System.out.println("port=" + server.getPort());
+
+            new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            System.gc();
+            System.gc();
+            System.out.println("heap-used=" + memory.getHeapMemoryUsage().getUsed());
+            System.out.println("heap-committed=" + memory.getHeapMemoryUsage().getCommitted());
+            System.out.println("rss=" + rss());
+            server.shutdownNow();
+            host.close();
+            System.exit(0);
+        }
+
+        private static long rss() throws IOException {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024L;
+                }
+            }
+            return 0L;
+        }
+    }
+
+    private static class Invoker {
+
+        private final Process process;
+
+        private final int functions;
+
+        private final BufferedReader in;
+
+        private final PrintStream out;
+
+        private int port;
+
+        Invoker(Process process, int functions) {
+            this.process = process;
+            this.functions = functions;
+            this.in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintStream(process.getOutputStream(), true, StandardCharsets.UTF_8);
+        }
+
+        /*
+         * Skip what the invoker logs until the given value.
+         */
+        String read(String name) throws IOException {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.startsWith(name + "=")) {
+                    return line.substring(name.length() + 1);
+                }
+            }
+            throw new IOException("Invoker exited before reporting " + name);
+        }
+    }
+
+    private static class Memory {
+
+        private long heapUsed;
+
+        private long heapCommitted;
+
+        private long rss;
+    }
+}
@@ -0,0 +1,129 @@
+package io.projectriff.invoker.server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.google.protobuf.ByteString;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.StartFrame;
+import reactor.core.publisher.Flux;
+
+/**
+ * Sends the same stream of keyed frames to a function that takes some time per element, split into a varying number
+ * of partitions, and compares the throughput. Frames go straight to the function's adapter, without any transport.
+ *
+ * <p>
+ * Not run as part of the build. Run its {@code main} method from the project directory, optionally with
+ * {@code --partitions=} (a comma separated list), {@code --frames=}, {@code --keys=}, {@code --work=} ({@code sleep},
+ * as when waiting on I/O, or {@code spin}, as when computing) and {@code --micros=} (time per element) options which
+ * override the defaults. Partitions get as many threads.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class PartitioningBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> partitions = Arrays.stream(option(args, "partitions", "1,2,4,8,16").split(","))
+                .map(Integer::valueOf)
+                .collect(Collectors.toList());
+        int frames = Integer.parseInt(option(args, "frames", "20000"));
+        int keys = Integer.parseInt(option(args, "keys", "64"));
+        boolean spin = "spin".equals(option(args, "work", "sleep"));
+        long nanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(option(args, "micros", "200")));
+        List<InputSignal> stream = stream(frames, keys);
+
+        // Alternated, so that the JIT state of either side does not favor one of them
+        for (int round = 0; round < 2; round++) {
+            for (int n : partitions) {
+                run(n, stream, new Work(spin, nanos));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void run(int partitions, List<InputSignal> stream, Work work) throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getPartitioning().setFunctions(List.of("work"));
+        properties.getPartitioning().setPartitions(partitions);
+        properties.getPartitioning().setThreads(partitions);
+        FunctionHost host = new FunctionHost(properties, new SimpleMeterRegistry());
+        try {
+            host.start(List.of(FunctionRouterTest.hosted("work", work)));
+            ReactorServerAdapter<?, ?> adapter = host.getCurrent().adapter("work");
+            long start = System.nanoTime();
+            Long results = adapter.invoke(Flux.fromIterable(stream)).count().block(Duration.ofMinutes(10));
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("== %2d partitions: %6.0f frames/s (%d results in %.2fs)%n", partitions, results / seconds,
+                    results, seconds);
+        }
+        finally {
+            host.close();
+        }
+    }
+
+    private static List<InputSignal> stream(int frames, int keys) {
+        InputSignal start = InputSignal.newBuilder()
+                .setStart(StartFrame.newBuilder().addExpectedContentTypes("text/plain"))
+                .build();
+        String keyHeader = new InvokerProperties().getPartitioning().getKeyHeader();
+        return Flux.range(0, frames)
+                .map(i -> InputSignal.newBuilder()
+                        .setData(InputFrame.newBuilder()
+                                .setContentType("text/plain")
+                                .putHeaders(keyHeader, "key" + i % keys)
+                                .setPayload(ByteString.copyFrom(String.valueOf(i), StandardCharsets.UTF_8)))
+                        .build())
+                .startWith(start)
+                .collectList()
+                .block();
+    }
+
+    private static String option(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith("--" + name + "=")) {
+                return arg.substring(name.length() + 3);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Takes a fixed time per element, either waiting or computing.
+     */
+    public static class Work implements Function<Flux<String>, Flux<String>> {
+
+        private final boolean spin;
+
+        private final long nanos;
+
+        Work(boolean spin, long nanos) {
+            this.spin = spin;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.map(s -> {
+                if (spin) {
+                    long end = System.nanoTime() + nanos;
+                    while (System.nanoTime() < end) {
+                        Thread.onSpinWait();
+                    }
+                }
+                else {
+                    LockSupport.parkNanos(nanos);
+                }
+                return s;
+            });
+        }
+    }
+}
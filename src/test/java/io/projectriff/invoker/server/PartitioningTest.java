@@ -0,0 +1,222 @@
+package io.projectriff.invoker.server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import com.google.protobuf.ByteString;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.StartFrame;
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests that invocation streams of partitioned functions are split by key, keeping the order of frames within a key.
+ *
+ * @author Eric Bottard
+ */
+public class PartitioningTest {
+
+    private static final String KEY_HEADER = new InvokerProperties().getPartitioning().getKeyHeader();
+
+    private FunctionHost host;
+
+    @After
+    public void stopHost() {
+        if (host != null) {
+            host.close();
+        }
+    }
+
+    @Test
+    public void testOrderIsKeptWithinAKey() throws Exception {
+        host = partitionedHost("tag", new Tag());
+        List<String> results = invoke("tag", IntStream.range(0, 2000)
+                .mapToObj(i -> frame("key" + i % 16, (i % 16) + ":" + i)));
+
+        assertThat(results.size(), equalTo(2000));
+        Map<String, List<Integer>> byKey = new LinkedHashMap<>();
+        Set<String> threads = new HashSet<>();
+        for (String result : results) {
+            String[] parts = result.split("[:@]");
+            byKey.computeIfAbsent(parts[0], k -> new ArrayList<>()).add(Integer.parseInt(parts[1]));
+            threads.add(parts[2]);
+        }
+        assertThat(byKey.size(), equalTo(16));
+        for (List<Integer> sequence : byKey.values()) {
+            assertThat(sequence, equalTo(sequence.stream().sorted().collect(Collectors.toList())));
+        }
+        // Partitions run on the dedicated threads, not on those of the transport or of Reactor's shared pools
+        assertThat(threads.size() > 1, is(true));
+        assertThat(threads.stream().allMatch(t -> t.startsWith("riff-partition-")), is(true));
+    }
+
+    @Test
+    public void testFramesWithoutAKeyAllGoToOnePartition() throws Exception {
+        host = partitionedHost("tag", new Tag());
+        List<String> results = invoke("tag", IntStream.range(0, 500).mapToObj(i -> frame(null, String.valueOf(i))));
+
+        List<String> inputs = results.stream().map(r -> r.substring(0, r.indexOf('@'))).collect(Collectors.toList());
+        assertThat(inputs, equalTo(IntStream.range(0, 500).mapToObj(String::valueOf).collect(Collectors.toList())));
+        assertThat(results.stream().map(r -> r.substring(r.indexOf('@') + 1)).distinct().count(), equalTo(1L));
+    }
+
+    @Test
+    public void testFunctionsThatLookStatefulAreReported() {
+        assertThat(FunctionHost.statefulField(new Counter()), equalTo(Counter.class.getName() + ".count"));
+        assertThat(FunctionHost.statefulField(new Distinct()), equalTo(Distinct.class.getName() + ".seen"));
+        assertThat(FunctionHost.statefulField(new Appender()), equalTo(Appender.class.getName() + ".text"));
+        assertThat(FunctionHost.statefulField(new Boxed()), equalTo(Box.class.getName() + ".value"));
+        assertThat(FunctionHost.statefulField(new Tag()), nullValue());
+        assertThat(FunctionHost.statefulField(new Prefixes()), nullValue());
+    }
+
+    @Test
+    public void testFunctionsThatLookStatefulAreStillPartitioned() throws Exception {
+        // Only warned about, as partitioning is asked for explicitly
+        host = partitionedHost("counter", new Counter());
+        List<String> results = invoke("counter", IntStream.range(0, 10).mapToObj(i -> frame("key", String.valueOf(i))));
+
+        assertThat(results, equalTo(IntStream.rangeClosed(1, 10).mapToObj(String::valueOf).collect(Collectors.toList())));
+    }
+
+    private FunctionHost partitionedHost(String name, Object function) throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getPartitioning().setFunctions(List.of(name));
+        properties.getPartitioning().setPartitions(4);
+        properties.getPartitioning().setThreads(4);
+        FunctionHost host = new FunctionHost(properties, new SimpleMeterRegistry());
+        try {
+            host.start(List.of(FunctionRouterTest.hosted(name, function)));
+        }
+        catch (Exception e) {
+            host.close();
+            throw e;
+        }
+        return host;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> invoke(String name, Stream<InputSignal> frames) {
+        InputSignal start = InputSignal.newBuilder()
+                .setStart(StartFrame.newBuilder().addExpectedContentTypes("text/plain"))
+                .build();
+        ReactorServerAdapter<?, ?> adapter = host.getCurrent().adapter(name);
+        return adapter.invoke(Flux.fromStream(frames).startWith(start))
+                .map(s -> s.getData().getPayload().toStringUtf8())
+                .collectList()
+                .block(Duration.ofSeconds(10));
+    }
+
+    private static InputSignal frame(String key, String payload) {
+        InputFrame.Builder frame = InputFrame.newBuilder()
+                .setContentType("text/plain")
+                .setPayload(ByteString.copyFrom(payload, StandardCharsets.UTF_8));
+        if (key != null) {
+            frame.putHeaders(KEY_HEADER, key);
+        }
+        return InputSignal.newBuilder().setData(frame).build();
+    }
+
+    /**
+     * Tells which thread each input was seen on.
+     */
+    public static class Tag implements Function<Flux<String>, Flux<String>> {
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.map(s -> s + "@" + Thread.currentThread().getName());
+        }
+    }
+
+    /**
+     * Numbers its inputs, across all the streams it is given.
+     */
+    public static class Counter implements Function<Flux<String>, Flux<Integer>> {
+
+        private int count;
+
+        @Override
+        public Flux<Integer> apply(Flux<String> input) {
+            return input.map(s -> ++count);
+        }
+    }
+
+    /**
+     * Drops inputs it has already seen, in any stream.
+     */
+    public static class Distinct implements Function<Flux<String>, Flux<String>> {
+
+        private final Set<String> seen = new HashSet<>();
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.filter(seen::add);
+        }
+    }
+
+    /**
+     * Builds up what it is given, across all the streams it is given.
+     */
+    public static class Appender implements Function<Flux<String>, Flux<String>> {
+
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.map(s -> text.append(s).toString());
+        }
+    }
+
+    /**
+     * Keeps the last input in a holder of its own.
+     */
+    public static class Boxed implements Function<Flux<String>, Flux<String>> {
+
+        private final Box box = new Box();
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.map(s -> {
+                String previous = box.value;
+                box.value = s;
+                return previous + s;
+            });
+        }
+    }
+
+    static class Box {
+
+        private String value = "";
+    }
+
+    /**
+     * Only reads the constants it holds.
+     */
+    public static class Prefixes implements Function<Flux<String>, Flux<String>> {
+
+        private final List<String> prefixes = List.of("a", "b");
+
+        @Override
+        public Flux<String> apply(Flux<String> input) {
+            return input.map(s -> prefixes.get(s.length() % 2) + s);
+        }
+    }
+}
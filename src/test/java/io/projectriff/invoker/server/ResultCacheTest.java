@@ -0,0 +1,236 @@
+package io.projectriff.invoker.server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.google.protobuf.ByteString;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.metrics.InvokerMetrics;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import io.projectriff.invoker.rpc.OutputFrame;
+import io.projectriff.invoker.rpc.OutputSignal;
+import io.projectriff.invoker.rpc.StartFrame;
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import org.springframework.http.MediaType;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ResultCache}, on its own and remembering results of a pure function.
+ *
+ * @author Eric Bottard
+ */
+public class ResultCacheTest {
+
+    private static final List<String> TEXT = List.of("text/plain");
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final InvokerMetrics metrics = InvokerMetrics.forFunction(registry, "pure");
+
+    private FunctionHost host;
+
+    @After
+    public void stopHost() {
+        if (host != null) {
+            host.close();
+        }
+    }
+
+    @Test
+    public void testRememberedResultsAreHits() {
+        ResultCache cache = new ResultCache(1024 * 1024, null, metrics);
+        OutputFrame result = result("A");
+        assertThat(cache.get(key("a", TEXT)), nullValue());
+        cache.put(key("a", TEXT), result);
+
+        assertThat(cache.get(key("a", TEXT)), sameInstance(result));
+        assertThat(cache.get(key("b", TEXT)), nullValue());
+        assertThat(requests("hit"), equalTo(1d));
+        assertThat(requests("miss"), equalTo(2d));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvictedFirst() {
+        // Room for two entries of this size, but not three
+        long entry = entrySize("a", result("A"));
+        ResultCache cache = new ResultCache(2 * entry + entry / 2, null, metrics);
+        cache.put(key("a", TEXT), result("A"));
+        cache.put(key("b", TEXT), result("B"));
+        cache.get(key("a", TEXT));
+        cache.put(key("c", TEXT), result("C"));
+
+        assertThat(cache.get(key("b", TEXT)), nullValue());
+        assertThat(cache.get(key("a", TEXT)), equalTo(result("A")));
+        assertThat(cache.get(key("c", TEXT)), equalTo(result("C")));
+        assertThat(registry.get(InvokerMetrics.PREFIX + ".cache.evictions").counter().count(), equalTo(1d));
+    }
+
+    @Test
+    public void testEvictionAccountsForPayloadBytes() {
+        long small = entrySize("a", result("A"));
+        ResultCache cache = new ResultCache(4 * small, null, metrics);
+        cache.put(key("a", TEXT), result("A"));
+        cache.put(key("b", TEXT), result("B"));
+        // A single large entry pushes out both small ones, not just the oldest
+        String large = "x".repeat((int) (small * 5 / 2));
+        cache.put(key("large", TEXT), result(large));
+
+        assertThat(cache.get(key("a", TEXT)), nullValue());
+        assertThat(cache.get(key("b", TEXT)), nullValue());
+        assertThat(cache.get(key("large", TEXT)), equalTo(result(large)));
+
+        // Results that would not fit at all are not remembered, and don't evict anything
+        cache.put(key("huge", TEXT), result("x".repeat((int) (small * 4))));
+        assertThat(cache.get(key("huge", TEXT)), nullValue());
+        assertThat(cache.get(key("large", TEXT)), equalTo(result(large)));
+    }
+
+    @Test
+    public void testEntriesExpire() throws InterruptedException {
+        ResultCache cache = new ResultCache(1024 * 1024, Duration.ofMillis(1), metrics);
+        cache.put(key("a", TEXT), result("A"));
+        Thread.sleep(5L);
+        assertThat(cache.get(key("a", TEXT)), nullValue());
+    }
+
+    @Test
+    public void testKeysTellAcceptedContentTypesApart() {
+        assertThat(key("a", TEXT), equalTo(key("a", List.of("text/plain"))));
+        assertThat(key("a", TEXT), not(equalTo(key("a", List.of("application/json")))));
+        // Any of the accepted types may end up being used, not just the first one
+        assertThat(key("a", List.of("text/plain", "application/json")), not(equalTo(key("a", TEXT))));
+    }
+
+    @Test
+    public void testStreamsExpectingDifferentTypesDoNotShareResults() throws Exception {
+        host = pureHost("upper", new FunctionLoader.FluxMappingFunction<>(new ElementErrorsTest.Picky()));
+        List<OutputFrame> text = invoke("upper", "text/plain", false, "a", "a");
+        List<OutputFrame> json = invoke("upper", "application/json", false, "a");
+
+        assertThat(text.size(), equalTo(2));
+        assertThat(text.get(0).getContentType().startsWith("text/plain"), equalTo(true));
+        assertThat(text.get(1), equalTo(text.get(0)));
+        assertThat(json.size(), equalTo(1));
+        assertThat(json.get(0).getContentType().startsWith("application/json"), equalTo(true));
+        assertThat(hostRequests("upper", "hit"), equalTo(1d));
+        assertThat(hostRequests("upper", "miss"), equalTo(2d));
+    }
+
+    @Test
+    public void testFailingElementsAreNotRemembered() throws Exception {
+        host = pureHost("upper", new FunctionLoader.FluxMappingFunction<>(new ElementErrorsTest.Picky()));
+        List<OutputSignal> outputs = adapter("upper").invoke(signals("text/plain", true, "poison", "a", "poison", "a"))
+                .collectList()
+                .block(Duration.ofSeconds(10));
+
+        // Each poison element is applied, and reported, again
+        assertThat(outputs.stream().filter(OutputSignal::hasError).count(), equalTo(2L));
+        assertThat(outputs.stream().filter(OutputSignal::hasData).count(), equalTo(2L));
+        assertThat(hostRequests("upper", "hit"), equalTo(1d));
+        assertThat(hostRequests("upper", "miss"), equalTo(3d));
+    }
+
+    @Test
+    public void testStreamFunctionsCanNotBeDeclaredPure() throws Exception {
+        assertStartupFails("stream", new ElementErrorsTest.PickyStream());
+    }
+
+    @Test
+    public void testUnknownPureFunctionsFailStartup() throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getCache().setPureFunctions(List.of("missing"));
+        host = new FunctionHost(properties, registry);
+        try {
+            host.start(List.of(FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper())));
+            fail("Expected startup to fail");
+        }
+        catch (IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("Pure functions [missing] are not hosted"));
+        }
+    }
+
+    private void assertStartupFails(String name, Object function) throws Exception {
+        try {
+            host = pureHost(name, function);
+            fail("Expected startup to fail");
+        }
+        catch (IllegalStateException e) {
+            assertThat(e.getMessage().contains(name), equalTo(true));
+        }
+    }
+
+    private FunctionHost pureHost(String name, Object function) throws Exception {
+        InvokerProperties properties = new InvokerProperties();
+        properties.getCache().setPureFunctions(List.of(name));
+        FunctionHost host = new FunctionHost(properties, registry);
+        try {
+            host.start(List.of(FunctionRouterTest.hosted(name, function)));
+        }
+        catch (Exception e) {
+            host.close();
+            throw e;
+        }
+        return host;
+    }
+
+    private List<OutputFrame> invoke(String name, String accept, boolean continueOnError, String... inputs) {
+        return adapter(name).invoke(signals(accept, continueOnError, inputs))
+                .map(OutputSignal::getData)
+                .collect(Collectors.toList())
+                .block(Duration.ofSeconds(10));
+    }
+
+    @SuppressWarnings("unchecked")
+    private ReactorServerAdapter<?, ?> adapter(String name) {
+        return host.getCurrent().adapter(name);
+    }
+
+    private static Flux<InputSignal> signals(String accept, boolean continueOnError, String... inputs) {
+        InputSignal start = InputSignal.newBuilder()
+                .setStart(StartFrame.newBuilder().addExpectedContentTypes(accept).setContinueOnError(continueOnError))
+                .build();
+        return Flux.just(inputs)
+                .map(s -> InputSignal.newBuilder()
+                        .setData(InputFrame.newBuilder().setContentType("text/plain").setPayload(bytes(s)))
+                        .build())
+                .startWith(start);
+    }
+
+    private double requests(String result) {
+        return registry.get(InvokerMetrics.PREFIX + ".cache.requests").tag("result", result).counter().count();
+    }
+
+    private double hostRequests(String function, String result) {
+        return registry.get(InvokerMetrics.PREFIX + ".cache.requests").tag("function", function).tag("result", result)
+                .counter().count();
+    }
+
+    private static long entrySize(String input, OutputFrame result) {
+        // As accounted for by the cache, overhead included
+        return input.length() + result.getSerializedSize() + 128;
+    }
+
+    private static ResultCache.Key key(String input, List<String> accept) {
+        return new ResultCache.Key(0, MediaType.TEXT_PLAIN, accept, bytes(input));
+    }
+
+    private static OutputFrame result(String output) {
+        return OutputFrame.newBuilder().setContentType("text/plain").setPayload(bytes(output)).build();
+    }
+
+    private static ByteString bytes(String s) {
+        return ByteString.copyFrom(s, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,82 @@
+package io.projectriff.invoker.server;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.loadgen.LoadGenerator;
+import io.projectriff.invoker.loadgen.LoadOptions;
+import io.projectriff.invoker.loadgen.LoadReport;
+import io.projectriff.invoker.shm.SharedMemoryServer;
+import io.projectriff.invoker.shm.WaitStrategy;
+
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Compares gRPC over loopback TCP with gRPC over a shared memory file, for the same function.
+ *
+ * <p>
+ * Not run as part of the build. Run its {@code main} method from the project directory, optionally with load
+ * generator options (<i>e.g.</i> {@code --streams=8 --concurrency=64 --duration=60s}) which override the defaults.
+ * The {@code --wait-strategy=} option applies to both sides of the shared memory file, and {@code --ring-size=} sets
+ * the capacity of its rings in bytes.
+ * </p>
+ *
+ * @author Eric Bottard
+ */
+public class SharedMemoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int ringSize = (int) new InvokerProperties().getGrpc().getSharedMemoryRingSize().toBytes();
+        List<String> options = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--ring-size=")) {
+                ringSize = Integer.parseInt(arg.substring("--ring-size=".length()));
+            }
+            else {
+                options.add(arg);
+            }
+        }
+        for (String option : List.of("--streams=4", "--concurrency=64", "--payload=riff", "--content-type=text/plain",
+                "--accept=text/plain", "--warmup=5s", "--duration=15s")) {
+            String name = option.substring(0, option.indexOf('=') + 1);
+            if (options.stream().noneMatch(o -> o.startsWith(name))) {
+                options.add(option);
+            }
+        }
+        WaitStrategy waitStrategy = LoadOptions.parse(options.toArray(new String[0])).getWaitStrategy();
+
+        Path directory = Files.createTempDirectory("riff-shm");
+        Path path = directory.resolve("riff.shm");
+        FunctionHost host = new FunctionHost(new InvokerProperties(), new SimpleMeterRegistry());
+        host.start(List.of(FunctionRouterTest.hosted("upper", new FunctionRouterTest.Upper())));
+        FunctionRouter router = new FunctionRouter(host);
+        Server tcp = NettyServerBuilder.forPort(0).addService(router).build().start();
+        SharedMemoryServer shm = new SharedMemoryServer(path, ringSize, waitStrategy, List.of(router.bindService())).start();
+        try {
+            // Alternated, so that the JIT state of either side does not favor one of them
+            for (int round = 0; round < 2; round++) {
+                run("tcp", "localhost:" + tcp.getPort(), options);
+                run("shared memory (" + waitStrategy + ")", "shm:" + path, options);
+            }
+        }
+        finally {
+            tcp.shutdownNow().awaitTermination(5L, TimeUnit.SECONDS);
+            shm.shutdownNow().awaitTermination(5L, TimeUnit.SECONDS);
+            host.close();
+            FileSystemUtils.deleteRecursively(directory);
+        }
+    }
+
+    private static void run(String label, String target, List<String> options) throws Exception {
+        List<String> withTarget = new ArrayList<>(options);
+        withTarget.add(0, "--target=" + target);
+        LoadReport report = LoadGenerator.create(LoadOptions.parse(withTarget.toArray(new String[0]))).run();
+        System.out.printf("%n== gRPC over %s: %.0f/s%n%s", label, report.getThroughput(), report.toText());
+    }
+}
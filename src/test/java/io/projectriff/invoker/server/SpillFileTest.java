@@ -0,0 +1,115 @@
+package io.projectriff.invoker.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import com.google.protobuf.ByteString;
+import io.projectriff.invoker.rpc.InputFrame;
+import io.projectriff.invoker.rpc.InputSignal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.springframework.util.FileSystemUtils;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests for {@link SpillFile}.
+ *
+ * @author Eric Bottard
+ */
+public class SpillFileTest {
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("riff-spill-test");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    static InputSignal frame(int i) {
+        return InputSignal.newBuilder()
+                .setData(InputFrame.newBuilder().setPayload(ByteString.copyFromUtf8("frame-" + i)).setContentType("text/plain"))
+                .build();
+    }
+
+    static int payloadOf(InputSignal signal) {
+        return Integer.parseInt(signal.getData().getPayload().toStringUtf8().substring("frame-".length()));
+    }
+
+    @Test
+    public void testNothingIsCreatedUntilAFrameIsSpilled() throws IOException {
+        SpillFile spill = new SpillFile(directory.resolve("spill"), 1024 * 1024);
+        assertThat(spill.isEmpty(), is(true));
+        assertThat(spill.poll(), nullValue());
+        assertThat(spill.getPath(), nullValue());
+        spill.close();
+        assertThat(Files.exists(directory.resolve("spill")), is(false));
+    }
+
+    @Test
+    public void testFramesAreReadBackInOrder() {
+        try (SpillFile spill = new SpillFile(directory, 1024)) {
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 10; i++) {
+                    assertThat(spill.append(frame(i)), is(true));
+                }
+                for (int i = 0; i < 10; i++) {
+                    assertThat(payloadOf(spill.poll()), equalTo(i));
+                }
+                assertThat(spill.isEmpty(), is(true));
+                assertThat(spill.poll(), nullValue());
+            }
+        }
+    }
+
+    @Test
+    public void testSpaceIsReclaimedOnceDrained() {
+        int recordSize = Integer.BYTES + frame(0).getSerializedSize();
+        try (SpillFile spill = new SpillFile(directory, 3 * recordSize)) {
+            assertThat(spill.append(frame(0)), is(true));
+            assertThat(spill.append(frame(1)), is(true));
+            assertThat(spill.append(frame(2)), is(true));
+            assertThat(spill.append(frame(3)), is(false));
+
+            // Partially draining doesn't free space, as writes only start over from an empty file
+            assertThat(payloadOf(spill.poll()), equalTo(0));
+            assertThat(spill.append(frame(3)), is(false));
+
+            assertThat(payloadOf(spill.poll()), equalTo(1));
+            assertThat(payloadOf(spill.poll()), equalTo(2));
+            assertThat(spill.append(frame(3)), is(true));
+            assertThat(payloadOf(spill.poll()), equalTo(3));
+        }
+    }
+
+    @Test
+    public void testCloseDeletesTheFile() throws IOException {
+        SpillFile spill = new SpillFile(directory, 1024);
+        spill.append(frame(0));
+        Path path = spill.getPath();
+        assertThat(path, notNullValue());
+        assertThat(Files.exists(path), is(true));
+
+        spill.close();
+        assertThat(Files.exists(path), is(false));
+        assertThat(spill.isEmpty(), is(true));
+        assertThat(spill.append(frame(1)), is(false));
+        spill.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.count(), equalTo(0L));
+        }
+    }
+}
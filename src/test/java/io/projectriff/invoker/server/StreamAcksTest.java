@@ -0,0 +1,112 @@
+package io.projectriff.invoker.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.projectriff.invoker.rpc.OutputSignal;
+import org.junit.Test;
+import reactor.core.publisher.UnicastProcessor;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link StreamAcks}.
+ *
+ * @author Eric Bottard
+ */
+public class StreamAcksTest {
+
+    private final StreamMemoryBudget budget = new StreamMemoryBudget(0L);
+
+    private final StreamAcks acks = new StreamAcks(0L, 1, budget);
+
+    @Test
+    public void testInputsAreAcknowledgedOnceTheirResultIsSent() {
+        List<Long> sent = run(() -> {
+            arrive(1L);
+            produce();
+            arrive(2L);
+            produce();
+            assertThat(acks.nextResult(), equalTo(1L));
+            send();
+            assertThat(acks.nextResult(), equalTo(2L));
+            send();
+        });
+        // Not acknowledging #1 while the result of #2 is still on its way out
+        assertThat(sent, equalTo(List.of(2L)));
+    }
+
+    @Test
+    public void testInputsWithoutResultAreAcknowledgedWhenTheNextOneIsApplied() {
+        List<Long> sent = run(() -> {
+            arrive(1L);
+            // #1 produced nothing
+            arrive(2L);
+            produce();
+            assertThat(acks.nextResult(), equalTo(2L));
+            send();
+        });
+        assertThat(sent, equalTo(List.of(1L, 2L)));
+    }
+
+    @Test
+    public void testDiscardedInputsDoNotHoldBackAcks() {
+        List<Long> sent = run(() -> {
+            acks.accept(1L);
+            acks.discarded(1L);
+            arrive(2L);
+            produce();
+            assertThat(acks.nextResult(), equalTo(2L));
+            send();
+        });
+        assertThat(sent.get(sent.size() - 1), equalTo(2L));
+    }
+
+    @Test
+    public void testInputsAcknowledgedBeforeResumingAreSkipped() {
+        StreamAcks resumed = new StreamAcks(5L, 1, budget);
+        assertThat(resumed.accept(3L), is(false));
+        assertThat(resumed.accept(5L), is(false));
+        assertThat(resumed.accept(6L), is(true));
+        try {
+            resumed.accept(8L);
+            fail("Expected a gap in sequence numbers to be rejected");
+        }
+        catch (StatusRuntimeException e) {
+            assertThat(e.getStatus().getCode(), equalTo(Status.Code.FAILED_PRECONDITION));
+        }
+    }
+
+    private void arrive(long sequence) {
+        acks.accept(sequence);
+        acks.received(0, sequence);
+        acks.delivered(0);
+    }
+
+    private void produce() {
+        budget.outputProduced();
+        acks.produced();
+    }
+
+    private void send() {
+        budget.outputSent();
+        acks.resultSent();
+    }
+
+    /*
+     * Returns the sequence numbers of the acks emitted while running the given steps.
+     */
+    private List<Long> run(Runnable steps) {
+        UnicastProcessor<OutputSignal> outputs = UnicastProcessor.create();
+        List<Long> sent = new ArrayList<>();
+        acks.mergeWith(outputs).subscribe(s -> sent.add(s.getAck().getSequence()));
+        steps.run();
+        outputs.onComplete();
+        return sent;
+    }
+}
@@ -0,0 +1,145 @@
+package io.projectriff.invoker.shm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link RingBuffer}, with a producer and a consumer on the same region.
+ *
+ * @author Eric Bottard
+ */
+public class RingBufferTest {
+
+    private static final int CAPACITY = 1024;
+
+    private final ByteBuffer region = ByteBuffer.allocateDirect(RingBuffer.HEADER_BYTES + CAPACITY)
+            .order(ByteOrder.nativeOrder());
+
+    private final RingBuffer producer = new RingBuffer(region, 0, CAPACITY).asProducer();
+
+    private final RingBuffer consumer = new RingBuffer(region, 0, CAPACITY).asConsumer();
+
+    private final List<String> received = new ArrayList<>();
+
+    @Test
+    public void testCapacityIsAPowerOfTwo() {
+        try {
+            new RingBuffer(region, 0, 1000);
+            fail("Expected the capacity to be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), equalTo("Ring capacity should be a power of two of at least 1024, not 1000"));
+        }
+    }
+
+    @Test
+    public void testRecordsAreReadInOrder() {
+        write(1, 7L, payload(3, 'a'));
+        write(2, 8L, payload(0, 'b'));
+        write(3, 9L, payload(10, 'c'));
+
+        assertThat(consumer.read(this::record), equalTo(3));
+        assertThat(received, equalTo(List.of("1/7/aaa", "2/8/", "3/9/cccccccccc")));
+        assertThat(consumer.read(this::record), equalTo(0));
+    }
+
+    @Test
+    public void testRecordsThatDoNotFitBeforeTheEndAreWrittenAtTheStart() {
+        // 320 bytes records: three fit before the end, and leave 64 bytes there
+        for (int i = 0; i < 3; i++) {
+            write(1, i, payload(300, (char) ('a' + i)));
+            assertThat(consumer.read(this::record), equalTo(1));
+        }
+        write(1, 3L, payload(300, 'd'));
+
+        assertThat(region.getInt(RingBuffer.HEADER_BYTES + 960), equalTo(-1)); // PADDING
+        assertThat(region.getInt(RingBuffer.HEADER_BYTES), equalTo(1));
+        // The padding is skipped, and is not a record
+        assertThat(consumer.read(this::record), equalTo(1));
+        assertThat(received.get(3), equalTo("1/3/" + payload(300, 'd')));
+
+        // And the ring carries on from there
+        write(2, 4L, payload(5, 'e'));
+        assertThat(consumer.read(this::record), equalTo(1));
+        assertThat(received.get(4), equalTo("2/4/eeeee"));
+    }
+
+    @Test
+    public void testFullRingWaitsForTheConsumer() throws Exception {
+        // Two records of the largest payload fill the ring
+        write(1, 1L, payload(producer.maxPayload(), 'a'));
+        write(1, 2L, payload(producer.maxPayload(), 'b'));
+        CompletableFuture<Void> third = CompletableFuture.runAsync(() -> write(1, 3L, payload(10, 'c')));
+        try {
+            third.get(200L, TimeUnit.MILLISECONDS);
+            fail("Expected the producer to wait for room");
+        }
+        catch (TimeoutException expected) {
+        }
+
+        assertThat(consumer.read(this::record), equalTo(2));
+        third.get(5L, TimeUnit.SECONDS);
+        assertThat(consumer.read(this::record), equalTo(1));
+        assertThat(received.get(2), equalTo("1/3/cccccccccc"));
+    }
+
+    @Test
+    public void testFullRingFailsOnceTheConsumerIsGone() {
+        write(1, 1L, payload(producer.maxPayload(), 'a'));
+        write(1, 2L, payload(producer.maxPayload(), 'b'));
+        try {
+            producer.claim(1, 3L, 10, WaitStrategy.BUSY_SPIN, () -> false);
+            fail("Expected the claim to fail");
+        }
+        catch (IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("Ring stayed full and the other side went away"));
+        }
+
+        // Until the producer drops what the consumer left
+        producer.discard();
+        write(1, 3L, payload(10, 'c'));
+        assertThat(consumer.asConsumer().read(this::record), equalTo(1));
+    }
+
+    @Test
+    public void testPayloadsAreLimitedToHalfTheRing() {
+        assertThat(producer.maxPayload(), equalTo(CAPACITY / 2 - 16));
+        try {
+            producer.claim(1, 1L, producer.maxPayload() + 1, WaitStrategy.BUSY_SPIN, () -> true);
+            fail("Expected the payload to be rejected");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), equalTo("A 497 bytes record can't fit in a 1024 bytes ring"));
+        }
+        write(1, 1L, payload(producer.maxPayload(), 'a'));
+        assertThat(consumer.read(this::record), equalTo(1));
+    }
+
+    private void write(int type, long stream, String payload) {
+        byte[] bytes = payload.getBytes();
+        producer.claim(type, stream, bytes.length, WaitStrategy.BUSY_SPIN, () -> true).put(bytes);
+        producer.commit();
+    }
+
+    private void record(int type, long stream, ByteBuffer payload) {
+        received.add(type + "/" + stream + "/" + new String(RingConnection.toBytes(payload)));
+    }
+
+    private static String payload(int length, char c) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,442 @@
+package io.projectriff.invoker.shm;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.projectriff.invoker.client.FunctionProxy;
+import io.projectriff.invoker.server.FunctionHost;
+import io.projectriff.invoker.server.FunctionRouter;
+import io.projectriff.invoker.server.InvokerProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import org.springframework.util.FileSystemUtils;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for calls going through a {@link SharedMemoryServer} and a {@link SharedMemoryChannel}.
+ *
+ * @author Eric Bottard
+ */
+public class SharedMemoryTest {
+
+    private static final String LOCATION = new File("src/test/functions/hundred-divider-1.0.0.jar").getAbsolutePath();
+
+    private static final String CLASS = "com.acme.HundredDivider";
+
+    private static final int RING_CAPACITY = 4096;
+
+    private static final MethodDescriptor.Marshaller<String> STRINGS = new MethodDescriptor.Marshaller<String>() {
+
+        @Override
+        public InputStream stream(String value) {
+            return new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String parse(InputStream stream) {
+            try {
+                return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    /**
+     * Sends each message back.
+     */
+    private static final MethodDescriptor<String, String> ECHO = method("echo");
+
+    /**
+     * Sends as many messages as the number received, as the client makes room for them.
+     */
+    private static final MethodDescriptor<String, String> COUNT = method("count");
+
+    /**
+     * Fails with a description made of as many characters as the number received.
+     */
+    private static final MethodDescriptor<String, String> FAIL = method("fail");
+
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+
+    private final AtomicInteger sent = new AtomicInteger();
+
+    private Path directory;
+
+    private Path path;
+
+    private FunctionHost host;
+
+    private SharedMemoryServer server;
+
+    private SharedMemoryChannel channel;
+
+    @Before
+    public void startServer() throws Exception {
+        directory = Files.createTempDirectory("riff-shm");
+        path = directory.resolve("riff.shm");
+        host = new FunctionHost(new InvokerProperties(), new SimpleMeterRegistry());
+        host.reload(LOCATION, CLASS);
+        ServerServiceDefinition test = ServerServiceDefinition.builder("test")
+                .addMethod(ECHO, this::echo)
+                .addMethod(COUNT, this::count)
+                .addMethod(FAIL, this::failWithLongDescription)
+                .build();
+        server = new SharedMemoryServer(path, RING_CAPACITY, WaitStrategy.BACKOFF,
+                List.of(test, new FunctionRouter(host).bindService())).start();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        if (channel != null) {
+            channel.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        }
+        server.shutdownNow().awaitTermination(2, TimeUnit.SECONDS);
+        host.close();
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void testFunctionsAreInvoked() throws Exception {
+        channel = new SharedMemoryChannel(path, WaitStrategy.BACKOFF);
+        // Enough frames to go round the rings many times, with padding at their ends
+        List<Integer> inputs = IntStream.rangeClosed(1, 2000).boxed().collect(Collectors.toList());
+        @SuppressWarnings("unchecked")
+        Function<Flux<Integer>, Flux<Integer>[]> function = FunctionProxy.builder(Function.class)
+                .channel(channel)
+                .outputTypes(Integer.class)
+                .build();
+
+        List<Integer> results = function.apply(Flux.fromIterable(inputs))[0].collectList().block(Duration.ofSeconds(20));
+
+        assertThat(results, equalTo(inputs.stream().map(i -> 100 / i).collect(Collectors.toList())));
+    }
+
+    @Test
+    public void testMessagesAreOnlySentOnceRequested() throws Exception {
+        channel = new SharedMemoryChannel(path, WaitStrategy.BACKOFF);
+        Call call = new Call(COUNT);
+        call.call.request(2);
+        call.call.sendMessage("10");
+        call.call.halfClose();
+
+        assertThat(call.messages.poll(5, TimeUnit.SECONDS), equalTo("0"));
+        assertThat(call.messages.poll(5, TimeUnit.SECONDS), equalTo("1"));
+        // The invoker waits for credits
+        assertThat(call.messages.poll(200, TimeUnit.MILLISECONDS), nullValue());
+        assertThat(sent.get(), equalTo(2));
+
+        call.call.request(8);
+        assertThat(call.status.get(5, TimeUnit.SECONDS).getCode(), equalTo(Status.Code.OK));
+        assertThat(call.messages.size(), equalTo(8));
+        assertThat(sent.get(), equalTo(10));
+    }
+
+    @Test
+    public void testCancelledCallsAreCancelledOnTheInvoker() throws Exception {
+        channel = new SharedMemoryChannel(path, WaitStrategy.BACKOFF);
+        Call call = new Call(ECHO);
+        call.call.request(1);
+        call.call.sendMessage("riff");
+        assertThat(call.messages.poll(5, TimeUnit.SECONDS), equalTo("riff"));
+
+        call.call.cancel("Changed my mind", null);
+
+        assertThat(call.status.get(5, TimeUnit.SECONDS).getCode(), equalTo(Status.Code.CANCELLED));
+        assertThat(cancelled.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void testMessagesLargerThanHalfTheRingFailTheirCall() throws Exception {
+        channel = new SharedMemoryChannel(path, WaitStrategy.BACKOFF);
+        Call call = new Call(ECHO);
+        call.call.request(1);
+        char[] large = new char[RING_CAPACITY];
+        Arrays.fill(large, 'x');
+        call.call.sendMessage(new String(large));
+
+        Status status = call.status.get(5, TimeUnit.SECONDS);
+        assertThat(status.getCode(), equalTo(Status.Code.RESOURCE_EXHAUSTED));
+        assertThat(status.getDescription(), equalTo("A 4096 bytes record can't fit in a 4096 bytes ring"));
+        assertThat(cancelled.await(5, TimeUnit.SECONDS), is(true));
+        // Other calls go on
+        assertThat(echo("riff"), equalTo("riff"));
+    }
+
+    @Test
+    public void testLongStatusDescriptionsAreCutToFitTheRing() throws Exception {
+        channel = new SharedMemoryChannel(path, WaitStrategy.BACKOFF);
+        Call call = new Call(FAIL);
+        call.call.request(1);
+        // Two bytes each in UTF-8, well over what writeUTF can take
+        call.call.sendMessage("70000");
+
+        // Long before the other side would be given up on
+        Status status = call.status.get(2, TimeUnit.SECONDS);
+        assertThat(status.getCode(), equalTo(Status.Code.INVALID_ARGUMENT));
+        String description = status.getDescription();
+        assertThat(description.length() > 1000, is(true));
+        assertThat(description.getBytes(StandardCharsets.UTF_8).length <= RING_CAPACITY / 2, is(true));
+        assertThat(description.chars().allMatch(c -> c == '\u00e9'), is(true));
+        assertThat(echo("riff"), equalTo("riff"));
+    }
+
+    @Test
+    public void testCallsWithHeadersLargerThanTheRingFail() throws Exception {
+        channel = new SharedMemoryChannel(path, WaitStrategy.BACKOFF);
+        Metadata headers = new Metadata();
+        headers.put(Metadata.Key.of("large", Metadata.ASCII_STRING_MARSHALLER), "x".repeat(RING_CAPACITY));
+        Call call = new Call(ECHO, headers);
+
+        Status status = call.status.get(2, TimeUnit.SECONDS);
+        assertThat(status.getCode(), equalTo(Status.Code.RESOURCE_EXHAUSTED));
+        assertThat(echo("riff"), equalTo("riff"));
+    }
+
+    @Test
+    public void testStringsLongerThan64KBAreEncoded() {
+        String description = "\u00e9".repeat(70_000);
+        Status status = RingConnection.decodeStatus(ByteBuffer.wrap(
+                RingConnection.encodeStatus(Status.INTERNAL.withDescription(description), Integer.MAX_VALUE)));
+        assertThat(status.getCode(), equalTo(Status.Code.INTERNAL));
+        assertThat(status.getDescription(), equalTo(description));
+
+        Metadata headers = new Metadata();
+        headers.put(Metadata.Key.of("large", Metadata.ASCII_STRING_MARSHALLER), "x".repeat(70_000));
+        RingConnection.Open open = RingConnection.decodeOpen(ByteBuffer.wrap(
+                RingConnection.encodeOpen(ECHO.getFullMethodName(), 42L, headers)));
+        assertThat(open.method, equalTo(ECHO.getFullMethodName()));
+        assertThat(open.timeoutNanos, equalTo(42L));
+        assertThat(open.headers.get(Metadata.Key.of("large", Metadata.ASCII_STRING_MARSHALLER)), equalTo("x".repeat(70_000)));
+    }
+
+    @Test
+    public void testClientsSayGoodbye() throws Exception {
+        channel = new SharedMemoryChannel(path, WaitStrategy.BACKOFF);
+        assertThat(echo("riff"), equalTo("riff"));
+        try {
+            new SharedMemoryChannel(path, WaitStrategy.BACKOFF);
+            fail("Expected a second client to be refused");
+        }
+        catch (IOException expected) {
+        }
+
+        channel.shutdown();
+        assertThat(channel.awaitTermination(5, TimeUnit.SECONDS), is(true));
+
+        // Right away, as the invoker knows the client is gone
+        channel = attach(Duration.ofSeconds(1));
+        assertThat(echo("riff"), equalTo("riff"));
+    }
+
+    @Test
+    public void testInvokerNoticesClientsThatDied() throws Exception {
+        // A client that opens a call, and stops signalling it is alive
+        RingFile file = RingFile.open(path);
+        file.beat(false);
+        assertThat(file.attach(), is(true));
+        byte[] open = RingConnection.encodeOpen(ECHO.getFullMethodName(), -1L, new Metadata());
+        RingBuffer toServer = file.toServer().asProducer();
+        toServer.claim(RingConnection.OPEN, 1L, open.length, WaitStrategy.BUSY_SPIN, () -> true).put(open);
+        toServer.commit();
+
+        assertThat(cancelled.await(10, TimeUnit.SECONDS), is(true));
+        channel = attach(Duration.ofSeconds(5));
+        assertThat(echo("riff"), equalTo("riff"));
+    }
+
+    @Test
+    public void testCallsFailWhenTheInvokerDies() throws Exception {
+        // An invoker that never reads, hence whose ring fills up
+        Path dead = directory.resolve("dead.shm");
+        RingFile file = RingFile.create(dead, RING_CAPACITY);
+        channel = new SharedMemoryChannel(dead, WaitStrategy.BACKOFF);
+        Call call = new Call(ECHO);
+        char[] chunk = new char[1000];
+        Arrays.fill(chunk, 'x');
+        CompletableFuture<Void> sending = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 10; i++) {
+                call.call.sendMessage(new String(chunk));
+            }
+        });
+        try {
+            sending.get(200L, TimeUnit.MILLISECONDS);
+            fail("Expected the client to wait for room");
+        }
+        catch (TimeoutException expected) {
+        }
+
+        file.stop(true);
+
+        Status status = call.status.get(5, TimeUnit.SECONDS);
+        assertThat(status.getCode(), equalTo(Status.Code.UNAVAILABLE));
+        assertThat(status.getDescription(), equalTo("Invoker went away"));
+        sending.get(5L, TimeUnit.SECONDS);
+        assertThat(channel.awaitTermination(5, TimeUnit.SECONDS), is(true));
+    }
+
+    private String echo(String message) throws Exception {
+        Call call = new Call(ECHO);
+        call.call.request(1);
+        call.call.sendMessage(message);
+        call.call.halfClose();
+        assertThat(call.status.get(5, TimeUnit.SECONDS).getCode(), equalTo(Status.Code.OK));
+        return call.messages.poll();
+    }
+
+    /*
+     * Attach as soon as the invoker made room for a new client.
+     */
+    private SharedMemoryChannel attach(Duration timeout) throws Exception {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            try {
+                return new SharedMemoryChannel(path, WaitStrategy.BACKOFF);
+            }
+            catch (IOException e) {
+                if (System.nanoTime() - deadline > 0L) {
+                    throw e;
+                }
+                Thread.sleep(50L);
+            }
+        }
+    }
+
+    private ServerCall.Listener<String> echo(ServerCall<String, String> call, Metadata headers) {
+        call.request(1);
+        return new ServerCall.Listener<String>() {
+
+            @Override
+            public void onMessage(String message) {
+                call.sendMessage(message);
+                call.request(1);
+            }
+
+            @Override
+            public void onHalfClose() {
+                call.close(Status.OK, new Metadata());
+            }
+
+            @Override
+            public void onCancel() {
+                cancelled.countDown();
+            }
+        };
+    }
+
+    private ServerCall.Listener<String> count(ServerCall<String, String> call, Metadata headers) {
+        call.request(1);
+        return new ServerCall.Listener<String>() {
+
+            private int count = -1;
+
+            private int next;
+
+            @Override
+            public void onMessage(String message) {
+                count = Integer.parseInt(message);
+                onReady();
+            }
+
+            @Override
+            public void onReady() {
+                while (next < count && call.isReady()) {
+                    call.sendMessage(String.valueOf(next++));
+                    sent.incrementAndGet();
+                }
+                if (next == count) {
+                    call.close(Status.OK, new Metadata());
+                }
+            }
+        };
+    }
+
+    private ServerCall.Listener<String> failWithLongDescription(ServerCall<String, String> call, Metadata headers) {
+        call.request(1);
+        return new ServerCall.Listener<String>() {
+
+            @Override
+            public void onMessage(String message) {
+                call.close(Status.INVALID_ARGUMENT.withDescription("\u00e9".repeat(Integer.parseInt(message))), new Metadata());
+            }
+        };
+    }
+
+    private static MethodDescriptor<String, String> method(String name) {
+        return MethodDescriptor.<String, String>newBuilder()
+                .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+                .setFullMethodName(MethodDescriptor.generateFullMethodName("test", name))
+                .setRequestMarshaller(STRINGS)
+                .setResponseMarshaller(STRINGS)
+                .build();
+    }
+
+    /**
+     * A call on the channel, recording what it receives.
+     */
+    private class Call {
+
+        private final ClientCall<String, String> call;
+
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        private final CompletableFuture<Status> status = new CompletableFuture<>();
+
+        Call(MethodDescriptor<String, String> method) {
+            this(method, new Metadata());
+        }
+
+        Call(MethodDescriptor<String, String> method, Metadata headers) {
+            call = channel.newCall(method, CallOptions.DEFAULT);
+            call.start(new ClientCall.Listener<String>() {
+
+                @Override
+                public void onMessage(String message) {
+                    messages.add(message);
+                }
+
+                @Override
+                public void onClose(Status s, Metadata trailers) {
+                    status.complete(s);
+                }
+            }, headers);
+        }
+    }
+}